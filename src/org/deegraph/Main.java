@@ -7,18 +7,25 @@ import java.io.IOException;
 
 public class Main {
     public static void main(String[] args) throws Exception {
-        System.out.println("Starting server");
-
         String configFile = "./config.json";
+        boolean compact = false;
 
-        //for (String arg : args) {
-        //    System.out.println(arg);
-        //}
+        for (String arg : args) {
+            if (arg.equals("--compact")) { // Compact the journal offline, then exit without starting the server
+                compact = true;
+            } else {
+                configFile = arg;
+            }
+        }
 
-        if (args.length > 0) {
-            configFile = args[0];
+        if (compact) {
+            System.out.println("Compacting journal");
+            new GraphDatabase(configFile).shutdown(true);
+            return;
         }
 
+        System.out.println("Starting server");
+
         GraphDatabase graphDatabase = new GraphDatabase(configFile);
 
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
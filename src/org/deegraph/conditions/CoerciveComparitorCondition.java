@@ -3,13 +3,13 @@ package org.deegraph.conditions;
 import org.deegraph.database.*;
 
 import java.text.ParseException;
-import java.util.Arrays;
-
-import static org.deegraph.database.NodePath.metaProp;
+import java.util.Collection;
 
 public class CoerciveComparitorCondition extends Condition {
     protected Condition c1;
     protected Condition c2;
+    private CompiledLiteral compiled1;
+    private CompiledLiteral compiled2;
 
     public CoerciveComparitorCondition(GraphDatabase graphDatabase, Condition c1, Condition c2) {
         super(graphDatabase);
@@ -17,33 +17,47 @@ public class CoerciveComparitorCondition extends Condition {
         this.c2 = c2;
     }
 
-    protected String literalToValue(String literal, SecurityContext securityContext, NodePathContext nodePathContext) throws ParseException {
-        Node requestingNode = nodePathContext.getActor();
-        if (nodePathContext.getRequestingNode() != null) {
-            requestingNode = nodePathContext.getRequestingNode();
+    public Condition getLeft() {
+        return this.c1;
+    }
+
+    public Condition getRight() {
+        return this.c2;
+    }
+
+    @Override
+    public void compile() {
+        this.c1.compile();
+        this.c2.compile();
+        if (this.c1 instanceof RawValue) { // Raw values don't depend on the context, so can be parsed ahead of time
+            this.compiled1 = CompiledLiteral.compile(this.c1.toString());
+        }
+        if (this.c2 instanceof RawValue) {
+            this.compiled2 = CompiledLiteral.compile(this.c2.toString());
+        }
+    }
+
+    @Override
+    public void collectLiterals(Collection<String> literals) {
+        this.c1.collectLiterals(literals);
+        this.c2.collectLiterals(literals);
+    }
+
+    protected String leftValue(SecurityContext securityContext, NodePathContext nodePathContext) throws ParseException {
+        if (this.compiled1 != null) {
+            return this.compiled1.toValue(this.graphDatabase, securityContext, nodePathContext);
         }
+        return literalToValue(this.c1.asLiteral(securityContext, nodePathContext), securityContext, nodePathContext);
+    }
 
-        if (literal.startsWith("\"")) { // Decide whether to treat as literal or not
-            return literal.substring(1, literal.length() - 1);
-        } else {
-            boolean absolute = literal.startsWith("/");
-            String[] components = literal.split("/");
-            String prop = "@data";
-            if (components[components.length - 1].startsWith("@")) {
-                prop = components[components.length - 1];
-                literal = String.join("/", Arrays.copyOfRange(components, 0, components.length - 1));
-                if (!absolute && literal.length() == 0) {
-                    literal = "."; // Special case, empty strings resulting from removing an @ property should be changed to a cd operator
-                }
-            }
-            if (absolute) {
-                literal = "/" + literal;
-            }
-            Node node = new RelativeNodePath(literal).toAbsolute(nodePathContext).getNodeFrom(this.graphDatabase, securityContext);
-            if (node != null) {
-                return metaProp(this.graphDatabase, node, prop, requestingNode);
-            }
+    protected String rightValue(SecurityContext securityContext, NodePathContext nodePathContext) throws ParseException {
+        if (this.compiled2 != null) {
+            return this.compiled2.toValue(this.graphDatabase, securityContext, nodePathContext);
         }
-        return null;
+        return literalToValue(this.c2.asLiteral(securityContext, nodePathContext), securityContext, nodePathContext);
+    }
+
+    protected String literalToValue(String literal, SecurityContext securityContext, NodePathContext nodePathContext) throws ParseException {
+        return CompiledLiteral.compile(literal).toValue(this.graphDatabase, securityContext, nodePathContext);
     }
 }
@@ -0,0 +1,172 @@
+package org.deegraph.conditions;
+
+import org.deegraph.database.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.deegraph.database.NodePath.metaProp;
+import static org.deegraph.database.NodePath.metaPropRaw;
+
+/**
+ * A condition literal that has been parsed once into the node it starts from, the properties to follow and the meta
+ * property to read at the end, so it can be evaluated repeatedly without any string splitting or regex matching.
+ */
+public class CompiledLiteral {
+    private static final Pattern UUID_PATTERN = Pattern.compile("[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}", Pattern.CASE_INSENSITIVE);
+    private static final String CREATOR_STEP = "@creator";
+
+    enum Head {
+        QUOTED, // Not a path at all, just a string value
+        ACTOR,
+        OBJECT,
+        NODE, // An explicit {uuid}
+        NONE // Can never resolve to a node
+    }
+
+    private final String literal;
+    private Head head;
+    private String quotedValue;
+    private UUID headId;
+    private String[] steps; // Property names to follow, or CREATOR_STEP to move to the creator
+    private String metaProperty;
+
+    private CompiledLiteral(String literal) {
+        this.literal = literal;
+    }
+
+    public static CompiledLiteral compile(String literal) {
+        CompiledLiteral compiled = new CompiledLiteral(literal);
+        if (literal.startsWith("\"")) { // Decide whether to treat as literal or not
+            compiled.head = Head.QUOTED;
+            compiled.quotedValue = literal.substring(1, literal.length() - 1);
+            return compiled;
+        }
+
+        boolean absolute = literal.startsWith("/");
+        String[] components = literal.split("/");
+        compiled.metaProperty = "@data";
+        if (components.length > 0 && components[components.length - 1].startsWith("@")) {
+            compiled.metaProperty = components[components.length - 1];
+            components = Arrays.copyOfRange(components, 0, components.length - 1);
+        }
+
+        int firstStep = 0;
+        if (absolute) {
+            compiled.head = Head.ACTOR;
+        } else if (components.length == 0 || (components.length == 1 && components[0].length() == 0)) {
+            compiled.head = Head.OBJECT; // Empty strings resulting from removing an @ property act as a cd operator
+            firstStep = components.length;
+        } else if (components[0].equals(".")) {
+            compiled.head = Head.OBJECT;
+            firstStep = 1;
+        } else if (components[0].startsWith("{") && components[0].endsWith("}")) {
+            Matcher matcher = UUID_PATTERN.matcher(components[0]);
+            compiled.head = matcher.find() ? Head.NODE : Head.NONE;
+            if (compiled.head == Head.NODE) {
+                compiled.headId = UUID.fromString(matcher.group());
+            }
+            firstStep = 1;
+        } else {
+            compiled.head = Head.OBJECT; // Implicitly contextual
+        }
+
+        ArrayList<String> steps = new ArrayList<>();
+        for (int i = firstStep; i < components.length; i++) {
+            if (components[i].length() == 0) {
+                continue;
+            }
+            if (components[i].startsWith("@")) {
+                if (components[i].toLowerCase(Locale.ROOT).equals(CREATOR_STEP)) {
+                    steps.add(CREATOR_STEP);
+                } // Any other meta property can't be traversed, and is ignored as it always has been
+            } else {
+                steps.add(components[i]);
+            }
+        }
+        compiled.steps = steps.toArray(new String[0]);
+        return compiled;
+    }
+
+    public boolean isQuoted() {
+        return this.head == Head.QUOTED;
+    }
+
+    /**
+     * @return The node the literal points at, or null if it is quoted or cannot be resolved in this context
+     */
+    public Node resolveNode(GraphDatabase graphDatabase, SecurityContext securityContext, NodePathContext nodePathContext) {
+        Node tailNode;
+        switch (this.head) {
+            case ACTOR:
+                tailNode = nodePathContext.getActor();
+                break;
+            case OBJECT:
+                tailNode = nodePathContext.getObject();
+                break;
+            case NODE:
+                tailNode = graphDatabase.getNodeUnsafe(this.headId);
+                break;
+            default:
+                return null;
+        }
+        if (tailNode == null) {
+            return null;
+        }
+        if (!Arrays.asList(graphDatabase.getPermsOnNode(securityContext.getActor(), tailNode)).contains(AuthorizedAction.READ)) {
+            return null;
+        }
+        for (String step : this.steps) {
+            if (tailNode == null) {
+                return null;
+            }
+            if (step == CREATOR_STEP) { // Compiled steps are interned, so identity is enough here
+                tailNode = tailNode.getCNode();
+            } else {
+                tailNode = tailNode.getProperty(securityContext, step);
+            }
+        }
+        return tailNode;
+    }
+
+    public String toValue(GraphDatabase graphDatabase, SecurityContext securityContext, NodePathContext nodePathContext) throws ParseException {
+        if (this.head == Head.QUOTED) {
+            return this.quotedValue;
+        }
+        Node node = this.resolveNode(graphDatabase, securityContext, nodePathContext);
+        if (node != null) {
+            return metaProp(graphDatabase, node, this.metaProperty, CompiledLiteral.requestingNode(nodePathContext));
+        }
+        return null;
+    }
+
+    public ByteBuffer toRawValue(GraphDatabase graphDatabase, SecurityContext securityContext, NodePathContext nodePathContext) throws ParseException {
+        if (this.head == Head.QUOTED) {
+            return ByteBuffer.wrap(this.quotedValue.getBytes(StandardCharsets.UTF_8));
+        }
+        Node node = this.resolveNode(graphDatabase, securityContext, nodePathContext);
+        if (node != null) {
+            return metaPropRaw(graphDatabase, node, this.metaProperty, CompiledLiteral.requestingNode(nodePathContext));
+        }
+        return ByteBuffer.allocate(0);
+    }
+
+    private static Node requestingNode(NodePathContext nodePathContext) {
+        if (nodePathContext.getRequestingNode() != null) {
+            return nodePathContext.getRequestingNode();
+        }
+        return nodePathContext.getActor();
+    }
+
+    @Override
+    public String toString() {
+        return this.literal;
+    }
+}
@@ -13,6 +13,7 @@ import java.text.SimpleDateFormat;
 import java.time.Instant;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.TemporalAccessor;
+import java.util.Collection;
 import java.util.LinkedList;
 import java.util.Locale;
 import java.util.TimeZone;
@@ -271,6 +272,19 @@ public abstract class Condition {
         return invertSide ? new LogicalNotCondition(graphDatabase, returnCondition) : returnCondition;
     }
 
+    /**
+     * Called once a condition has been parsed and is going to be evaluated repeatedly, such as in an authorization rule.
+     * Subclasses should parse any literal operands here instead of on every call to eval.
+     */
+    public void compile() {
+    }
+
+    /**
+     * Adds the raw value of every operand in the condition, so the paths it could follow can be worked out.
+     */
+    public void collectLiterals(Collection<String> literals) {
+    }
+
     public boolean eval(SecurityContext securityContext, NodePathContext context) {
         return coerceToBool(this.asLiteral(securityContext, context));
     }
@@ -2,15 +2,15 @@ package org.deegraph.conditions;
 
 import org.deegraph.database.*;
 
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
-import java.util.Arrays;
-
-import static org.deegraph.database.NodePath.metaPropRaw;
+import java.util.Collection;
 
 public class EqualityCondition extends Condition {
     private Condition c1;
     private Condition c2;
+    private CompiledLiteral compiled1;
+    private CompiledLiteral compiled2;
 
     public EqualityCondition(GraphDatabase graphDatabase, Condition c1, Condition c2) {
         super(graphDatabase);
@@ -18,57 +18,54 @@ public class EqualityCondition extends Condition {
         this.c2 = c2;
     }
 
+    public Condition getLeft() {
+        return this.c1;
+    }
+
+    public Condition getRight() {
+        return this.c2;
+    }
+
     @Override
     public String toString() {
         return "(" + c1.toString() + " == " + c2.toString() + ")";
     }
 
-    private byte[] literalToRawValue(String literal, SecurityContext securityContext, NodePathContext nodePathContext) throws ParseException {
-        Node requestingNode = nodePathContext.getActor();
-        if (nodePathContext.getRequestingNode() != null) {
-            requestingNode = nodePathContext.getRequestingNode();
+    @Override
+    public void compile() {
+        this.c1.compile();
+        this.c2.compile();
+        if (this.c1 instanceof RawValue) { // Raw values don't depend on the context, so can be parsed ahead of time
+            this.compiled1 = CompiledLiteral.compile(this.c1.toString());
+        }
+        if (this.c2 instanceof RawValue) {
+            this.compiled2 = CompiledLiteral.compile(this.c2.toString());
         }
+    }
 
-        if (literal.startsWith("\"")) { // Decide whether to treat as literal or not
-            return literal.substring(1, literal.length() - 1).getBytes(StandardCharsets.UTF_8);
-        } else {
-            boolean absolute = literal.startsWith("/");
-            String[] components = literal.split("/");
-            String prop = "@data";
-            if (components[components.length - 1].startsWith("@")) {
-                prop = components[components.length - 1];
-                literal = String.join("/", Arrays.copyOfRange(components, 0, components.length - 1));
-                if (!absolute && literal.length() == 0) {
-                    literal = "."; // Special case, empty strings resulting from removing an @ property should be changed to a cd operator
-                }
-            }
-            if (absolute) {
-                literal = "/" + literal;
-            }
-            Node e1Node = new RelativeNodePath(literal).toAbsolute(nodePathContext).getNodeFrom(this.graphDatabase, securityContext);
-            if (e1Node != null) {
-                return metaPropRaw(this.graphDatabase, e1Node, prop, requestingNode);
-            }
+    @Override
+    public void collectLiterals(Collection<String> literals) {
+        this.c1.collectLiterals(literals);
+        this.c2.collectLiterals(literals);
+    }
+
+    private ByteBuffer rawValueOf(Condition condition, CompiledLiteral compiled, SecurityContext securityContext, NodePathContext nodePathContext) throws ParseException {
+        if (compiled == null) {
+            compiled = CompiledLiteral.compile(condition.asLiteral(securityContext, nodePathContext));
         }
-        return new byte[0];
+        return compiled.toRawValue(this.graphDatabase, securityContext, nodePathContext);
     }
+
     @Override
     public boolean eval(SecurityContext securityContext, NodePathContext nodePathContext) {
         try {
-            String e1 = this.c1.asLiteral(securityContext,nodePathContext);
-            String e2 = this.c2.asLiteral(securityContext,nodePathContext);
-
-
-            //System.out.println(e1 + " == " + e2);
-
-            byte[] rawValue1 = literalToRawValue(e1, securityContext, nodePathContext);
-            byte[] rawValue2 = literalToRawValue(e2, securityContext, nodePathContext);
+            ByteBuffer rawValue1 = rawValueOf(this.c1, this.compiled1, securityContext, nodePathContext);
+            ByteBuffer rawValue2 = rawValueOf(this.c2, this.compiled2, securityContext, nodePathContext);
 
             if (rawValue1 == null || rawValue2 == null) {
                 return (rawValue1 == null && rawValue2 == null);
             }
-            //System.out.println(new String(rawValue1) + " == " + new String(rawValue2) + " : " + (Arrays.equals(rawValue1, rawValue2) ? "TRUE" : "FALSE"));
-            return Arrays.equals(rawValue1, rawValue2);
+            return rawValue1.equals(rawValue2); // Compares the remaining bytes, so payload store views are never copied
         } catch (ParseException e) {
             throw new RuntimeException(e);
         }
@@ -3,10 +3,13 @@ package org.deegraph.conditions;
 import org.deegraph.database.*;
 
 import java.text.ParseException;
+import java.util.Collection;
 
 public class IdentityCondition extends Condition {
     private Condition c1;
     private Condition c2;
+    private RelativeNodePath path1;
+    private RelativeNodePath path2;
 
     public IdentityCondition(GraphDatabase graphDatabase, Condition c1, Condition c2) {
         super(graphDatabase);
@@ -14,17 +17,43 @@ public class IdentityCondition extends Condition {
         this.c2 = c2;
     }
 
+    public Condition getLeft() {
+        return this.c1;
+    }
+
+    public Condition getRight() {
+        return this.c2;
+    }
+
     @Override
     public String toString() {
         return "(" + c1.toString() + " === " + c2.toString() + ")";
     }
 
+    @Override
+    public void compile() {
+        this.c1.compile();
+        this.c2.compile();
+        if (this.c1 instanceof RawValue) { // Raw values don't depend on the context, so the paths only need splitting once
+            this.path1 = new RelativeNodePath(this.c1.toString());
+        }
+        if (this.c2 instanceof RawValue) {
+            this.path2 = new RelativeNodePath(this.c2.toString());
+        }
+    }
+
+    @Override
+    public void collectLiterals(Collection<String> literals) {
+        this.c1.collectLiterals(literals);
+        this.c2.collectLiterals(literals);
+    }
+
     @Override
     public boolean eval(SecurityContext securityContext, NodePathContext nodePathContext) {
-        String e1 = this.c1.asLiteral(securityContext,nodePathContext);
-        String e2 = this.c2.asLiteral(securityContext,nodePathContext);
+        RelativeNodePath e1 = (this.path1 != null) ? this.path1 : new RelativeNodePath(this.c1.asLiteral(securityContext, nodePathContext));
+        RelativeNodePath e2 = (this.path2 != null) ? this.path2 : new RelativeNodePath(this.c2.asLiteral(securityContext, nodePathContext));
 
-        Node[] e1Nodes = new RelativeNodePath(e1).getMatchingNodes(securityContext, nodePathContext, null);
+        Node[] e1Nodes = e1.getMatchingNodes(securityContext, nodePathContext, null);
 
         //System.out.println("E1 : " + e1);
 
@@ -32,7 +61,7 @@ public class IdentityCondition extends Condition {
         //    System.out.println("GID: " + node.getId());
         //}
 
-        Node[] matchingNodes = new RelativeNodePath(e2).getMatchingNodes(securityContext, nodePathContext, e1Nodes);
+        Node[] matchingNodes = e2.getMatchingNodes(securityContext, nodePathContext, SearchSpace.of(e1Nodes));
 
         //System.out.println(e1 + ((matchingNodes.length > 0) ? " == " : " != ") + e2);
         //System.out.println((matchingNodes.length > 0) ? matchingNodes[0].getId() : "NO MATCH");
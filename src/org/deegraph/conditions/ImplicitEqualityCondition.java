@@ -21,10 +21,8 @@ public class ImplicitEqualityCondition extends CoerciveComparitorCondition {
     @Override
     public boolean eval(SecurityContext securityContext, NodePathContext nodePathContext) {
         try {
-            String e1 = this.c1.asLiteral(securityContext,nodePathContext);
-            String e2 = this.c2.asLiteral(securityContext,nodePathContext);
-            e1 = literalToValue(e1, securityContext, nodePathContext);
-            e2 = literalToValue(e2, securityContext, nodePathContext);
+            String e1 = this.leftValue(securityContext, nodePathContext);
+            String e2 = this.rightValue(securityContext, nodePathContext);
 
             if (e1 == null || e2 == null) {
                 return (e1 == null && e2 == null);
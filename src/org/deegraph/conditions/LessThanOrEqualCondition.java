@@ -22,10 +22,8 @@ public class LessThanOrEqualCondition extends CoerciveComparitorCondition {
     @Override
     public boolean eval(SecurityContext securityContext, NodePathContext nodePathContext) {
         try {
-            String e1 = this.c1.asLiteral(securityContext,nodePathContext);
-            String e2 = this.c2.asLiteral(securityContext,nodePathContext);
-            e1 = literalToValue(e1, securityContext, nodePathContext);
-            e2 = literalToValue(e2, securityContext, nodePathContext);
+            String e1 = this.leftValue(securityContext, nodePathContext);
+            String e2 = this.rightValue(securityContext, nodePathContext);
 
             return (coerceToNumber(e1) <= coerceToNumber(e2));
         } catch (ParseException e) {
@@ -4,6 +4,8 @@ import org.deegraph.database.GraphDatabase;
 import org.deegraph.database.NodePathContext;
 import org.deegraph.database.SecurityContext;
 
+import java.util.Collection;
+
 public class LogicalAndCondition extends LogicalCondition {
     private Condition condition1;
     private Condition condition2;
@@ -14,11 +16,31 @@ public class LogicalAndCondition extends LogicalCondition {
         this.condition2 = condition2;
     }
 
+    public Condition getLeft() {
+        return this.condition1;
+    }
+
+    public Condition getRight() {
+        return this.condition2;
+    }
+
     @Override
     public String toString() {
         return "(" + condition1.toString() + " && " + condition2.toString() + ")";
     }
 
+    @Override
+    public void compile() {
+        condition1.compile();
+        condition2.compile();
+    }
+
+    @Override
+    public void collectLiterals(Collection<String> literals) {
+        condition1.collectLiterals(literals);
+        condition2.collectLiterals(literals);
+    }
+
     @Override
     public boolean eval(SecurityContext securityContext, NodePathContext context) {
         return condition1.eval(securityContext, context) && condition2.eval(securityContext, context);
@@ -4,6 +4,8 @@ import org.deegraph.database.GraphDatabase;
 import org.deegraph.database.NodePathContext;
 import org.deegraph.database.SecurityContext;
 
+import java.util.Collection;
+
 public class LogicalNotCondition extends LogicalCondition {
     private Condition condition;
 
@@ -17,6 +19,16 @@ public class LogicalNotCondition extends LogicalCondition {
         return "NOT " + condition.toString();
     }
 
+    @Override
+    public void compile() {
+        condition.compile();
+    }
+
+    @Override
+    public void collectLiterals(Collection<String> literals) {
+        condition.collectLiterals(literals);
+    }
+
     @Override
     public boolean eval(SecurityContext securityContext, NodePathContext context) {
         return !condition.eval(securityContext, context);
@@ -4,6 +4,8 @@ import org.deegraph.database.GraphDatabase;
 import org.deegraph.database.NodePathContext;
 import org.deegraph.database.SecurityContext;
 
+import java.util.Collection;
+
 public class LogicalOrCondition extends LogicalCondition {
     private Condition condition1;
     private Condition condition2;
@@ -19,6 +21,18 @@ public class LogicalOrCondition extends LogicalCondition {
         return "(" + condition1.toString() + " || " + condition2.toString() + ")";
     }
 
+    @Override
+    public void compile() {
+        condition1.compile();
+        condition2.compile();
+    }
+
+    @Override
+    public void collectLiterals(Collection<String> literals) {
+        condition1.collectLiterals(literals);
+        condition2.collectLiterals(literals);
+    }
+
     @Override
     public boolean eval(SecurityContext securityContext, NodePathContext context) {
         return condition1.eval(securityContext, context) || condition2.eval(securityContext, context);
@@ -4,6 +4,8 @@ import org.deegraph.database.GraphDatabase;
 import org.deegraph.database.NodePathContext;
 import org.deegraph.database.SecurityContext;
 
+import java.util.Collection;
+
 public class RawValue extends Condition {
     private String literal;
 
@@ -17,6 +19,11 @@ public class RawValue extends Condition {
         return this.literal;
     }
 
+    @Override
+    public void collectLiterals(Collection<String> literals) {
+        literals.add(this.literal);
+    }
+
     @Override
     public String asLiteral(SecurityContext securityContext, NodePathContext context) {
         return this.literal;
@@ -3,24 +3,90 @@ package org.deegraph.database;
 import org.deegraph.exceptions.InvalidMetaPropertyException;
 import org.deegraph.formats.DataUrl;
 
-import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
-import java.util.Locale;
 import java.util.TimeZone;
 import java.util.UUID;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class AbsoluteNodePath {
+    private static final Pattern UUID_PATTERN = Pattern.compile("[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}", Pattern.CASE_INSENSITIVE);
 
     String[] pathComponents;
+    private final PathStep[] steps;
+    private final UUID headId; // Null if the path doesn't start with a valid {uuid}
+    private final int traversalEnd; // The first meta property (other than @creator) ends the part of the path shared by every lookup
+    private final int hash;
+
     public AbsoluteNodePath(String path) {
         if (path.endsWith("/")) {
             path = path.substring(0, path.length() - 1);
         }
         this.pathComponents = path.split("/");
+        this.steps = PathStep.parseAll(this.pathComponents);
+        UUID headId = null;
+        if (this.pathComponents[0].startsWith("{") && this.pathComponents[0].endsWith("}")) {
+            headId = this.steps[0].getId();
+            if (headId == null) { // Not exactly {uuid}, but the id has always been found anywhere inside the braces
+                Matcher matcher = UUID_PATTERN.matcher(this.pathComponents[0]);
+                if (matcher.find()) {
+                    headId = UUID.fromString(matcher.group());
+                }
+            }
+        }
+        this.headId = headId;
+        int traversalEnd = this.steps.length;
+        for (int i = 1; i < this.steps.length; i++) {
+            if (this.steps[i].getKind() == PathStep.Kind.META) {
+                traversalEnd = i;
+                break;
+            }
+        }
+        this.traversalEnd = traversalEnd;
+        this.hash = Arrays.hashCode(this.pathComponents);
+    }
+
+    /**
+     * Follows the path from its head as far as the first meta property other than @creator, checking READ at every
+     * hop. If the security context has a resolution cache, a path that has been followed before is just looked up.
+     */
+    private Node resolveTraversal(GraphDatabase graphDatabase, SecurityContext securityContext) {
+        PathResolutionCache cache = securityContext.getResolutionCache();
+        if (cache != null) {
+            Node cached = cache.get(this);
+            if (cached != null || cache.contains(this)) {
+                return cached;
+            }
+        }
+        Node tailNode = null;
+        if (this.headId != null) {
+            Node candidateTailNode = graphDatabase.getNodeUnsafe(this.headId);
+            if (candidateTailNode != null && Arrays.asList(securityContext.getDatabase().getPermsOnNode(securityContext.getActor(), candidateTailNode)).contains(AuthorizedAction.READ)) {
+                tailNode = candidateTailNode;
+            }
+        }
+        for (int i = 1; i < this.traversalEnd && tailNode != null; i++) {
+            tailNode = AbsoluteNodePath.follow(securityContext, tailNode, this.steps[i]);
+        }
+        if (cache != null) {
+            cache.put(this, tailNode);
+        }
+        return tailNode;
+    }
+
+    /**
+     * @return The node after taking a step that isn't a meta property, other than @creator
+     */
+    private static Node follow(SecurityContext securityContext, Node tailNode, PathStep step) {
+        if (step.getText().length() == 0) {
+            return tailNode;
+        }
+        if (step.getKind() == PathStep.Kind.CREATOR) {
+            return tailNode.getCNode();
+        }
+        return tailNode.getProperty(securityContext, step.getText()); // Wildcards and ids aren't property names, so never match
     }
 
     /**
@@ -29,112 +95,58 @@ public class AbsoluteNodePath {
      * @return The node if path is exact, else null
      */
     public Node getNodeFrom(GraphDatabase graphDatabase, SecurityContext securityContext) {
-        Node tailNode = null;
-        int i = 0;
-        int pathTraversalLength = pathComponents.length;
-        if (pathComponents[0].startsWith("{") && pathComponents[0].endsWith("}")) {
-            i = 1;
-            Pattern pattern = Pattern.compile("[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}", Pattern.CASE_INSENSITIVE);
-            Matcher matcher = pattern.matcher(pathComponents[0]);
-            if (matcher.find()) {
-                String uuid = matcher.group();
-                Node candidateTailNode = graphDatabase.getNodeUnsafe(UUID.fromString(uuid));
-                if (Arrays.asList(securityContext.getDatabase().getPermsOnNode(securityContext.getActor(), candidateTailNode)).contains(AuthorizedAction.READ)) {
-                    tailNode = candidateTailNode;
-                }
-            } else {
-                tailNode = null;
-            }
-        }
-        if (tailNode != null) {
-            while (i < pathTraversalLength) {
-                if (pathComponents[i].length() > 0) {
-                    if (tailNode != null) {
-                        if (pathComponents[i].startsWith("@")) {
-                            switch (pathComponents[i].toLowerCase(Locale.ROOT)) {
-                                case "@creator":
-                                    tailNode = tailNode.getCNode();
-                                    break;
-                            }
-                        } else {
-                            tailNode = tailNode.getProperty(securityContext, pathComponents[i]);
-                        }
-                    }
-                }
-                i++;
+        Node tailNode = this.resolveTraversal(graphDatabase, securityContext);
+        for (int i = this.traversalEnd; i < this.steps.length && tailNode != null; i++) {
+            if (this.steps[i].getKind() != PathStep.Kind.META) { // Other meta properties are skipped over
+                tailNode = AbsoluteNodePath.follow(securityContext, tailNode, this.steps[i]);
             }
         }
         return tailNode;
     }
 
     public String eval(SecurityContext securityContext) throws InvalidMetaPropertyException {
-        Node tailNode = null;
-        int i = 0;
-        int pathTraversalLength = pathComponents.length;
-        if (pathComponents[0].startsWith("{") && pathComponents[0].endsWith("}")) {
-            i = 1;
-            Pattern pattern = Pattern.compile("[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}", Pattern.CASE_INSENSITIVE);
-            Matcher matcher = pattern.matcher(pathComponents[0]);
-            if (matcher.find()) {
-                String uuid = matcher.group();
-                Node candidateTailNode = securityContext.getDatabase().getNodeUnsafe(UUID.fromString(uuid));
-                if (Arrays.asList(securityContext.getDatabase().getPermsOnNode(securityContext.getActor(), candidateTailNode)).contains(AuthorizedAction.READ)) {
-                    tailNode = candidateTailNode;
-                }
-            } else {
-                tailNode = null;
+        Node tailNode = this.resolveTraversal(securityContext.getDatabase(), securityContext);
+        for (int i = this.traversalEnd; i < this.steps.length && tailNode != null; i++) {
+            PathStep step = this.steps[i];
+            if (step.getKind() != PathStep.Kind.META) {
+                tailNode = AbsoluteNodePath.follow(securityContext, tailNode, step);
+                continue;
             }
-        }
-        if (tailNode != null) {
-            while (i < pathTraversalLength) {
-                if (pathComponents[i].length() > 0) {
-                    if (tailNode != null) {
-                        if (pathComponents[i].startsWith("@")) {
-                            switch (pathComponents[i].toLowerCase(Locale.ROOT)) {
-                                case "@creator":
-                                    tailNode = tailNode.getCNode();
-                                    break;
-                                case "@creator_id":
-                                    if (tailNode.getCNode() != null) {
-                                        return "{" + tailNode.getCNode().getId() + "}";
-                                    }
-                                    break;
-                                case "@original_creator_id":
-                                    return "{" + tailNode.getOCNodeId() + "}";
-                                case "@schema":
-                                    return tailNode.getSchema();
-                                case "@id":
-                                    return "{" + tailNode.getId() + "}";
-                                case "@original_id":
-                                    return "{" + tailNode.getOCNodeId() + "}";
-                                case "@original_instance_id":
-                                    return "{" + tailNode.getOriginalInstanceId().toString() + "}";
-                                case "@created":
-                                    DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'"); // Quoted "Z" to indicate UTC, no timezone offset
-                                    df.setTimeZone(TimeZone.getTimeZone("UTC"));
-                                    return df.format(tailNode.getCTime());
-                                case "@originally_created":
-                                    DateFormat df2 = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'"); // Quoted "Z" to indicate UTC, no timezone offset
-                                    df2.setTimeZone(TimeZone.getTimeZone("UTC"));
-                                    return df2.format(tailNode.getOCTime());
-                                case "@data":
-                                    String data = tailNode.getData(securityContext);
-                                    if (data != null) {
-                                        return data;
-                                    }
-                                    break;
-                                case "@path":
-                                    String[] slicedPath = Arrays.copyOfRange(pathComponents, 0, i);
-                                    return String.join("/", slicedPath);
-                                default:
-                                    throw new InvalidMetaPropertyException(pathComponents[i].toLowerCase(Locale.ROOT));
-                            }
-                        } else {
-                            tailNode = tailNode.getProperty(securityContext, pathComponents[i]);
-                        }
+            switch (step.getName()) {
+                case "@creator_id":
+                    if (tailNode.getCNode() != null) {
+                        return "{" + tailNode.getCNode().getId() + "}";
                     }
-                }
-                i++;
+                    break;
+                case "@original_creator_id":
+                    return "{" + tailNode.getOCNodeId() + "}";
+                case "@schema":
+                    return tailNode.getSchema();
+                case "@id":
+                    return "{" + tailNode.getId() + "}";
+                case "@original_id":
+                    return "{" + tailNode.getOCNodeId() + "}";
+                case "@original_instance_id":
+                    return "{" + tailNode.getOriginalInstanceId().toString() + "}";
+                case "@created":
+                    DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'"); // Quoted "Z" to indicate UTC, no timezone offset
+                    df.setTimeZone(TimeZone.getTimeZone("UTC"));
+                    return df.format(tailNode.getCTime());
+                case "@originally_created":
+                    DateFormat df2 = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'"); // Quoted "Z" to indicate UTC, no timezone offset
+                    df2.setTimeZone(TimeZone.getTimeZone("UTC"));
+                    return df2.format(tailNode.getOCTime());
+                case "@data":
+                    String data = tailNode.getData(securityContext);
+                    if (data != null) {
+                        return data;
+                    }
+                    break;
+                case "@path":
+                    String[] slicedPath = Arrays.copyOfRange(pathComponents, 0, i);
+                    return String.join("/", slicedPath);
+                default:
+                    throw new InvalidMetaPropertyException(step.getName());
             }
         }
         if (tailNode != null) {
@@ -143,17 +155,21 @@ public class AbsoluteNodePath {
         return null;
     }
 
+    PathStep[] getSteps() {
+        return this.steps;
+    }
 
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (!(o instanceof AbsoluteNodePath)) return false;
+        if (this.hash != ((AbsoluteNodePath) o).hash) return false;
         return Arrays.equals(pathComponents, ((AbsoluteNodePath) o).pathComponents);
     }
 
     @Override
     public int hashCode() {
-        return Arrays.hashCode(pathComponents);
+        return this.hash;
     }
 
     @Override
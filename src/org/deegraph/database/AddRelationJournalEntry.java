@@ -4,6 +4,7 @@ import org.deegraph.exceptions.DuplicatePropertyException;
 import org.deegraph.exceptions.MissingNodeException;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.util.Date;
 import java.util.UUID;
 
@@ -56,7 +57,7 @@ public class AddRelationJournalEntry extends JournalEntry {
                 try {
                     Node existingSubject = referrerNode.getPropertyUnsafe(this.referenceName);
                     if (existingSubject != null) {
-                        if (existingSubject.getOCTime().before(subjectNode.getOCTime())) { // Only replace the node if the one given is newer - we almost always want the most recent data
+                        if (existingSubject.getOCTimeMillis() < subjectNode.getOCTimeMillis()) { // Only replace the node if the one given is newer - we almost always want the most recent data
                             referrerNode.removeProperty(new SecurityContext(graphDatabase, actorNode), this.referenceName);
                             referrerNode.addProperty(new SecurityContext(graphDatabase, actorNode), this.referenceName, subjectNode);
                         }
@@ -92,4 +93,23 @@ public class AddRelationJournalEntry extends JournalEntry {
         JournalEntry je = new AddRelationJournalEntry(dTime, actor, referrerLocalId, referenceName, subjectLocalId);
         return je;
     }
+
+    public static JournalEntry fromBinary(JournalDecoder input) throws IOException {
+        UUID actor = input.readDictionaryUuid();
+        UUID referrerLocalId = input.readUuid();
+        String referenceName = input.readDictionaryString();
+        UUID subjectLocalId = input.readUuid();
+        Date dTime = input.readTimestamp();
+        return new AddRelationJournalEntry(dTime, actor, referrerLocalId, referenceName, subjectLocalId);
+    }
+
+    @Override
+    public void asBinary(JournalEncoder output) throws IOException {
+        output.writeType(BINARY_ADD_RELATION);
+        output.writeDictionaryUuid(this.actor);
+        output.writeUuid(this.referrerLocalId);
+        output.writeDictionaryString(this.referenceName);
+        output.writeUuid(this.subjectLocalId);
+        output.writeTimestamp(this.timestamp);
+    }
 }
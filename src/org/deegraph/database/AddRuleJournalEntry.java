@@ -0,0 +1,230 @@
+package org.deegraph.database;
+
+import org.deegraph.conditions.Condition;
+import org.deegraph.query.GrantQuery;
+import org.deegraph.query.Query;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * Registers an authorization rule under a fixed id. The rule is recorded as it was resolved when granted - its actions,
+ * paths and condition tokens - so replaying it doesn't have to parse or re-authorize the GRANT query again.
+ */
+public class AddRuleJournalEntry extends JournalEntry {
+    private UUID actor;
+    private UUID ruleId;
+    private AuthorizedAction[] actions;
+    private String[] validFor; // Null if the rule applies to the object itself
+    private boolean delegatable;
+    private List<String> condition; // Null if the rule is unconditional
+    private String grant; // Only set for entries written before rules were recorded structurally
+
+    public AddRuleJournalEntry(UUID actor, AuthorizationRule rule) {
+        super(new Date());
+        this.actor = actor;
+        this.ruleId = rule.getUuid();
+        this.actions = rule.getAuthorizableActions();
+        if (rule.getValidFor() != null) {
+            this.validFor = new String[rule.getValidFor().length];
+            for (int i = 0; i < this.validFor.length; i++) {
+                this.validFor[i] = rule.getValidFor()[i].toString();
+            }
+        }
+        this.delegatable = rule.isDelegatable();
+        this.condition = rule.getConditionComponents();
+    }
+
+    public AddRuleJournalEntry(Date timestamp, UUID actor, UUID ruleId, AuthorizedAction[] actions, String[] validFor, boolean delegatable, List<String> condition) {
+        super(timestamp);
+        this.actor = actor;
+        this.ruleId = ruleId;
+        this.actions = actions;
+        this.validFor = validFor;
+        this.delegatable = delegatable;
+        this.condition = condition;
+    }
+
+    private AddRuleJournalEntry(Date timestamp, UUID actor, UUID ruleId, String grant) {
+        super(timestamp);
+        this.actor = actor;
+        this.ruleId = ruleId;
+        this.grant = grant;
+    }
+
+    public UUID getActor() {
+        return actor;
+    }
+
+    public UUID getRuleId() {
+        return ruleId;
+    }
+
+    @Override
+    public boolean replayOn(GraphDatabase graphDatabase, Node source) throws ParseException {
+        if (this.grant != null) {
+            Query query = Query.fromString(this.grant, graphDatabase.getNodeUnsafe(this.actor));
+            if (!(query instanceof GrantQuery)) {
+                throw new ParseException("Rule is not defined by a GRANT query", 0);
+            }
+            try {
+                ((GrantQuery) query).runGrantQuery(graphDatabase, this.ruleId); // Still checks the actor can act as the instance node
+            } catch (NoSuchMethodException e) {
+                throw new RuntimeException(e);
+            }
+            return false;
+        }
+        RelativeNodePath[] paths = null;
+        if (this.validFor != null) {
+            paths = new RelativeNodePath[this.validFor.length];
+            for (int i = 0; i < paths.length; i++) {
+                paths[i] = new RelativeNodePath(this.validFor[i]);
+            }
+        }
+        Condition parsedCondition = null;
+        if (this.condition != null) {
+            parsedCondition = Condition.fromComponents(graphDatabase, new LinkedList<>(this.condition)); // Parsing consumes the list
+        }
+        AuthorizationRule rule = new AuthorizationRule(paths, parsedCondition, this.actions, this.delegatable, this.ruleId, this.condition);
+        rule.compile();
+        graphDatabase.registerRule(rule);
+        return false;
+    }
+
+    @Override
+    public JSONObject asJson() {
+        JSONObject out = new JSONObject();
+        out.put("type", "ADD_RULE");
+        out.put("actor_id", this.actor);
+        out.put("rule_id", this.ruleId);
+        if (this.grant != null) {
+            out.put("grant", this.grant);
+        } else {
+            JSONArray actionArray = new JSONArray();
+            for (AuthorizedAction action : this.actions) {
+                actionArray.put(action.name());
+            }
+            out.put("actions", actionArray);
+            if (this.validFor != null) {
+                out.put("valid_for", new JSONArray(this.validFor));
+            }
+            out.put("delegatable", this.delegatable);
+            if (this.condition != null) {
+                out.put("condition", new JSONArray(this.condition));
+            }
+        }
+        out.put("timestamp", JournalEntry.formatDate(this.timestamp));
+        return out;
+    }
+
+    public static JournalEntry fromJson(JSONObject input) {
+        UUID actor = UUID.fromString(input.getString("actor_id"));
+        UUID ruleId = UUID.fromString(input.getString("rule_id"));
+        Date timestamp = JournalEntry.fromFormattedDate(input.getString("timestamp"));
+        if (input.has("grant")) {
+            return new AddRuleJournalEntry(timestamp, actor, ruleId, input.getString("grant"));
+        }
+        JSONArray actionArray = input.getJSONArray("actions");
+        AuthorizedAction[] actions = new AuthorizedAction[actionArray.length()];
+        for (int i = 0; i < actions.length; i++) {
+            actions[i] = AuthorizedAction.valueOf(actionArray.getString(i).toUpperCase(Locale.ROOT));
+        }
+        String[] validFor = null;
+        if (input.has("valid_for")) {
+            JSONArray pathArray = input.getJSONArray("valid_for");
+            validFor = new String[pathArray.length()];
+            for (int i = 0; i < validFor.length; i++) {
+                validFor[i] = pathArray.getString(i);
+            }
+        }
+        List<String> condition = null;
+        if (input.has("condition")) {
+            JSONArray conditionArray = input.getJSONArray("condition");
+            condition = new ArrayList<>();
+            for (int i = 0; i < conditionArray.length(); i++) {
+                condition.add(conditionArray.getString(i));
+            }
+        }
+        return new AddRuleJournalEntry(timestamp, actor, ruleId, actions, validFor, input.getBoolean("delegatable"), condition);
+    }
+
+    /**
+     * Reads an entry written before rules were recorded structurally, which only holds the GRANT query.
+     */
+    public static JournalEntry fromGrantBinary(JournalDecoder input) throws IOException {
+        UUID actor = input.readDictionaryUuid();
+        UUID ruleId = input.readUuid();
+        String grant = input.readString();
+        Date timestamp = input.readTimestamp();
+        return new AddRuleJournalEntry(timestamp, actor, ruleId, grant);
+    }
+
+    public static JournalEntry fromBinary(JournalDecoder input) throws IOException {
+        UUID actor = input.readDictionaryUuid();
+        UUID ruleId = input.readUuid();
+        AuthorizedAction[] actions = new AuthorizedAction[input.readVarInt()];
+        for (int i = 0; i < actions.length; i++) {
+            actions[i] = AuthorizedAction.valueOf(input.readDictionaryString());
+        }
+        int pathCount = input.readVarInt(); // Offset by 1, with 0 reserved for null
+        String[] validFor = null;
+        if (pathCount > 0) {
+            validFor = new String[pathCount - 1];
+            for (int i = 0; i < validFor.length; i++) {
+                validFor[i] = input.readString();
+            }
+        }
+        boolean delegatable = input.readVarInt() != 0;
+        int conditionLength = input.readVarInt(); // Offset by 1, with 0 reserved for null
+        List<String> condition = null;
+        if (conditionLength > 0) {
+            condition = new ArrayList<>();
+            for (int i = 0; i < conditionLength - 1; i++) {
+                condition.add(input.readDictionaryString());
+            }
+        }
+        Date timestamp = input.readTimestamp();
+        return new AddRuleJournalEntry(timestamp, actor, ruleId, actions, validFor, delegatable, condition);
+    }
+
+    @Override
+    public void asBinary(JournalEncoder output) throws IOException {
+        if (this.grant != null) {
+            output.writeType(BINARY_ADD_GRANT_RULE);
+            output.writeDictionaryUuid(this.actor);
+            output.writeUuid(this.ruleId);
+            output.writeString(this.grant);
+            output.writeTimestamp(this.timestamp);
+            return;
+        }
+        output.writeType(BINARY_ADD_RULE);
+        output.writeDictionaryUuid(this.actor);
+        output.writeUuid(this.ruleId);
+        output.writeVarInt(this.actions.length);
+        for (AuthorizedAction action : this.actions) {
+            output.writeDictionaryString(action.name());
+        }
+        output.writeVarInt(this.validFor == null ? 0 : this.validFor.length + 1);
+        if (this.validFor != null) {
+            for (String path : this.validFor) {
+                output.writeString(path);
+            }
+        }
+        output.writeVarInt(this.delegatable ? 1 : 0);
+        output.writeVarInt(this.condition == null ? 0 : this.condition.size() + 1);
+        if (this.condition != null) {
+            for (String component : this.condition) {
+                output.writeDictionaryString(component);
+            }
+        }
+        output.writeTimestamp(this.timestamp);
+    }
+}
@@ -2,6 +2,10 @@ package org.deegraph.database;
 
 import org.deegraph.conditions.Condition;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
 public class AuthorizationRule {
@@ -12,6 +16,10 @@ public class AuthorizationRule {
     private AuthorizedAction[] authorizedActions;
 
     private boolean delegatable;
+    private boolean global; // Set if the rule can observe nodes unrelated to the actor and object, through a ** path
+    private List<String> conditionComponents; // The tokens the condition was parsed from, so the rule can be journaled without its GRANT query
+    private int reach = 0; // The most steps any of the rule's paths can take from where they start
+    private final Set<UUID> literalHeads = new HashSet<>(); // The nodes any of the rule's paths start from by id
 
     public AuthorizationRule(RelativeNodePath[] validFor, Condition condition, AuthorizedAction[] authorizedActions, boolean delegatable) {
         if (validFor != null) {
@@ -23,6 +31,7 @@ public class AuthorizationRule {
         this.authorizedActions = authorizedActions;
         this.uuid = UUID.randomUUID();
         this.delegatable = delegatable;
+        this.analysePaths();
     }
 
     public AuthorizationRule(RelativeNodePath[] validFor, Condition condition, AuthorizedAction[] authorizedActions, boolean delegatable, UUID uuid) {
@@ -35,12 +44,73 @@ public class AuthorizationRule {
         this.authorizedActions = authorizedActions;
         this.uuid = uuid;
         this.delegatable = delegatable;
+        this.analysePaths();
+    }
+
+    public AuthorizationRule(RelativeNodePath[] validFor, Condition condition, AuthorizedAction[] authorizedActions, boolean delegatable, UUID uuid, List<String> conditionComponents) {
+        this(validFor, condition, authorizedActions, delegatable, uuid);
+        this.conditionComponents = conditionComponents;
+    }
+
+    /**
+     * Works out whether any of the rule's paths is global, and otherwise how far they can reach and from which literal
+     * nodes, so a changed edge only has to be looked at from the nodes those paths could have followed it from.
+     */
+    private void analysePaths() {
+        ArrayList<PathPlan> plans = new ArrayList<>();
+        if (this.condition != null) {
+            ArrayList<String> literals = new ArrayList<>();
+            this.condition.collectLiterals(literals);
+            for (String literal : literals) {
+                if (!literal.startsWith("\"")) { // Quoted values are never followed
+                    plans.add(PathPlan.compile(literal));
+                }
+            }
+        }
+        if (this.validFor != null) {
+            for (RelativeNodePath relativeNodePath : this.validFor) {
+                plans.add(relativeNodePath.getPlan());
+            }
+        }
+        for (PathPlan plan : plans) {
+            if (plan.getStart() == PathPlan.Start.GLOBAL) {
+                this.global = true;
+            }
+            for (PathStep step : plan.getSteps()) {
+                if (step.getKind() == PathStep.Kind.GLOBAL) {
+                    this.global = true;
+                }
+            }
+            int steps = plan.getSteps().length;
+            if (plan.getStart() == PathPlan.Start.LITERAL) { // The literal is kept as the first step
+                if (plan.getSteps()[0].getId() != null) {
+                    this.literalHeads.add(plan.getSteps()[0].getId());
+                }
+                steps--;
+            }
+            this.reach = Math.max(this.reach, steps);
+        }
     }
 
     public UUID getUuid() {
         return uuid;
     }
 
+    public List<String> getConditionComponents() {
+        return conditionComponents;
+    }
+
+    /**
+     * Rules built directly in code, rather than from a GRANT query, may have a condition we have no way to write out.
+     */
+    public boolean isJournalable() {
+        return this.condition == null || this.conditionComponents != null;
+    }
+
+    public RelativeNodePath[] getValidFor() {
+        return validFor;
+    }
+
     public Condition getCondition() {
         return condition;
     }
@@ -53,6 +123,38 @@ public class AuthorizationRule {
         return delegatable;
     }
 
+    /**
+     * Global rules can depend on any node in the database (for example through a ** path), so adding a node or changing
+     * who created what may change their outcome for an unrelated actor and object.
+     */
+    public boolean isGlobal() {
+        return global;
+    }
+
+    /**
+     * @return The most edges any of the rule's paths can follow, so an edge further than this from the actor, object and
+     * literal nodes a rule is evaluated on can't change its outcome
+     */
+    public int getReach() {
+        return reach;
+    }
+
+    /**
+     * @return The ids of the nodes any of the rule's paths start from, whichever actor and object it is evaluated on
+     */
+    public Set<UUID> getLiteralHeads() {
+        return literalHeads;
+    }
+
+    /**
+     * Pre-parses the condition so it isn't re-split from strings on every permission check.
+     */
+    public void compile() {
+        if (this.condition != null) {
+            this.condition.compile();
+        }
+    }
+
     public Authorization getAuthorization(GraphDatabase graphDatabase, Node actor, Node object) {
         boolean checkPassed = (graphDatabase.getInstanceNode().equals(actor)); // Bypass for the instance node for performance - this node has all perms!
         if (condition == null) {
@@ -0,0 +1,286 @@
+package org.deegraph.database;
+
+import org.deegraph.conditions.*;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Buckets authorization rules by the actor or object they are restricted to, so a permission check only has to
+ * evaluate the rules that could possibly apply to it. This is only a pre-filter - candidate rules are still evaluated in
+ * full, and any rule whose shape isn't recognised is always a candidate.
+ *
+ * Recognised shapes are top level (or AND-ed) comparisons of raw values, for example {@code /@id == "{uuid}"},
+ * {@code @id == "{uuid}"}, {@code @creator_id == /@id}, {@code @creator === /} and {@code @id == /@id}, as well as
+ * rules whose validFor paths all start from a literal {@code {uuid}} and only follow named properties from there, such
+ * as {@code {uuid}} or {@code {uuid}/members/admin}. These are bucketed under the literal, and found by walking back
+ * from the object through its referrers under the same names.
+ */
+public class AuthorizationRuleIndex {
+    private static final Pattern LITERAL_NODE_PATTERN = Pattern.compile("^\\{([0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12})\\}$", Pattern.CASE_INSENSITIVE);
+
+    private final ArrayList<AuthorizationRule> unindexedRules = new ArrayList<>();
+    private final HashMap<UUID, ArrayList<AuthorizationRule>> rulesByActor = new HashMap<>();
+    private final HashMap<UUID, ArrayList<AuthorizationRule>> rulesByObject = new HashMap<>();
+    private final ArrayList<AuthorizationRule> creatorIsActorRules = new ArrayList<>();
+    private final ArrayList<AuthorizationRule> objectIsActorRules = new ArrayList<>();
+    private final HashMap<List<String>, HashMap<UUID, ArrayList<AuthorizationRule>>> rulesByValidForHead = new HashMap<>(); // Keyed by the names a validFor path follows from its literal, then the literal
+    private int size = 0;
+
+    private enum OperandType {
+        ACTOR_ID,
+        OBJECT_ID,
+        CREATOR_ID,
+        LITERAL_ID
+    }
+
+    private static class Operand {
+        private final OperandType type;
+        private final UUID id;
+
+        Operand(OperandType type, UUID id) {
+            this.type = type;
+            this.id = id;
+        }
+    }
+
+    public void add(AuthorizationRule rule) {
+        this.size++;
+        UUID actorId = null;
+        UUID objectId = null;
+        boolean creatorIsActor = false;
+        boolean objectIsActor = false;
+
+        ArrayList<Condition> conjuncts = new ArrayList<>();
+        AuthorizationRuleIndex.collectConjuncts(rule.getCondition(), conjuncts);
+        for (Condition conjunct : conjuncts) {
+            Condition left;
+            Condition right;
+            boolean identity = false;
+            if (conjunct instanceof EqualityCondition) {
+                left = ((EqualityCondition) conjunct).getLeft();
+                right = ((EqualityCondition) conjunct).getRight();
+            } else if (conjunct instanceof ImplicitEqualityCondition) {
+                left = ((ImplicitEqualityCondition) conjunct).getLeft();
+                right = ((ImplicitEqualityCondition) conjunct).getRight();
+            } else if (conjunct instanceof IdentityCondition) {
+                left = ((IdentityCondition) conjunct).getLeft();
+                right = ((IdentityCondition) conjunct).getRight();
+                identity = true;
+            } else {
+                continue;
+            }
+            if (!(left instanceof RawValue) || !(right instanceof RawValue)) {
+                continue;
+            }
+            Operand a = AuthorizationRuleIndex.classifyOperand(left.toString(), identity);
+            Operand b = AuthorizationRuleIndex.classifyOperand(right.toString(), identity);
+            if (a == null || b == null) {
+                continue;
+            }
+            if (a.type == OperandType.LITERAL_ID) { // Normalise so any literal is always on the right
+                Operand swap = a;
+                a = b;
+                b = swap;
+            }
+            if (b.type == OperandType.LITERAL_ID) {
+                if (a.type == OperandType.ACTOR_ID) {
+                    actorId = b.id;
+                } else if (a.type == OperandType.OBJECT_ID) {
+                    objectId = b.id;
+                }
+            } else if (AuthorizationRuleIndex.isPair(a, b, OperandType.CREATOR_ID, OperandType.ACTOR_ID)) {
+                creatorIsActor = true;
+            } else if (AuthorizationRuleIndex.isPair(a, b, OperandType.OBJECT_ID, OperandType.ACTOR_ID)) {
+                objectIsActor = true;
+            }
+        }
+
+        if (actorId != null) {
+            this.rulesByActor.computeIfAbsent(actorId, k -> new ArrayList<>()).add(rule);
+            return;
+        }
+        if (objectId != null) {
+            this.rulesByObject.computeIfAbsent(objectId, k -> new ArrayList<>()).add(rule);
+            return;
+        }
+        if (AuthorizationRuleIndex.isValidForLiteralsOnly(rule.getValidFor())) { // The rule can never be valid for any object other than those these paths reach
+            for (RelativeNodePath relativeNodePath : rule.getValidFor()) {
+                PathStep[] steps = relativeNodePath.getPlan().getSteps();
+                this.rulesByValidForHead.computeIfAbsent(AuthorizationRuleIndex.namesAfterHead(steps), k -> new HashMap<>())
+                        .computeIfAbsent(steps[0].getId(), k -> new ArrayList<>()).add(rule);
+            }
+            return;
+        }
+        if (creatorIsActor) {
+            this.creatorIsActorRules.add(rule);
+            return;
+        }
+        if (objectIsActor) {
+            this.objectIsActorRules.add(rule);
+            return;
+        }
+        this.unindexedRules.add(rule);
+    }
+
+    /**
+     * @return Every rule that could grant the actor permissions on the object
+     */
+    public List<AuthorizationRule> getCandidates(Node actor, Node object) {
+        ArrayList<AuthorizationRule> candidates = new ArrayList<>(this.unindexedRules);
+        List<AuthorizationRule> actorRules = this.rulesByActor.get(actor.getId());
+        if (actorRules != null) {
+            candidates.addAll(actorRules);
+        }
+        List<AuthorizationRule> objectRules = this.rulesByObject.get(object.getId());
+        if (objectRules != null) {
+            candidates.addAll(objectRules);
+        }
+        if (object.getCNode() != null && object.getCNode().getId().equals(actor.getId())) {
+            candidates.addAll(this.creatorIsActorRules);
+        }
+        if (object.getId().equals(actor.getId())) {
+            candidates.addAll(this.objectIsActorRules);
+        }
+        if (!this.rulesByValidForHead.isEmpty()) {
+            LinkedHashSet<AuthorizationRule> validForRules = new LinkedHashSet<>(); // A rule with several paths can reach the object through more than one
+            for (Map.Entry<List<String>, HashMap<UUID, ArrayList<AuthorizationRule>>> entry : this.rulesByValidForHead.entrySet()) {
+                for (Node head : AuthorizationRuleIndex.walkBack(object, entry.getKey())) {
+                    List<AuthorizationRule> headRules = entry.getValue().get(head.getId());
+                    if (headRules != null) {
+                        validForRules.addAll(headRules);
+                    }
+                }
+            }
+            candidates.addAll(validForRules);
+        }
+        return candidates;
+    }
+
+    /**
+     * @return Every rule that could grant the actor permissions on any object
+     */
+    public List<AuthorizationRule> getCandidates(Node actor) {
+        ArrayList<AuthorizationRule> candidates = new ArrayList<>(this.unindexedRules);
+        List<AuthorizationRule> actorRules = this.rulesByActor.get(actor.getId());
+        if (actorRules != null) {
+            candidates.addAll(actorRules);
+        }
+        HashSet<AuthorizationRule> objectRules = new HashSet<>(); // Rules with several literal validFor paths are in several buckets
+        for (ArrayList<AuthorizationRule> rules : this.rulesByObject.values()) {
+            objectRules.addAll(rules);
+        }
+        for (HashMap<UUID, ArrayList<AuthorizationRule>> heads : this.rulesByValidForHead.values()) {
+            for (ArrayList<AuthorizationRule> rules : heads.values()) {
+                objectRules.addAll(rules);
+            }
+        }
+        candidates.addAll(objectRules);
+        candidates.addAll(this.creatorIsActorRules);
+        candidates.addAll(this.objectIsActorRules);
+        return candidates;
+    }
+
+    public int getSize() {
+        return this.size;
+    }
+
+    public int getUnindexedCount() {
+        return this.unindexedRules.size();
+    }
+
+    private static void collectConjuncts(Condition condition, List<Condition> conjuncts) {
+        if (condition instanceof LogicalAndCondition) {
+            AuthorizationRuleIndex.collectConjuncts(((LogicalAndCondition) condition).getLeft(), conjuncts);
+            AuthorizationRuleIndex.collectConjuncts(((LogicalAndCondition) condition).getRight(), conjuncts);
+        } else if (condition != null) {
+            conjuncts.add(condition);
+        }
+    }
+
+    private static Operand classifyOperand(String literal, boolean identity) {
+        if (identity) { // Identity conditions compare the nodes paths point at
+            switch (literal.toLowerCase(Locale.ROOT)) {
+                case "/":
+                    return new Operand(OperandType.ACTOR_ID, null);
+                case ".":
+                    return new Operand(OperandType.OBJECT_ID, null);
+                case "@creator":
+                case "./@creator":
+                    return new Operand(OperandType.CREATOR_ID, null);
+            }
+            Matcher matcher = LITERAL_NODE_PATTERN.matcher(literal);
+            if (matcher.matches()) {
+                return new Operand(OperandType.LITERAL_ID, UUID.fromString(matcher.group(1)));
+            }
+            return null;
+        }
+        switch (literal.toLowerCase(Locale.ROOT)) {
+            case "/@id":
+                return new Operand(OperandType.ACTOR_ID, null);
+            case "@id":
+            case "./@id":
+                return new Operand(OperandType.OBJECT_ID, null);
+            case "@creator_id":
+            case "./@creator_id":
+                return new Operand(OperandType.CREATOR_ID, null);
+        }
+        if (literal.startsWith("\"") && literal.endsWith("\"") && literal.length() > 1) {
+            Matcher matcher = LITERAL_NODE_PATTERN.matcher(literal.substring(1, literal.length() - 1));
+            if (matcher.matches()) {
+                return new Operand(OperandType.LITERAL_ID, UUID.fromString(matcher.group(1)));
+            }
+        }
+        return null;
+    }
+
+    private static boolean isPair(Operand a, Operand b, OperandType x, OperandType y) {
+        return (a.type == x && b.type == y) || (a.type == y && b.type == x);
+    }
+
+    /**
+     * @return Whether every validFor path starts from a valid literal and only follows named properties from there
+     */
+    private static boolean isValidForLiteralsOnly(RelativeNodePath[] validFor) {
+        if (validFor == null) {
+            return false;
+        }
+        for (RelativeNodePath relativeNodePath : validFor) {
+            PathPlan plan = relativeNodePath.getPlan();
+            if (plan.getStart() != PathPlan.Start.LITERAL || plan.getSteps()[0].getId() == null) {
+                return false;
+            }
+            for (int i = 1; i < plan.getSteps().length; i++) {
+                if (plan.getSteps()[i].getKind() != PathStep.Kind.PROPERTY) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static List<String> namesAfterHead(PathStep[] steps) {
+        ArrayList<String> names = new ArrayList<>(steps.length - 1);
+        for (int i = 1; i < steps.length; i++) {
+            names.add(steps[i].getName());
+        }
+        return names;
+    }
+
+    /**
+     * @return Every node the names lead from to the object, which are the only literals a path following them could
+     * have started from
+     */
+    private static Collection<Node> walkBack(Node object, List<String> names) {
+        Collection<Node> nodes = Collections.singletonList(object);
+        for (int i = names.size() - 1; i >= 0 && !nodes.isEmpty(); i--) {
+            HashSet<Node> referrers = new HashSet<>();
+            for (Node node : nodes) {
+                node.collectReferrersUnsafe(names.get(i), referrers);
+            }
+            nodes = referrers;
+        }
+        return nodes;
+    }
+}
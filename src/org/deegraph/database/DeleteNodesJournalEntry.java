@@ -0,0 +1,96 @@
+package org.deegraph.database;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Deletes an explicit list of nodes, as resolved by a DELETE query when it ran. Permissions were checked at the time,
+ * so replaying this just unlinks and drops each node.
+ */
+public class DeleteNodesJournalEntry extends JournalEntry {
+    private UUID actor;
+    private UUID[] nodeIds;
+
+    public DeleteNodesJournalEntry(Node actor, List<UUID> nodeIds) {
+        super(new Date());
+        this.actor = actor.getId();
+        this.nodeIds = nodeIds.toArray(new UUID[0]);
+    }
+
+    public DeleteNodesJournalEntry(Date timestamp, UUID actor, UUID[] nodeIds) {
+        super(timestamp);
+        this.actor = actor;
+        this.nodeIds = nodeIds;
+    }
+
+    public UUID getActor() {
+        return actor;
+    }
+
+    public UUID[] getNodeIds() {
+        return nodeIds;
+    }
+
+    @Override
+    public boolean replayOn(GraphDatabase graphDatabase, Node source) {
+        for (UUID nodeId : this.nodeIds) {
+            Node node = graphDatabase.getNodeUnsafe(nodeId);
+            if (node != null) { // Already gone is as good as deleted
+                node.completeUnlinkUnsafe();
+                graphDatabase.unregisterNodeUnsafe(node);
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public JSONObject asJson() {
+        JSONObject out = new JSONObject();
+        out.put("type", "DELETE_NODES");
+        out.put("actor_id", this.actor);
+        JSONArray nodeArray = new JSONArray();
+        for (UUID nodeId : this.nodeIds) {
+            nodeArray.put(nodeId.toString());
+        }
+        out.put("node_ids", nodeArray);
+        out.put("timestamp", JournalEntry.formatDate(this.timestamp));
+        return out;
+    }
+
+    public static JournalEntry fromJson(JSONObject input) {
+        UUID actor = UUID.fromString(input.getString("actor_id"));
+        JSONArray nodeArray = input.getJSONArray("node_ids");
+        UUID[] nodeIds = new UUID[nodeArray.length()];
+        for (int i = 0; i < nodeIds.length; i++) {
+            nodeIds[i] = UUID.fromString(nodeArray.getString(i));
+        }
+        Date timestamp = JournalEntry.fromFormattedDate(input.getString("timestamp"));
+        return new DeleteNodesJournalEntry(timestamp, actor, nodeIds);
+    }
+
+    public static JournalEntry fromBinary(JournalDecoder input) throws IOException {
+        UUID actor = input.readDictionaryUuid();
+        UUID[] nodeIds = new UUID[input.readVarInt()];
+        for (int i = 0; i < nodeIds.length; i++) {
+            nodeIds[i] = input.readUuid();
+        }
+        Date timestamp = input.readTimestamp();
+        return new DeleteNodesJournalEntry(timestamp, actor, nodeIds);
+    }
+
+    @Override
+    public void asBinary(JournalEncoder output) throws IOException {
+        output.writeType(BINARY_DELETE_NODES);
+        output.writeDictionaryUuid(this.actor);
+        output.writeVarInt(this.nodeIds.length);
+        for (UUID nodeId : this.nodeIds) {
+            output.writeUuid(nodeId);
+        }
+        output.writeTimestamp(this.timestamp);
+    }
+}
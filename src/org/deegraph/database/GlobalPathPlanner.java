@@ -0,0 +1,293 @@
+package org.deegraph.database;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * Matches ** paths that name a node part way along - say, ** followed by {uuid}/friends/*. Walking backwards from
+ * every node in the search space finds the same matches as walking forwards from the named node, and the two walks can
+ * also be run towards each other and joined where they meet. Before each step, the cost of taking it on either side is estimated
+ * from the property and referrer counts of a sample of that side's frontier, and the cheaper side goes next - so a
+ * path out of a node with few links is walked forwards, a search space of a handful of nodes is walked backwards, and
+ * anything in between meets in the middle.
+ *
+ * Permissions are checked as the backward walk has always checked them: on the node each step arrives at walking
+ * backwards, so the named node itself doesn't have to be readable.
+ */
+final class GlobalPathPlanner {
+    private static final int SAMPLE_SIZE = 16; // Frontier nodes looked at to estimate the next step's fan-out
+
+    private GlobalPathPlanner() {
+    }
+
+    /**
+     * @param pivot     The index of the literal step to walk forwards from, as found by the path's plan
+     * @param keepPaths Whether to build the path to each match - without them, each matching node is passed on once
+     */
+    static void match(SecurityContext securityContext, PathStep[] steps, int pivot, SearchSpace searchSpace, boolean keepPaths, BiConsumer<String, Node> output) {
+        Node start = securityContext.getDatabase().getNodeUnsafe(steps[pivot].getId());
+        if (start == null) {
+            return;
+        }
+
+        // The forward side holds the nodes reached by taking the steps up to and including index forward
+        int forward = pivot;
+        ArrayList<Node> forwardNodes = new ArrayList<>();
+        ArrayList<PathTrail> forwardTrails = new ArrayList<>();
+        forwardNodes.add(start);
+        if (keepPaths) {
+            forwardTrails.add(new PathTrail(null, start));
+        }
+
+        // The backward side holds the nodes at index backward that lead on to a candidate, left as the search space itself until it's first walked
+        int backward = steps.length - 1;
+        ArrayList<Node> backwardNodes = null;
+        ArrayList<Node> backwardCandidates = new ArrayList<>();
+        ArrayList<PathTrail> backwardTrails = new ArrayList<>(); // The path after each node, null for the candidate itself
+
+        while (forward < backward && !forwardNodes.isEmpty() && (backwardNodes == null || !backwardNodes.isEmpty())) {
+            double forwardCost = GlobalPathPlanner.estimateForward(forwardNodes, steps[forward + 1]);
+            double backwardCost = (backwardNodes == null) ? GlobalPathPlanner.estimateBackward(searchSpace.nodes(securityContext.getDatabase()), searchSpace.size(securityContext.getDatabase()), steps[backward]) : GlobalPathPlanner.estimateBackward(backwardNodes, backwardNodes.size(), steps[backward]);
+            if (forwardCost <= backwardCost) {
+                forward++;
+                GlobalPathPlanner.stepForward(securityContext, steps[forward], forwardNodes, forwardTrails, keepPaths);
+            } else {
+                if (backwardNodes == null) {
+                    backwardNodes = new ArrayList<>();
+                    for (Node node : searchSpace.nodes(securityContext.getDatabase())) {
+                        if (node != null) {
+                            backwardNodes.add(node);
+                            backwardCandidates.add(node);
+                            backwardTrails.add(null);
+                        }
+                    }
+                }
+                GlobalPathPlanner.stepBackward(securityContext, steps[backward], backwardNodes, backwardCandidates, backwardTrails, keepPaths);
+                backward--;
+            }
+        }
+        if (forward < backward) { // One side ran out, so nothing can match
+            return;
+        }
+
+        if (backwardNodes == null) { // Walked forwards all the way, so the matches just have to be in the search space
+            for (int i = 0; i < forwardNodes.size(); i++) {
+                Node node = forwardNodes.get(i);
+                if (searchSpace.contains(node)) {
+                    output.accept(keepPaths ? forwardTrails.get(i).forwards() : null, node);
+                }
+            }
+            return;
+        }
+
+        // Join the two sides on the nodes where they meet
+        IdentityHashMap<Node, List<PathTrail>> met = new IdentityHashMap<>();
+        for (int i = 0; i < forwardNodes.size(); i++) {
+            met.computeIfAbsent(forwardNodes.get(i), node -> new ArrayList<>()).add(keepPaths ? forwardTrails.get(i) : null);
+        }
+        Set<Node> matched = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = 0; i < backwardNodes.size(); i++) {
+            List<PathTrail> before = met.get(backwardNodes.get(i));
+            if (before == null) {
+                continue;
+            }
+            Node candidate = backwardCandidates.get(i);
+            if (!keepPaths) {
+                if (matched.add(candidate)) {
+                    output.accept(null, candidate);
+                }
+                continue;
+            }
+            PathTrail after = backwardTrails.get(i);
+            for (PathTrail trail : before) {
+                output.accept((after == null) ? trail.forwards() : (trail.forwards() + "/" + after.backwards()), candidate);
+            }
+        }
+    }
+
+    private static boolean canRead(SecurityContext securityContext, Node node) {
+        return Arrays.asList(securityContext.getDatabase().getPermsOnNode(securityContext.getActor(), node)).contains(AuthorizedAction.READ);
+    }
+
+    /**
+     * Replaces the frontier with the nodes one step further on. Without paths, a node reached more than once is only
+     * kept once, as it's only the nodes that have to meet.
+     */
+    private static void stepForward(SecurityContext securityContext, PathStep step, ArrayList<Node> nodes, ArrayList<PathTrail> trails, boolean keepPaths) {
+        ArrayList<Node> newNodes = new ArrayList<>();
+        ArrayList<PathTrail> newTrails = new ArrayList<>();
+        Set<Node> seen = keepPaths ? null : Collections.newSetFromMap(new IdentityHashMap<>());
+        ArrayList<Node> scratch = new ArrayList<>();
+        for (int i = 0; i < nodes.size(); i++) {
+            Node node = nodes.get(i);
+            switch (step.getKind()) {
+                case WILDCARD:
+                case NUMERIC_WILDCARD:
+                    boolean arrayOnly = step.getKind() == PathStep.Kind.NUMERIC_WILDCARD;
+                    if (keepPaths) {
+                        for (Map.Entry<String, Node> prop : node.getPropertiesUnsafe().entrySet()) {
+                            if ((!arrayOnly || PropertyKeyDictionary.isNumeric(prop.getKey())) && GlobalPathPlanner.canRead(securityContext, prop.getValue())) {
+                                newNodes.add(prop.getValue());
+                                newTrails.add(new PathTrail(trails.get(i), prop.getKey()));
+                            }
+                        }
+                    } else {
+                        scratch.clear();
+                        node.collectPropertiesUnsafe(arrayOnly, scratch);
+                        for (Node next : scratch) {
+                            if (!seen.contains(next) && GlobalPathPlanner.canRead(securityContext, next)) {
+                                seen.add(next);
+                                newNodes.add(next);
+                            }
+                        }
+                    }
+                    break;
+                case CREATOR: // Walking backwards, only the created node is checked
+                    Node creator = node.getCNode();
+                    if (creator != null && GlobalPathPlanner.canRead(securityContext, node)) {
+                        GlobalPathPlanner.addForward(creator, keepPaths ? new PathTrail(trails.get(i), "@creator") : null, newNodes, newTrails, seen);
+                    }
+                    break;
+                default:
+                    Node next = node.getPropertyUnsafe(step.getName());
+                    if (next != null && GlobalPathPlanner.canRead(securityContext, next)) {
+                        GlobalPathPlanner.addForward(next, keepPaths ? new PathTrail(trails.get(i), step.getName()) : null, newNodes, newTrails, seen);
+                    }
+            }
+        }
+        nodes.clear();
+        nodes.addAll(newNodes);
+        trails.clear();
+        trails.addAll(newTrails);
+    }
+
+    private static void addForward(Node node, PathTrail trail, ArrayList<Node> nodes, ArrayList<PathTrail> trails, Set<Node> seen) {
+        if (seen == null) {
+            nodes.add(node);
+            trails.add(trail);
+        } else if (seen.add(node)) {
+            nodes.add(node);
+        }
+    }
+
+    /**
+     * Replaces the frontier with the nodes one step further back, each still leading to the same candidate.
+     */
+    private static void stepBackward(SecurityContext securityContext, PathStep step, ArrayList<Node> nodes, ArrayList<Node> candidates, ArrayList<PathTrail> trails, boolean keepPaths) {
+        ArrayList<Node> newNodes = new ArrayList<>();
+        ArrayList<Node> newCandidates = new ArrayList<>();
+        ArrayList<PathTrail> newTrails = new ArrayList<>();
+        ArrayList<Node> scratch = new ArrayList<>();
+        for (int i = 0; i < nodes.size(); i++) {
+            Node node = nodes.get(i);
+            Node candidate = candidates.get(i);
+            switch (step.getKind()) {
+                case WILDCARD:
+                case NUMERIC_WILDCARD:
+                    boolean arrayOnly = step.getKind() == PathStep.Kind.NUMERIC_WILDCARD;
+                    if (keepPaths) {
+                        for (String key : node.getAllReferrersUnsafe().keySet()) {
+                            if (!arrayOnly || PropertyKeyDictionary.isNumeric(key)) {
+                                for (Node parent : node.getReferrers(securityContext, key)) {
+                                    newNodes.add(parent);
+                                    newCandidates.add(candidate);
+                                    newTrails.add(new PathTrail(trails.get(i), key));
+                                }
+                            }
+                        }
+                    } else {
+                        scratch.clear();
+                        node.collectReferrers(securityContext, arrayOnly, scratch);
+                        for (Node parent : scratch) {
+                            newNodes.add(parent);
+                            newCandidates.add(candidate);
+                        }
+                    }
+                    break;
+                case CREATOR:
+                    for (Node parent : node.getCreatedNodes(securityContext)) {
+                        newNodes.add(parent);
+                        newCandidates.add(candidate);
+                        if (keepPaths) {
+                            newTrails.add(new PathTrail(trails.get(i), "@creator"));
+                        }
+                    }
+                    break;
+                default:
+                    for (Node parent : node.getReferrers(securityContext, step.getName())) {
+                        newNodes.add(parent);
+                        newCandidates.add(candidate);
+                        if (keepPaths) {
+                            newTrails.add(new PathTrail(trails.get(i), step.getName()));
+                        }
+                    }
+            }
+        }
+        nodes.clear();
+        nodes.addAll(newNodes);
+        candidates.clear();
+        candidates.addAll(newCandidates);
+        trails.clear();
+        trails.addAll(newTrails);
+    }
+
+    private static double estimateForward(List<Node> frontier, PathStep step) {
+        switch (step.getKind()) {
+            case WILDCARD:
+            case NUMERIC_WILDCARD:
+                return frontier.size() * GlobalPathPlanner.sampleMean(frontier, frontier.size(), Node::countPropertiesUnsafe);
+            default: // At most one node each
+                return frontier.size();
+        }
+    }
+
+    private static double estimateBackward(Iterable<Node> frontier, int size, PathStep step) {
+        switch (step.getKind()) {
+            case WILDCARD:
+            case NUMERIC_WILDCARD:
+                return size * GlobalPathPlanner.sampleMean(frontier, size, node -> node.countReferrersUnsafe(null));
+            case CREATOR:
+                return size * GlobalPathPlanner.sampleMean(frontier, size, Node::countCreatedNodesUnsafe);
+            default:
+                return size * GlobalPathPlanner.sampleMean(frontier, size, node -> node.countReferrersUnsafe(step.getName()));
+        }
+    }
+
+    /**
+     * Averages the count over nodes spread evenly through the frontier - or, where it can't be indexed (like the whole
+     * node store), the first few. Taking a step costs at least a look at each node, so the mean never goes below one.
+     */
+    private static double sampleMean(Iterable<Node> frontier, int size, ToIntFunction<Node> count) {
+        long total = 0;
+        int sampled = 0;
+        if (frontier instanceof List) {
+            List<Node> nodes = (List<Node>) frontier;
+            int stride = Math.max(1, size / SAMPLE_SIZE);
+            for (int i = 0; i < nodes.size(); i += stride) {
+                Node node = nodes.get(i);
+                if (node != null) {
+                    total += count.applyAsInt(node);
+                    sampled++;
+                }
+            }
+        } else {
+            for (Node node : frontier) {
+                if (sampled >= SAMPLE_SIZE) {
+                    break;
+                }
+                if (node != null) {
+                    total += count.applyAsInt(node);
+                    sampled++;
+                }
+            }
+        }
+        return (sampled == 0) ? 1 : Math.max(1, (double) total / sampled);
+    }
+}
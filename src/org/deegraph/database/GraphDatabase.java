@@ -6,7 +6,10 @@ import org.deegraph.exceptions.ClosedJournalException;
 import org.deegraph.exceptions.DuplicateNodeStoreException;
 import org.deegraph.exceptions.UnvalidatedJournalSegment;
 import org.deegraph.formats.UUIDUtils;
+import org.deegraph.query.DeleteQuery;
+import org.deegraph.query.GrantQuery;
 import org.deegraph.query.Query;
+import org.deegraph.query.QueryType;
 import org.deegraph.server.AuthenticationMethod;
 import org.deegraph.server.SharedSecretAuthentication;
 import com.nimbusds.jose.*;
@@ -28,16 +31,40 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class GraphDatabase {
     private ArrayList<AuthorizationRule> authorizationRules; // Stores all the parsed authorization rules used for generating permissions
+    private AuthorizationRuleIndex authorizationRuleIndex; // The same rules, bucketed by the actor or object they can apply to
+    private int globalRuleCount = 0; // Number of rules that can observe nodes unrelated to the actor and object
+    private int ruleReach = 0; // The most edges any rule's paths can follow
+    private final HashSet<UUID> ruleLiteralHeads = new HashSet<>(); // Nodes any rule's paths start from, whoever the actor and object are
+    private static final int MAX_OBSERVERS = 4096; // Beyond this many nodes in reach of a change, clearing the caches is cheaper than updating them
+    private PermissionCache permissionCache;
+    private VisibilityCache visibilityCache;
+    private JournalFormat journalFormat = JournalFormat.JSON;
+    private int journalGroupCommitSize = 256; // Most entries written per fsync in the append format
+    private long journalCommitDelayMs = 0; // How long the append format waits for a group to fill before syncing it
 
     private HashMap<UUID, ArrayList<OctetKeyPair>> instanceTrustStore; // Stores instance public keys we trust
+    private HashMap<UUID, String> instanceTrustFqdns; // The domain each trusted peer was registered under, so its keys can be written to a snapshot
     private HashMap<String, ArrayList<AuthenticationMethod>> authenticationMethods;
 
-    private HashMap<UUID, Node> registeredNodes; // Stores all the nodes we have loaded in the database
+    private NodeStore registeredNodes; // Stores all the nodes we have loaded in the database
+    private ConcurrentHashMap<UUID, ConcurrentHashMap<UUID, Node>> foreignNodes; // Index of nodes from other instances, keyed by original instance id then original id
+    private NodeLockStripes nodeLocks;
+    private final ReentrantReadWriteLock queryLock = new ReentrantReadWriteLock(); // Shared by most queries, held alone by those that change what every other query can see
 
     //private ArrayList<ArrayList<UUID>> missingNodes; // Stores node global ids that are referenced but not found in database.
 
@@ -48,7 +75,16 @@ public class GraphDatabase {
     private OctetKeyPair jwk;
 
     private Queue<JournalSegment> completeJournal;
-    private JournalSegment currentJournalSegment;
+    private final Set<String> includedSegmentIds = ConcurrentHashMap.newKeySet(); // Every segment whose entries are in the current state, so a snapshot can list exactly what it covers
+    private int snapshotInterval = 60; // Number of segments to write between snapshots, or 0 to never write them
+    private int segmentsSinceSnapshot = 0;
+    private PayloadStore payloadStore; // Null if every payload is kept on the heap
+    private int compactionInterval = 0; // Number of segments to keep before folding them into a compacted segment, or 0 to keep the whole history
+    private int segmentsSinceCompaction = 0;
+    private volatile JournalSegment currentJournalSegment;
+    private JournalSegment standbyJournalSegment; // Opened ahead of time, so a rotation is just a swap
+    private final Object journalRotationLock = new Object();
+    private ScheduledExecutorService journalRotator;
 
     private long maxJournalAgeMs = 1000 * 60; // Rotate journals every 60 seconds by default
 
@@ -75,8 +111,10 @@ public class GraphDatabase {
         this.config = new JSONObject(jsonBuilder.toString());
 
         this.instanceTrustStore = new HashMap<>();
+        this.instanceTrustFqdns = new HashMap<>();
         this.authenticationMethods = new HashMap<>();
         this.authorizationRules = new ArrayList<>();
+        this.authorizationRuleIndex = new AuthorizationRuleIndex();
 
         //String instanceNodePath = "{" + graphDatabaseBacking.getInstanceId().toString() + "}";
 
@@ -92,7 +130,26 @@ public class GraphDatabase {
         }
         this.instanceId = GraphDatabase.instanceFQDNToUUID(this.instanceFqdn);
 
-        this.registeredNodes = new HashMap<>();
+        int permissionCacheSize = 100000;
+        if (this.config.has("permission_cache_size")) {
+            permissionCacheSize = this.config.getInt("permission_cache_size");
+        }
+        this.permissionCache = new PermissionCache(permissionCacheSize);
+
+        int visibilityCacheSize = 256;
+        if (this.config.has("visibility_cache_size")) {
+            visibilityCacheSize = this.config.getInt("visibility_cache_size");
+        }
+        this.visibilityCache = new VisibilityCache(visibilityCacheSize);
+
+        int nodeLockStripes = 1024;
+        if (this.config.has("node_lock_stripes")) {
+            nodeLockStripes = this.config.getInt("node_lock_stripes");
+        }
+        this.nodeLocks = new NodeLockStripes(nodeLockStripes);
+
+        this.registeredNodes = new NodeStore();
+        this.foreignNodes = new ConcurrentHashMap<>();
 
         if (!this.config.getString("data_directory").endsWith(File.separator)) {
             this.dbLocation = this.config.getString("data_directory") + File.separator;
@@ -107,6 +164,14 @@ public class GraphDatabase {
             throw new FileAlreadyExistsException("The intended database directory path already points to a file");
         }
 
+        int payloadStoreThreshold = 1024;
+        if (this.config.has("payload_store_threshold")) {
+            payloadStoreThreshold = this.config.getInt("payload_store_threshold");
+        }
+        if (payloadStoreThreshold > 0) {
+            this.payloadStore = new PayloadStore(dbDirectory, this.instanceId.toString(), payloadStoreThreshold);
+        }
+
         //https://www.javadoc.io/doc/com.nimbusds/nimbus-jose-jwt/latest/index.html
 
         File jwkFile = new File(this.dbLocation + this.instanceId.toString() + ".private.jwk");
@@ -162,6 +227,15 @@ public class GraphDatabase {
         ownKeyList.add(this.jwk.toPublicJWK());
         this.instanceTrustStore.put(this.instanceId, ownKeyList);
 
+        if (this.config.has("journal_format")) {
+            this.journalFormat = JournalFormat.valueOf(this.config.getString("journal_format").toUpperCase(Locale.ROOT));
+        }
+        if (this.config.has("journal_group_commit_size")) {
+            this.journalGroupCommitSize = this.config.getInt("journal_group_commit_size");
+        }
+        if (this.config.has("journal_commit_delay_ms")) {
+            this.journalCommitDelayMs = this.config.getLong("journal_commit_delay_ms");
+        }
         this.currentJournalSegment = new JournalSegment(this);
 
         // Default rule whereby the root node can access everything - was needed in the past, now handled in a more efficient manner
@@ -171,22 +245,55 @@ public class GraphDatabase {
         this.completeJournal = new LinkedList<>();
         File[] directoryListing = dbDirectory.listFiles();
         Arrays.sort(directoryListing);
-        boolean journalEmpty = true;
+        if (this.config.has("snapshot_interval")) {
+            this.snapshotInterval = this.config.getInt("snapshot_interval");
+        }
+        if (this.config.has("compaction_interval")) {
+            this.compactionInterval = this.config.getInt("compaction_interval");
+        }
+        JournalSegment snapshot = this.loadNewestSnapshot(directoryListing);
+        String snapshotThrough = (snapshot == null) ? null : snapshot.getSnapshotThrough();
+        boolean snapshotListsSegments = snapshot != null && snapshot.getSnapshotIncludes() != null;
+        if (snapshotListsSegments) {
+            this.includedSegmentIds.addAll(snapshot.getSnapshotIncludes());
+        }
+        ArrayList<File> segmentFiles = new ArrayList<>();
+        String lastSegmentId = snapshotThrough;
         for (File child : directoryListing) {
             if (child.getName().endsWith(".journal.dgc") && child.canRead()) {
+                if (child.getName().equals(this.currentJournalSegment.getId() + ".journal.dgc")) { // Our own new segment, which isn't part of the history
+                    continue;
+                }
+                String segmentId = child.getName().substring(0, child.getName().length() - ".journal.dgc".length());
+                this.segmentsSinceCompaction++; // Compaction removes the segments it covers, so anything still here is uncompacted
+                if (snapshotListsSegments ? this.includedSegmentIds.contains(segmentId) : (snapshotThrough != null && segmentId.compareTo(snapshotThrough) <= 0)) { // Already included in the snapshot - a segment from another instance can arrive after one with a later id
+                    continue;
+                }
+                this.includedSegmentIds.add(segmentId); // An empty one has nothing to replay, so is just as included
                 if (child.length() > 0) { // Don't try to read an empty container file! - This can happen on an unclean shutdown
-                    try {
-                        System.out.println("Replaying journal segment [" + child.getName() + "]");
-                        JournalSegment journalSegment = new JournalSegment(this, new BufferedReader(new FileReader(child)));
-                        journalSegment.replay(false);
-                        this.completeJournal.offer(journalSegment);
-                        journalEmpty = false;
-                    } catch (ParseException e) {
-                        throw new RuntimeException(e);
+                    segmentFiles.add(child);
+                    if (lastSegmentId == null || segmentId.compareTo(lastSegmentId) > 0) { // Snapshots are named after the newest segment they include
+                        lastSegmentId = segmentId;
                     }
                 }
             }
         }
+        boolean journalEmpty = segmentFiles.isEmpty() && snapshotThrough == null;
+        int replayThreads = Runtime.getRuntime().availableProcessors();
+        if (this.config.has("replay_threads")) {
+            replayThreads = this.config.getInt("replay_threads");
+        }
+        long replayWindowBytes = 64L * 1024 * 1024;
+        if (this.config.has("replay_window_bytes")) {
+            replayWindowBytes = this.config.getLong("replay_window_bytes");
+        }
+        this.replayJournalSegments(segmentFiles, this.findUnsealedSegments(segmentFiles), Math.max(1, replayThreads), replayWindowBytes);
+        this.segmentsSinceSnapshot = segmentFiles.size();
+        if (this.compactionInterval > 0 && this.segmentsSinceCompaction >= this.compactionInterval) {
+            this.compactJournal(lastSegmentId);
+        } else if (this.snapshotInterval > 0 && this.segmentsSinceSnapshot >= this.snapshotInterval) { // Probably an unclean shutdown, so catch up now rather than replaying all this again next time
+            this.writeSnapshot(lastSegmentId);
+        }
         if (journalEmpty) {
             System.out.println("Journal empty");
         } else {
@@ -221,11 +328,312 @@ public class GraphDatabase {
                 }
             }
         }
+
+        this.journalRotator = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "journal-rotator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.journalRotator.scheduleAtFixedRate(this::rotateJournal, this.maxJournalAgeMs, this.maxJournalAgeMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Swaps the standby segment in for the open one, then seals the old one and opens the next standby. All the slow
+     * parts - serializing, signing and writing - happen here on the rotation thread, not on a request thread.
+     *
+     * Every snapshot_interval rotations, or once compaction_interval segments have built up, the rotation is done holding
+     * the query lock alone, so that the state is exactly what the sealed segments hold when it is written out.
+     */
+    private void rotateJournal() {
+        boolean compactionDue = this.compactionInterval > 0 && this.segmentsSinceCompaction + 1 >= this.compactionInterval;
+        boolean snapshotDue = compactionDue || (this.snapshotInterval > 0 && this.segmentsSinceSnapshot + 1 >= this.snapshotInterval);
+        if (snapshotDue) {
+            this.queryLock.writeLock().lock(); // Waits for queries part way between changing the graph and being journaled
+        }
+        try {
+            JournalSegment sealing;
+            synchronized (this.journalRotationLock) {
+                if (this.standbyJournalSegment == null) {
+                    this.standbyJournalSegment = new JournalSegment(this);
+                }
+                sealing = this.currentJournalSegment;
+                this.currentJournalSegment = this.standbyJournalSegment;
+                this.standbyJournalSegment = null;
+                this.completeJournal.offer(sealing);
+                this.includedSegmentIds.add(sealing.getId());
+                sealing.seal(this.currentJournalSegment); // Anyone still holding the old segment writes through to the new one
+                this.segmentsSinceSnapshot++;
+                this.segmentsSinceCompaction++;
+                this.standbyJournalSegment = new JournalSegment(this);
+            }
+            if (compactionDue) {
+                this.compactJournal(sealing.getId());
+            } else if (snapshotDue) {
+                this.writeSnapshot(sealing.getId());
+            }
+        } catch (IOException | RuntimeException e) { // Must not escape, or the executor stops scheduling rotations
+            System.err.println("Failed to rotate journal segment");
+            e.printStackTrace();
+        } finally {
+            if (snapshotDue) {
+                this.queryLock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Restores the newest snapshot that validates, falling back to older ones. A compacted segment is restored the same
+     * way, but there is nothing to fall back past it - the segments it replaced are gone.
+     * @return The restored snapshot, or null if there wasn't one
+     */
+    private JournalSegment loadNewestSnapshot(File[] directoryListing) throws IOException, UnvalidatedJournalSegment {
+        for (int i = directoryListing.length - 1; i >= 0; i--) {
+            File child = directoryListing[i];
+            boolean compacted = child.getName().endsWith(".compacted.dgc");
+            if ((compacted || child.getName().endsWith(".snapshot.dgc")) && child.canRead()) {
+                JournalSegment snapshot;
+                try {
+                    snapshot = new JournalSegment(this, child);
+                } catch (UnvalidatedJournalSegment e) {
+                    if (compacted) {
+                        throw e;
+                    }
+                    System.err.println("Ignoring snapshot [" + child.getName() + "]: " + e.getMessage());
+                    continue;
+                }
+                if (!(compacted ? snapshot.isCompacted() : snapshot.isSnapshot()) || snapshot.getSnapshotThrough() == null || !this.instanceId.equals(snapshot.getOriginalDatabaseInstanceId())) { // Only ever trust our own snapshots
+                    if (compacted) {
+                        throw new UnvalidatedJournalSegment("Compacted journal segment [" + child.getName() + "] is not from this instance");
+                    }
+                    System.err.println("Ignoring snapshot [" + child.getName() + "]: not a snapshot of this instance");
+                    continue;
+                }
+                System.out.println("Restoring snapshot [" + child.getName() + "]");
+                snapshot.replay(false);
+                return snapshot;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes a snapshot of the current state, which must be exactly the state after replaying every segment replayed or
+     * written so far, then removes all but the previous snapshot. The snapshot is named after the newest of them, and
+     * lists them all, so a segment from another instance with an older id that turns up later is still replayed.
+     */
+    void writeSnapshot(String snapshotThrough) throws IOException {
+        if (snapshotThrough == null || !this.canWriteSnapshot()) {
+            return;
+        }
+        long startTime = System.currentTimeMillis();
+        File snapshotFile = new File(this.dbLocation + snapshotThrough + ".snapshot.dgc");
+        JournalSegment.writeSnapshot(this, snapshotFile, JournalSegment.SNAPSHOT_CONTENT_TYPE, snapshotThrough, this.listIncludedSegments());
+        this.segmentsSinceSnapshot = 0;
+        System.out.println("Wrote snapshot [" + snapshotFile.getName() + "] in " + (System.currentTimeMillis() - startTime) + "ms");
+
+        File[] snapshots = new File(this.dbLocation).listFiles((dir, name) -> name.endsWith(".snapshot.dgc"));
+        if (snapshots != null) {
+            Arrays.sort(snapshots);
+            for (int i = 0; i < snapshots.length - 2; i++) { // Keep the previous snapshot, in case this one is ever unreadable
+                snapshots[i].delete();
+            }
+        }
+    }
+
+    /**
+     * @return The ids of the segments still on disk whose entries are in the current state, for a snapshot to list
+     */
+    private List<String> listIncludedSegments() {
+        ArrayList<String> segmentIds = new ArrayList<>();
+        File[] segmentFiles = new File(this.dbLocation).listFiles((dir, name) -> name.endsWith(".journal.dgc"));
+        if (segmentFiles != null) {
+            for (File segmentFile : segmentFiles) {
+                String segmentId = segmentFile.getName().substring(0, segmentFile.getName().length() - ".journal.dgc".length());
+                if (this.includedSegmentIds.contains(segmentId)) {
+                    segmentIds.add(segmentId);
+                }
+            }
+        }
+        Collections.sort(segmentIds);
+        return segmentIds;
+    }
+
+    private boolean canWriteSnapshot() {
+        for (AuthorizationRule rule : this.authorizationRules) {
+            if (!rule.isJournalable()) {
+                System.err.println("Not writing snapshot - rule {" + rule.getUuid() + "} can't be written out");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Folds every segment replayed or written so far into a single compacted segment, named after the newest of them and
+     * holding only their net effect, then removes them. Like a snapshot, the current state must be exactly the state
+     * after replaying them - any segment that hasn't been is left alone, however old its id.
+     *
+     * Our own segments are deleted, as the compacted segment is signed by us in their place. Segments from other
+     * instances can't be re-signed, so they are set aside as .folded files rather than deleted - their effect is in
+     * the compacted segment, but the originals stay verifiable against their origin's key. Foreign nodes keep the trust
+     * chain signed by their origin either way.
+     */
+    void compactJournal(String compactThrough) throws IOException {
+        if (compactThrough == null || !this.canWriteSnapshot()) {
+            return;
+        }
+        long startTime = System.currentTimeMillis();
+        File compactedFile = new File(this.dbLocation + compactThrough + ".compacted.dgc");
+        JournalSegment.writeSnapshot(this, compactedFile, JournalSegment.COMPACTED_CONTENT_TYPE, compactThrough, this.listIncludedSegments());
+
+        int folded = 0;
+        File[] directoryListing = new File(this.dbLocation).listFiles((dir, name) -> name.endsWith(".journal.dgc") || name.endsWith(".snapshot.dgc") || name.endsWith(".compacted.dgc"));
+        for (File child : directoryListing) {
+            String id = child.getName().substring(0, child.getName().indexOf('.'));
+            if (child.equals(compactedFile)) {
+                continue;
+            }
+            if (child.getName().endsWith(".journal.dgc")) {
+                if (!this.includedSegmentIds.contains(id)) { // Not replayed yet, however old its id
+                    continue;
+                }
+                folded++;
+                UUID origin = child.length() > 0 ? JournalSegment.readClaimedOriginId(child) : null;
+                if (origin != null && !origin.equals(this.instanceId)) {
+                    Files.move(child.toPath(), Paths.get(child.getPath() + ".folded"), StandardCopyOption.REPLACE_EXISTING);
+                    continue;
+                }
+            }
+            child.delete(); // Snapshots and compacted segments covered by this one are of no further use
+        }
+        this.segmentsSinceSnapshot = 0;
+        this.segmentsSinceCompaction = 0;
+        System.out.println("Compacted " + folded + " journal segments into [" + compactedFile.getName() + "] in " + (System.currentTimeMillis() - startTime) + "ms");
+    }
+
+    /**
+     * Hands over the entries that rebuild the current state from nothing - nodes (creators first), their properties,
+     * trusted peer keys and then authorization rules.
+     */
+    void forEachSnapshotEntry(Consumer<JournalEntry> consumer) {
+        HashSet<Node> written = new HashSet<>();
+        ArrayDeque<Node> creatorChain = new ArrayDeque<>();
+        for (Node node : this.registeredNodes) {
+            Node current = node;
+            while (current != null && !written.contains(current) && !creatorChain.contains(current)) { // Walk up to the first creator already written
+                creatorChain.push(current);
+                Node creator = current.getCNode();
+                current = (creator != null && this.registeredNodes.containsKey(creator.getId())) ? creator : null;
+            }
+            while (!creatorChain.isEmpty()) {
+                Node next = creatorChain.pop();
+                written.add(next);
+                consumer.accept(new NewNodeJournalEntry(next));
+            }
+        }
+        for (Node node : this.registeredNodes) {
+            for (Map.Entry<String, Node> property : node.getPropertiesUnsafe().entrySet()) {
+                if (this.registeredNodes.containsKey(property.getValue().getId())) {
+                    consumer.accept(new AddRelationJournalEntry(node.getCTime(), this.instanceId, node.getId(), property.getKey(), property.getValue().getId()));
+                }
+            }
+        }
+        synchronized (this.instanceTrustStore) {
+            for (Map.Entry<UUID, ArrayList<OctetKeyPair>> entry : this.instanceTrustStore.entrySet()) {
+                String fqdn = this.instanceTrustFqdns.get(entry.getKey());
+                if (fqdn != null) { // Our own key is loaded from disk, not the journal
+                    for (OctetKeyPair ocp : entry.getValue()) {
+                        consumer.accept(new TrustKeyJournalEntry(ocp, fqdn, this.instanceId));
+                    }
+                }
+            }
+        }
+        for (AuthorizationRule rule : this.authorizationRules) {
+            consumer.accept(new AddRuleJournalEntry(this.instanceId, rule));
+        }
     }
 
+    /**
+     * Finds the two newest segments we wrote that have anything in them - the only ones a crash can have left unsealed.
+     * The newest may have been open, and the one before it may still have been being sealed by the rotation thread, as
+     * its successor takes writes as soon as it is swapped in. Every earlier one was sealed before the rotation after it
+     * began. Standby segments opened after them hold nothing but their header.
+     * @return The segments, which may be fewer than two if not enough of them are ours
+     */
+    private Set<File> findUnsealedSegments(List<File> segmentFiles) throws IOException {
+        HashSet<File> unsealed = new HashSet<>();
+        for (int i = segmentFiles.size() - 1; i >= 0 && unsealed.size() < 2; i--) {
+            File segmentFile = segmentFiles.get(i);
+            if (this.instanceId.equals(JournalSegment.readClaimedOriginId(segmentFile)) && JournalSegment.hasBody(segmentFile)) {
+                unsealed.add(segmentFile);
+            }
+        }
+        return unsealed;
+    }
+
+    /**
+     * Verifies segments in parallel on a pool of workers, while this thread decodes and applies them strictly in order,
+     * one entry at a time. Each worker copies the body it verifies to a private temporary file, so workers only run
+     * ahead of the applier while the segment files they have taken on add up to no more than the window - which bounds
+     * the disk those copies take up, or that of the next segment on its own if it is bigger than the whole window.
+     */
+    private void replayJournalSegments(List<File> segmentFiles, Set<File> unsealedSegments, int threads, long windowBytes) throws IOException, UnvalidatedJournalSegment {
+        if (segmentFiles.isEmpty()) {
+            return;
+        }
+        ExecutorService workers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "journal-replay");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            ArrayDeque<Future<JournalSegment>> pending = new ArrayDeque<>();
+            int submitted = 0;
+            long[] segmentBytes = new long[segmentFiles.size()]; // Taken up front, as recovering a torn segment changes its length
+            for (int i = 0; i < segmentBytes.length; i++) {
+                segmentBytes[i] = segmentFiles.get(i).length();
+            }
+            long pendingBytes = 0; // On disk, of the segments handed to workers but not yet applied
+            long startTime = System.currentTimeMillis();
+            for (int i = 0; i < segmentFiles.size(); i++) {
+                while (submitted < segmentFiles.size() && (submitted == i || pendingBytes + segmentBytes[submitted] <= windowBytes)) { // The next segment is always taken on, however big
+                    pendingBytes += segmentBytes[submitted];
+                    File segmentFile = segmentFiles.get(submitted++);
+                    pending.add(workers.submit(() -> {
+                        return new JournalSegment(this, segmentFile, unsealedSegments.contains(segmentFile));
+                    }));
+                }
+                File segmentFile = segmentFiles.get(i);
+                JournalSegment journalSegment;
+                try {
+                    journalSegment = pending.poll().get();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof UnvalidatedJournalSegment) {
+                        // The key for this origin may only be trusted by a segment that hadn't been applied when the worker checked it
+                        journalSegment = new JournalSegment(this, segmentFile, unsealedSegments.contains(segmentFile));
+                    } else if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    } else {
+                        throw new RuntimeException(e.getCause());
+                    }
+                }
+                System.out.println("Replaying journal segment [" + segmentFile.getName() + "] (" + (i + 1) + "/" + segmentFiles.size() + ")");
+                journalSegment.replay(false);
+                pendingBytes -= segmentBytes[i];
+                this.completeJournal.offer(journalSegment);
+            }
+            System.out.println("Replayed " + segmentFiles.size() + " journal segments in " + (System.currentTimeMillis() - startTime) + "ms");
+        } finally {
+            workers.shutdownNow();
+        }
+    }
 
     public OctetKeyPair[] getInstanceKeys(UUID instanceId) {
-        return instanceTrustStore.containsKey(instanceId) ? instanceTrustStore.get(instanceId).toArray(new OctetKeyPair[0]) : new OctetKeyPair[0];
+        synchronized (this.instanceTrustStore) { // Segments are verified off the main thread during startup
+            return instanceTrustStore.containsKey(instanceId) ? instanceTrustStore.get(instanceId).toArray(new OctetKeyPair[0]) : new OctetKeyPair[0];
+        }
     }
 
     public OctetKeyPair[] getInstanceKeys(String instanceId) {
@@ -273,15 +681,15 @@ public class GraphDatabase {
     public boolean installPeerNodeKey(String fqdn, OctetKeyPair ocp, Node actor) {
         if (Arrays.asList(this.getPermsOnNode(actor, this.getInstanceNode())).contains(AuthorizedAction.ACT)) { // Make sure the actor trying to put this rule into place has root perms
             UUID peerId = GraphDatabase.instanceFQDNToUUID(fqdn);
-            if (!this.instanceTrustStore.containsKey(peerId)) {
-                this.instanceTrustStore.put(peerId, new ArrayList<>());
-            }
             if (!this.registeredNodes.containsKey(peerId)) {
                 Node node = new Node(this, peerId, peerId, peerId, actor, peerId, null, null);
                 this.registerNodeUnsafe(node);
             }
             //this.getNodeUnsafe(peerId)
-            this.instanceTrustStore.get(peerId).add(ocp);
+            synchronized (this.instanceTrustStore) {
+                this.instanceTrustStore.computeIfAbsent(peerId, k -> new ArrayList<>()).add(ocp);
+                this.instanceTrustFqdns.put(peerId, fqdn);
+            }
         }
         return false;
     }
@@ -297,6 +705,111 @@ public class GraphDatabase {
 
     public void registerRule(AuthorizationRule rule) {
         authorizationRules.add(rule);
+        authorizationRuleIndex.add(rule);
+        if (rule.isGlobal()) {
+            this.globalRuleCount++;
+        }
+        this.ruleReach = Math.max(this.ruleReach, rule.getReach());
+        this.ruleLiteralHeads.addAll(rule.getLiteralHeads());
+        this.permissionCache.invalidate();
+        if (Arrays.asList(rule.getAuthorizableActions()).contains(AuthorizedAction.READ)) { // Each actor's set is worked out again when it's next used, rather than all of them here
+            this.visibilityCache.invalidate();
+        }
+    }
+
+    public AuthorizationRuleIndex getAuthorizationRuleIndex() {
+        return this.authorizationRuleIndex;
+    }
+
+    public PermissionCache getPermissionCache() {
+        return this.permissionCache;
+    }
+
+    public VisibilityCache getVisibilityCache() {
+        return this.visibilityCache;
+    }
+
+    public NodeLockStripes getNodeLocks() {
+        return this.nodeLocks;
+    }
+
+    /**
+     * @return The lock a query of the given type has to hold while it runs, and while its results are read. GRANT and
+     * DELETE can change what any other query sees, so they hold the database to themselves; every other query shares
+     * it, and relies on the node locks to keep each node consistent.
+     */
+    public Lock getQueryLock(QueryType queryType) {
+        return queryType.isExclusive() ? this.queryLock.writeLock() : this.queryLock.readLock();
+    }
+
+    /**
+     * @return The lock to hold while reading the graph outside of a query
+     */
+    public Lock getSharedLock() {
+        return this.queryLock.readLock();
+    }
+
+    /**
+     * Must be called whenever an edge from the node, or the node's creator, changes, and once the node is deleted. A rule
+     * can only see the change when evaluated on a node within reach of it - so only the cached permissions of actors and
+     * objects in reach are dropped, and the objects in reach are logged for each cached visible set to work out again
+     * when it's next used.
+     */
+    void invalidateObserversOf(Node changed) {
+        boolean cached = this.permissionCache.getSize() > 0 || this.visibilityCache.getSize() > 0;
+        Set<Node> observers = cached ? this.findObservers(changed) : null;
+        if (observers == null) { // With nothing cached this still stops anything being worked out now from being cached
+            this.permissionCache.invalidate();
+            this.visibilityCache.invalidate();
+            return;
+        }
+        this.permissionCache.invalidate(observers);
+        this.visibilityCache.changed(observers);
+    }
+
+    /**
+     * @return Every node a rule's paths could follow edges from to reach the changed node, including the node itself,
+     * or null if the change could be seen whichever actor and object a rule is evaluated on
+     */
+    private Set<Node> findObservers(Node changed) {
+        if (this.globalRuleCount > 0) {
+            return null;
+        }
+        HashSet<Node> observers = new HashSet<>();
+        observers.add(changed);
+        ArrayList<Node> frontier = new ArrayList<>();
+        frontier.add(changed);
+        for (int depth = 0; depth < this.ruleReach && !frontier.isEmpty(); depth++) {
+            ArrayList<Node> predecessors = new ArrayList<>();
+            for (Node node : frontier) {
+                node.collectPredecessorsUnsafe(predecessors);
+            }
+            frontier = new ArrayList<>();
+            for (Node predecessor : predecessors) {
+                if (observers.add(predecessor)) {
+                    frontier.add(predecessor);
+                }
+            }
+            if (observers.size() > MAX_OBSERVERS) {
+                return null;
+            }
+        }
+        for (Node observer : observers) {
+            if (this.ruleLiteralHeads.contains(observer.getId())) {
+                return null; // Rules starting from this node see it from every actor and object
+            }
+        }
+        return observers;
+    }
+
+    /**
+     * Must be called when a change can only be observed by global rules, such as a new node appearing.
+     */
+    void invalidateGlobalPermissionCache() {
+        if (this.globalRuleCount > 0) {
+            this.permissionCache.invalidate();
+            this.visibilityCache.invalidate();
+        }
     }
 
     public Authorization[] getAuthorizationsForNode(Node actor, Node object) {
@@ -311,7 +824,7 @@ public class GraphDatabase {
 
         ArrayList<Authorization> authorizations = new ArrayList<>();
 
-        for (AuthorizationRule rule : this.authorizationRules) {
+        for (AuthorizationRule rule : this.authorizationRuleIndex.getCandidates(actor, object)) { // Rules that can't apply to this actor and object are skipped entirely
             Authorization auth = rule.getAuthorization(this, actor, object);
             if (auth != null) {
                 authorizations.add(auth);
@@ -328,6 +841,16 @@ public class GraphDatabase {
             return rootAuth; // Root user always has all perms - so we can just exit here without evaluating any rules
         }
 
+        if (actor == null || object == null) {
+            return new AuthorizedAction[0];
+        }
+
+        AuthorizedAction[] cachedActions = this.permissionCache.get(actor, object);
+        if (cachedActions != null) {
+            return cachedActions.clone();
+        }
+        long cacheVersion = this.permissionCache.getVersion(); // Taken before any rule is evaluated, so a change made while we work stops this being cached
+
         if (this.debugMode) {
             System.out.println("ACTOR " + actor.getId());
         }
@@ -354,7 +877,9 @@ public class GraphDatabase {
         }
         System.out.println("Perms for {" + actor.getId() + "} on {" + object.getId() + "} = [" + permsStr + "]"); */
 
-        return uniqueAuthorizedActions.toArray(new AuthorizedAction[0]);
+        AuthorizedAction[] actions = uniqueAuthorizedActions.toArray(new AuthorizedAction[0]);
+        this.permissionCache.put(actor, object, actions, cacheVersion);
+        return actions.clone();
     }
 
     public JSONObject getConfig() {
@@ -377,8 +902,12 @@ public class GraphDatabase {
         //JWSVerifier verifier = new Ed25519Verifier(publicJWK);
     }
 
+    NodeStore getNodeStore() {
+        return this.registeredNodes;
+    }
+
     public Node[] getAllNodesUnsafe() {
-        return registeredNodes.values().toArray(new Node[0]);
+        return this.registeredNodes.toArray();
     }
 
     public Node newNode(String dataUri, Node creator, String schema) {
@@ -403,32 +932,66 @@ public class GraphDatabase {
         }
     }
 
+    public JournalFormat getJournalFormat() {
+        return this.journalFormat;
+    }
+
+    public int getJournalGroupCommitSize() {
+        return this.journalGroupCommitSize;
+    }
+
+    public long getJournalCommitDelayMs() {
+        return this.journalCommitDelayMs;
+    }
+
     String getDbLocation() {
         return this.dbLocation;
     }
 
+    /**
+     * Journals a query that has just been run. GRANT and DELETE are recorded by what they did - the rule and the nodes
+     * removed - so replaying them doesn't depend on re-running the query against the graph as it is at the time.
+     */
     public void recordQuery(Query query) throws ClosedJournalException {
+        if (query instanceof GrantQuery) {
+            AuthorizationRule rule = ((GrantQuery) query).getGrantedRule();
+            if (rule != null) {
+                getOpenJournal().registerEntry(new AddRuleJournalEntry(query.getActor().getId(), rule));
+            }
+            return;
+        }
+        if (query instanceof DeleteQuery) {
+            List<UUID> deletedNodes = ((DeleteQuery) query).getDeletedNodes();
+            if (!deletedNodes.isEmpty()) {
+                getOpenJournal().registerEntry(new DeleteNodesJournalEntry(query.getActor(), deletedNodes));
+            }
+            return;
+        }
         getOpenJournal().registerEntry(new QueryJournalEntry(query.toString(), query.getActor()));
         //System.out.println("RQ: " + query.toString());
     }
 
     public JournalSegment getOpenJournal() {
-        if (currentJournalSegment.getOpenDate().before(new Date(System.currentTimeMillis() - maxJournalAgeMs))) {
-            try {
-                currentJournalSegment.close();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        }
-        if (!currentJournalSegment.isOpen()) {
-            completeJournal.offer(currentJournalSegment);
-            try {
-                currentJournalSegment = new JournalSegment(this);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+        JournalSegment segment = this.currentJournalSegment; // Rotated in the background, so this never has to wait on a seal
+        if (!segment.isOpen()) { // Only after a shutdown
+            synchronized (this.journalRotationLock) {
+                if (!this.currentJournalSegment.isOpen()) {
+                    this.completeJournal.offer(this.currentJournalSegment);
+                    this.includedSegmentIds.add(this.currentJournalSegment.getId());
+                    try {
+                        this.currentJournalSegment = new JournalSegment(this);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                segment = this.currentJournalSegment;
             }
         }
-        return currentJournalSegment;
+        return segment;
+    }
+
+    public PayloadStore getPayloadStore() {
+        return this.payloadStore;
     }
 
     public UUID getInstanceId() {
@@ -440,38 +1003,81 @@ public class GraphDatabase {
     }
 
     void registerNodeUnsafe(Node node) {
-        this.registeredNodes.put(node.getId(), node);
+        this.registeredNodes.put(node);
+        this.invalidateGlobalPermissionCache();
+        this.visibilityCache.changed(Collections.singletonList(node)); // Without global rules a new node can only become visible through rules evaluated on itself
+        if (!node.getOriginalInstanceId().equals(this.getInstanceId())) { // Local nodes are already keyed by their original id, so only foreign nodes need indexing
+            this.foreignNodes.computeIfAbsent(node.getOriginalInstanceId(), instanceId -> new ConcurrentHashMap<>()).put(node.getOriginalId(), node);
+        }
     }
 
     public void unregisterNodeUnsafe(Node node) {
         this.registeredNodes.remove(node.getId());
+        this.invalidateObserversOf(node);
+        ConcurrentHashMap<UUID, Node> instanceNodes = this.foreignNodes.get(node.getOriginalInstanceId());
+        if (instanceNodes != null) {
+            instanceNodes.remove(node.getOriginalId(), node); // Only drop the index entry if it actually points at this node
+            if (instanceNodes.isEmpty()) {
+                this.foreignNodes.remove(node.getOriginalInstanceId(), instanceNodes);
+            }
+        }
     }
 
     public Node getNodeUnsafe(UUID originalId, UUID originalInstanceId) {
         if (originalInstanceId.equals(this.getInstanceId())) {
             return getNodeUnsafe(originalId);
         }
-        Iterator<Node> nodes = this.registeredNodes.values().iterator();
-        while (nodes.hasNext()) {
-            Node node = nodes.next();
-            if (node.getOriginalInstanceId().equals(originalInstanceId)) {
-                if (node.getOriginalId().equals(originalId)) {
-                    return node;
-                }
-            }
+        ConcurrentHashMap<UUID, Node> instanceNodes = this.foreignNodes.get(originalInstanceId);
+        if (instanceNodes == null) {
+            return null;
         }
-        return null;
+        return instanceNodes.get(originalId);
     }
 
     public Node getNodeUnsafe(UUID id) {
-        if (this.registeredNodes.containsKey(id)) {
-            return this.registeredNodes.get(id);
-        }
-        return null;
+        return this.registeredNodes.get(id);
     }
 
     public void shutdown() throws IOException {
-        this.getOpenJournal().close();
+        this.shutdown(false);
+    }
+
+    /**
+     * @param compact Whether to compact the whole journal once it is closed, regardless of the compaction interval
+     */
+    public void shutdown(boolean compact) throws IOException {
+        this.journalRotator.shutdown();
+        try {
+            this.journalRotator.awaitTermination(1, TimeUnit.MINUTES); // Let a rotation that has already started finish - before taking the query lock, as it may be waiting for it
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.queryLock.writeLock().lock(); // Let queries already running finish, and keep any more from starting
+        try {
+            JournalSegment lastSegment;
+            synchronized (this.journalRotationLock) {
+                lastSegment = this.getOpenJournal();
+                lastSegment.close();
+                if (this.standbyJournalSegment != null) {
+                    this.standbyJournalSegment.close(); // Never written to, so this just removes its file
+                    this.standbyJournalSegment = null;
+                }
+            }
+            this.includedSegmentIds.add(lastSegment.getId());
+            this.segmentsSinceSnapshot++;
+            this.segmentsSinceCompaction++;
+            // Holding the query lock alone, so no write can be part way between changing the graph and being journaled
+            if (compact || (this.compactionInterval > 0 && this.segmentsSinceCompaction >= this.compactionInterval)) {
+                this.compactJournal(lastSegment.getId());
+            } else if (this.snapshotInterval > 0 && this.segmentsSinceSnapshot >= this.snapshotInterval) {
+                this.writeSnapshot(lastSegment.getId());
+            }
+            if (this.payloadStore != null) {
+                this.payloadStore.close();
+            }
+        } finally {
+            this.queryLock.writeLock().unlock();
+        }
     }
 
     public Node getInstanceNode() {
@@ -479,40 +1085,97 @@ public class GraphDatabase {
     }
 
     public Node[] getAllVisibleNodes(Node actor) {
+        SearchSpace visibleNodes = this.getVisibleSearchSpace(actor);
+        if (visibleNodes.isEverything()) {
+            return this.getAllNodesUnsafe();
+        }
+        ArrayList<Node> output = new ArrayList<>(visibleNodes.size(this));
+        for (Node node : visibleNodes.nodes(this)) {
+            output.add(node);
+        }
+        return output.toArray(new Node[0]);
+    }
+
+    /**
+     * @return Every node the actor can read, as a search space - which for the instance node is EVERYTHING, rather than
+     * a copy of every node
+     */
+    public SearchSpace getVisibleSearchSpace(Node actor) {
         if (actor == null) {
-            return new Node[0];
+            return SearchSpace.of();
         }
         if (getInstanceNode().equals(actor)) {
-            return this.getAllNodesUnsafe();
+            return SearchSpace.EVERYTHING;
+        }
+        VisibilityCache.VisibleSet cached = this.visibilityCache.get(actor);
+        if (cached != null) {
+            List<Node> changed = this.visibilityCache.changedSince(cached);
+            if (changed != null && changed.isEmpty()) {
+                return SearchSpace.of(cached.getNodes());
+            }
+            Set<Node> candidates = SearchSpace.newNodeSet();
+            if (changed != null) {
+                candidates.addAll(changed);
+            }
+            if (changed != null && !candidates.contains(actor)) { // Paths starting from the actor could see a change from any object, so then it's worked out in full
+                VisibilityCache.Builder builder = cached.toBuilder();
+                for (Node candidate : candidates) {
+                    builder.remove(candidate);
+                    if (this.registeredNodes.containsKey(candidate.getId())) {
+                        this.addVisibleNodes(this.authorizationRuleIndex.getCandidates(actor, candidate), actor, candidate, builder);
+                    }
+                }
+                VisibilityCache.VisibleSet visibleSet = builder.build(cached.getThrough() + changed.size());
+                this.visibilityCache.put(actor, visibleSet);
+                return SearchSpace.of(visibleSet.getNodes());
+            }
+        }
+        long through = this.visibilityCache.getSequence(); // Taken before any rule is evaluated, so a change made while we work is caught up on later
+        List<AuthorizationRule> rules = this.authorizationRuleIndex.getCandidates(actor);
+        VisibilityCache.Builder builder = new VisibilityCache.Builder();
+        for (Node candidate : this.registeredNodes) {
+            this.addVisibleNodes(rules, actor, candidate, builder);
         }
-        ArrayList<Node> allNodes = new ArrayList<>(this.registeredNodes.values());
-        ArrayList<Node> searchSpace = new ArrayList<>(this.registeredNodes.values());
-        HashSet<Node> validNodes = new HashSet<>();
+        VisibilityCache.VisibleSet visibleSet = builder.build(through);
+        this.visibilityCache.put(actor, visibleSet);
+        return SearchSpace.of(visibleSet.getNodes());
+    }
 
-        for (AuthorizationRule rule : this.authorizationRules) {
+    /**
+     * Adds every node the read rules among those given let the actor read, when evaluated against a single candidate
+     * object, to the set as that candidate's.
+     */
+    private void addVisibleNodes(Collection<AuthorizationRule> rules, Node actor, Node candidate, VisibilityCache.Builder visibleSet) {
+        HashSet<Node> visible = new HashSet<>();
+        for (AuthorizationRule rule : rules) {
             if (Arrays.asList(rule.getAuthorizableActions()).contains(AuthorizedAction.READ)) {
-                for (Node candidate: allNodes) {
-                    Authorization auth = rule.getAuthorization(this, actor, candidate);
-                    if (auth != null) {
-                        if (auth.getValidPaths() == null) { // Special case, authorisation is global
-                            searchSpace.remove(candidate);
-                            validNodes.add(candidate);
-                        } else {
-                            for (RelativeNodePath relativeNodePath : auth.getValidPaths()) {
-                                List<Node> newValidNodes = Arrays.asList(relativeNodePath.getMatchingNodes(new SecurityContext(this, this.getInstanceNode()), new NodePathContext(actor, candidate), searchSpace.toArray(new Node[0])));
-                                searchSpace.removeAll(newValidNodes);
-                                validNodes.addAll(newValidNodes);
-                            }
+                this.addVisibleNodes(rule, actor, candidate, visible);
+            }
+        }
+        if (!visible.isEmpty()) {
+            visibleSet.add(candidate, visible);
+        }
+    }
+
+    /**
+     * Adds every node the rule lets the actor read when evaluated against a single candidate object.
+     */
+    private void addVisibleNodes(AuthorizationRule rule, Node actor, Node candidate, Set<Node> validNodes) {
+        Authorization auth = rule.getAuthorization(this, actor, candidate);
+        if (auth != null) {
+            if (auth.getValidPaths() == null) { // Special case, authorisation is global
+                validNodes.add(candidate);
+            } else {
+                for (RelativeNodePath relativeNodePath : auth.getValidPaths()) {
+                    // A null search space lets the path return every match directly, rather than filtering against a copy of every node
+                    for (Node node : relativeNodePath.getMatchingNodes(new SecurityContext(this, this.getInstanceNode()), new NodePathContext(actor, candidate), null)) {
+                        if (this.registeredNodes.containsKey(node.getId())) {
+                            validNodes.add(node);
                         }
                     }
                 }
             }
         }
-        //HashSet<Node> uniqueValidNodes = new HashSet<>();
-        //for (Node n : validNodes) {
-        //    uniqueValidNodes.add
-        //}
-        return validNodes.toArray(new Node[0]);
     }
 
     public boolean getDebugSetting() {
@@ -0,0 +1,196 @@
+package org.deegraph.database;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * Writes the body of a version 3.0 container as entries are registered, rather than all at once when the segment is
+ * closed. Entries are written and fsynced in groups by a single writer thread - whatever is registered while one group
+ * is being written goes into the next, so concurrent writers share fsyncs without anyone having to wait for a timer.
+ *
+ * Each group is framed as a 4 byte length, the binary entries, then a CRC32 of them, so a group torn by a crash can be
+ * spotted and dropped. The segment is sealed by a zero length frame followed by the body length and the signature of
+ * the SHA-256 of every group, in order.
+ */
+public class JournalAppender {
+    private final GraphDatabase graphDatabase;
+    private final FileOutputStream output;
+    private final DataOutputStream frameOutput;
+    private final MessageDigest digest;
+    private final ByteArrayOutputStream groupBuffer = new ByteArrayOutputStream();
+    private final JournalEncoder encoder = new JournalEncoder(groupBuffer); // Shared by every group, so dictionaries span the whole segment
+    private final int maxGroupSize;
+    private final long commitDelayMs;
+    private final Thread writer;
+
+    private ArrayList<JournalEntry> pending = new ArrayList<>();
+    private long appended = 0; // Number of entries handed to us so far
+    private long durable = 0; // Number of entries written and fsynced
+    private long bodyLength = 0;
+    private long groups = 0;
+    private boolean closing = false;
+    private IOException failure = null;
+
+    public JournalAppender(GraphDatabase graphDatabase, FileOutputStream output, int maxGroupSize, long commitDelayMs) {
+        this.graphDatabase = graphDatabase;
+        this.output = output;
+        this.frameOutput = new DataOutputStream(output);
+        this.maxGroupSize = Math.max(1, maxGroupSize);
+        this.commitDelayMs = commitDelayMs;
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        this.writer = new Thread(this::writeGroups, "journal-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Queues an entry to be written, without waiting for it to reach the disk.
+     * @return The position of the entry, to pass to {@link #awaitSync(long)}
+     */
+    public synchronized long append(JournalEntry entry) throws IOException {
+        if (this.failure != null) {
+            throw this.failure;
+        }
+        if (this.closing) {
+            throw new IOException("Journal segment is already sealed");
+        }
+        this.pending.add(entry);
+        this.notifyAll();
+        return ++this.appended;
+    }
+
+    /**
+     * Blocks until every entry up to and including the given position has been fsynced.
+     */
+    public synchronized void awaitSync(long position) throws IOException {
+        while (this.durable < position && this.failure == null) {
+            try {
+                this.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for journal sync", e);
+            }
+        }
+        if (this.failure != null) {
+            throw this.failure;
+        }
+    }
+
+    public synchronized long getAppendedCount() {
+        return this.appended;
+    }
+
+    public synchronized long getGroupCount() {
+        return this.groups;
+    }
+
+    private void writeGroups() {
+        while (true) {
+            ArrayList<JournalEntry> group;
+            synchronized (this) {
+                while (this.pending.isEmpty() && !this.closing) {
+                    try {
+                        this.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (this.pending.isEmpty()) { // Closing, and everything is already written
+                    return;
+                }
+                if (this.commitDelayMs > 0 && !this.closing) { // Trade a little latency for larger groups
+                    long deadline = System.currentTimeMillis() + this.commitDelayMs;
+                    long remaining;
+                    while (this.pending.size() < this.maxGroupSize && !this.closing && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                        try {
+                            this.wait(remaining);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+                if (this.pending.size() <= this.maxGroupSize) {
+                    group = this.pending;
+                    this.pending = new ArrayList<>();
+                } else {
+                    group = new ArrayList<>(this.pending.subList(0, this.maxGroupSize));
+                    this.pending.subList(0, this.maxGroupSize).clear();
+                }
+            }
+            try {
+                this.writeGroup(group);
+            } catch (IOException e) {
+                synchronized (this) {
+                    this.failure = e;
+                    this.notifyAll();
+                }
+                return;
+            }
+            synchronized (this) {
+                this.durable += group.size();
+                this.groups++;
+                this.notifyAll();
+            }
+        }
+    }
+
+    private void writeGroup(ArrayList<JournalEntry> group) throws IOException {
+        this.groupBuffer.reset();
+        for (JournalEntry entry : group) {
+            entry.asBinary(this.encoder);
+        }
+        this.encoder.flush();
+        byte[] payload = this.groupBuffer.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        this.frameOutput.writeInt(payload.length);
+        this.frameOutput.write(payload);
+        this.frameOutput.writeInt((int) crc.getValue());
+        this.frameOutput.flush();
+        this.output.getChannel().force(false);
+        this.digest.update(payload);
+        this.bodyLength += payload.length;
+    }
+
+    /**
+     * Writes out anything still queued, then seals the segment with its signature.
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            this.closing = true;
+            this.notifyAll();
+        }
+        try {
+            this.writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for journal writer", e);
+        }
+        if (this.failure != null) {
+            throw this.failure;
+        }
+        JournalAppender.writeSeal(this.frameOutput, this.bodyLength, this.graphDatabase.signPayload(this.digest.digest()));
+        this.output.getChannel().force(false);
+        this.output.close();
+    }
+
+    static void writeSeal(DataOutputStream output, long bodyLength, String signature) throws IOException {
+        byte[] signatureBytes = signature.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(0);
+        output.writeLong(bodyLength);
+        output.writeInt(signatureBytes.length);
+        output.write(signatureBytes);
+        output.flush();
+    }
+}
@@ -0,0 +1,110 @@
+package org.deegraph.database;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.UUID;
+
+/**
+ * Reads the primitives written by a {@link JournalEncoder}, rebuilding its dictionaries as it goes.
+ */
+public class JournalDecoder {
+    private final DataInputStream input;
+    private final ArrayList<UUID> uuidDictionary = new ArrayList<>();
+    private final ArrayList<String> stringDictionary = new ArrayList<>();
+
+    public JournalDecoder(InputStream input) {
+        this.input = new DataInputStream(input);
+    }
+
+    /**
+     * @return The type of the next entry, or -1 if the end of the body has been reached
+     */
+    public int readType() throws IOException {
+        return this.input.read();
+    }
+
+    public int readVarInt() throws IOException {
+        int value = 0;
+        int shift = 0;
+        while (true) {
+            int b = this.input.read();
+            if (b == -1) {
+                throw new EOFException("Journal body ended part way through a value");
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+            if (shift > 28) {
+                throw new IOException("Malformed varint in journal body");
+            }
+        }
+    }
+
+    public UUID readUuid() throws IOException {
+        long mostSignificantBits = this.input.readLong();
+        long leastSignificantBits = this.input.readLong();
+        return new UUID(mostSignificantBits, leastSignificantBits);
+    }
+
+    public UUID readNullableUuid() throws IOException {
+        if (this.input.readBoolean()) {
+            return this.readUuid();
+        }
+        return null;
+    }
+
+    public Date readTimestamp() throws IOException {
+        return new Date(this.input.readLong());
+    }
+
+    public String readString() throws IOException {
+        int length = this.readVarInt();
+        if (length == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length - 1];
+        this.input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public UUID readDictionaryUuid() throws IOException {
+        int reference = this.readVarInt();
+        switch (reference) {
+            case 0:
+                return null;
+            case 1:
+                UUID uuid = this.readUuid();
+                this.uuidDictionary.add(uuid);
+                return uuid;
+            default:
+                if (reference - 2 >= this.uuidDictionary.size()) {
+                    throw new IOException("Journal body references an undefined id");
+                }
+                return this.uuidDictionary.get(reference - 2);
+        }
+    }
+
+    public String readDictionaryString() throws IOException {
+        int reference = this.readVarInt();
+        switch (reference) {
+            case 0:
+                return null;
+            case 1:
+                String value = this.readString();
+                this.stringDictionary.add(value);
+                return value;
+            default:
+                if (reference - 2 >= this.stringDictionary.size()) {
+                    throw new IOException("Journal body references an undefined string");
+                }
+                return this.stringDictionary.get(reference - 2);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package org.deegraph.database;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * Writes the primitives of the binary journal format. UUIDs and timestamps are fixed width, strings are length
+ * prefixed, and values that repeat across entries (actor ids, property keys...) go through a dictionary so they are
+ * only written out in full the first time they appear in a segment.
+ *
+ * Dictionary references are written as a varint: 0 is null, 1 is a new value that follows inline (and is assigned
+ * the next index), anything else is an index into the values seen so far, offset by 2.
+ */
+public class JournalEncoder {
+    private final DataOutputStream output;
+    private final HashMap<UUID, Integer> uuidDictionary = new HashMap<>();
+    private final HashMap<String, Integer> stringDictionary = new HashMap<>();
+
+    public JournalEncoder(OutputStream output) {
+        this.output = new DataOutputStream(output);
+    }
+
+    public void writeType(int type) throws IOException {
+        this.output.writeByte(type);
+    }
+
+    public void writeVarInt(int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            this.output.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        this.output.writeByte(value);
+    }
+
+    public void writeUuid(UUID uuid) throws IOException {
+        this.output.writeLong(uuid.getMostSignificantBits());
+        this.output.writeLong(uuid.getLeastSignificantBits());
+    }
+
+    public void writeNullableUuid(UUID uuid) throws IOException {
+        this.output.writeBoolean(uuid != null);
+        if (uuid != null) {
+            this.writeUuid(uuid);
+        }
+    }
+
+    public void writeTimestamp(Date date) throws IOException {
+        this.output.writeLong(date.getTime());
+    }
+
+    /**
+     * Writes a length prefixed UTF-8 string, with a length of 0 reserved for null.
+     */
+    public void writeString(String value) throws IOException {
+        if (value == null) {
+            this.writeVarInt(0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        this.writeVarInt(bytes.length + 1);
+        this.output.write(bytes);
+    }
+
+    public void writeDictionaryUuid(UUID uuid) throws IOException {
+        if (uuid == null) {
+            this.writeVarInt(0);
+            return;
+        }
+        Integer index = this.uuidDictionary.get(uuid);
+        if (index == null) {
+            this.uuidDictionary.put(uuid, this.uuidDictionary.size());
+            this.writeVarInt(1);
+            this.writeUuid(uuid);
+        } else {
+            this.writeVarInt(index + 2);
+        }
+    }
+
+    public void writeDictionaryString(String value) throws IOException {
+        if (value == null) {
+            this.writeVarInt(0);
+            return;
+        }
+        Integer index = this.stringDictionary.get(value);
+        if (index == null) {
+            this.stringDictionary.put(value, this.stringDictionary.size());
+            this.writeVarInt(1);
+            this.writeString(value);
+        } else {
+            this.writeVarInt(index + 2);
+        }
+    }
+
+    public void flush() throws IOException {
+        this.output.flush();
+    }
+}
@@ -4,6 +4,8 @@ import org.deegraph.exceptions.DuplicateNodeStoreException;
 import org.deegraph.exceptions.MissingNodeException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -15,6 +17,16 @@ import java.util.Locale;
 import java.util.TimeZone;
 
 public abstract class JournalEntry {
+    // Entry types in the binary journal format - these are written to disk, so must never be renumbered
+    protected static final int BINARY_NEW_NODE = 1;
+    protected static final int BINARY_QUERY = 2;
+    protected static final int BINARY_ADD_RELATION = 3;
+    protected static final int BINARY_REMOVE_RELATION = 4;
+    protected static final int BINARY_TRUST_KEY = 5;
+    protected static final int BINARY_ADD_GRANT_RULE = 6; // Rules recorded as their GRANT query, only read now
+    protected static final int BINARY_ADD_RULE = 7;
+    protected static final int BINARY_DELETE_NODES = 8;
+
     protected Date timestamp;
     private static DateFormat date_format = null;
     public JournalEntry() {
@@ -62,6 +74,10 @@ public abstract class JournalEntry {
                 return RemoveRelationJournalEntry.fromJson(input);
             case "TRUST_KEY":
                 return TrustKeyJournalEntry.fromJson(input);
+            case "ADD_RULE":
+                return AddRuleJournalEntry.fromJson(input);
+            case "DELETE_NODES":
+                return DeleteNodesJournalEntry.fromJson(input);
             default:
                 return null;
         }
@@ -69,4 +85,33 @@ public abstract class JournalEntry {
     public JSONObject asJson() {
         return new JSONObject();
     }
+
+    public static JournalEntry fromBinary(int type, JournalDecoder input) throws IOException, ParseException {
+        switch (type) {
+            case BINARY_NEW_NODE:
+                return NewNodeJournalEntry.fromBinary(input);
+            case BINARY_QUERY:
+                return QueryJournalEntry.fromBinary(input);
+            case BINARY_ADD_RELATION:
+                return AddRelationJournalEntry.fromBinary(input);
+            case BINARY_REMOVE_RELATION:
+                return RemoveRelationJournalEntry.fromBinary(input);
+            case BINARY_TRUST_KEY:
+                return TrustKeyJournalEntry.fromBinary(input);
+            case BINARY_ADD_GRANT_RULE:
+                return AddRuleJournalEntry.fromGrantBinary(input);
+            case BINARY_ADD_RULE:
+                return AddRuleJournalEntry.fromBinary(input);
+            case BINARY_DELETE_NODES:
+                return DeleteNodesJournalEntry.fromBinary(input);
+            default:
+                throw new IOException("Unknown journal entry type " + type); // Entries aren't length prefixed, so there's no way to skip past this one
+        }
+    }
+
+    /**
+     * Writes the entry type followed by the entry itself.
+     */
+    public void asBinary(JournalEncoder output) throws IOException {
+    }
 }
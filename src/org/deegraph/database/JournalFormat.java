@@ -0,0 +1,11 @@
+package org.deegraph.database;
+
+/**
+ * The encoding used for the body of journal segments written by this instance. Segments in any format can always be
+ * read back, as the container header records which one was used.
+ */
+public enum JournalFormat {
+    JSON, // deegraph-container-version 1.0
+    BINARY, // deegraph-container-version 2.0
+    APPEND // deegraph-container-version 3.0 - binary, but written and fsynced in groups as entries are registered
+}
@@ -11,38 +11,73 @@ import com.nimbusds.jose.crypto.Ed25519Verifier;
 import com.nimbusds.jose.jwk.OctetKeyPair;
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
 
 public class JournalSegment {
+    public static final String BINARY_CONTENT_TYPE = "application/vnd.deegraph.journal";
+    public static final String SNAPSHOT_CONTENT_TYPE = "application/vnd.deegraph.snapshot";
+    public static final String COMPACTED_CONTENT_TYPE = "application/vnd.deegraph.compacted-journal";
+
     private Queue<JournalEntry> segmentActions;
-    private boolean open;
+    private volatile boolean open;
+    private final ReentrantReadWriteLock sealLock = new ReentrantReadWriteLock();
+    private volatile JournalSegment successor; // Where writes go once this segment is sealed by a rotation
     private Date openDate;
     private Date closeDate;
     private UUID journalUuid;
     private GraphDatabase graphDatabase;
     private UUID originalDatabaseInstanceId; // This should *only* be set if we're absolutely sure this segment has come from this id (we must have either created it or checked its signature)
+    private JournalFormat format;
 
     private File saveFile;
-    private FileWriter saveFileWriter;
+    private FileOutputStream saveFileStream;
+    private JournalAppender appender; // Only for segments being written in the append format
+
+    // Set for segments read from disk, which are only decoded when replayed
+    private String containerVersion;
+    private long bodyOffset;
+    private File verifiedBody; // A private copy of the body exactly as it was hashed, kept on disk from validation until it is decoded
+    private String contentType;
+    private String snapshotThrough; // For snapshots and compacted segments, the id of the last segment whose entries are included
+    private Set<String> snapshotIncludes; // For snapshots and compacted segments, the ids of every segment whose entries are included, or null for ones written before these were listed
 
     public JournalSegment(GraphDatabase graphDatabase) throws IOException {
-        this.segmentActions = new LinkedList<>();
+        this.segmentActions = new ConcurrentLinkedQueue<>();
         this.open = true;
         this.graphDatabase = graphDatabase;
         this.openDate = new Date();
         this.journalUuid = UUID.randomUUID();
         this.originalDatabaseInstanceId = graphDatabase.getInstanceId();
+        this.format = graphDatabase.getJournalFormat();
         this.saveFile = new File(graphDatabase.getDbLocation() + this.getId() + ".journal.dgc"); // deegraph container
         this.saveFile.createNewFile();
-        this.saveFileWriter = new FileWriter(this.saveFile);
+        this.saveFileStream = new FileOutputStream(this.saveFile);
+        if (this.format == JournalFormat.APPEND) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("deegraph-container-version: 3.0\r\n");
+            sb.append("content-type: " + BINARY_CONTENT_TYPE + "\r\n");
+            sb.append("origin-fqdn: " + graphDatabase.getInstanceFqdn() + "\r\n");
+            sb.append("origin-id: " + graphDatabase.getInstanceId() + "\r\n");
+            sb.append("\r\n"); // The signature and length follow the body instead, once the segment is sealed
+            this.saveFileStream.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+            this.appender = new JournalAppender(graphDatabase, this.saveFileStream, graphDatabase.getJournalGroupCommitSize(), graphDatabase.getJournalCommitDelayMs());
+        }
     }
 
     public JournalSegment(GraphDatabase gdb, BufferedReader input) throws IOException, UnvalidatedJournalSegment, ParseException {
@@ -51,99 +86,368 @@ public class JournalSegment {
         this.open = false;
 
         HashMap<String, ArrayList<String>> props = new HashMap<>();
-        StringBuilder bodyStringBuilder = new StringBuilder();
-        boolean bodyReached = false;
         while (true) {
             String line = input.readLine();
-            if (line == null) {
+            if (line == null || !JournalSegment.parseHeaderLine(line, props)) {
                 break;
             }
-            if (bodyReached) {
-                bodyStringBuilder.append(line);
-                bodyStringBuilder.append("\r\n");
-            } else {
-                int delimiterPosition = line.indexOf(":");
-                if (delimiterPosition != -1) {
-                    String key = line.substring(0, delimiterPosition).toLowerCase(Locale.ROOT);
-                    String value = line.substring(delimiterPosition + 1);
-                    if (value.startsWith(" ")) {
-                        value = value.substring(1);
-                    }
-                    ArrayList<String> values = new ArrayList<>();
-                    String cValue = "";
-                    boolean quoteMode = false;
-                    while (value.length() > 0) {
-                        char nChar = value.charAt(0);
-                        value = value.substring(1);
-                        switch (nChar) {
-                            case '"':
-                                quoteMode = !quoteMode;
-                                break;
-                            case ';':
-                                if (!quoteMode) {
-                                    if (cValue.startsWith(" ")) {
-                                        cValue = cValue.substring(1);
-                                    }
-                                    values.add(cValue);
-                                    cValue = "";
-                                } else {
-                                    cValue = cValue + nChar;
-                                }
-                                break;
-                            case '=':
-                                if (!quoteMode) {
-                                    if (cValue.startsWith(" ")) {
-                                        cValue = cValue.substring(1);
-                                    }
-                                    values.add(cValue + "=");
-                                    cValue = "";
-                                } else {
-                                    cValue = cValue + nChar;
-                                }
-                                break;
-                            case ' ':
-                                if (!quoteMode) {
-                                    break;
-                                } else {
-                                    cValue = cValue + nChar;
-                                }
-                                break;
-                            case '\\':
-                                nChar = value.charAt(0);
-                                value = value.substring(1);
-                            default:
-                                cValue = cValue + nChar;
-                        }
+        }
+        this.readHeader(props);
+        this.containerVersion = "1.0"; // Whatever the header says, as only a JSON body can be read as text
+        this.copyVerifiedBody(props, (hashedBody, digest) -> this.checkBody(props, JournalSegment.digestJsonBody(input, hashedBody), digest));
+    }
+
+    /**
+     * Reads a segment of any container version. The header is read a byte at a time, so the stream should be buffered.
+     */
+    public JournalSegment(GraphDatabase gdb, InputStream input) throws IOException, UnvalidatedJournalSegment, ParseException {
+        this.graphDatabase = gdb;
+        this.segmentActions = new LinkedList<>();
+        this.open = false;
+
+        HashMap<String, ArrayList<String>> props = new HashMap<>();
+        while (true) {
+            String line = JournalSegment.readHeaderLine(input);
+            if (line == null || !JournalSegment.parseHeaderLine(line, props)) {
+                break;
+            }
+        }
+        this.readHeader(props);
+        this.copyVerifiedBody(props, (hashedBody, digest) -> this.copyBody(props, input, hashedBody, digest));
+    }
+
+    /**
+     * Validates a segment on disk in a single pass, keeping the body exactly as it was hashed. Entries are only decoded
+     * from those bytes, one at a time, once the segment is replayed - never from a second read of the file, which could
+     * have changed since it was checked.
+     */
+    public JournalSegment(GraphDatabase gdb, File file) throws IOException, UnvalidatedJournalSegment {
+        this(gdb, file, false);
+    }
+
+    /**
+     * @param recoverTornTail Whether an unsealed appended segment of our own may be cut back to its last complete group
+     *                        and sealed - only ever true for the two newest segments we wrote, as the rotation thread
+     *                        seals a segment after its successor has started taking writes, but before the next rotation
+     */
+    public JournalSegment(GraphDatabase gdb, File file, boolean recoverTornTail) throws IOException, UnvalidatedJournalSegment {
+        this.graphDatabase = gdb;
+        this.segmentActions = new LinkedList<>();
+        this.open = false;
+
+        try (PositionedInputStream input = new PositionedInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            HashMap<String, ArrayList<String>> props = new HashMap<>();
+            while (true) {
+                String line = JournalSegment.readHeaderLine(input);
+                if (line == null || !JournalSegment.parseHeaderLine(line, props)) {
+                    break;
+                }
+            }
+            this.bodyOffset = input.getPosition();
+            this.readHeader(props);
+            this.copyVerifiedBody(props, (hashedBody, digest) -> {
+                if (this.containerVersion.equals("3.0")) {
+                    this.validateAppendedBody(file, new DataInputStream(input), props, digest, hashedBody, recoverTornTail);
+                } else {
+                    this.copyBody(props, input, hashedBody, digest);
+                }
+            });
+        }
+    }
+
+    private void readHeader(HashMap<String, ArrayList<String>> props) {
+        this.containerVersion = props.containsKey("deegraph-container-version") ? props.get("deegraph-container-version").get(0) : "1.0";
+        this.contentType = props.containsKey("content-type") ? props.get("content-type").get(0) : null;
+        this.snapshotThrough = props.containsKey("snapshot-through") ? props.get("snapshot-through").get(0) : null;
+        if (props.containsKey("snapshot-includes")) {
+            this.snapshotIncludes = new HashSet<>();
+            for (String segmentId : props.get("snapshot-includes")) {
+                if (!segmentId.isEmpty()) {
+                    this.snapshotIncludes.add(segmentId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies the body into a private temporary file as it is hashed, so that it is never held in memory, and what is
+     * decoded later is exactly what was checked - not a second read of a file that could have changed since. The copy
+     * is removed if the body doesn't validate.
+     */
+    private void copyVerifiedBody(HashMap<String, ArrayList<String>> props, BodyCopier copier) throws IOException, UnvalidatedJournalSegment {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        File bodyCopy = File.createTempFile("deegraph-", ".body");
+        bodyCopy.deleteOnExit(); // In case the segment is never replayed
+        try (OutputStream hashedBody = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(bodyCopy)), digest)) {
+            copier.copy(hashedBody, digest);
+        } catch (IOException | UnvalidatedJournalSegment | RuntimeException e) {
+            bodyCopy.delete();
+            throw e;
+        }
+        this.verifiedBody = bodyCopy;
+    }
+
+    private interface BodyCopier {
+        void copy(OutputStream hashedBody, MessageDigest digest) throws IOException, UnvalidatedJournalSegment;
+    }
+
+    /**
+     * Copies a 1.0 or 2.0 body, which is signed as a whole in the header.
+     */
+    private void copyBody(HashMap<String, ArrayList<String>> props, InputStream input, OutputStream hashedBody, MessageDigest digest) throws IOException, UnvalidatedJournalSegment {
+        long actualLength;
+        switch (this.containerVersion) {
+            case "1.0":
+                actualLength = JournalSegment.digestJsonBody(new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8)), hashedBody);
+                break;
+            case "2.0":
+                long expectedLength = Long.parseLong(props.get("content-length").get(0));
+                byte[] buffer = new byte[65536];
+                actualLength = 0;
+                while (actualLength < expectedLength) {
+                    int read = input.read(buffer, 0, (int) Math.min(buffer.length, expectedLength - actualLength));
+                    if (read == -1) {
+                        break;
                     }
-                    if (cValue.startsWith(" ")) {
-                        cValue = cValue.substring(1);
+                    hashedBody.write(buffer, 0, read);
+                    actualLength += read;
+                }
+                break;
+            default:
+                throw new UnvalidatedJournalSegment("Could not validate journal segment - unsupported container version " + this.containerVersion);
+        }
+        this.checkBody(props, actualLength, digest);
+    }
+
+    private void checkBody(HashMap<String, ArrayList<String>> props, long actualLength, MessageDigest digest) throws UnvalidatedJournalSegment {
+        if (actualLength != Long.parseLong(props.get("content-length").get(0))) {
+            throw new UnvalidatedJournalSegment("Could not validate journal segment - body length did not match expected value - is this journal segment corrupted?");
+        }
+        this.validateBodyHash(props, digest.digest());
+    }
+
+    /**
+     * Reads the groups of an appended body up to its seal. If the segment was never sealed because we crashed while
+     * writing or sealing it, it is cut back to the last complete group and sealed now - but only if it is one of the two
+     * newest of our own segments, and only if what's wrong with it is a group torn off at the very end of the file. An
+     * older segment may only be unsealed if nothing was ever written to it. Anything else means the segment was damaged
+     * or changed after it was written, and it is rejected rather than signed again.
+     */
+    private void validateAppendedBody(File file, DataInputStream input, HashMap<String, ArrayList<String>> props, MessageDigest digest, OutputStream hashedBody, boolean recoverTornTail) throws IOException, UnvalidatedJournalSegment {
+        long fileLength = file.length();
+        long validEnd = this.bodyOffset;
+        long length = 0;
+        String signature = null;
+        CRC32 crc = new CRC32();
+        try {
+            while (true) {
+                int frameLength = input.readInt();
+                if (frameLength == 0) {
+                    long sealedLength = input.readLong();
+                    byte[] signatureBytes = new byte[input.readInt()];
+                    input.readFully(signatureBytes);
+                    if (sealedLength != length) {
+                        throw new UnvalidatedJournalSegment("Could not validate journal segment - body length did not match expected value - is this journal segment corrupted?");
                     }
-                    values.add(cValue);
-                    props.put(key, values);
-                } else {
-                    if (line.length() == 0) {
-                        bodyReached = true;
-                    } else {
-                        System.err.println("Syntax error in dump header");
+                    signature = new String(signatureBytes, StandardCharsets.UTF_8);
+                    break;
+                }
+                if (frameLength < 0) { // A crash leaves a group short, never with a length that couldn't have been written
+                    throw new UnvalidatedJournalSegment("Could not validate journal segment - invalid group length - this journal segment is corrupted.");
+                }
+                byte[] payload = new byte[frameLength];
+                input.readFully(payload);
+                int expectedCrc = input.readInt();
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != expectedCrc) {
+                    if (validEnd + 8 + frameLength < fileLength) { // Something was written after it, so it wasn't torn by a crash
+                        throw new UnvalidatedJournalSegment("Could not validate journal segment - group checksum did not match - this journal segment is corrupted.");
                     }
+                    break;
+                }
+                hashedBody.write(payload);
+                length += frameLength;
+                validEnd += 8 + frameLength;
+            }
+        } catch (EOFException e) {
+            // Torn write at the end of the file, so treat as unsealed
+        }
+        byte[] bodyHash = digest.digest();
+        if (signature == null) {
+            if (!this.graphDatabase.getInstanceId().toString().equals(props.get("origin-id").get(0))) {
+                throw new UnvalidatedJournalSegment("Could not validate journal segment - segment from another origin was never sealed");
+            }
+            if (!recoverTornTail && fileLength > this.bodyOffset) { // A segment that's nothing but its header was a standby never written to, so has nothing to lose by being sealed
+                throw new UnvalidatedJournalSegment("Could not validate journal segment - segment was never sealed, but isn't one of the two newest we wrote");
+            }
+            System.out.println("Recovering unsealed journal segment [" + file.getName() + "]");
+            signature = this.graphDatabase.signPayload(bodyHash);
+            try (RandomAccessFile truncate = new RandomAccessFile(file, "rw")) {
+                truncate.setLength(validEnd);
+            }
+            try (FileOutputStream output = new FileOutputStream(file, true)) {
+                JournalAppender.writeSeal(new DataOutputStream(output), length, signature);
+                output.getChannel().force(false);
+            }
+        }
+        ArrayList<String> signatureValue = new ArrayList<>();
+        signatureValue.add(signature);
+        props.put("content-signature", signatureValue);
+        this.validateBodyHash(props, bodyHash);
+    }
+
+    /**
+     * Hashes a JSON body exactly as the whole-body reader sees it - every line ending as CRLF and the whole thing trimmed -
+     * without ever holding more than a line of it.
+     * @return The length of the normalised body in chars, to compare against the content-length header
+     */
+    private static long digestJsonBody(BufferedReader input, OutputStream hashedBody) throws IOException {
+        long length = 0;
+        boolean started = false;
+        StringBuilder pendingWhitespace = new StringBuilder(); // Held back until we know it isn't trailing
+        while (true) {
+            String line = input.readLine();
+            if (line == null) {
+                break;
+            }
+            String chunk = line + "\r\n";
+            int first = 0;
+            if (!started) {
+                while (first < chunk.length() && chunk.charAt(first) <= ' ') {
+                    first++;
                 }
+                if (first == chunk.length()) {
+                    continue;
+                }
+                started = true;
+            }
+            int last = chunk.length() - 1;
+            while (last >= first && chunk.charAt(last) <= ' ') {
+                last--;
+            }
+            if (last < first) {
+                pendingWhitespace.append(chunk, first, chunk.length());
+                continue;
+            }
+            if (pendingWhitespace.length() > 0) {
+                hashedBody.write(pendingWhitespace.toString().getBytes(StandardCharsets.UTF_8));
+                length += pendingWhitespace.length();
+                pendingWhitespace.setLength(0);
             }
+            hashedBody.write(chunk.substring(first, last + 1).getBytes(StandardCharsets.UTF_8));
+            length += last + 1 - first;
+            pendingWhitespace.append(chunk, last + 1, chunk.length());
         }
+        return length;
+    }
 
-        String body = bodyStringBuilder.toString().trim();
+    private static String readHeaderLine(InputStream input) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        while (true) {
+            int b = input.read();
+            if (b == -1) {
+                if (line.size() == 0) {
+                    return null;
+                }
+                break;
+            }
+            if (b == '\n') {
+                break;
+            }
+            line.write(b);
+        }
+        String decodedLine = line.toString(StandardCharsets.UTF_8);
+        if (decodedLine.endsWith("\r")) {
+            decodedLine = decodedLine.substring(0, decodedLine.length() - 1);
+        }
+        return decodedLine;
+    }
 
-        //System.out.println(new JSONObject(props).toString(4));
-        //System.out.println("===");
-        //System.out.println(body);
+    /**
+     * @return false once the blank line between the header and the body has been reached
+     */
+    private static boolean parseHeaderLine(String line, HashMap<String, ArrayList<String>> props) {
+        int delimiterPosition = line.indexOf(":");
+        if (delimiterPosition != -1) {
+            String key = line.substring(0, delimiterPosition).toLowerCase(Locale.ROOT);
+            String value = line.substring(delimiterPosition + 1);
+            if (value.startsWith(" ")) {
+                value = value.substring(1);
+            }
+            ArrayList<String> values = new ArrayList<>();
+            String cValue = "";
+            boolean quoteMode = false;
+            while (value.length() > 0) {
+                char nChar = value.charAt(0);
+                value = value.substring(1);
+                switch (nChar) {
+                    case '"':
+                        quoteMode = !quoteMode;
+                        break;
+                    case ';':
+                        if (!quoteMode) {
+                            if (cValue.startsWith(" ")) {
+                                cValue = cValue.substring(1);
+                            }
+                            values.add(cValue);
+                            cValue = "";
+                        } else {
+                            cValue = cValue + nChar;
+                        }
+                        break;
+                    case '=':
+                        if (!quoteMode) {
+                            if (cValue.startsWith(" ")) {
+                                cValue = cValue.substring(1);
+                            }
+                            values.add(cValue + "=");
+                            cValue = "";
+                        } else {
+                            cValue = cValue + nChar;
+                        }
+                        break;
+                    case ' ':
+                        if (!quoteMode) {
+                            break;
+                        } else {
+                            cValue = cValue + nChar;
+                        }
+                        break;
+                    case '\\':
+                        nChar = value.charAt(0);
+                        value = value.substring(1);
+                    default:
+                        cValue = cValue + nChar;
+                }
+            }
+            if (cValue.startsWith(" ")) {
+                cValue = cValue.substring(1);
+            }
+            values.add(cValue);
+            props.put(key, values);
+        } else {
+            if (line.length() == 0) {
+                return false;
+            } else {
+                System.err.println("Syntax error in dump header");
+            }
+        }
+        return true;
+    }
 
+    /**
+     * Checks the hash of the body against the origin and signature given in the header, throwing if it can't be trusted.
+     */
+    private void validateBodyHash(HashMap<String, ArrayList<String>> props, byte[] bodyHash) throws UnvalidatedJournalSegment {
         UUID sourceInstanceId = UUID.fromString(props.get("origin-id").get(0));
         String sourceInstanceFqdn = props.get("origin-fqdn").get(0);
         String bodySignature = props.get("content-signature").get(0);
-        int bodyLength = Integer.parseInt(props.get("content-length").get(0));
-
-        if (bodyLength != body.length()) {
-            throw new UnvalidatedJournalSegment("Could not validate journal segment - body length did not match expected value - is this journal segment corrupted?");
-        }
 
         if (sourceInstanceId == null || sourceInstanceFqdn == null) {
             throw new UnvalidatedJournalSegment("Could not validate journal segment - source instance not identified - is this journal segment corrupted?");
@@ -154,106 +458,347 @@ public class JournalSegment {
         }
 
         boolean validatedSegment = false;
+        String[] fullJWS = bodySignature.split("\\.");
+        byte[] bodySignatureEmbeddedHash = Base64.getUrlDecoder().decode(fullJWS[1]);
+        if (!Arrays.equals(bodySignatureEmbeddedHash, bodyHash)) {
+            throw new UnvalidatedJournalSegment("Could not validate journal segment - hash did not match expected value - this journal segment is corrupted.");
+        }
+
+        JWSObject parsedJWSObject = null;
         try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] bodyHash = digest.digest(body.getBytes(StandardCharsets.UTF_8));
-            String[] fullJWS = bodySignature.split("\\.");
-            byte[] bodySignatureEmbeddedHash = Base64.getUrlDecoder().decode(fullJWS[1]);
-            if (!Arrays.equals(bodySignatureEmbeddedHash, bodyHash)) {
-                throw new UnvalidatedJournalSegment("Could not validate journal segment - hash did not match expected value - this journal segment is corrupted.");
+            bodySignature = fullJWS[0] + ".." + fullJWS[2]; // This is needed because nimbus-jose doesn't currently support verifying the hash itself - we've done this already though
+            parsedJWSObject = JWSObject.parse(bodySignature, new Payload(bodyHash));
+        } catch (ParseException e) {
+            throw new RuntimeException(e);
+        }
+        //publicJWK = (OctetKeyPair) JWK.parse(jsonObject.toMap());
+        for (OctetKeyPair ocp: this.graphDatabase.getInstanceKeys(sourceInstanceId)) {
+            if (parsedJWSObject != null) {
+                try {
+                    if (parsedJWSObject.verify(new Ed25519Verifier(ocp))) {
+                        validatedSegment = true;
+                        this.originalDatabaseInstanceId = sourceInstanceId; // We're now sure about where this has come from, so we can set this instance variable.
+                    }
+                } catch (JOSEException e) {
+                    throw new RuntimeException(e);
+                }
             }
+        }
 
-            JWSObject parsedJWSObject = null;
+        if (!validatedSegment) {
+            throw new UnvalidatedJournalSegment("Could not validate journal segment - missing or invalid public key for origin {" + sourceInstanceFqdn.toString() + ":" + sourceInstanceId.toString() + "} - is this origin peered?");
+        }
+    }
+
+    public void registerNewNode(Node node) throws ClosedJournalException, DuplicateNodeStoreException {
+        if (this.graphDatabase.getNodeUnsafe(node.getId()) == null && this.graphDatabase.getNodeUnsafe(node.getOriginalId(), node.getOriginalInstanceId()) == null) {
+            this.registerEntry(new NewNodeJournalEntry(node));
+            this.graphDatabase.registerNodeUnsafe(node);
+        } else {
+            throw new DuplicateNodeStoreException(node);
+        }
+    }
+
+    /**
+     * Adds an entry to the segment, or to whichever segment replaced it if it has been sealed since it was handed out.
+     * In the append format this returns once the entry is on disk.
+     */
+    public void registerEntry(JournalEntry journalEntry) throws ClosedJournalException {
+        this.appendEntry(journalEntry).awaitSync();
+    }
+
+    /**
+     * Fixes the entry's place in the journal without waiting for it to reach disk, so it can be taken while holding the
+     * locks that decide that order, and waited on once they are released.
+     * @return What to wait on before the entry can be treated as durable
+     */
+    public PendingEntry appendEntry(JournalEntry journalEntry) throws ClosedJournalException {
+        long position;
+        this.sealLock.readLock().lock(); // Shared, so writers only ever wait for a seal, never for each other
+        try {
+            if (!this.open) {
+                if (this.successor == null) {
+                    throw new ClosedJournalException(this);
+                }
+                position = -1;
+            } else if (this.appender == null) {
+                this.segmentActions.add(journalEntry);
+                return PendingEntry.NONE;
+            } else {
+                position = this.appender.append(journalEntry);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            this.sealLock.readLock().unlock();
+        }
+        if (position == -1) {
+            return this.successor.appendEntry(journalEntry);
+        }
+        return new PendingEntry(this.appender, position);
+    }
+
+    /**
+     * An entry appended to a segment but not necessarily fsynced yet.
+     */
+    public static final class PendingEntry {
+        private static final PendingEntry NONE = new PendingEntry(null, 0); // Segments not in the append format are only written when they're sealed, so there's nothing to wait for
+
+        private final JournalAppender appender;
+        private final long position;
+
+        private PendingEntry(JournalAppender appender, long position) {
+            this.appender = appender;
+            this.position = position;
+        }
+
+        /**
+         * Blocks until the entry, and every entry before it, is on disk.
+         */
+        public void awaitSync() {
+            if (this.appender == null) {
+                return;
+            }
             try {
-                bodySignature = fullJWS[0] + ".." + fullJWS[2]; // This is needed because nimbus-jose doesn't currently support verifying the hash itself - we've done this already though
-                parsedJWSObject = JWSObject.parse(bodySignature, new Payload(bodyHash));
-            } catch (ParseException e) {
+                this.appender.awaitSync(this.position);
+            } catch (IOException e) {
                 throw new RuntimeException(e);
             }
-            //publicJWK = (OctetKeyPair) JWK.parse(jsonObject.toMap());
-            for (OctetKeyPair ocp: this.graphDatabase.getInstanceKeys(sourceInstanceId)) {
-                if (parsedJWSObject != null) {
+        }
+    }
+
+    public boolean replay(boolean faultTolerant) {
+        boolean valid = true;
+        Node actingNode = this.graphDatabase.getNodeUnsafe(this.originalDatabaseInstanceId);
+        if (this.verifiedBody != null) {
+            boolean[] bodyValid = {true};
+            this.decodeVerifiedBody(faultTolerant, journalEntry -> {
+                if (!this.replayEntry(journalEntry, actingNode, faultTolerant)) {
+                    bodyValid[0] = false;
+                }
+            });
+            return bodyValid[0];
+        }
+        for (JournalEntry journalEntry : this.segmentActions) {
+            if (!this.replayEntry(journalEntry, actingNode, faultTolerant)) {
+                valid = false;
+            }
+        }
+        return valid;
+    }
+
+    private boolean replayEntry(JournalEntry journalEntry, Node actingNode, boolean faultTolerant) {
+        try {
+            return journalEntry.replayOn(this.graphDatabase, actingNode);
+        } catch (MissingNodeException e) {
+            if (!faultTolerant) {
+                throw new RuntimeException(e);
+            }
+        } catch (DuplicateNodeStoreException e) {
+            if (!faultTolerant) {
+                throw new RuntimeException(e);
+            }
+        } catch (ParseException e) {
+            if (!faultTolerant) {
+                throw new RuntimeException(e);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes entries from the copy of the body made as it was validated, handing each to the consumer as soon as it is
+     * read, so no more than one entry is held at a time. The copy is removed once it has been decoded.
+     */
+    private void decodeVerifiedBody(boolean faultTolerant, Consumer<JournalEntry> consumer) {
+        File body = this.verifiedBody;
+        this.verifiedBody = null;
+        try (InputStream input = new BufferedInputStream(new FileInputStream(body))) {
+            if (this.containerVersion.equals("2.0") || this.containerVersion.equals("3.0")) { // The groups of an appended body were joined up as it was hashed
+                JournalDecoder decoder = new JournalDecoder(input);
+                while (true) {
+                    int type = decoder.readType();
+                    if (type == -1) {
+                        break;
+                    }
+                    JournalEntry journalEntry;
                     try {
-                        if (parsedJWSObject.verify(new Ed25519Verifier(ocp))) {
-                            validatedSegment = true;
-                            this.originalDatabaseInstanceId = sourceInstanceId; // We're now sure about where this has come from, so we can set this instance variable.
+                        journalEntry = JournalEntry.fromBinary(type, decoder);
+                    } catch (ParseException e) {
+                        throw new RuntimeException(e); // The body is already validated, but we can't find where the next entry starts after this
+                    }
+                    consumer.accept(journalEntry);
+                }
+            } else {
+                JSONTokener tokener = new JSONTokener(new InputStreamReader(input, StandardCharsets.UTF_8));
+                if (tokener.nextClean() != '[') {
+                    throw new IOException("Journal segment body is not a JSON array");
+                }
+                if (tokener.nextClean() != ']') {
+                    tokener.back();
+                    while (true) {
+                        Object entryDefinition = tokener.nextValue();
+                        if (entryDefinition instanceof JSONObject) {
+                            try {
+                                JournalEntry journalEntry = JournalEntry.fromJson((JSONObject) entryDefinition);
+                                if (journalEntry != null) {
+                                    consumer.accept(journalEntry);
+                                }
+                            } catch (ParseException e) {
+                                if (!faultTolerant) {
+                                    throw new RuntimeException(e);
+                                }
+                            }
+                        }
+                        char next = tokener.nextClean();
+                        if (next == ']') {
+                            break;
+                        }
+                        if (next != ',') {
+                            throw new IOException("Journal segment body is not a JSON array");
                         }
-                    } catch (JOSEException e) {
-                        throw new RuntimeException(e);
                     }
                 }
             }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            body.delete();
+        }
+    }
+
+    private String headerFor(String version, String contentType, byte[] body, int contentLength) {
+        MessageDigest digest = null;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException(e);
         }
+        return JournalSegment.headerFor(this.graphDatabase, version, contentType, digest.digest(body), contentLength, null, null);
+    }
 
-        if (validatedSegment) {
-            JSONArray segmentDefinition = new JSONArray(body);
+    private static String headerFor(GraphDatabase graphDatabase, String version, String contentType, byte[] bodyHash, long contentLength, String snapshotThrough, Collection<String> snapshotIncludes) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("deegraph-container-version: " + version + "\r\n");
+        sb.append("content-type: " + contentType + "\r\n");
+        sb.append("origin-fqdn: " + graphDatabase.getInstanceFqdn() + "\r\n");
+        sb.append("origin-id: " + graphDatabase.getInstanceId() + "\r\n");
+        if (snapshotThrough != null) {
+            sb.append("snapshot-through: " + snapshotThrough + "\r\n");
+        }
+        if (snapshotIncludes != null) {
+            sb.append("snapshot-includes: " + String.join("; ", snapshotIncludes) + "\r\n");
+        }
+        sb.append("content-signature: " + graphDatabase.signPayload(bodyHash) + "\r\n");
+        sb.append("content-length: " + contentLength + "\r\n");
+        sb.append("\r\n");
+        return sb.toString();
+    }
 
-            for (Object entryDefinition : segmentDefinition) {
-                if (entryDefinition instanceof JSONObject) {
-                    this.segmentActions.add(JournalEntry.fromJson((JSONObject) entryDefinition));
+    /**
+     * Writes a signed snapshot of the whole database, covering exactly the segments listed - the one it is named after
+     * is just the newest of them. The body is streamed through a temporary file while it is hashed, and only moved into
+     * place once it is complete.
+     * @param contentType Either {@link #SNAPSHOT_CONTENT_TYPE}, or {@link #COMPACTED_CONTENT_TYPE} if the segments it
+     *                    covers are about to be removed
+     */
+    static void writeSnapshot(GraphDatabase graphDatabase, File target, String contentType, String snapshotThrough, Collection<String> snapshotIncludes) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        File bodyFile = new File(target.getPath() + ".body.tmp");
+        File partialFile = new File(target.getPath() + ".tmp");
+        try {
+            long bodyLength;
+            try (OutputStream bodyOutput = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(bodyFile)), digest)) {
+                JournalEncoder encoder = new JournalEncoder(bodyOutput);
+                try {
+                    graphDatabase.forEachSnapshotEntry(entry -> {
+                        try {
+                            entry.asBinary(encoder);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
                 }
+                encoder.flush();
             }
-        } else {
-            throw new UnvalidatedJournalSegment("Could not validate journal segment - missing or invalid public key for origin {" + sourceInstanceFqdn.toString() + ":" + sourceInstanceId.toString() + "} - is this origin peered?");
+            bodyLength = bodyFile.length();
+            try (OutputStream output = new BufferedOutputStream(new FileOutputStream(partialFile))) {
+                output.write(JournalSegment.headerFor(graphDatabase, "2.0", contentType, digest.digest(), bodyLength, snapshotThrough, snapshotIncludes).getBytes(StandardCharsets.UTF_8));
+                Files.copy(bodyFile.toPath(), output);
+            }
+            Files.move(partialFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            bodyFile.delete();
+            partialFile.delete();
         }
     }
 
-    public void registerNewNode(Node node) throws ClosedJournalException, DuplicateNodeStoreException {
-        if (this.open) {
-            if (this.graphDatabase.getNodeUnsafe(node.getId()) == null && this.graphDatabase.getNodeUnsafe(node.getOriginalInstanceId(), node.getOriginalId()) == null) {
-                this.segmentActions.add(new NewNodeJournalEntry(node));
-                this.graphDatabase.registerNodeUnsafe(node);
-            } else {
-                throw new DuplicateNodeStoreException(node);
-            }
-        } else {
-            throw new ClosedJournalException(this);
-        }
+    public boolean isSnapshot() {
+        return SNAPSHOT_CONTENT_TYPE.equals(this.contentType);
     }
 
-    public void registerEntry(JournalEntry journalEntry) throws ClosedJournalException {
-        if (this.open) {
-            this.segmentActions.add(journalEntry);
-            //System.out.println(query.toString());
-        } else {
-            throw new ClosedJournalException(this);
-        }
+    public boolean isCompacted() {
+        return COMPACTED_CONTENT_TYPE.equals(this.contentType);
     }
 
-    public boolean replay(boolean faultTolerant) {
-        boolean valid = true;
-        Node actingNode = this.graphDatabase.getNodeUnsafe(this.originalDatabaseInstanceId);
-        for (JournalEntry journalEntry : this.segmentActions) {
-            try {
-                if (!journalEntry.replayOn(this.graphDatabase, actingNode)) {
-                    valid = false;
-                }
-            } catch (MissingNodeException e) {
-                if (!faultTolerant) {
-                    throw new RuntimeException(e);
+    /**
+     * Checks whether anything follows a segment's header, without validating anything.
+     */
+    static boolean hasBody(File file) throws IOException {
+        try (InputStream input = new BufferedInputStream(new FileInputStream(file))) {
+            while (true) {
+                String line = JournalSegment.readHeaderLine(input);
+                if (line == null) {
+                    return false;
                 }
-            } catch (DuplicateNodeStoreException e) {
-                if (!faultTolerant) {
-                    throw new RuntimeException(e);
+                if (line.length() == 0) {
+                    return input.read() != -1;
                 }
-            } catch (ParseException e) {
-                if (!faultTolerant) {
-                    throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Reads the origin a segment claims in its header, without validating anything.
+     * @return The origin id, or null if the header doesn't give one
+     */
+    static UUID readClaimedOriginId(File file) throws IOException {
+        try (InputStream input = new BufferedInputStream(new FileInputStream(file))) {
+            HashMap<String, ArrayList<String>> props = new HashMap<>();
+            while (true) {
+                String line = JournalSegment.readHeaderLine(input);
+                if (line == null || !JournalSegment.parseHeaderLine(line, props)) {
+                    break;
                 }
             }
+            return props.containsKey("origin-id") ? UUID.fromString(props.get("origin-id").get(0)) : null;
         }
-        return valid;
+    }
+
+    public String getSnapshotThrough() {
+        return snapshotThrough;
+    }
+
+    /**
+     * @return The ids of every segment included in this snapshot, or null if it only gives the newest of them
+     */
+    public Set<String> getSnapshotIncludes() {
+        return snapshotIncludes;
+    }
+
+    public UUID getOriginalDatabaseInstanceId() {
+        return originalDatabaseInstanceId;
     }
 
     @Override
     public String toString() {
-        TimeZone tz = TimeZone.getTimeZone("UTC");
-        DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'"); // Quoted "Z" to indicate UTC, no timezone offset
-        df.setTimeZone(tz);
-
-        StringBuilder sb = new StringBuilder();
         JSONArray journalOutput = new JSONArray();
 
         while (this.segmentActions.isEmpty() == false) {
@@ -265,37 +810,71 @@ public class JournalSegment {
         }
 
         String stringJournal = journalOutput.toString(4).replaceAll("\r", "").replaceAll("\n", "\r\n").trim();
-        MessageDigest digest = null;
-        try {
-            digest = MessageDigest.getInstance("SHA-256");
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
-        }
         byte[] journalAsBytes = stringJournal.getBytes(StandardCharsets.UTF_8);
-        sb.append("deegraph-container-version: 1.0\r\n");
-        sb.append("content-type: application/json\r\n");
-        sb.append("origin-fqdn: " + this.graphDatabase.getInstanceFqdn() + "\r\n");
-        sb.append("origin-id: " + this.graphDatabase.getInstanceId() + "\r\n");
-        sb.append("content-signature: " + this.graphDatabase.signPayload(digest.digest(journalAsBytes)) + "\r\n");
-        sb.append("content-length: " + stringJournal.length() + "\r\n");
-        sb.append("\r\n");
-        sb.append(stringJournal);
-        return sb.toString();
+        return this.headerFor("1.0", "application/json", journalAsBytes, stringJournal.length()) + stringJournal;
     }
+
+    /**
+     * Renders the segment as a version 2.0 container - the same text header as version 1.0, followed by the binary body.
+     */
+    public byte[] toBinary() throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        JournalEncoder encoder = new JournalEncoder(body);
+        while (this.segmentActions.isEmpty() == false) {
+            JournalEntry currentEntry = segmentActions.poll();
+            if (currentEntry != null) {
+                currentEntry.asBinary(encoder);
+            }
+        }
+        encoder.flush();
+
+        byte[] bodyBytes = body.toByteArray();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        output.write(this.headerFor("2.0", BINARY_CONTENT_TYPE, bodyBytes, bodyBytes.length).getBytes(StandardCharsets.UTF_8));
+        output.write(bodyBytes);
+        return output.toByteArray();
+    }
+
+    /**
+     * Closes the segment, sending any writes that still reach it on to the segment that replaces it.
+     */
+    void seal(JournalSegment successor) throws IOException {
+        this.successor = successor;
+        this.close();
+    }
+
     public void close() throws IOException {
-        if (this.open) { // If it's already closed, why close it again?
+        this.sealLock.writeLock().lock(); // Waits for writes already under way, but no longer than that
+        try {
+            if (!this.open) { // If it's already closed, why close it again?
+                return;
+            }
             this.closeDate = new Date();
             this.open = false;
-            if (this.segmentActions.isEmpty()) {
-                this.saveFileWriter.close();
+        } finally {
+            this.sealLock.writeLock().unlock();
+        }
+        if (this.appender != null) {
+            this.appender.close();
+            if (this.appender.getAppendedCount() == 0) {
                 this.saveFile.delete();
-            } else {
-                String dump = this.toString();
-                this.saveFileWriter.write(dump);
-                this.saveFileWriter.close();
             }
-            //new JournalSegment(this.saveFile);
+        } else if (this.segmentActions.isEmpty()) {
+            this.saveFileStream.close();
+            this.saveFile.delete();
+        } else {
+            byte[] dump = (this.format == JournalFormat.BINARY) ? this.toBinary() : this.toString().getBytes(StandardCharsets.UTF_8);
+            this.saveFileStream.write(dump);
+            this.saveFileStream.close();
         }
+        //new JournalSegment(this.saveFile);
+    }
+
+    /**
+     * @return The number of groups fsynced so far, for segments being written in the append format
+     */
+    public long getSyncCount() {
+        return (this.appender == null) ? 0 : this.appender.getGroupCount();
     }
 
     public Date getOpenDate() {
@@ -312,8 +891,53 @@ public class JournalSegment {
 
     public String getId() {
         TimeZone tz = TimeZone.getTimeZone("UTC");
-        DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH-mm-ss'Z'");
+        DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH-mm-ss-SSS'Z'"); // Milliseconds, so segments opened within the same second still sort in order
         df.setTimeZone(tz);
         return df.format(this.openDate) + "-" + originalDatabaseInstanceId.toString() + "-" + this.journalUuid.toString();
     }
+
+    /**
+     * Tracks how far into the underlying stream we are.
+     */
+    private static class PositionedInputStream extends FilterInputStream {
+        private long position = 0;
+
+        PositionedInputStream(InputStream input) {
+            super(input);
+        }
+
+        long getPosition() {
+            return this.position;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                this.position++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                this.position += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            this.position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
 }
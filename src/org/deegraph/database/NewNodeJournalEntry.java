@@ -3,6 +3,7 @@ package org.deegraph.database;
 import org.deegraph.exceptions.DuplicateNodeStoreException;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.security.SecureRandom;
 import java.text.ParseException;
 import java.util.Date;
@@ -127,4 +128,33 @@ public class NewNodeJournalEntry extends JournalEntry {
         out.put("trust_chain", this.trustRoot.toJson());
         return  out;
     }
+
+    public static JournalEntry fromBinary(JournalDecoder input) throws IOException, ParseException {
+        UUID localId = input.readUuid();
+        UUID originalId = input.readUuid();
+        UUID originalInstanceId = input.readDictionaryUuid();
+        UUID cNode = input.readDictionaryUuid();
+        UUID oCNode = input.readDictionaryUuid();
+        String data = input.readString();
+        String schema = input.readDictionaryString();
+        Date cTime = input.readTimestamp();
+        Date oCTime = input.readTimestamp();
+        TrustBlock trustRoot = TrustBlock.fromBinary(input);
+        return new NewNodeJournalEntry(localId, originalId, originalInstanceId, cNode, oCNode, data, schema, cTime, oCTime, trustRoot);
+    }
+
+    @Override
+    public void asBinary(JournalEncoder output) throws IOException {
+        output.writeType(BINARY_NEW_NODE);
+        output.writeUuid(this.localId);
+        output.writeUuid(this.originalId);
+        output.writeDictionaryUuid(this.originalInstanceId);
+        output.writeDictionaryUuid(this.cNode);
+        output.writeDictionaryUuid(this.oCNode);
+        output.writeString(this.data);
+        output.writeDictionaryString(this.schema);
+        output.writeTimestamp(this.getCTime());
+        output.writeTimestamp(this.oCTime);
+        this.trustRoot.toBinary(output);
+    }
 }
@@ -1,71 +1,70 @@
 package org.deegraph.database;
 
+import org.deegraph.exceptions.ClosedJournalException;
 import org.deegraph.exceptions.DuplicatePropertyException;
+import org.deegraph.formats.DataUrl;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.locks.Lock;
 import java.util.regex.Pattern;
 
 public class Node {
+    private static final Pattern VALID_PROP_NAME = Pattern.compile("^[a-z_][a-z0-9_]*$");
+
     private UUID localId;
-    private UUID originalId;
+    private UUID originalId; // The same object as localId for nodes that started here, rather than an equal copy
     private UUID originalInstanceId;
-    private Date cTime;
-    private Date oCTime;
+    private long cTime; // Epoch millis, rather than a Date object per timestamp
+    private long oCTime;
     private Node cNode;
     private UUID oCNode;
 
     private String data;
+    private PayloadStore.Payload payload; // Set instead of data when the payload is held off the heap
     private String schema;
-    private HashMap<String, Node> properties;
+    private NodePropertyMap<Node> properties; // Allocated on first use, as most nodes never get any
 
-    private HashMap<String, ArrayList<Node>> references;
+    private NodePropertyMap<ReferrerSet> references; // Allocated on first use, as most nodes are never referred to
 
-    private ArrayList<Node> creatorOf;
+    private ArrayList<Node> creatorOf; // Allocated on first use, as most nodes never create any others
 
     private TrustBlock trustRoot;
     private GraphDatabase gdb;
 
     Node(GraphDatabase gdb, UUID localId, UUID originalId, UUID originalInstanceId, Node cNode, UUID oCNode, String data, String schema) {
-        this.cTime = new Date();
-        this.oCTime = new Date();
-        this.oCNode = oCNode;
-        this.data = data;
-        this.schema = schema;
-        this.creatorOf = new ArrayList<>();
-        this.properties = new HashMap<>();
-        this.references = new HashMap<>(); // References is like the inverse lookup of properties - the database has to work hard to keep these consistent!
-        this.localId = localId;
-        this.originalId = originalId;
-        this.originalInstanceId = originalInstanceId;
-        this.cNode = cNode;
-        if (cNode != null) {
-            cNode.unsafeCreditWithCreationOf(this);
-        }
-        this.gdb = gdb;
+        this(gdb, localId, originalId, originalInstanceId, cNode, oCNode, data, schema, System.currentTimeMillis(), -1, null);
+        this.oCTime = this.cTime;
         this.trustRoot = TrustBlock.createRoot(this, gdb);
     }
 
     Node(GraphDatabase gdb, UUID localId, UUID originalId, UUID originalInstanceId, Node cNode, UUID oCNode, String data, String schema, Date cTime, Date oCTime, TrustBlock trustRoot) {
+        this(gdb, localId, originalId, originalInstanceId, cNode, oCNode, data, schema, cTime.getTime(), oCTime.getTime(), trustRoot);
+    }
+
+    private Node(GraphDatabase gdb, UUID localId, UUID originalId, UUID originalInstanceId, Node cNode, UUID oCNode, String data, String schema, long cTime, long oCTime, TrustBlock trustRoot) {
         this.cTime = cTime;
         this.oCTime = oCTime;
-        this.oCNode = oCNode;
-        this.data = data;
-        this.schema = schema;
-        this.creatorOf = new ArrayList<>();
-        this.properties = new HashMap<>();
-        this.references = new HashMap<>(); // References is like the inverse lookup of properties - the database has to work hard to keep these consistent!
+        // Ids are very often equal to one we already hold, so share those objects rather than keeping a copy of each
         this.localId = localId;
-        this.originalId = originalId;
-        this.originalInstanceId = originalInstanceId;
+        this.originalId = localId.equals(originalId) ? localId : originalId;
+        this.originalInstanceId = gdb.getInstanceId().equals(originalInstanceId) ? gdb.getInstanceId() : originalInstanceId;
+        this.oCNode = (cNode != null && cNode.getId().equals(oCNode)) ? cNode.getId() : (localId.equals(oCNode) ? localId : oCNode);
+        if (gdb.getPayloadStore() != null && gdb.getPayloadStore().accepts(data)) {
+            this.payload = gdb.getPayloadStore().put(data);
+        } else {
+            this.data = data;
+        }
+        this.schema = schema;
         this.cNode = cNode;
+        this.gdb = gdb;
         if (cNode != null) {
             cNode.unsafeCreditWithCreationOf(this);
         }
-        this.gdb = gdb;
         this.trustRoot = trustRoot;
     }
 
@@ -90,7 +89,7 @@ public class Node {
         bb.putLong(this.getOriginalInstanceId().getLeastSignificantBits());
         bb.putLong(this.getOriginalId().getMostSignificantBits());
         bb.putLong(this.getOriginalId().getLeastSignificantBits());
-        bb.putLong(this.getOCTime().getTime());
+        bb.putLong(this.oCTime);
         bb.put(dataBytes);
         bb.put(schemaBytes);
         return digest.digest(bb.array());
@@ -100,11 +99,23 @@ public class Node {
         this.oCNode = this.localId;
         this.cNode = this;
         this.unsafeCreditWithCreationOf(this);
+        this.gdb.invalidateObserversOf(this);
     }
 
     public Node[] getCreatedNodes(SecurityContext securityContext) {
+        Node[] createdNodes;
+        Lock lock = this.gdb.getNodeLocks().readLock(this);
+        lock.lock();
+        try {
+            if (this.creatorOf == null) {
+                return new Node[0];
+            }
+            createdNodes = this.creatorOf.toArray(new Node[0]);
+        } finally {
+            lock.unlock();
+        }
         ArrayList<Node> safeNodes = new ArrayList<>();
-        for (Node node: this.creatorOf) {
+        for (Node node: createdNodes) {
             if (Arrays.asList(securityContext.getDatabase().getPermsOnNode(securityContext.getActor(), node)).contains(AuthorizedAction.READ)) {
                 safeNodes.add(node);
             }
@@ -112,8 +123,27 @@ public class Node {
         return safeNodes.toArray(new Node[0]);
     }
 
+    public int countCreatedNodesUnsafe() {
+        Lock lock = this.gdb.getNodeLocks().readLock(this);
+        lock.lock();
+        try {
+            return (this.creatorOf == null) ? 0 : this.creatorOf.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
     public void unsafeCreditWithCreationOf(Node node) {
-        this.creatorOf.add(node);
+        NodeLockStripes.WriteLocks locks = this.gdb.getNodeLocks().lockForWrite(this);
+        try {
+            if (this.creatorOf == null) {
+                this.creatorOf = new ArrayList<>(1);
+            }
+            this.creatorOf.add(node);
+        } finally {
+            locks.unlock();
+        }
+        this.gdb.invalidateGlobalPermissionCache(); // Only reverse @creator traversals see this, and those need a ** path
     }
 
     public UUID getId() {
@@ -129,10 +159,14 @@ public class Node {
     }
 
     public Date getCTime() {
-        return this.cTime;
+        return new Date(this.cTime);
     }
 
     public Date getOCTime() {
+        return new Date(this.oCTime);
+    }
+
+    public long getOCTimeMillis() {
         return this.oCTime;
     }
 
@@ -142,6 +176,7 @@ public class Node {
 
     void setCNode(Node cNode) {
         this.cNode = cNode;
+        this.gdb.invalidateObserversOf(this);
     }
 
     public UUID getOCNodeId() {
@@ -149,65 +184,223 @@ public class Node {
     }
 
     public String getDataUnsafe() {
+        if (this.payload != null) {
+            return this.payload.toString();
+        }
         return this.data;
     }
 
+    /**
+     * Parses the payload as a data URL. Payloads held off the heap are read from the store as they're needed, rather
+     * than being rebuilt as a string first.
+     */
+    public DataUrl getDataUrlUnsafe() throws ParseException {
+        if (this.payload != null) {
+            return this.payload.asDataUrl();
+        }
+        if (this.data == null) {
+            return null;
+        }
+        return new DataUrl(this.data);
+    }
+
     public String getSchema() {
         return this.schema;
     }
 
-    public HashMap<String, Node> getPropertiesUnsafe() {
-        return this.properties;
+    /**
+     * @return A copy of the properties as they are now
+     */
+    public Map<String, Node> getPropertiesUnsafe() {
+        Lock lock = this.gdb.getNodeLocks().readLock(this);
+        lock.lock();
+        try {
+            if (this.properties == null) {
+                return Collections.emptyMap();
+            }
+            return this.properties.copy();
+        } finally {
+            lock.unlock();
+        }
     }
 
     public boolean removePropertyUnsafe(String name) {
-        if (this.properties.containsKey(name)) {
-            this.properties.get(name).references.get(name).remove(this); // Make sure to remove the reverse lookup
-            this.properties.remove(name); // Then remove the property
+        try {
+            return this.removePropertyUnsafe(name, null);
+        } catch (ClosedJournalException e) {
+            throw new RuntimeException(e); // Nothing is journaled without an actor
+        }
+    }
+
+    /**
+     * @param journalActor If set, the removal takes its place in the journal as theirs before either node is unlocked,
+     *                     and is on disk by the time this returns
+     */
+    private boolean removePropertyUnsafe(String name, Node journalActor) throws ClosedJournalException {
+        while (true) {
+            Node subject = this.getPropertyUnsafe(name);
+            if (subject == null) {
+                return false;
+            }
+            JournalSegment.PendingEntry journaled = null;
+            NodeLockStripes.WriteLocks locks = this.gdb.getNodeLocks().lockForWrite(this, subject);
+            try {
+                if (this.properties.get(name) != subject) {
+                    continue; // Changed before we had the locks, so look again
+                }
+                this.unlinkLocked(name, subject);
+                if (journalActor != null) {
+                    journaled = this.gdb.getOpenJournal().appendEntry(new RemoveRelationJournalEntry(journalActor, this, name));
+                }
+            } finally {
+                locks.unlock();
+            }
+            this.gdb.invalidateObserversOf(this);
+            if (journaled != null) {
+                journaled.awaitSync(); // Only once the nodes are unlocked, so no one else waits on the fsync too
+            }
             return true;
         }
-        return false;
     }
-    public void addPropertyUnsafe(String name, Node node) throws DuplicatePropertyException {
-        if (this.properties.containsKey(name)) {
-            throw new DuplicatePropertyException();
-        } else {
-            this.properties.put(name, node);
-            //System.out.println("Linked " + this.getId() + " ==[ " + name + " ]=> " + node.getId());
-            if (!node.references.containsKey(name)) {
-                node.references.put(name, new ArrayList<>());
+
+    // Callers must hold the write locks of this node and the subject
+    private void unlinkLocked(String name, Node subject) {
+        this.properties.remove(name);
+        ReferrerSet referrers = subject.references.get(name);
+        referrers.remove(this); // Make sure to remove the reverse lookup
+        if (referrers.isEmpty()) {
+            subject.references.remove(name);
+        }
+    }
+
+    // Callers must hold the write locks of this node and the subject
+    private void putPropertyUnsafe(String name, Node node) {
+        if (this.properties == null) {
+            this.properties = new NodePropertyMap<>();
+        }
+        this.properties.put(name, node);
+        if (node.references == null) {
+            node.references = new NodePropertyMap<>(); // References is like the inverse lookup of properties - the database has to work hard to keep these consistent!
+        }
+        ReferrerSet referrers = node.references.get(name);
+        if (referrers == null) {
+            referrers = new ReferrerSet();
+            node.references.put(name, referrers);
+        }
+        referrers.add(this); // Add reverse lookup
+    }
+
+    /**
+     * Links a node under the name, or under the next array index if append is set, with both nodes (and any node being
+     * replaced) locked throughout.
+     *
+     * @param journalActor If set, the link takes its place in the journal as theirs before any node is unlocked, so the
+     *                     journal sees changes to the same property in the order they were made - though it is only
+     *                     waited on to reach disk once the nodes are unlocked
+     * @return The name the node was linked under
+     */
+    private String linkUnsafe(String name, Node node, boolean append, boolean overwrite, Node journalActor) throws DuplicatePropertyException, ClosedJournalException {
+        String linkedName = null;
+        JournalSegment.PendingEntry journaled = null;
+        while (linkedName == null) {
+            Node current = (overwrite && !append) ? this.getPropertyUnsafe(name) : null;
+            NodeLockStripes.WriteLocks locks = this.gdb.getNodeLocks().lockForWrite(this, node, current);
+            try {
+                String linkName = append ? String.valueOf(this.nextArrayIndexLocked()) : name;
+                Node existing = (this.properties == null) ? null : this.properties.get(linkName);
+                if (existing != null) {
+                    if (!overwrite || append) {
+                        throw new DuplicatePropertyException();
+                    }
+                    if (existing != current) {
+                        continue; // Changed before we had the locks, so look again
+                    }
+                    this.unlinkLocked(linkName, existing);
+                }
+                this.putPropertyUnsafe(linkName, node);
+                if (journalActor != null) {
+                    journaled = this.gdb.getOpenJournal().appendEntry(new AddRelationJournalEntry(journalActor, this, linkName, node));
+                }
+                linkedName = linkName;
+            } finally {
+                locks.unlock();
             }
-            node.references.get(name).add(this); // Add reverse lookup
         }
+        this.gdb.invalidateObserversOf(this);
+        if (journaled != null) {
+            journaled.awaitSync();
+        }
+        return linkedName;
+    }
+
+    private long nextArrayIndexLocked() {
+        return (this.properties == null) ? 0 : this.properties.nextArrayIndex();
+    }
+
+    public void addPropertyUnsafe(String name, Node node) throws DuplicatePropertyException {
+        try {
+            this.linkUnsafe(name, node, false, false, null);
+        } catch (ClosedJournalException e) {
+            throw new RuntimeException(e); // Nothing is journaled without an actor
+        }
+        //System.out.println("Linked " + this.getId() + " ==[ " + name + " ]=> " + node.getId());
     }
 
     public void replacePropertyUnsafe(String name, Node node) throws DuplicatePropertyException {
-        if (this.properties.containsKey(name)) {
-            this.removePropertyUnsafe(name);
+        try {
+            this.linkUnsafe(name, node, false, true, null);
+        } catch (ClosedJournalException e) {
+            throw new RuntimeException(e);
         }
-        this.properties.put(name, node);
         //System.out.println("Linked (forced) " + this.getId() + " ==[ " + name + " ]=> " + node.getId());
-        if (!node.references.containsKey(name)) {
-            node.references.put(name, new ArrayList<>());
-        }
-        node.references.get(name).add(this); // Add reverse lookup
     }
 
     public Node getPropertyUnsafe(String name) {
-        if (this.properties.containsKey(name)) {
+        Lock lock = this.gdb.getNodeLocks().readLock(this);
+        lock.lock();
+        try {
+            if (this.properties == null) {
+                return null;
+            }
             return this.properties.get(name);
-        } else {
-            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The name the next element appended to this node as an array would get - though another writer may take
+     * it first, so appends should use addProperty with "#" rather than this
+     */
+    public long nextArrayIndexUnsafe() {
+        NodeLockStripes.WriteLocks locks = this.gdb.getNodeLocks().lockForWrite(this); // Finding it can tidy up the map's own record of it
+        try {
+            return this.nextArrayIndexLocked();
+        } finally {
+            locks.unlock();
         }
     }
 
-    public HashMap<String, ArrayList<Node>> getAllReferrersUnsafe() {
-        return this.references;
+    /**
+     * @return A copy of the referrer names as they are now - the sets themselves are shared, so only read them where
+     * nothing else can be changing this node
+     */
+    public Map<String, ReferrerSet> getAllReferrersUnsafe() {
+        Lock lock = this.gdb.getNodeLocks().readLock(this);
+        lock.lock();
+        try {
+            if (this.references == null) {
+                return Collections.emptyMap();
+            }
+            return this.references.copy();
+        } finally {
+            lock.unlock();
+        }
     }
 
     public HashMap<String, Node[]> getAllReferrers(SecurityContext securityContext) {
         HashMap<String, Node[]> output = new HashMap<>();
-        for (String index : this.references.keySet()) {
+        for (String index : this.getAllReferrersUnsafe().keySet()) {
             Node[] nodes = this.getReferrers(securityContext, index);
             if (nodes.length > 0) {
                 output.put(index, nodes);
@@ -218,11 +411,13 @@ public class Node {
 
     public Node[] getReferrers(SecurityContext securityContext, String name) {
         if (Arrays.asList(securityContext.getDatabase().getPermsOnNode(securityContext.getActor(), this)).contains(AuthorizedAction.READ)) {
-            if (this.references.containsKey(name)) {
-                Node[] nodes = this.references.get(name).toArray(new Node[0]);
-                return nodes;
-            } else {
-                return new Node[0];
+            Lock lock = this.gdb.getNodeLocks().readLock(this);
+            lock.lock();
+            try {
+                ReferrerSet referrers = (this.references == null) ? null : this.references.get(name);
+                return (referrers == null) ? new Node[0] : referrers.toArray();
+            } finally {
+                lock.unlock();
             }
         } else {
             return new Node[0];
@@ -230,6 +425,105 @@ public class Node {
 
     }
 
+    /**
+     * Adds every node referring to this one to the output, without copying the referrer map.
+     *
+     * @param arrayOnly Only referrers holding this node as an array element
+     */
+    public void collectReferrers(SecurityContext securityContext, boolean arrayOnly, Collection<Node> output) {
+        if (Arrays.asList(securityContext.getDatabase().getPermsOnNode(securityContext.getActor(), this)).contains(AuthorizedAction.READ)) {
+            Lock lock = this.gdb.getNodeLocks().readLock(this);
+            lock.lock();
+            try {
+                if (this.references != null) {
+                    this.references.forEachValue(arrayOnly, referrers -> referrers.addTo(output));
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Adds every node referring to this one under the name, whoever is asking.
+     */
+    void collectReferrersUnsafe(String name, Collection<Node> output) {
+        Lock lock = this.gdb.getNodeLocks().readLock(this);
+        lock.lock();
+        try {
+            ReferrerSet referrers = (this.references == null) ? null : this.references.get(name);
+            if (referrers != null) {
+                referrers.addTo(output);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds every node a path could step to this one from - those referring to it, and those it created, through their
+     * @creator.
+     */
+    void collectPredecessorsUnsafe(Collection<Node> output) {
+        Lock lock = this.gdb.getNodeLocks().readLock(this);
+        lock.lock();
+        try {
+            if (this.references != null) {
+                this.references.forEachValue(false, referrers -> referrers.addTo(output));
+            }
+            if (this.creatorOf != null) {
+                output.addAll(this.creatorOf);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param name Null to count the referrers under every name
+     */
+    public int countReferrersUnsafe(String name) {
+        Lock lock = this.gdb.getNodeLocks().readLock(this);
+        lock.lock();
+        try {
+            if (this.references == null) {
+                return 0;
+            }
+            if (name != null) {
+                ReferrerSet referrers = this.references.get(name);
+                return (referrers == null) ? 0 : referrers.size();
+            }
+            int count = 0;
+            for (Map.Entry<String, ReferrerSet> entry : this.references.entrySet()) {
+                count += entry.getValue().size();
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Counts the nodes referring to this one under each name, without listing them.
+     */
+    public HashMap<String, Integer> countAllReferrers(SecurityContext securityContext) {
+        HashMap<String, Integer> output = new HashMap<>();
+        if (Arrays.asList(securityContext.getDatabase().getPermsOnNode(securityContext.getActor(), this)).contains(AuthorizedAction.READ)) {
+            Lock lock = this.gdb.getNodeLocks().readLock(this);
+            lock.lock();
+            try {
+                if (this.references != null) {
+                    for (Map.Entry<String, ReferrerSet> entry : this.references.entrySet()) {
+                        output.put(entry.getKey(), entry.getValue().size());
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return output;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -243,11 +537,44 @@ public class Node {
         return Objects.hash(this.localId);
     }
 
-    public HashMap<String, Node> getProperties(SecurityContext securityContext) {
+    public Map<String, Node> getProperties(SecurityContext securityContext) {
         if (Arrays.asList(securityContext.getDatabase().getPermsOnNode(securityContext.getActor(), this)).contains(AuthorizedAction.READ)) {
             return this.getPropertiesUnsafe();
         } else {
-            return new HashMap<>();
+            return Collections.emptyMap();
+        }
+    }
+
+    /**
+     * Adds the nodes this one links to to the output, without copying the property map.
+     *
+     * @param arrayOnly Only array elements
+     */
+    public void collectProperties(SecurityContext securityContext, boolean arrayOnly, Collection<Node> output) {
+        if (Arrays.asList(securityContext.getDatabase().getPermsOnNode(securityContext.getActor(), this)).contains(AuthorizedAction.READ)) {
+            this.collectPropertiesUnsafe(arrayOnly, output);
+        }
+    }
+
+    public void collectPropertiesUnsafe(boolean arrayOnly, Collection<Node> output) {
+        Lock lock = this.gdb.getNodeLocks().readLock(this);
+        lock.lock();
+        try {
+            if (this.properties != null) {
+                this.properties.forEachValue(arrayOnly, output::add);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int countPropertiesUnsafe() {
+        Lock lock = this.gdb.getNodeLocks().readLock(this);
+        lock.lock();
+        try {
+            return (this.properties == null) ? 0 : this.properties.size();
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -267,14 +594,27 @@ public class Node {
         return false;
     }
 
+    /**
+     * Like removeProperty, but journals the removal too, before anything else can change the property.
+     */
+    public boolean removePropertyAndJournal(SecurityContext securityContext, String name) throws ClosedJournalException {
+        if (Arrays.asList(securityContext.getDatabase().getPermsOnNode(securityContext.getActor(), this)).contains(AuthorizedAction.WRITE)) {
+            return this.removePropertyUnsafe(name, securityContext.getActor());
+        }
+        return false;
+    }
+
     public boolean completeUnlinkUnsafe() {
-        for (String nodeCollectionKey : this.references.keySet().toArray(new String[0])) {
-            Node[] nodeCollection = this.references.get(nodeCollectionKey).toArray(new Node[0]);
-            for (Node node : nodeCollection) {
+        for (String nodeCollectionKey : this.getAllReferrersUnsafe().keySet().toArray(new String[0])) {
+            ReferrerSet nodeCollection = this.getAllReferrersUnsafe().get(nodeCollectionKey);
+            if (nodeCollection == null) { // Already emptied by removing an earlier key
+                continue;
+            }
+            for (Node node : nodeCollection.toArray()) {
                 node.removePropertyUnsafe(nodeCollectionKey);
             }
         }
-        for (String nodeKey : this.properties.keySet().toArray(new String[0])) {
+        for (String nodeKey : this.getPropertiesUnsafe().keySet().toArray(new String[0])) {
             this.removePropertyUnsafe(nodeKey);
         }
         return true;
@@ -290,41 +630,37 @@ public class Node {
 
     public boolean hasProperty(SecurityContext securityContext, String name) {
         if (Arrays.asList(securityContext.getDatabase().getPermsOnNode(securityContext.getActor(), this)).contains(AuthorizedAction.READ)) {
-            return this.properties.containsKey(name);
+            return this.getPropertyUnsafe(name) != null;
         }
         return false;
     }
     public String addProperty(SecurityContext securityContext, String name, Node node, boolean overwrite) throws DuplicatePropertyException {
-        String outputName = name;
+        try {
+            return this.addProperty(securityContext, name, node, overwrite, false);
+        } catch (ClosedJournalException e) {
+            throw new RuntimeException(e); // Never journaled, so can't happen
+        }
+    }
+
+    /**
+     * Like addProperty, but journals the link too, under the name it was actually given, before anything else can
+     * change the property.
+     */
+    public String addPropertyAndJournal(SecurityContext securityContext, String name, Node node, boolean overwrite) throws DuplicatePropertyException, ClosedJournalException {
+        return this.addProperty(securityContext, name, node, overwrite, true);
+    }
+
+    private String addProperty(SecurityContext securityContext, String name, Node node, boolean overwrite, boolean journal) throws DuplicatePropertyException, ClosedJournalException {
+        Node journalActor = journal ? securityContext.getActor() : null;
         // You need WRITE permissions on *both* source and destination to connect nodes.
         // This is an important security consideration so users cannot elevate their own privileges by putting a node in a context where they would gain WRITE privileges
+        // Permissions are checked before any node is locked, as working them out can read any number of other nodes
         if (Arrays.asList(securityContext.getDatabase().getPermsOnNode(securityContext.getActor(), this)).contains(AuthorizedAction.WRITE)) {
             if (Arrays.asList(securityContext.getDatabase().getPermsOnNode(securityContext.getActor(), node)).contains(AuthorizedAction.WRITE)) {
-                Pattern validPropName = Pattern.compile("^[a-z_][a-z0-9_]*$");
-                Pattern validNumericalName = Pattern.compile("^[0-9]+$");
-                if (validPropName.matcher(name).matches()) {
-                    if (overwrite) {
-                        this.replacePropertyUnsafe(name, node);
-                    } else {
-                        this.addPropertyUnsafe(name, node);
-                    }
-                } else if (validNumericalName.matcher(name).matches()) {
-                    if (overwrite) {
-                        this.replacePropertyUnsafe(name, node);
-                    } else {
-                        this.addPropertyUnsafe(name, node);
-                    }
+                if (VALID_PROP_NAME.matcher(name).matches() || PropertyKeyDictionary.isNumeric(name)) {
+                    return this.linkUnsafe(name, node, false, overwrite, journalActor);
                 } else if (name.equals("#")) {
-                    int insertAt = 0;
-                    for (String key : properties.keySet()) {
-                        if (validNumericalName.matcher(key).matches()) {
-                            if (Integer.parseInt(key) >= insertAt) {
-                                insertAt = Integer.parseInt(key) + 1;
-                            }
-                        }
-                    }
-                    outputName = String.valueOf(insertAt);
-                    this.addPropertyUnsafe(outputName, node);
+                    return this.linkUnsafe(name, node, true, false, journalActor); // The index is picked with the node locked, so concurrent appends each get their own
                 } else {
                     throw new RuntimeException("Not a valid property name");
                 }
@@ -334,7 +670,6 @@ public class Node {
         } else {
             throw new RuntimeException("Missing write perms on {" + this.getId() + "}");
         }
-        return outputName;
     }
 
     public String addProperty(SecurityContext securityContext, String name, Node node) throws DuplicatePropertyException {
@@ -348,4 +683,12 @@ public class Node {
             return null;
         }
     }
+
+    public DataUrl getDataUrl(SecurityContext securityContext) throws ParseException {
+        if (Arrays.asList(securityContext.getDatabase().getPermsOnNode(securityContext.getActor(), this)).contains(AuthorizedAction.READ)) {
+            return this.getDataUrlUnsafe();
+        } else {
+            return null;
+        }
+    }
 }
@@ -0,0 +1,111 @@
+package org.deegraph.database;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Guards the mutable parts of nodes - their properties, referrers and created nodes - with a fixed set of read-write
+ * locks shared out by node id, rather than a lock object on every node. Readers of different nodes never wait on each
+ * other, and writers only wait when their nodes happen to share a stripe.
+ *
+ * A write can touch two nodes (linking one to another changes both), so writers lock every stripe they need at once,
+ * always in stripe order, which means two writers can never each hold a stripe the other is waiting for. Nothing may
+ * take another node lock while holding a write lock, beyond the stripes it already holds.
+ */
+public class NodeLockStripes {
+    private final ReentrantReadWriteLock[] stripes;
+    private final int mask;
+    private final ThreadLocal<int[]> highestHeld = ThreadLocal.withInitial(() -> new int[] {-1}); // Highest stripe this thread has write locked
+
+    /**
+     * @param count Rounded up to a power of two
+     */
+    public NodeLockStripes(int count) {
+        int size = 1;
+        while (size < count) {
+            size <<= 1;
+        }
+        this.stripes = new ReentrantReadWriteLock[size];
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new ReentrantReadWriteLock();
+        }
+        this.mask = size - 1;
+    }
+
+    public int getStripeCount() {
+        return this.stripes.length;
+    }
+
+    public int stripeOf(Node node) {
+        int h = node.getId().hashCode();
+        return (h ^ (h >>> 16)) & this.mask;
+    }
+
+    public ReentrantReadWriteLock.ReadLock readLock(Node node) {
+        return this.stripes[this.stripeOf(node)].readLock();
+    }
+
+    /**
+     * Write locks the stripes of all the given nodes, skipping nulls.
+     *
+     * @return Held until it's unlocked
+     */
+    public WriteLocks lockForWrite(Node... nodes) {
+        int[] indexes = new int[nodes.length];
+        int count = 0;
+        for (Node node : nodes) {
+            if (node != null) {
+                indexes[count++] = this.stripeOf(node);
+            }
+        }
+        Arrays.sort(indexes, 0, count);
+        int[] held = this.highestHeld.get();
+        int previousHighest = held[0];
+        ReentrantReadWriteLock.WriteLock[] locks = new ReentrantReadWriteLock.WriteLock[count];
+        int locked = 0;
+        try {
+            for (int i = 0; i < count; i++) {
+                if (i > 0 && indexes[i] == indexes[i - 1]) {
+                    continue;
+                }
+                ReentrantReadWriteLock stripe = this.stripes[indexes[i]];
+                if (indexes[i] < held[0] && !stripe.isWriteLockedByCurrentThread()) {
+                    throw new IllegalStateException("Node locks taken out of order"); // Could deadlock against another writer
+                }
+                stripe.writeLock().lock();
+                locks[locked++] = stripe.writeLock();
+                held[0] = Math.max(held[0], indexes[i]);
+            }
+        } catch (RuntimeException e) {
+            WriteLocks.release(locks, locked);
+            held[0] = previousHighest;
+            throw e;
+        }
+        return new WriteLocks(locks, locked, held, previousHighest);
+    }
+
+    public static final class WriteLocks {
+        private final ReentrantReadWriteLock.WriteLock[] locks;
+        private final int count;
+        private final int[] held;
+        private final int previousHighest;
+
+        private WriteLocks(ReentrantReadWriteLock.WriteLock[] locks, int count, int[] held, int previousHighest) {
+            this.locks = locks;
+            this.count = count;
+            this.held = held;
+            this.previousHighest = previousHighest;
+        }
+
+        private static void release(ReentrantReadWriteLock.WriteLock[] locks, int count) {
+            for (int i = count - 1; i >= 0; i--) {
+                locks[i].unlock();
+            }
+        }
+
+        public void unlock() {
+            WriteLocks.release(this.locks, this.count);
+            this.held[0] = this.previousHighest;
+        }
+    }
+}
@@ -2,24 +2,23 @@ package org.deegraph.database;
 
 import org.deegraph.formats.DataUrl;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.text.DateFormat;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.TimeZone;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 
 public class NodePath {
-    public static String metaProp(GraphDatabase gdb, Node node, String key, Node requestingNode) throws ParseException {
-        TimeZone tz = TimeZone.getTimeZone("UTC");
-        DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'"); // Quoted "Z" to indicate UTC, no timezone offset
-        df.setTimeZone(tz);
+    // Shared and immutable, rather than building a SimpleDateFormat on every lookup of a meta property
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC); // Quoted "Z" to indicate UTC, no timezone offset
 
+    public static String metaProp(GraphDatabase gdb, Node node, String key, Node requestingNode) throws ParseException {
         switch (key) {
             case "@creator":
                 if (node.getCNode() != null) {
-                    String dataToParse = node.getCNode().getData(new SecurityContext(gdb, requestingNode));
-                    if (dataToParse != null) {
-                        return new DataUrl(dataToParse).getStringData();
+                    DataUrl dataUrl = node.getCNode().getDataUrl(new SecurityContext(gdb, requestingNode));
+                    if (dataUrl != null) {
+                        return dataUrl.getStringData();
                     }
                 }
                 break;
@@ -32,69 +31,68 @@ public class NodePath {
             case "@original_instance_id":
                 return "{" + node.getOriginalInstanceId().toString() + "}";
             case "@created":
-                return df.format(node.getCTime());
+                return TIMESTAMP_FORMAT.format(node.getCTime().toInstant());
             case "@originally_created":
-                return df.format(node.getOCTime());
+                return TIMESTAMP_FORMAT.format(node.getOCTime().toInstant());
             case "@data":
-                String dataToParse = node.getData(new SecurityContext(gdb, requestingNode));
-                if (dataToParse != null) {
-                    return new DataUrl(dataToParse).getStringData();
+                DataUrl dataUrl = node.getDataUrl(new SecurityContext(gdb, requestingNode));
+                if (dataUrl != null) {
+                    return dataUrl.getStringData();
                 }
                 break;
         }
         return null;
     }
-    public static byte[] metaPropRaw(GraphDatabase gdb, Node node, String key, Node requestingNode) throws ParseException {
-        TimeZone tz = TimeZone.getTimeZone("UTC");
-        DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'"); // Quoted "Z" to indicate UTC, no timezone offset
-        df.setTimeZone(tz);
-
+    /**
+     * Like metaProp, but as bytes. Payloads held in the payload store are returned as a view of the store, not a copy.
+     */
+    public static ByteBuffer metaPropRaw(GraphDatabase gdb, Node node, String key, Node requestingNode) throws ParseException {
         switch (key) {
             case "@creator":
                 if (node.getCNode() != null) {
                     String data = node.getCNode().getData(new SecurityContext(gdb, requestingNode));
                     if (data != null) {
-                        return data.getBytes(StandardCharsets.UTF_8);
+                        return StandardCharsets.UTF_8.encode(data);
                     }
                 }
                 break;
             case "@parsed_creator":
                 if (node.getCNode() != null) {
-                    String data = node.getCNode().getData(new SecurityContext(gdb, requestingNode));
-                    if (data != null) {
-                        return new DataUrl(data).getStringData().getBytes(StandardCharsets.UTF_8);
+                    DataUrl dataUrl = node.getCNode().getDataUrl(new SecurityContext(gdb, requestingNode));
+                    if (dataUrl != null) {
+                        return StandardCharsets.UTF_8.encode(dataUrl.getStringData());
                     }
                 }
                 break;
             case "@creator_id":
                 if (node.getCNode() != null) {
                     if (node.getCNode().getId() != null) {
-                        return ("{" + node.getCNode().getId().toString() + "}").getBytes(StandardCharsets.UTF_8);
+                        return StandardCharsets.UTF_8.encode(("{" + node.getCNode().getId().toString() + "}"));
                     }
                 }
                 break;
             case "@original_creator_id":
-                return ("{" + node.getOCNodeId().toString() + "}").getBytes(StandardCharsets.UTF_8);
+                return StandardCharsets.UTF_8.encode(("{" + node.getOCNodeId().toString() + "}"));
             case "@id":
-                return ("{" + node.getId().toString() + "}").getBytes(StandardCharsets.UTF_8);
+                return StandardCharsets.UTF_8.encode(("{" + node.getId().toString() + "}"));
             case "@original_id":
-                return ("{" + node.getOriginalId().toString() + "}").getBytes(StandardCharsets.UTF_8);
+                return StandardCharsets.UTF_8.encode(("{" + node.getOriginalId().toString() + "}"));
             case "@original_instance_id":
-                return ("{" + node.getOriginalInstanceId().toString() + "}").getBytes(StandardCharsets.UTF_8);
+                return StandardCharsets.UTF_8.encode(("{" + node.getOriginalInstanceId().toString() + "}"));
             case "@created":
-                return df.format(node.getCTime()).getBytes(StandardCharsets.UTF_8);
+                return StandardCharsets.UTF_8.encode(TIMESTAMP_FORMAT.format(node.getCTime().toInstant()));
             case "@originally_created":
-                return df.format(node.getOCTime()).getBytes(StandardCharsets.UTF_8);
+                return StandardCharsets.UTF_8.encode(TIMESTAMP_FORMAT.format(node.getOCTime().toInstant()));
             case "@data":
                 String data = node.getData(new SecurityContext(gdb, requestingNode));
                 if (data != null) {
-                    return data.getBytes(StandardCharsets.UTF_8);
+                    return StandardCharsets.UTF_8.encode(data);
                 }
                 break;
             case "@parsed_data":
-                String dataToParse = node.getData(new SecurityContext(gdb, requestingNode));
-                if (dataToParse != null) {
-                    return new DataUrl(dataToParse).getRawData();
+                DataUrl dataUrl = node.getDataUrl(new SecurityContext(gdb, requestingNode));
+                if (dataUrl != null) {
+                    return dataUrl.getRawBuffer();
                 }
                 break;
         }
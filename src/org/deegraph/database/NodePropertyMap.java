@@ -0,0 +1,400 @@
+package org.deegraph.database;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * A node's properties (or referrers), keyed by name without holding the names themselves. Array elements - "0", "1"
+ * and so on - are kept in a dense array indexed by their number. Every other name is stored as its id from the
+ * PropertyKeyDictionary, in a small array that is scanned directly while there are only a few entries, and switched to
+ * an open addressed table once there are more. Numbers too far past the end of the dense array go in there as well,
+ * under a negative key, so a sparse array can't blow up the dense one.
+ *
+ * The map also tracks one past its highest numeric key, so appending to an array doesn't have to look at every key.
+ *
+ * Iterating while changing the map never fails, but entries moved by the change may be seen twice or not at all.
+ */
+public class NodePropertyMap<V> extends AbstractMap<String, V> {
+    private static final int EMPTY = Integer.MIN_VALUE;
+    private static final int MAX_SCANNED = 8; // Above this many keyed entries, switch to hashing
+
+    private Object[] dense; // Null until the first array element is added
+    private int denseCount = 0;
+    private int[] keys = new int[1]; // Dictionary ids, or -(index + 1) for array elements that aren't in the dense array
+    private Object[] values = new Object[1];
+    private int keyedCount = 0;
+    private boolean hashed = false;
+    private long nextArrayIndex = 0; // One past the highest numeric key - or, if arrayIndexExact is false, no lower than that
+    private boolean arrayIndexExact = true;
+    private int keyedNumericCount = 0; // Numeric keys outside the dense array, which have to be checked when lowering the mark
+
+    private static int keyOfIndex(int index) {
+        return -(index + 1);
+    }
+
+    private static int slotHash(int key) {
+        return key * 0x9E3779B9;
+    }
+
+    private int findSlot(int key) {
+        if (!this.hashed) {
+            for (int i = 0; i < this.keyedCount; i++) {
+                if (this.keys[i] == key) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        int mask = this.keys.length - 1;
+        int slot = slotHash(key) & mask;
+        while (this.keys[slot] != EMPTY) {
+            if (this.keys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * @return The key this name is stored under among the keyed entries, or EMPTY if no entry can have it
+     */
+    private static int keyOf(String name, int index) {
+        if (index >= 0) {
+            return keyOfIndex(index);
+        }
+        int id = PropertyKeyDictionary.find(name);
+        return (id == PropertyKeyDictionary.UNKNOWN) ? EMPTY : id;
+    }
+
+    private static String nameOfKey(int key) {
+        return (key < 0) ? String.valueOf(-key - 1) : PropertyKeyDictionary.nameOf(key);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V get(Object name) {
+        if (!(name instanceof String)) {
+            return null;
+        }
+        int index = PropertyKeyDictionary.numericIndex((String) name);
+        if (index >= 0 && this.dense != null && index < this.dense.length && this.dense[index] != null) {
+            return (V) this.dense[index];
+        }
+        int key = NodePropertyMap.keyOf((String) name, index);
+        if (key == EMPTY) {
+            return null;
+        }
+        int slot = this.findSlot(key);
+        return (slot == -1) ? null : (V) this.values[slot];
+    }
+
+    @Override
+    public boolean containsKey(Object name) {
+        return this.get(name) != null; // Null values are never stored
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V put(String name, V value) {
+        if (value == null) {
+            throw new NullPointerException("Property maps can't hold null values");
+        }
+        int index = PropertyKeyDictionary.numericIndex(name);
+        int key;
+        if (index >= 0) {
+            if (this.dense != null && index < this.dense.length && this.dense[index] != null) {
+                V previous = (V) this.dense[index];
+                this.dense[index] = value;
+                return previous;
+            }
+            key = keyOfIndex(index);
+        } else {
+            key = PropertyKeyDictionary.idOf(name);
+        }
+        int slot = this.findSlot(key);
+        if (slot != -1) {
+            V previous = (V) this.values[slot];
+            this.values[slot] = value;
+            return previous;
+        }
+        if (index >= 0 && ((this.dense != null && index < this.dense.length) || index <= Math.max(MAX_SCANNED, this.denseCount * 2))) { // Close enough to the other elements to be worth a dense slot
+            if (this.dense == null) {
+                this.dense = new Object[Math.max(4, index + 1)];
+            } else if (index >= this.dense.length) {
+                this.dense = Arrays.copyOf(this.dense, Math.max(index + 1, this.dense.length * 2));
+            }
+            this.dense[index] = value;
+            this.denseCount++;
+            this.raiseArrayIndex(index);
+            return null;
+        }
+        this.insertKeyed(key, value);
+        long numericValue = (index >= 0) ? index : PropertyKeyDictionary.numericValue(name);
+        if (numericValue >= 0) {
+            this.keyedNumericCount++;
+            this.raiseArrayIndex(numericValue);
+        }
+        return null;
+    }
+
+    private void raiseArrayIndex(long index) {
+        if (index >= this.nextArrayIndex) {
+            this.nextArrayIndex = index + 1;
+        }
+    }
+
+    private void lowerArrayIndex(long removedIndex) {
+        if (removedIndex + 1 == this.nextArrayIndex) {
+            this.nextArrayIndex = removedIndex; // Something below might still be in use, which nextArrayIndex() will find
+            this.arrayIndexExact = false;
+        }
+    }
+
+    /**
+     * @return The lowest number above every numeric key, which is where the next array element goes
+     */
+    public long nextArrayIndex() {
+        if (!this.arrayIndexExact) {
+            long next = 0;
+            if (this.keyedNumericCount > 0) {
+                int keyedLength = this.hashed ? this.keys.length : this.keyedCount;
+                for (int i = 0; i < keyedLength; i++) {
+                    if (this.keys[i] != EMPTY) {
+                        long value = (this.keys[i] < 0) ? (-(long) this.keys[i] - 1) : PropertyKeyDictionary.numericValue(PropertyKeyDictionary.nameOf(this.keys[i]));
+                        if (value >= next) {
+                            next = value + 1;
+                        }
+                    }
+                }
+            }
+            // Walk down from the old mark, which only ever moves one step per removal, so this is cheap overall
+            int i = (this.dense == null) ? -1 : (int) Math.min(this.nextArrayIndex, this.dense.length) - 1;
+            while (i >= next && this.dense[i] == null) {
+                i--;
+            }
+            this.nextArrayIndex = Math.max(next, i + 1);
+            this.arrayIndexExact = true;
+        }
+        return this.nextArrayIndex;
+    }
+
+    private void insertKeyed(int key, Object value) {
+        if (!this.hashed) {
+            if (this.keyedCount < MAX_SCANNED) {
+                if (this.keyedCount == this.keys.length) {
+                    this.keys = Arrays.copyOf(this.keys, this.keys.length * 2);
+                    this.values = Arrays.copyOf(this.values, this.values.length * 2);
+                }
+                this.keys[this.keyedCount] = key;
+                this.values[this.keyedCount] = value;
+                this.keyedCount++;
+                return;
+            }
+            this.rehash(MAX_SCANNED * 4);
+        } else if ((this.keyedCount + 1) * 2 > this.keys.length) { // Keep the load factor at or below a half
+            this.rehash(this.keys.length * 2);
+        }
+        int mask = this.keys.length - 1;
+        int slot = slotHash(key) & mask;
+        while (this.keys[slot] != EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        this.keys[slot] = key;
+        this.values[slot] = value;
+        this.keyedCount++;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = this.keys;
+        Object[] oldValues = this.values;
+        int oldLength = this.hashed ? oldKeys.length : this.keyedCount;
+        this.keys = new int[capacity];
+        Arrays.fill(this.keys, EMPTY);
+        this.values = new Object[capacity];
+        this.hashed = true;
+        int mask = capacity - 1;
+        for (int i = 0; i < oldLength; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = slotHash(oldKeys[i]) & mask;
+                while (this.keys[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                this.keys[slot] = oldKeys[i];
+                this.values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V remove(Object name) {
+        if (!(name instanceof String)) {
+            return null;
+        }
+        int index = PropertyKeyDictionary.numericIndex((String) name);
+        if (index >= 0 && this.dense != null && index < this.dense.length && this.dense[index] != null) {
+            V removed = (V) this.dense[index];
+            this.dense[index] = null;
+            this.denseCount--;
+            if (this.denseCount == 0) {
+                this.dense = null;
+            }
+            this.lowerArrayIndex(index);
+            return removed;
+        }
+        int key = NodePropertyMap.keyOf((String) name, index);
+        if (key == EMPTY) {
+            return null;
+        }
+        int slot = this.findSlot(key);
+        if (slot == -1) {
+            return null;
+        }
+        V removed = (V) this.values[slot];
+        this.keyedCount--;
+        long numericValue = (index >= 0) ? index : PropertyKeyDictionary.numericValue((String) name);
+        if (numericValue >= 0) {
+            this.keyedNumericCount--;
+            this.lowerArrayIndex(numericValue);
+        }
+        if (!this.hashed) { // Fill the gap with the last entry
+            this.keys[slot] = this.keys[this.keyedCount];
+            this.values[slot] = this.values[this.keyedCount];
+            this.values[this.keyedCount] = null;
+            return removed;
+        }
+
+        // Shift later entries of the probe run back, so lookups never stop early at the hole we've left
+        int mask = this.keys.length - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (this.keys[next] != EMPTY) {
+            int home = slotHash(this.keys[next]) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                this.keys[hole] = this.keys[next];
+                this.values[hole] = this.values[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        this.keys[hole] = EMPTY;
+        this.values[hole] = null;
+        return removed;
+    }
+
+    @Override
+    public int size() {
+        return this.denseCount + this.keyedCount;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return this.size() == 0;
+    }
+
+    /**
+     * @return A separate map with the same entries, which later changes to this one won't touch
+     */
+    public NodePropertyMap<V> copy() {
+        NodePropertyMap<V> copy = new NodePropertyMap<>();
+        copy.dense = (this.dense == null) ? null : this.dense.clone();
+        copy.denseCount = this.denseCount;
+        copy.keys = this.keys.clone();
+        copy.values = this.values.clone();
+        copy.keyedCount = this.keyedCount;
+        copy.hashed = this.hashed;
+        copy.nextArrayIndex = this.nextArrayIndex;
+        copy.arrayIndexExact = this.arrayIndexExact;
+        copy.keyedNumericCount = this.keyedNumericCount;
+        return copy;
+    }
+
+    /**
+     * Passes every value to the action without building entries or names for them, as walking a path through every
+     * property of a node only needs the nodes.
+     *
+     * @param numericOnly Only array elements - names made of digits
+     */
+    @SuppressWarnings("unchecked")
+    public void forEachValue(boolean numericOnly, Consumer<? super V> action) {
+        if (this.dense != null) {
+            for (Object value : this.dense) {
+                if (value != null) {
+                    action.accept((V) value);
+                }
+            }
+        }
+        int keyedLength = this.hashed ? this.keys.length : this.keyedCount;
+        for (int i = 0; i < keyedLength; i++) {
+            int key = this.keys[i];
+            if (key == EMPTY || this.values[i] == null) {
+                continue;
+            }
+            if (numericOnly && key >= 0 && !PropertyKeyDictionary.isNumeric(PropertyKeyDictionary.nameOf(key))) { // Names like "007" are numeric, but kept in the dictionary
+                continue;
+            }
+            action.accept((V) this.values[i]);
+        }
+    }
+
+    @Override
+    public Set<Map.Entry<String, V>> entrySet() {
+        return new AbstractSet<Map.Entry<String, V>>() { // Not cached, as that would be another field on every map
+            @Override
+            public Iterator<Map.Entry<String, V>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return NodePropertyMap.this.size();
+            }
+        };
+    }
+
+    /**
+     * Walks the dense array, then the keyed entries, as they were when it started - so a change part way through can't
+     * send it out of bounds.
+     */
+    private class EntryIterator implements Iterator<Map.Entry<String, V>> {
+        private final Object[] dense = NodePropertyMap.this.dense;
+        private final int[] keys = NodePropertyMap.this.keys;
+        private final Object[] values = NodePropertyMap.this.values;
+        private final int keyedLength = NodePropertyMap.this.hashed ? NodePropertyMap.this.keys.length : NodePropertyMap.this.keyedCount;
+        private int position = 0; // Through the dense array, then on into the keyed entries
+
+        @Override
+        public boolean hasNext() {
+            int denseLength = (this.dense == null) ? 0 : this.dense.length;
+            while (this.position < denseLength && this.dense[this.position] == null) {
+                this.position++;
+            }
+            while (this.position >= denseLength && this.position - denseLength < this.keyedLength && (this.keys[this.position - denseLength] == EMPTY || this.values[this.position - denseLength] == null)) {
+                this.position++;
+            }
+            return this.position < denseLength + this.keyedLength;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public Map.Entry<String, V> next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            int denseLength = (this.dense == null) ? 0 : this.dense.length;
+            int i = this.position++;
+            if (i < denseLength) {
+                return new AbstractMap.SimpleImmutableEntry<>(String.valueOf(i), (V) this.dense[i]);
+            }
+            i -= denseLength;
+            return new AbstractMap.SimpleImmutableEntry<>(NodePropertyMap.nameOfKey(this.keys[i]), (V) this.values[i]);
+        }
+    }
+}
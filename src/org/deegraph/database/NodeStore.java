@@ -0,0 +1,279 @@
+package org.deegraph.database;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Holds every registered node, keyed by local id, without the per-entry objects of a HashMap. Each node gets a dense
+ * integer handle into parallel arrays of its id halves and the node itself, and the lookup table is an open addressed
+ * array of handles, probed linearly - so an entry costs a few array slots rather than an entry object and a boxed key.
+ *
+ * Handles of removed nodes are reused, so iteration order is not insertion order.
+ *
+ * Safe to share between threads. Lookups are optimistic - they read without locking, and only take the read lock if a
+ * write happened part way through - so the many lookups a query makes never contend with each other.
+ */
+public class NodeStore implements Iterable<Node> {
+    private static final int EMPTY = -1;
+
+    private long[] mostSignificantBits = new long[16]; // Indexed by handle
+    private long[] leastSignificantBits = new long[16];
+    private Node[] nodes = new Node[16];
+    private int[] freeHandles = new int[0];
+    private int freeHandleCount = 0;
+    private int handleCount = 0; // One past the highest handle ever handed out
+    private int[] table = NodeStore.emptyTable(32); // Slots hold a handle, or EMPTY
+    private int size = 0;
+    private final StampedLock lock = new StampedLock();
+
+    private static int[] emptyTable(int capacity) {
+        int[] table = new int[capacity];
+        Arrays.fill(table, EMPTY);
+        return table;
+    }
+
+    private static int hash(long mostSignificantBits, long leastSignificantBits) {
+        long h = mostSignificantBits ^ (leastSignificantBits * 0x9E3779B97F4A7C15L); // Random ids are already well mixed, but foreign ones may not be
+        h ^= (h >>> 33);
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= (h >>> 33);
+        return (int) h;
+    }
+
+    /**
+     * @return The slot holding the given id, or -1 if it isn't stored
+     */
+    private int findSlot(long msb, long lsb) {
+        int mask = this.table.length - 1;
+        int slot = NodeStore.hash(msb, lsb) & mask;
+        while (true) {
+            int handle = this.table[slot];
+            if (handle == EMPTY) {
+                return -1;
+            }
+            if (this.mostSignificantBits[handle] == msb && this.leastSignificantBits[handle] == lsb) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    public Node get(UUID id) {
+        if (id == null) {
+            return null;
+        }
+        long msb = id.getMostSignificantBits();
+        long lsb = id.getLeastSignificantBits();
+        long stamp = this.lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                Node node = this.find(msb, lsb);
+                if (this.lock.validate(stamp)) {
+                    return node;
+                }
+            } catch (RuntimeException e) {
+                // Read part way through a write, so fall back to locking
+            }
+        }
+        stamp = this.lock.readLock();
+        try {
+            return this.find(msb, lsb);
+        } finally {
+            this.lock.unlockRead(stamp);
+        }
+    }
+
+    private Node find(long msb, long lsb) {
+        int[] table = this.table; // Read once, so an optimistic lookup racing a resize still probes a single table
+        int mask = table.length - 1;
+        int slot = NodeStore.hash(msb, lsb) & mask;
+        while (true) {
+            int handle = table[slot];
+            if (handle == EMPTY) {
+                return null;
+            }
+            if (this.mostSignificantBits[handle] == msb && this.leastSignificantBits[handle] == lsb) {
+                return this.nodes[handle];
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    public boolean containsKey(UUID id) {
+        return this.get(id) != null; // Null nodes are never stored
+    }
+
+    /**
+     * Stores a node under its id, replacing any node already stored under the same id.
+     */
+    public void put(Node node) {
+        long stamp = this.lock.writeLock();
+        try {
+            this.putLocked(node);
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    private void putLocked(Node node) {
+        long msb = node.getId().getMostSignificantBits();
+        long lsb = node.getId().getLeastSignificantBits();
+        int slot = this.findSlot(msb, lsb);
+        if (slot != -1) {
+            this.nodes[this.table[slot]] = node;
+            return;
+        }
+        if ((this.size + 1) * 2 > this.table.length) { // Keep the load factor at or below a half, so probe runs stay short
+            this.resize(this.table.length * 2);
+        }
+        int handle = this.allocateHandle();
+        this.mostSignificantBits[handle] = msb;
+        this.leastSignificantBits[handle] = lsb;
+        this.nodes[handle] = node;
+        int mask = this.table.length - 1;
+        slot = NodeStore.hash(msb, lsb) & mask;
+        while (this.table[slot] != EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        this.table[slot] = handle;
+        this.size++;
+    }
+
+    public Node remove(UUID id) {
+        long stamp = this.lock.writeLock();
+        try {
+            return this.removeLocked(id);
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    private Node removeLocked(UUID id) {
+        int slot = this.findSlot(id.getMostSignificantBits(), id.getLeastSignificantBits());
+        if (slot == -1) {
+            return null;
+        }
+        int handle = this.table[slot];
+        Node removed = this.nodes[handle];
+        this.nodes[handle] = null;
+        this.releaseHandle(handle);
+        this.size--;
+
+        // Shift later entries of the probe run back, so lookups never stop early at the hole we've left
+        int mask = this.table.length - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (this.table[next] != EMPTY) {
+            int nextHandle = this.table[next];
+            int home = NodeStore.hash(this.mostSignificantBits[nextHandle], this.leastSignificantBits[nextHandle]) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) { // Its home is at or before the hole, so it can move into it
+                this.table[hole] = nextHandle;
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        this.table[hole] = EMPTY;
+        return removed;
+    }
+
+    private int allocateHandle() {
+        if (this.freeHandleCount > 0) {
+            return this.freeHandles[--this.freeHandleCount];
+        }
+        if (this.handleCount == this.nodes.length) {
+            int capacity = this.nodes.length * 2;
+            this.mostSignificantBits = Arrays.copyOf(this.mostSignificantBits, capacity);
+            this.leastSignificantBits = Arrays.copyOf(this.leastSignificantBits, capacity);
+            this.nodes = Arrays.copyOf(this.nodes, capacity);
+        }
+        return this.handleCount++;
+    }
+
+    private void releaseHandle(int handle) {
+        if (this.freeHandleCount == this.freeHandles.length) {
+            this.freeHandles = Arrays.copyOf(this.freeHandles, Math.max(16, this.freeHandles.length * 2));
+        }
+        this.freeHandles[this.freeHandleCount++] = handle;
+    }
+
+    private void resize(int capacity) {
+        this.table = NodeStore.emptyTable(capacity);
+        int mask = capacity - 1;
+        for (int handle = 0; handle < this.handleCount; handle++) {
+            if (this.nodes[handle] != null) {
+                int slot = NodeStore.hash(this.mostSignificantBits[handle], this.leastSignificantBits[handle]) & mask;
+                while (this.table[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                this.table[slot] = handle;
+            }
+        }
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public Node[] toArray() {
+        long stamp = this.lock.readLock();
+        try {
+            Node[] output = new Node[this.size];
+            int i = 0;
+            for (int handle = 0; handle < this.handleCount; handle++) {
+                if (this.nodes[handle] != null) {
+                    output[i++] = this.nodes[handle];
+                }
+            }
+            return output;
+        } finally {
+            this.lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Walks the nodes in place rather than copying them out first, for walks over every node that don't need the exact
+     * set stored at one moment. Every node stored throughout is seen once, but nodes added or removed part way through
+     * may or may not be.
+     */
+    public Iterator<Node> liveIterator() {
+        Node[] nodes;
+        int handleCount;
+        long stamp = this.lock.readLock();
+        try {
+            nodes = this.nodes; // Growing replaces the array, leaving this one as it was
+            handleCount = this.handleCount;
+        } finally {
+            this.lock.unlockRead(stamp);
+        }
+        return new Iterator<Node>() {
+            private int handle = 0;
+
+            @Override
+            public boolean hasNext() {
+                while (this.handle < handleCount && nodes[this.handle] == null) {
+                    this.handle++;
+                }
+                return this.handle < handleCount;
+            }
+
+            @Override
+            public Node next() {
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return nodes[this.handle++];
+            }
+        };
+    }
+
+    /**
+     * Walks the nodes stored when it was created, so nodes added or removed part way through are never seen.
+     */
+    @Override
+    public Iterator<Node> iterator() {
+        return Arrays.asList(this.toArray()).iterator();
+    }
+}
@@ -0,0 +1,113 @@
+package org.deegraph.database;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A relative path parsed into typed steps, along with where it starts from - a literal node, the actor, the context
+ * object, or anywhere at all for ** paths. Plans are immutable, so the same plan is shared by every query using the
+ * same path text.
+ */
+public final class PathPlan {
+    public enum Start {
+        LITERAL, // Starts at the node named by the first step
+        ACTOR, // "/...", starts at the actor
+        CONTEXT, // "./...", starts at the context object
+        IMPLICIT_CONTEXT, // A bare relative path, which is also taken from the context object
+        GLOBAL, // "**/...", matched backwards from every node that could be at the end
+        NONE // Matches nothing
+    }
+
+    private static final int MAX_CACHED_PLANS = 4096;
+    private static final ConcurrentHashMap<String, PathPlan> cache = new ConcurrentHashMap<>();
+
+    private final Start start;
+    private final PathStep[] steps; // Everything after the start, except for LITERAL and GLOBAL plans which keep their first step
+    private final int pivot; // For GLOBAL plans, the literal they can be walked forwards from, or -1
+
+    private PathPlan(Start start, PathStep[] steps) {
+        this.start = start;
+        this.steps = steps;
+        this.pivot = (start == Start.GLOBAL) ? PathPlan.findPivot(steps) : -1;
+    }
+
+    /**
+     * A ** path only has to match back as far as the last node it names, and can be walked forwards from there so long as
+     * every step after it can be too.
+     */
+    private static int findPivot(PathStep[] steps) {
+        for (int i = steps.length - 1; i > 0; i--) {
+            switch (steps[i].getKind()) {
+                case LITERAL:
+                    return (steps[i].getId() != null) ? i : -1;
+                case PROPERTY:
+                case WILDCARD:
+                case NUMERIC_WILDCARD:
+                case CREATOR:
+                    continue;
+                default:
+                    return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The plan for the path, shared with any earlier compile of the same text
+     */
+    public static PathPlan compile(String path) {
+        PathPlan plan = cache.get(path);
+        if (plan == null) {
+            plan = PathPlan.parse(path);
+            if (cache.size() >= MAX_CACHED_PLANS) {
+                cache.clear(); // Paths are mostly written into a handful of queries, so a full cache is rare and cheap to refill
+            }
+            cache.put(path, plan);
+        }
+        return plan;
+    }
+
+    private static PathPlan parse(String path) {
+        String[] components = path.split("/");
+        if (path.startsWith("/")) {
+            if (components.length == 0) { // Just "/"
+                return new PathPlan(Start.ACTOR, new PathStep[0]);
+            }
+            return new PathPlan(Start.ACTOR, PathStep.parseAll(Arrays.copyOfRange(components, 1, components.length)));
+        }
+        if (components.length == 0) {
+            return new PathPlan(Start.NONE, new PathStep[0]);
+        }
+        if (components[0].equals(".")) {
+            return new PathPlan(Start.CONTEXT, PathStep.parseAll(Arrays.copyOfRange(components, 1, components.length)));
+        }
+        PathStep[] steps = PathStep.parseAll(components);
+        switch (steps[0].getKind()) {
+            case LITERAL:
+                return new PathPlan(Start.LITERAL, steps);
+            case GLOBAL:
+                return new PathPlan(Start.GLOBAL, steps);
+            default:
+                return new PathPlan(Start.IMPLICIT_CONTEXT, steps);
+        }
+    }
+
+    public Start getStart() {
+        return this.start;
+    }
+
+    /**
+     * @return The index of the literal step a GLOBAL plan can be walked forwards from, or -1 if it can only be matched
+     * backwards
+     */
+    public int getPivot() {
+        return this.pivot;
+    }
+
+    /**
+     * @return The steps themselves, which must not be changed
+     */
+    public PathStep[] getSteps() {
+        return this.steps;
+    }
+}
@@ -0,0 +1,31 @@
+package org.deegraph.database;
+
+import java.util.HashMap;
+
+/**
+ * The nodes absolute paths have resolved to for one actor, so a query following the same path again - once to filter a
+ * candidate and again for each property it selects, say - gets a hash lookup rather than another walk with a permission
+ * check at every hop. Only meant to live as long as a single query, as it never sees later changes to the graph.
+ */
+public class PathResolutionCache {
+    private static final int MAX_ENTRIES = 65536; // Past this, paths are still resolved, just not remembered
+
+    private final HashMap<AbsoluteNodePath, Node> resolved = new HashMap<>();
+
+    /**
+     * @return The node the path resolved to, or null if it resolved to nothing or hasn't been resolved yet
+     */
+    public Node get(AbsoluteNodePath path) {
+        return this.resolved.get(path);
+    }
+
+    public boolean contains(AbsoluteNodePath path) {
+        return this.resolved.containsKey(path);
+    }
+
+    public void put(AbsoluteNodePath path, Node node) {
+        if (this.resolved.size() < MAX_ENTRIES) {
+            this.resolved.put(path, node);
+        }
+    }
+}
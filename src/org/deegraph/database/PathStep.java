@@ -0,0 +1,90 @@
+package org.deegraph.database;
+
+import org.deegraph.formats.UUIDUtils;
+
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * One component of a path, parsed once so traversals can switch on what kind of step it is rather than comparing
+ * strings at every level.
+ */
+public final class PathStep {
+    public enum Kind {
+        LITERAL, // {uuid}
+        PROPERTY, // A named property
+        WILDCARD, // *
+        NUMERIC_WILDCARD, // #, array elements only
+        GLOBAL, // **
+        CREATOR, // @creator
+        META // Any other meta property, which ends a traversal
+    }
+
+    private static final PathStep WILDCARD_STEP = new PathStep(Kind.WILDCARD, "*", "*", null);
+    private static final PathStep NUMERIC_WILDCARD_STEP = new PathStep(Kind.NUMERIC_WILDCARD, "#", "#", null);
+    private static final PathStep GLOBAL_STEP = new PathStep(Kind.GLOBAL, "**", "**", null);
+    private static final PathStep CREATOR_STEP = new PathStep(Kind.CREATOR, "@creator", "@creator", null);
+
+    private final Kind kind;
+    private final String text; // As written
+    private final String name; // The property name, or the lower cased meta property
+    private final UUID id; // Only for literals, and null if the braces don't hold a valid id
+
+    private PathStep(Kind kind, String text, String name, UUID id) {
+        this.kind = kind;
+        this.text = text;
+        this.name = name;
+        this.id = id;
+    }
+
+    public static PathStep parse(String component) {
+        switch (component) {
+            case "*":
+                return WILDCARD_STEP;
+            case "#":
+                return NUMERIC_WILDCARD_STEP;
+            case "**":
+                return GLOBAL_STEP;
+        }
+        if (component.startsWith("{") && component.endsWith("}")) {
+            return new PathStep(Kind.LITERAL, component, component, UUIDUtils.fromBraced(component));
+        }
+        if (component.startsWith("@")) {
+            String meta = component.toLowerCase(Locale.ROOT);
+            if (meta.equals("@creator")) {
+                return CREATOR_STEP;
+            }
+            return new PathStep(Kind.META, component, meta, null);
+        }
+        return new PathStep(Kind.PROPERTY, component, component, null);
+    }
+
+    public static PathStep[] parseAll(String[] components) {
+        PathStep[] steps = new PathStep[components.length];
+        for (int i = 0; i < components.length; i++) {
+            steps[i] = PathStep.parse(components[i]);
+        }
+        return steps;
+    }
+
+    public Kind getKind() {
+        return this.kind;
+    }
+
+    public String getText() {
+        return this.text;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public UUID getId() {
+        return this.id;
+    }
+
+    @Override
+    public String toString() {
+        return this.text;
+    }
+}
@@ -0,0 +1,47 @@
+package org.deegraph.database;
+
+/**
+ * One step of a path being matched, linked to the steps before it when walking forwards or after it when walking
+ * backwards, so the path is only joined into a string for the matches that are kept.
+ */
+final class PathTrail {
+    private final PathTrail link;
+    private final String segment;
+    private final Node idOf; // In place of a segment, for the braced id of this node
+
+    PathTrail(PathTrail link, String segment) {
+        this.link = link;
+        this.segment = segment;
+        this.idOf = null;
+    }
+
+    PathTrail(PathTrail link, Node idOf) {
+        this.link = link;
+        this.segment = null;
+        this.idOf = idOf;
+    }
+
+    private String segmentText() {
+        return (this.segment != null) ? this.segment : ("{" + this.idOf.getId() + "}");
+    }
+
+    String forwards() {
+        int depth = 0;
+        for (PathTrail trail = this; trail != null; trail = trail.link) {
+            depth++;
+        }
+        String[] segments = new String[depth];
+        for (PathTrail trail = this; trail != null; trail = trail.link) {
+            segments[--depth] = trail.segmentText();
+        }
+        return String.join("/", segments);
+    }
+
+    String backwards() {
+        StringBuilder path = new StringBuilder(this.segmentText());
+        for (PathTrail trail = this.link; trail != null; trail = trail.link) {
+            path.append('/').append(trail.segmentText());
+        }
+        return path.toString();
+    }
+}
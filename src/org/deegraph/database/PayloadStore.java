@@ -0,0 +1,159 @@
+package org.deegraph.database;
+
+import org.deegraph.formats.DataUrl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Keeps large node payloads off the heap, in memory mapped chunk files in the data directory. Payloads are appended and
+ * never rewritten, so a stored payload is just a chunk, an offset and a length.
+ *
+ * The journal is still the durable record of every payload - these files are only a cache of them, so they are thrown
+ * away and rebuilt as the journal is replayed on startup. Space held by deleted nodes is recovered the same way.
+ */
+public class PayloadStore {
+    public static final String FILE_SUFFIX = ".payloads.dgp";
+    private static final int CHUNK_SIZE = 64 * 1024 * 1024;
+
+    private final File directory;
+    private final String prefix;
+    private final int threshold;
+    private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+    private int chunkPosition = 0; // Next free byte in the newest chunk
+
+    /**
+     * @param threshold The length a payload must reach before it's worth moving off the heap
+     */
+    public PayloadStore(File directory, String prefix, int threshold) {
+        this.directory = directory;
+        this.prefix = prefix;
+        this.threshold = threshold;
+        File[] stale = directory.listFiles((dir, name) -> name.startsWith(prefix + ".") && name.endsWith(FILE_SUFFIX));
+        if (stale != null) {
+            for (File file : stale) {
+                file.delete();
+            }
+        }
+    }
+
+    public boolean accepts(String data) {
+        return data != null && data.length() >= this.threshold;
+    }
+
+    /**
+     * Stores a payload, keeping base64 data URLs decoded so their bytes can be handed out without decoding them again.
+     */
+    public Payload put(String data) {
+        if (data.startsWith("data:")) {
+            int comma = data.indexOf(',');
+            if (comma != -1 && data.lastIndexOf(";base64", comma) != -1) {
+                String encoded = data.substring(comma + 1);
+                try {
+                    byte[] decoded = Base64.getDecoder().decode(encoded);
+                    if (Base64.getEncoder().encodeToString(decoded).equals(encoded)) { // Only if it'll come back out exactly as it went in
+                        return this.put(data.substring(0, comma).intern(), decoded);
+                    }
+                } catch (IllegalArgumentException e) {
+                    // Not canonical base64, so keep it as text
+                }
+            }
+        }
+        return this.put(null, data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private synchronized Payload put(String header, byte[] bytes) {
+        MappedByteBuffer[] chunks = this.chunks;
+        if (chunks.length == 0 || this.chunkPosition + bytes.length > chunks[chunks.length - 1].capacity()) {
+            chunks = this.mapChunk(Math.max(CHUNK_SIZE, bytes.length));
+            this.chunkPosition = 0;
+        }
+        ByteBuffer target = chunks[chunks.length - 1].duplicate();
+        target.position(this.chunkPosition);
+        target.put(bytes);
+        Payload payload = new Payload(this, chunks.length - 1, this.chunkPosition, bytes.length, header);
+        this.chunkPosition += bytes.length;
+        return payload;
+    }
+
+    private MappedByteBuffer[] mapChunk(int size) {
+        File file = new File(this.directory, this.prefix + "." + this.chunks.length + FILE_SUFFIX);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_WRITE, 0, size); // Stays mapped after the channel closes
+            MappedByteBuffer[] chunks = Arrays.copyOf(this.chunks, this.chunks.length + 1);
+            chunks[chunks.length - 1] = chunk;
+            this.chunks = chunks;
+            return chunks;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    ByteBuffer slice(int chunk, int offset, int length) {
+        return this.chunks[chunk].slice(offset, length).asReadOnlyBuffer();
+    }
+
+    /**
+     * Removes the chunk files. Payloads already handed out stay readable until they're collected, as the mappings
+     * outlive the files.
+     */
+    public synchronized void close() {
+        for (int i = 0; i < this.chunks.length; i++) {
+            new File(this.directory, this.prefix + "." + i + FILE_SUFFIX).delete();
+        }
+    }
+
+    /**
+     * A payload held in the store. Payloads stored as base64 data URLs keep their header, and the decoded bytes in the
+     * store; anything else is kept as its UTF-8 text, with no header.
+     */
+    public static final class Payload {
+        private final PayloadStore store;
+        private final int chunk;
+        private final int offset;
+        private final int length;
+        private final String header;
+
+        private Payload(PayloadStore store, int chunk, int offset, int length, String header) {
+            this.store = store;
+            this.chunk = chunk;
+            this.offset = offset;
+            this.length = length;
+            this.header = header;
+        }
+
+        public int getLength() {
+            return this.length;
+        }
+
+        /**
+         * @return A read only view of the stored bytes, straight from the mapped file
+         */
+        public ByteBuffer getBuffer() {
+            return this.store.slice(this.chunk, this.offset, this.length);
+        }
+
+        public DataUrl asDataUrl() throws ParseException {
+            if (this.header != null) {
+                return new DataUrl(this.header, this.getBuffer());
+            }
+            return new DataUrl(this.getBuffer());
+        }
+
+        @Override
+        public String toString() {
+            if (this.header != null) {
+                return this.header + "," + StandardCharsets.ISO_8859_1.decode(Base64.getEncoder().encode(this.getBuffer()));
+            }
+            return StandardCharsets.UTF_8.decode(this.getBuffer()).toString();
+        }
+    }
+}
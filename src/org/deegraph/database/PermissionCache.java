@@ -0,0 +1,160 @@
+package org.deegraph.database;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * Bounded least-recently-used cache of the actions an actor may perform on an object node.
+ * Grant conditions and validFor paths can traverse arbitrary edges, so the database clears this cache whenever a rule
+ * is registered, and drops the entries of every actor and object within reach of an edge when it changes.
+ *
+ * Shared by every query thread. An entry is worked out without holding the cache, so each entry is put along with the
+ * version the cache was at before the work began, and dropped if the cache has been invalidated since - otherwise a
+ * result worked out against the graph as it was could outlive the change that made it stale.
+ */
+public class PermissionCache {
+    private final int capacity;
+    private final LinkedHashMap<Key, AuthorizedAction[]> entries;
+    private final HashMap<UUID, HashSet<Key>> keysByNode = new HashMap<>(); // The cached keys each node is the actor or object of
+    private long hits = 0;
+    private long misses = 0;
+    private long invalidations = 0;
+    private long version = 0; // Bumped on every invalidation
+
+    public PermissionCache(int capacity) {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) { // Access ordered, so the eldest entry is the least recently used
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, AuthorizedAction[]> eldest) {
+                if (size() > PermissionCache.this.capacity) {
+                    PermissionCache.this.unindex(eldest.getKey());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public synchronized AuthorizedAction[] get(Node actor, Node object) {
+        if (this.capacity <= 0) {
+            return null;
+        }
+        AuthorizedAction[] actions = this.entries.get(new Key(actor.getId(), object.getId()));
+        if (actions == null) {
+            this.misses++;
+            return null;
+        }
+        this.hits++;
+        return actions;
+    }
+
+    /**
+     * @return The version to put entries worked out from now with
+     */
+    public synchronized long getVersion() {
+        return this.version;
+    }
+
+    public synchronized void put(Node actor, Node object, AuthorizedAction[] actions, long version) {
+        if (this.capacity <= 0 || version != this.version) {
+            return;
+        }
+        Key key = new Key(actor.getId(), object.getId());
+        if (this.entries.put(key, actions) == null) {
+            this.keysByNode.computeIfAbsent(key.actor, k -> new HashSet<>()).add(key);
+            this.keysByNode.computeIfAbsent(key.object, k -> new HashSet<>()).add(key);
+        }
+    }
+
+    public synchronized void invalidate() {
+        this.version++;
+        if (!this.entries.isEmpty()) {
+            this.entries.clear();
+            this.keysByNode.clear();
+            this.invalidations++;
+        }
+    }
+
+    /**
+     * Drops every entry with one of the nodes as its actor or object. Entries being worked out now are dropped when put,
+     * whatever they're for, as they can't tell whether they saw the change.
+     */
+    public synchronized void invalidate(Collection<Node> nodes) {
+        this.version++;
+        boolean removed = false;
+        for (Node node : nodes) {
+            HashSet<Key> keys = this.keysByNode.get(node.getId());
+            if (keys == null) {
+                continue;
+            }
+            for (Key key : keys.toArray(new Key[0])) {
+                this.entries.remove(key);
+                this.unindex(key);
+                removed = true;
+            }
+        }
+        if (removed) {
+            this.invalidations++;
+        }
+    }
+
+    private void unindex(Key key) {
+        for (UUID id : new UUID[] {key.actor, key.object}) {
+            HashSet<Key> keys = this.keysByNode.get(id);
+            if (keys != null) {
+                keys.remove(key);
+                if (keys.isEmpty()) {
+                    this.keysByNode.remove(id);
+                }
+            }
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    public synchronized int getSize() {
+        return this.entries.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    private static class Key {
+        private final UUID actor;
+        private final UUID object;
+
+        Key(UUID actor, UUID object) {
+            this.actor = actor;
+            this.object = object;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return this.actor.equals(key.actor) && this.object.equals(key.object);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.actor, this.object);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package org.deegraph.database;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Gives every property name a small integer id, so node property maps can key on ints rather than each holding their
+ * own strings. Numeric names like "0" or "17" never get an id, as property maps store those by their value instead.
+ *
+ * Shared by every database in the process, and only ever grows - the set of distinct names in use is tiny compared to
+ * the number of properties.
+ */
+public final class PropertyKeyDictionary {
+    public static final int UNKNOWN = -1;
+    private static final int MAX_NUMERIC_DIGITS = 9; // Anything longer might not fit in an int
+
+    private static final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private static volatile String[] names = new String[64];
+    private static int nameCount = 0;
+
+    private PropertyKeyDictionary() {
+    }
+
+    /**
+     * @return The id of the name, assigning it one if it doesn't have one yet
+     */
+    public static int idOf(String name) {
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        synchronized (PropertyKeyDictionary.class) {
+            id = ids.get(name);
+            if (id == null) {
+                if (nameCount == names.length) {
+                    names = Arrays.copyOf(names, names.length * 2);
+                }
+                id = nameCount;
+                names[nameCount++] = name.intern();
+                ids.put(names[id], id); // Only published once the name can be looked up
+            }
+            return id;
+        }
+    }
+
+    /**
+     * @return The id of the name, or UNKNOWN if no property has ever had it - without assigning one
+     */
+    public static int find(String name) {
+        Integer id = ids.get(name);
+        return (id == null) ? UNKNOWN : id;
+    }
+
+    public static String nameOf(int id) {
+        return names[id];
+    }
+
+    /**
+     * @return The value of a numeric name written without leading zeros, or -1 for anything else - including numeric
+     * names like "007" that have to be kept as they were written
+     */
+    public static int numericIndex(String name) {
+        int length = name.length();
+        if (length == 0 || length > MAX_NUMERIC_DIGITS || (length > 1 && name.charAt(0) == '0')) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = 0; i < length; i++) {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * @return The value of any numeric name, leading zeros and all, or -1 if it isn't numeric or is too long to hold
+     */
+    public static long numericValue(String name) {
+        if (name.length() > 18 || !PropertyKeyDictionary.isNumeric(name)) {
+            return -1;
+        }
+        return Long.parseLong(name);
+    }
+
+    /**
+     * @return Whether the name is made only of digits, as the names of array elements are
+     */
+    public static boolean isNumeric(String name) {
+        if (name.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -5,6 +5,7 @@ import org.deegraph.exceptions.DuplicatePropertyException;
 import org.deegraph.query.*;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.text.ParseException;
 import java.util.Date;
 import java.util.UUID;
@@ -50,6 +51,22 @@ public class QueryJournalEntry extends JournalEntry {
         qje.timestamp = JournalEntry.fromFormattedDate(input.getString("timestamp"));
         return qje;
     }
+
+    public static JournalEntry fromBinary(JournalDecoder input) throws IOException {
+        UUID actor = input.readDictionaryUuid();
+        String query = input.readString();
+        QueryJournalEntry qje = new QueryJournalEntry(query, actor);
+        qje.timestamp = input.readTimestamp();
+        return qje;
+    }
+
+    @Override
+    public void asBinary(JournalEncoder output) throws IOException {
+        output.writeType(BINARY_QUERY);
+        output.writeDictionaryUuid(this.actor);
+        output.writeString(this.query);
+        output.writeTimestamp(this.timestamp);
+    }
     @Override
     public boolean replayOn(GraphDatabase graphDatabase, Node source) throws ParseException {
         Query q = Query.fromString(this.query, graphDatabase.getNodeUnsafe(this.actor));
@@ -0,0 +1,202 @@
+package org.deegraph.database;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+
+/**
+ * The nodes referring to one node under a single name. Most nodes are referred to once, so a lone referrer is held in a
+ * field with no array at all; a few more are kept in a short array that is scanned directly, and past that the set
+ * becomes an open addressed table on identity, so adding and removing a referrer stay constant time however popular the
+ * node is.
+ */
+public class ReferrerSet implements Iterable<Node> {
+    private static final int MAX_SCANNED = 8; // Above this many referrers, switch to hashing
+
+    private Node single; // Only used while there is exactly one referrer
+    private Node[] nodes; // Packed while there are up to MAX_SCANNED referrers, a hash table (with null slots) after that
+    private int size = 0;
+
+    private static int slotHash(Node node) {
+        return System.identityHashCode(node) * 0x9E3779B9;
+    }
+
+    private boolean isHashed() {
+        return this.nodes != null && this.nodes.length > MAX_SCANNED;
+    }
+
+    private int findSlot(Node node) {
+        if (!this.isHashed()) {
+            for (int i = 0; i < this.size; i++) {
+                if (this.nodes[i] == node) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        int mask = this.nodes.length - 1;
+        int slot = slotHash(node) & mask;
+        while (this.nodes[slot] != null) {
+            if (this.nodes[slot] == node) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    public boolean contains(Node node) {
+        if (this.size == 1 && this.nodes == null) {
+            return this.single == node;
+        }
+        return this.size > 0 && this.findSlot(node) != -1;
+    }
+
+    /**
+     * @return False if the node was already in the set
+     */
+    public boolean add(Node node) {
+        if (this.size == 0) {
+            this.single = node;
+            this.size = 1;
+            return true;
+        }
+        if (this.contains(node)) {
+            return false;
+        }
+        if (this.nodes == null) { // Moving off the single field
+            this.nodes = new Node[4];
+            this.nodes[0] = this.single;
+            this.single = null;
+        }
+        if (!this.isHashed()) {
+            if (this.size < MAX_SCANNED) {
+                if (this.size == this.nodes.length) {
+                    this.nodes = Arrays.copyOf(this.nodes, this.nodes.length * 2);
+                }
+                this.nodes[this.size++] = node;
+                return true;
+            }
+            this.rehash(MAX_SCANNED * 4);
+        } else if ((this.size + 1) * 2 > this.nodes.length) { // Keep the load factor at or below a half
+            this.rehash(this.nodes.length * 2);
+        }
+        this.insertHashed(node);
+        this.size++;
+        return true;
+    }
+
+    private void insertHashed(Node node) {
+        int mask = this.nodes.length - 1;
+        int slot = slotHash(node) & mask;
+        while (this.nodes[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        this.nodes[slot] = node;
+    }
+
+    private void rehash(int capacity) {
+        Node[] old = this.nodes;
+        this.nodes = new Node[capacity];
+        for (Node node : old) {
+            if (node != null) {
+                this.insertHashed(node);
+            }
+        }
+    }
+
+    /**
+     * @return False if the node wasn't in the set
+     */
+    public boolean remove(Node node) {
+        if (this.size == 0) {
+            return false;
+        }
+        if (this.nodes == null) {
+            if (this.single != node) {
+                return false;
+            }
+            this.single = null;
+            this.size = 0;
+            return true;
+        }
+        int slot = this.findSlot(node);
+        if (slot == -1) {
+            return false;
+        }
+        this.size--;
+        if (!this.isHashed()) { // Fill the gap with the last referrer
+            this.nodes[slot] = this.nodes[this.size];
+            this.nodes[this.size] = null;
+            if (this.size == 1) { // Back to the single field
+                this.single = this.nodes[0];
+                this.nodes = null;
+            }
+            return true;
+        }
+
+        if (this.size == 0) {
+            this.nodes = null;
+            return true;
+        }
+
+        // Shift later entries of the probe run back, so lookups never stop early at the hole we've left
+        int mask = this.nodes.length - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (this.nodes[next] != null) {
+            int home = slotHash(this.nodes[next]) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                this.nodes[hole] = this.nodes[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        this.nodes[hole] = null;
+        return true;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    public Node[] toArray() {
+        if (this.nodes == null) {
+            return (this.size == 0) ? new Node[0] : new Node[] {this.single};
+        }
+        if (!this.isHashed()) {
+            return Arrays.copyOf(this.nodes, this.size);
+        }
+        Node[] output = new Node[this.size];
+        int i = 0;
+        for (Node node : this.nodes) {
+            if (node != null && i < output.length) {
+                output[i++] = node;
+            }
+        }
+        return output;
+    }
+
+    public void addTo(Collection<Node> output) {
+        if (this.nodes == null) {
+            if (this.size == 1) {
+                output.add(this.single);
+            }
+            return;
+        }
+        for (Node node : this.nodes) {
+            if (node != null) {
+                output.add(node);
+            }
+        }
+    }
+
+    @Override
+    public Iterator<Node> iterator() {
+        return Arrays.asList(this.toArray()).iterator(); // A copy, so referrers can be unlinked while walking it
+    }
+}
@@ -2,19 +2,22 @@ package org.deegraph.database;
 
 import org.deegraph.formats.Tuple;
 
-import java.text.ParseException;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
+import java.util.function.BiConsumer;
 
 public class RelativeNodePath extends NodePath {
     String[] pathComponents;
     String pathString;
+    private final PathPlan plan; // Parsed once, and shared with every other path written the same way
 
     public RelativeNodePath(String path) {
         this.pathString = path;
         this.pathComponents = path.split("/");
+        this.plan = PathPlan.compile(path);
+    }
+
+    public PathPlan getPlan() {
+        return this.plan;
     }
 
     public AbsoluteNodePath toAbsolute(NodePathContext nodePathContext) {
@@ -56,518 +59,359 @@ public class RelativeNodePath extends NodePath {
         return new AbsoluteNodePath("{" + objectId + "}/" + String.join("/", pathComponents));
     }
 
-    public List<AbsoluteNodePath> getMatchingPathMap(SecurityContext securityContext, NodePathContext nodePathContext, Node[] searchSpace) {
-        String[] pathComponents = this.pathComponents.clone(); // Avoid side effects
-        String objectPath = null;
-        if (nodePathContext.getObject() != null) {
-            objectPath = "{" + nodePathContext.getObject().getId().toString() + "}";
-        }
-        if (nodePathContext.getObjectPath() != null) {
-            objectPath = nodePathContext.getObjectPath().toString();
-        }
-        String actorId = null;
-        if (nodePathContext.getActor() != null) {
-            actorId = nodePathContext.getActor().getId().toString();
-        }
-        if (this.pathString.startsWith("/")) {
-            if (pathComponents.length == 0) {
-                pathComponents = new String[1];
-                pathComponents[0] = "";
-            }
-            if (actorId == null) {
-                return new ArrayList<>();
-            }
-            if (pathComponents[0].length() == 0) {
-                pathComponents[0] = "{" + actorId + "}";
-            } else {
-                String[] newArray = Arrays.copyOf(pathComponents, pathComponents.length + 1);
-                newArray[0] = "{" + actorId + "}";
-                System.arraycopy(pathComponents, 0, newArray, 1, pathComponents.length);
-                pathComponents = newArray;
-            }
-        } else {
-            if (pathComponents.length == 0) {
-                return new ArrayList<>();
-            }
-        }
-        if (pathComponents[0].equals(".")) { // Special case, the user has explicitly asked for a contextual path
-            if (objectPath == null) {
-                return new ArrayList<>();
-            }
+    public List<AbsoluteNodePath> getMatchingPathMap(SecurityContext securityContext, NodePathContext nodePathContext, SearchSpace searchSpace) {
+        ArrayList<AbsoluteNodePath> output = new ArrayList<>();
+        this.match(securityContext, nodePathContext, searchSpace, true, true, (path, node) -> output.add(new AbsoluteNodePath(path)));
+        return output;
+    }
 
-            String[] objectPathComponents = objectPath.replaceAll("\\\\$|^\\\\", "").split("/");
-            String[] newArray = Arrays.copyOf(pathComponents, pathComponents.length + objectPathComponents.length - 1);
-            System.arraycopy(objectPathComponents, 0, newArray, 0, objectPathComponents.length);
-            System.arraycopy(pathComponents, 1, newArray, objectPathComponents.length, pathComponents.length - 1);
-            pathComponents = newArray;
-        } else {
-            if (!(pathComponents[0].startsWith("{") && pathComponents[0].endsWith("}"))) { // Oh no, we're still not starting with a literal yet
-                if (pathComponents[0].equals("**")) {
-                    if (pathComponents.length == 1) { // Special case for ONLY the super global operator - this can be used quite a few times in a single query, and should return quickly
-                        //return searchSpace;
-                        ArrayList<AbsoluteNodePath> output = new ArrayList<>();
-                        if (searchSpace == null) {
-                            searchSpace = securityContext.getDatabase().getAllVisibleNodes(securityContext.getActor());
-                        }
-                        for (Node n : searchSpace) {
-                            if (n != null) {
-                                output.add(new AbsoluteNodePath("{" + n.getId() + "}"));
-                                //System.out.println(n.getId());
-                            }
-                        }
-                        return output;
-                    }
-                } else { // Looks like this is an implicit contextual path, let's fill in this for the user
-                    String[] objectPathComponents = objectPath.replaceAll("\\\\$|^\\\\", "").split("/");
-                    String[] newArray = Arrays.copyOf(pathComponents, pathComponents.length + objectPathComponents.length);
-                    System.arraycopy(objectPathComponents, 0, newArray, 0, objectPathComponents.length);
-                    System.arraycopy(pathComponents, 0, newArray, objectPathComponents.length, pathComponents.length);
-                    pathComponents = newArray;
-                }
-            }
+    /**
+     * The same paths as getMatchingPathMap, but a ** path walked backwards is only matched against as much of the search
+     * space as it takes to produce the paths read so far, so a caller that stops early doesn't pay for the rest. Other
+     * paths are matched in full up front.
+     */
+    public Iterator<AbsoluteNodePath> iterateMatchingPaths(SecurityContext securityContext, NodePathContext nodePathContext, SearchSpace searchSpace) {
+        if (this.plan.getStart() != PathPlan.Start.GLOBAL || this.plan.getPivot() != -1) {
+            return this.getMatchingPathMap(securityContext, nodePathContext, searchSpace).iterator();
         }
-
-        if (pathComponents[0].equals("**")) {
-            ArrayList<AbsoluteNodePath> output = new ArrayList<>();
-
-            if (searchSpace == null) {
-                searchSpace = securityContext.getDatabase().getAllVisibleNodes(securityContext.getActor());
-            }
-            for (Node node : searchSpace) {
-                List<Tuple<String, Node>> currentValidParents = new ArrayList<>();
-                currentValidParents.add(new Tuple<>("", node));
-                for (int i = pathComponents.length - 1; i >= 0; i--) { // We'll traverse backwards to see if things make sense - there must be at least one valid parent
-                    if (pathComponents[i].equals("*") || pathComponents[i].equals("#")) {
-                        ArrayList<Tuple<String, Node>> newValidParents = new ArrayList<>();
-                        for (Tuple<String, Node> checkParent : currentValidParents) {
-                            String tail = ((checkParent.x.length() > 0) ? ("/" + checkParent.x) : "");
-                            for (String key : checkParent.y.getAllReferrersUnsafe().keySet()) {
-                                if (pathComponents[i].equals("#")) {
-                                    if (key.matches("[0-9]+")) { // Numerical keys only!
-                                        Node[] parentNodes = checkParent.y.getReferrers(securityContext, key);
-                                        for (Node parentNode : parentNodes) {
-                                            newValidParents.add(new Tuple<>(key + tail, parentNode));
-                                        }
-                                    }
-                                } else {
-                                    Node[] parentNodes = checkParent.y.getReferrers(securityContext, key);
-                                    for (Node parentNode : parentNodes) {
-                                        newValidParents.add(new Tuple<>(key + tail, parentNode));
-                                    }
-                                }
-                            }
-                        }
-                        currentValidParents = newValidParents;
-                    } else if (pathComponents[i].equals("**")) {
-                        ArrayList<Tuple<String, Node>> newValidParents = new ArrayList<>();
-                        for (Tuple<String, Node> checkParent : currentValidParents) {
-                            String tail = ((checkParent.x.length() > 0) ? ("/" + checkParent.x) : "");
-                            newValidParents.add(new Tuple<>("{" + checkParent.y.getId() + "}" + tail, checkParent.y));
-                        }
-                        currentValidParents = newValidParents;
-                    } else if (pathComponents[i].startsWith("{") && pathComponents[i].endsWith("}")) {
-                        Pattern pattern = Pattern.compile("[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}", Pattern.CASE_INSENSITIVE);
-                        Matcher matcher = pattern.matcher(pathComponents[i]);
-                        if (matcher.find()) {
-                            UUID uuid = UUID.fromString(matcher.group());
-                            for (Tuple<String, Node> checkParent : currentValidParents) {
-                                if (checkParent.y.getId().equals(uuid)) {
-                                    output.add(new AbsoluteNodePath("{" + checkParent.y.getId() + "}" + ((checkParent.x.length() > 0) ? ("/" + checkParent.x) : "")));
-                                    // This node is definitely valid, we've hit a parent with a defined uuid, we can stop looping through parents as anything above is irrelevant
-                                    i = 0; // Exit out of the for loop for this node
-                                }
-                            }
-                            currentValidParents = new ArrayList<>(); // Special case needed to skip adding the node later
-                        }
-                    } else if (pathComponents[i].startsWith("@")) { // Meta property - we only allow a few of these in traversals
-                        ArrayList<Tuple<String, Node>> newValidParents = new ArrayList<>();
-                        switch (pathComponents[i].toLowerCase(Locale.ROOT)) {
-                            case "@creator":
-                                for (Tuple<String, Node> checkParent : currentValidParents) {
-                                    if (checkParent.y != null) {
-                                        Node[] parentNodes = checkParent.y.getCreatedNodes(securityContext);
-                                        //System.out.println("Created " + parentNodes.length + " nodes");
-                                        for (Node parentNode : parentNodes) {
-                                            newValidParents.add(new Tuple<>("@creator" + ((checkParent.x.length() > 0) ? ("/" + checkParent.x) : ""), parentNode));
-                                        }
-                                    }
-                                }
-                                break;
-                            default:
-                                for (Tuple<String, Node> checkParent : currentValidParents) {
-                                    if (checkParent.y != null) {
-                                        output.add(new AbsoluteNodePath(pathComponents[i].toLowerCase(Locale.ROOT) + ((checkParent.x.length() > 0) ? ("/" + checkParent.x) : "")));
-                                    }
-                                }
-                                i = 0; // Exit out of the for loop now, we've hit a meta property and can't go any further
-                        }
-                        currentValidParents = newValidParents;
+        SearchSpace space = (searchSpace == null) ? securityContext.getDatabase().getVisibleSearchSpace(securityContext.getActor()) : searchSpace;
+        Iterator<Node> nodes = space.nodes(securityContext.getDatabase()).iterator();
+        PathStep[] steps = this.plan.getSteps();
+        BackwardWalk walk = new BackwardWalk(securityContext, steps, true, true);
+        ArrayDeque<AbsoluteNodePath> buffered = new ArrayDeque<>();
+        return new Iterator<AbsoluteNodePath>() {
+            @Override
+            public boolean hasNext() {
+                while (buffered.isEmpty() && nodes.hasNext()) {
+                    Node node = nodes.next();
+                    if (node == null) {
+                        continue;
+                    }
+                    if (steps.length == 1) { // Just **
+                        buffered.add(new AbsoluteNodePath("{" + node.getId() + "}"));
                     } else {
-                        ArrayList<Tuple<String, Node>> newValidParents = new ArrayList<>();
-                        for (Tuple<String, Node> checkParent : currentValidParents) {
-                            if (checkParent.y != null) {
-                                Node[] parentNodes = checkParent.y.getReferrers(securityContext, pathComponents[i]);
-                                for (Node parentNode : parentNodes) {
-                                    newValidParents.add(new Tuple<>(pathComponents[i] + ((checkParent.x.length() > 0) ? ("/" + checkParent.x) : ""), parentNode));
-                                }
-                            }
-                        }
-                        currentValidParents = newValidParents;
+                        walk.from(node, (path, match) -> buffered.add(new AbsoluteNodePath(path)));
                     }
-                    currentValidParents = currentValidParents.stream().distinct().collect(Collectors.toList());
-                }
-                for (Tuple<String, Node> checkParent : currentValidParents) {
-                    output.add(new AbsoluteNodePath(checkParent.x));
                 }
+                return !buffered.isEmpty();
             }
 
-            return output;
-        } else {
-            List<Tuple<String, Node>> branches = new ArrayList<>();
-
-            //System.out.println(String.join("/", pathComponents) + " AS " + securityContext.getActor().getId());
-            boolean isRoot = securityContext.getDatabase().getInstanceNode().equals(securityContext.getActor());
-            if (securityContext.getDatabase().getDebugSetting()) {
-                if (!isRoot) {
-                    System.out.println("RNP: " + String.join("/", pathComponents) + " AS " + securityContext.getActor().getId());
+            @Override
+            public AbsoluteNodePath next() {
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException();
                 }
+                return buffered.poll();
             }
-            Pattern pattern = Pattern.compile("[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}", Pattern.CASE_INSENSITIVE);
-            Matcher matcher = pattern.matcher(pathComponents[0]);
-            if (matcher.find()) {
-                UUID uuid = UUID.fromString(matcher.group());
-                Node node = securityContext.getDatabase().getNode(uuid, securityContext.getActor());
-                if (node != null) {
-                    branches.add(new Tuple<>(pathComponents[0], node));
+        };
+    }
+
+    public HashMap<AbsoluteNodePath, Node> getMatchingNodeMap(SecurityContext securityContext, NodePathContext nodePathContext, SearchSpace searchSpace) {
+        HashMap<AbsoluteNodePath, Node> hmo = new HashMap<>();
+        this.match(securityContext, nodePathContext, searchSpace, true, false, (path, node) -> hmo.put(new AbsoluteNodePath(path), node));
+        return hmo;
+    }
+
+    /**
+     * Matches without building any paths. A node reached along more than one path walking forwards is listed once per
+     * path, as in the node map, but a ** path lists each node in the search space at most once.
+     */
+    public Node[] getMatchingNodes(SecurityContext securityContext, NodePathContext nodePathContext, SearchSpace searchSpace) {
+        ArrayList<Node> output = new ArrayList<>();
+        this.match(securityContext, nodePathContext, searchSpace, false, false, (path, node) -> output.add(node));
+        return output.toArray(new Node[0]);
+    }
+
+    private void match(SecurityContext securityContext, NodePathContext nodePathContext, SearchSpace searchSpace, boolean keepPaths, boolean keepMetaPaths, BiConsumer<String, Node> output) {
+        PathStep[] steps = this.plan.getSteps();
+        PathStep head;
+        int from = 0; // The first step after the head
+        switch (this.plan.getStart()) {
+            case GLOBAL:
+                if (searchSpace == null) {
+                    searchSpace = securityContext.getDatabase().getVisibleSearchSpace(securityContext.getActor());
                 }
-            }
-            List<Tuple<String, Node>> newBranches = new ArrayList<>();
-            for (int level = 1; level < pathComponents.length; level++) {
-                for (Tuple<String, Node> branch: branches) {
-                    if (pathComponents[level].equals("*")) {
-                        HashMap<String, Node> props = branch.y.getProperties(securityContext);
-                        for (Map.Entry<String, Node> prop: props.entrySet()) {
-                            newBranches.add(new Tuple<>(branch.x + "/" + prop.getKey(), prop.getValue()));
-                        }
-                    } else if (pathComponents[level].equals("#")) {
-                        HashMap<String, Node> props = branch.y.getProperties(securityContext);
-                        for (Map.Entry<String, Node> prop: props.entrySet()) {
-                            if (prop.getKey().matches("[0-9]+")) {
-                                newBranches.add(new Tuple<>(branch.x + "/" + prop.getKey(), prop.getValue()));
-                            }
-                        }
-                    } else if (pathComponents[level].startsWith("@")) {
-                        if (pathComponents[level].toLowerCase(Locale.ROOT).equals("@creator")) {
-                            newBranches.add(new Tuple<>(branch.x + "/@creator", branch.y.getCNode()));
-                        } else {
-                            newBranches.add(new Tuple<>(branch.x + "/" + pathComponents[level].toLowerCase(Locale.ROOT), branch.y));
-                            level = pathComponents.length; // Exit the loop now, this is a string property
-                        }
-                    } else {
-                        Node node = branch.y.getProperty(securityContext, pathComponents[level]);
+                if (steps.length == 1) { // Special case for ONLY the super global operator - this can be used quite a few times in a single query, and should return quickly
+                    for (Node node : searchSpace.nodes(securityContext.getDatabase())) {
                         if (node != null) {
-                            newBranches.add(new Tuple<>(branch.x + "/" + pathComponents[level], node));
+                            output.accept(keepPaths ? ("{" + node.getId() + "}") : null, node);
                         }
                     }
+                    return;
                 }
-                branches = newBranches;
-                newBranches = new ArrayList<>();
-            }
-
-            ArrayList<AbsoluteNodePath> output = new ArrayList<>();
-
-            //HashMap<AbsoluteNodePath, Node> hmo = new HashMap<>();
-            if (searchSpace == null) {
-                for (Tuple<String, Node> branch : branches) {
-                    output.add(new AbsoluteNodePath(branch.x));
+                if (this.plan.getPivot() != -1) {
+                    GlobalPathPlanner.match(securityContext, steps, this.plan.getPivot(), searchSpace, keepPaths, output);
+                    return;
                 }
-            } else {
-                Collection<Node> searchSpaceCollection = Arrays.asList(searchSpace);
-                for (Tuple<String, Node> branch : branches) {
-                    for (Node node: searchSpaceCollection) {
-                        if (node == branch.y) {
-                            output.add(new AbsoluteNodePath(branch.x));
-                        }
+                this.matchBackwards(securityContext, steps, searchSpace, keepPaths, keepMetaPaths, output);
+                return;
+            case LITERAL:
+                head = steps[0];
+                from = 1;
+                break;
+            case ACTOR:
+                if (nodePathContext.getActor() == null) {
+                    return;
+                }
+                head = PathStep.parse("{" + nodePathContext.getActor().getId() + "}");
+                break;
+            case CONTEXT:
+            case IMPLICIT_CONTEXT:
+                if (nodePathContext.getObjectPath() != null) { // Carry on from the end of the object's path
+                    PathStep[] objectSteps = nodePathContext.getObjectPath().getSteps();
+                    head = objectSteps[0];
+                    if (objectSteps.length > 1) {
+                        PathStep[] joined = Arrays.copyOfRange(objectSteps, 1, objectSteps.length + steps.length);
+                        System.arraycopy(steps, 0, joined, objectSteps.length - 1, steps.length);
+                        steps = joined;
                     }
+                } else if (nodePathContext.getObject() != null) {
+                    head = PathStep.parse("{" + nodePathContext.getObject().getId() + "}");
+                } else {
+                    return;
                 }
-            }
-            //return hmo;
-
-            return output;
-        }
-    }
-
-    public HashMap<AbsoluteNodePath, Node> getMatchingNodeMap(SecurityContext securityContext, NodePathContext nodePathContext, Node[] searchSpace) {
-        String[] pathComponents = this.pathComponents.clone(); // Avoid side effects
-        String objectPath = null;
-        if (nodePathContext.getObject() != null) {
-            objectPath = "{" + nodePathContext.getObject().getId().toString() + "}";
+                break;
+            default:
+                return;
         }
-        if (nodePathContext.getObjectPath() != null) {
-            objectPath = nodePathContext.getObjectPath().toString();
+        if (head.getKind() != PathStep.Kind.LITERAL || head.getId() == null) {
+            return;
         }
-        String actorId = null;
-        if (nodePathContext.getActor() != null) {
-            actorId = nodePathContext.getActor().getId().toString();
-        }
-        if (this.pathString.startsWith("/")) {
-            if (pathComponents.length == 0) {
-                pathComponents = new String[1];
-                pathComponents[0] = "";
-            }
-            if (actorId == null) {
-                return new HashMap<>();
-            }
-            if (pathComponents[0].length() == 0) {
-                pathComponents[0] = "{" + actorId + "}";
-            } else {
-                String[] newArray = Arrays.copyOf(pathComponents, pathComponents.length + 1);
-                newArray[0] = "{" + actorId + "}";
-                System.arraycopy(pathComponents, 0, newArray, 1, pathComponents.length);
-                pathComponents = newArray;
-            }
-        } else {
-            if (pathComponents.length == 0) {
-                return new HashMap<>();
+
+        if (securityContext.getDatabase().getDebugSetting()) {
+            if (!securityContext.getDatabase().getInstanceNode().equals(securityContext.getActor())) {
+                System.out.println("RNP: " + this.pathString + " AS " + securityContext.getActor().getId());
             }
         }
-        if (pathComponents[0].equals(".")) { // Special case, the user has explicitly asked for a contextual path
-            if (objectPath == null) {
-                return new HashMap<>();
-            }
-            //pathComponents[0] = objectPath;
+        Node start = securityContext.getDatabase().getNode(head.getId(), securityContext.getActor());
+        if (start != null) {
+            this.matchForwards(securityContext, head.getText(), start, steps, from, searchSpace, keepPaths, keepMetaPaths, output);
+        }
+    }
 
-            String[] objectPathComponents = objectPath.replaceAll("\\\\$|^\\\\", "").split("/");
-            String[] newArray = Arrays.copyOf(pathComponents, pathComponents.length + objectPathComponents.length - 1);
-            System.arraycopy(objectPathComponents, 0, newArray, 0, objectPathComponents.length);
-            System.arraycopy(pathComponents, 1, newArray, objectPathComponents.length, pathComponents.length - 1);
-            pathComponents = newArray;
-        } else {
-            if (!(pathComponents[0].startsWith("{") && pathComponents[0].endsWith("}"))) { // Oh no, we're still not starting with a literal yet
-                /* // Old way, kind of works how user expects but is less consistent - consistency is key!
-                if (pathComponents[0].equals("*")) {
-                    if (pathComponents.length == 1) { // Special case for ONLY the global operator - this can be used quite a few times in a single query, and should return quickly
-                        //return searchSpace;
-                        HashMap<AbsoluteNodePath, Node> hmo = new HashMap<>();
-                        for (Node n: searchSpace) {
-                            if (n != null) {
-                                hmo.put(new AbsoluteNodePath("{" + n.getId() + "}"), n);
+    private void matchForwards(SecurityContext securityContext, String headPath, Node start, PathStep[] steps, int from, SearchSpace searchSpace, boolean keepPaths, boolean keepMetaPaths, BiConsumer<String, Node> output) {
+        // The same lists are refilled at every level, and trails run alongside branches only if paths are wanted
+        ArrayList<Node> branches = new ArrayList<>();
+        ArrayList<Node> newBranches = new ArrayList<>();
+        ArrayList<PathTrail> trails = new ArrayList<>();
+        ArrayList<PathTrail> newTrails = new ArrayList<>();
+        branches.add(start);
+        if (keepPaths) {
+            trails.add(new PathTrail(null, headPath));
+        }
+        for (int level = from; level < steps.length && !branches.isEmpty(); level++) {
+            PathStep step = steps[level];
+            switch (step.getKind()) {
+                case WILDCARD:
+                case NUMERIC_WILDCARD:
+                    boolean arrayOnly = step.getKind() == PathStep.Kind.NUMERIC_WILDCARD;
+                    for (int i = 0; i < branches.size(); i++) {
+                        if (!keepPaths) {
+                            branches.get(i).collectProperties(securityContext, arrayOnly, newBranches);
+                            continue;
+                        }
+                        for (Map.Entry<String, Node> prop : branches.get(i).getProperties(securityContext).entrySet()) {
+                            if (!arrayOnly || PropertyKeyDictionary.isNumeric(prop.getKey())) {
+                                newBranches.add(prop.getValue());
+                                newTrails.add(new PathTrail(trails.get(i), prop.getKey()));
                             }
                         }
-                        return hmo;
                     }
-                } else { // Looks like this is an implicit contextual path, let'f fill in this for the user
-                    String[] newArray = Arrays.copyOf(pathComponents, pathComponents.length + 1);
-                    newArray[0] = "{" + objectId + "}";
-                    System.arraycopy(pathComponents, 0, newArray, 1, pathComponents.length);
-                    pathComponents = newArray;
-                }*/
-
-                if (pathComponents[0].equals("**")) {
-                    if (pathComponents.length == 1) { // Special case for ONLY the super global operator - this can be used quite a few times in a single query, and should return quickly
-                        //return searchSpace;
-                        HashMap<AbsoluteNodePath, Node> hmo = new HashMap<>();
-                        if (searchSpace == null) {
-                            searchSpace = securityContext.getDatabase().getAllVisibleNodes(securityContext.getActor());
+                    break;
+                case CREATOR:
+                    for (int i = 0; i < branches.size(); i++) {
+                        Node creator = branches.get(i).getCNode();
+                        if (creator != null) {
+                            newBranches.add(creator);
+                            if (keepPaths) {
+                                newTrails.add(new PathTrail(trails.get(i), "@creator"));
+                            }
                         }
-                        for (Node n: searchSpace) {
-                            if (n != null) {
-                                hmo.put(new AbsoluteNodePath("{" + n.getId() + "}"), n);
+                    }
+                    break;
+                case META:
+                    if (!keepMetaPaths) {
+                        return;
+                    }
+                    for (int i = 0; i < branches.size(); i++) {
+                        newBranches.add(branches.get(i));
+                        newTrails.add(new PathTrail(trails.get(i), step.getName()));
+                    }
+                    level = steps.length; // This is a string property, so the path can't go any further
+                    break;
+                default: // Literals and ** can't be property names, so those never match here
+                    for (int i = 0; i < branches.size(); i++) {
+                        Node node = branches.get(i).getProperty(securityContext, step.getName());
+                        if (node != null) {
+                            newBranches.add(node);
+                            if (keepPaths) {
+                                newTrails.add(new PathTrail(trails.get(i), step.getName()));
                             }
                         }
-                        return hmo;
-                    }// else { // Otherwise, we just match basically anything
-                    //    pathComponents = Arrays.copyOfRange(pathComponents, 1, pathComponents.length); // We do this by popping this operator off
-                    //}
-                } else { // Looks like this is an implicit contextual path, let's fill in this for the user
-                    /*
-                    String[] newArray = Arrays.copyOf(pathComponents, pathComponents.length + 1);
-                    newArray[0] = objectPath;
-                    System.arraycopy(pathComponents, 0, newArray, 1, pathComponents.length);
-                    pathComponents = newArray;
-                     */
-
-                    if (objectPath == null) {
-                        objectPath = "";
                     }
-
-                    String[] objectPathComponents = objectPath.replaceAll("\\\\$|^\\\\", "").split("/");
-                    String[] newArray = Arrays.copyOf(pathComponents, pathComponents.length + objectPathComponents.length);
-                    System.arraycopy(objectPathComponents, 0, newArray, 0, objectPathComponents.length);
-                    System.arraycopy(pathComponents, 0, newArray, objectPathComponents.length, pathComponents.length);
-                    pathComponents = newArray;
-                }
             }
+            ArrayList<Node> swapBranches = branches;
+            branches = newBranches;
+            newBranches = swapBranches;
+            newBranches.clear();
+            ArrayList<PathTrail> swapTrails = trails;
+            trails = newTrails;
+            newTrails = swapTrails;
+            newTrails.clear();
         }
 
-        //System.out.println("EXPPATH: " + String.join("/", pathComponents));
+        for (int i = 0; i < branches.size(); i++) {
+            Node node = branches.get(i);
+            if (searchSpace != null && !searchSpace.contains(node)) {
+                continue;
+            }
+            output.accept(keepPaths ? trails.get(i).forwards() : null, node);
+        }
+    }
 
-        if (pathComponents[0].equals("**")) {
+    /**
+     * Matches a ** path by starting from every node in the search space and walking backwards through referrers, as any
+     * node could be where the path starts.
+     */
+    private void matchBackwards(SecurityContext securityContext, PathStep[] steps, SearchSpace searchSpace, boolean keepPaths, boolean keepMetaPaths, BiConsumer<String, Node> output) {
+        BackwardWalk walk = new BackwardWalk(securityContext, steps, keepPaths, keepMetaPaths);
+        for (Node node : searchSpace.nodes(securityContext.getDatabase())) {
+            if (node != null) {
+                walk.from(node, output);
+            }
+        }
+    }
 
-            //System.out.println("EXPPATH: " + String.join("/", pathComponents));
+    /**
+     * Walks a ** path backwards from one node at a time, reusing the same lists for every node.
+     */
+    private static final class BackwardWalk {
+        private final SecurityContext securityContext;
+        private final PathStep[] steps;
+        private final boolean keepPaths;
+        private final boolean keepMetaPaths;
+        private final ArrayList<Node> firstParents = new ArrayList<>();
+        private final ArrayList<Node> secondParents = new ArrayList<>();
+        private final ArrayList<PathTrail> firstTrails = new ArrayList<>();
+        private final ArrayList<PathTrail> secondTrails = new ArrayList<>();
 
-            //ArrayList<Node> output = new ArrayList<>();
-            HashMap<AbsoluteNodePath, Node> hmo = new HashMap<>();
+        private BackwardWalk(SecurityContext securityContext, PathStep[] steps, boolean keepPaths, boolean keepMetaPaths) {
+            this.securityContext = securityContext;
+            this.steps = steps;
+            this.keepPaths = keepPaths;
+            this.keepMetaPaths = keepMetaPaths;
+        }
 
-            if (searchSpace == null) {
-                searchSpace = securityContext.getDatabase().getAllVisibleNodes(securityContext.getActor());
-            }
-            for (Node node : searchSpace) {
-                List<Tuple<String, Node>> currentValidParents = new ArrayList<>();
-                currentValidParents.add(new Tuple<>("", node));
-                for (int i = pathComponents.length - 1; i >= 0; i--) { // We'll traverse backwards to see if things make sense - there must be at least one valid parent
-                    if (pathComponents[i].equals("*") || pathComponents[i].equals("#")) {
-                        ArrayList<Tuple<String, Node>> newValidParents = new ArrayList<>();
-                        for (Tuple<String, Node> checkParent : currentValidParents) {
-                            String tail = ((checkParent.x.length() > 0) ? ("/" + checkParent.x) : "");
-                            for (String key : checkParent.y.getAllReferrersUnsafe().keySet()) {
-                                if (pathComponents[i].equals("#")) {
-                                    if (key.matches("[0-9]+")) { // Numerical keys only!
-                                        Node[] parentNodes = checkParent.y.getReferrers(securityContext, key);
-                                        for (Node parentNode : parentNodes) {
-                                            newValidParents.add(new Tuple<>(key + tail, parentNode));
-                                        }
-                                    }
-                                } else {
-                                    Node[] parentNodes = checkParent.y.getReferrers(securityContext, key);
-                                    for (Node parentNode : parentNodes) {
-                                        newValidParents.add(new Tuple<>(key + tail, parentNode));
+        private void from(Node node, BiConsumer<String, Node> output) {
+            SecurityContext securityContext = this.securityContext;
+            PathStep[] steps = this.steps;
+            boolean keepPaths = this.keepPaths;
+            boolean keepMetaPaths = this.keepMetaPaths;
+            ArrayList<Node> parents = this.firstParents;
+            ArrayList<Node> newParents = this.secondParents;
+            ArrayList<PathTrail> trails = this.firstTrails; // The path below each parent, null for the node itself
+            ArrayList<PathTrail> newTrails = this.secondTrails;
+            parents.clear();
+            newParents.clear(); // Whichever list held the last node's matches
+            trails.clear();
+            newTrails.clear();
+            parents.add(node);
+            trails.add(null);
+            boolean matched = false; // Only used without paths, so each node is passed on once however many ways it matches
+            for (int i = steps.length - 1; i >= 0 && !parents.isEmpty(); i--) { // There must be at least one valid parent all the way back
+                PathStep step = steps[i];
+                switch (step.getKind()) {
+                    case WILDCARD:
+                    case NUMERIC_WILDCARD:
+                        boolean arrayOnly = step.getKind() == PathStep.Kind.NUMERIC_WILDCARD;
+                        for (int j = 0; j < parents.size(); j++) {
+                            Node parent = parents.get(j);
+                            if (!keepPaths) {
+                                parent.collectReferrers(securityContext, arrayOnly, newParents);
+                                continue;
+                            }
+                            for (String key : parent.getAllReferrersUnsafe().keySet()) {
+                                if (!arrayOnly || PropertyKeyDictionary.isNumeric(key)) { // Numerical keys only for #
+                                    for (Node parentNode : parent.getReferrers(securityContext, key)) {
+                                        newParents.add(parentNode);
+                                        newTrails.add(new PathTrail(trails.get(j), key));
                                     }
                                 }
                             }
                         }
-                        currentValidParents = newValidParents;
-                    } else if (pathComponents[i].equals("**")) {
-                        ArrayList<Tuple<String, Node>> newValidParents = new ArrayList<>();
-                        for (Tuple<String, Node> checkParent : currentValidParents) {
-                            String tail = ((checkParent.x.length() > 0) ? ("/" + checkParent.x) : "");
-                            newValidParents.add(new Tuple<>("{" + checkParent.y.getId() + "}" + tail, checkParent.y));
-                        }
-                        currentValidParents = newValidParents;
-                    } else if (pathComponents[i].startsWith("{") && pathComponents[i].endsWith("}")) {
-                        Pattern pattern = Pattern.compile("[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}", Pattern.CASE_INSENSITIVE);
-                        Matcher matcher = pattern.matcher(pathComponents[i]);
-                        if (matcher.find()) {
-                            UUID uuid = UUID.fromString(matcher.group());
-                            for (Tuple<String, Node> checkParent : currentValidParents) {
-                                if (checkParent.y.getId().equals(uuid)) {
-                                    hmo.put(new AbsoluteNodePath("{" + checkParent.y.getId() + "}" + ((checkParent.x.length() > 0) ? ("/" + checkParent.x) : "")), node);
-                                    //output.add(node); // This node is definitely valid, we've hit a parent with a defined uuid, we can stop looping through parents as anything above is irrelevant
-                                    i = 0; // Exit out of the for loop for this node
-                                }
+                        break;
+                    case GLOBAL:
+                        for (int j = 0; j < parents.size(); j++) {
+                            newParents.add(parents.get(j));
+                            if (keepPaths) {
+                                newTrails.add(new PathTrail(trails.get(j), parents.get(j)));
                             }
-                            currentValidParents = new ArrayList<>(); // Special case needed to skip adding the node later
                         }
-                    } else if (pathComponents[i].startsWith("@")) { // Meta property - we only allow a few of these in traversals
-                        ArrayList<Tuple<String, Node>> newValidParents = new ArrayList<>();
-                        switch (pathComponents[i].toLowerCase(Locale.ROOT)) {
-                            case "@creator":
-                                for (Tuple<String, Node> checkParent : currentValidParents) {
-                                    if (checkParent.y != null) {
-                                        Node[] parentNodes = checkParent.y.getCreatedNodes(securityContext);
-                                        //System.out.println("Created " + parentNodes.length + " nodes");
-                                        for (Node parentNode : parentNodes) {
-                                            newValidParents.add(new Tuple<>("@creator" + ((checkParent.x.length() > 0) ? ("/" + checkParent.x) : ""), parentNode));
-                                        }
-                                    }
-                                }
-                                break;
+                        break;
+                    case LITERAL:
+                        if (step.getId() == null) { // Not a valid id, so it doesn't narrow anything down
+                            newParents.addAll(parents);
+                            newTrails.addAll(trails);
+                            break;
                         }
-                        currentValidParents = newValidParents;
-                    } else {
-                        ArrayList<Tuple<String, Node>> newValidParents = new ArrayList<>();
-                        for (Tuple<String, Node> checkParent : currentValidParents) {
-                            if (checkParent.y != null) {
-                                Node[] parentNodes = checkParent.y.getReferrers(securityContext, pathComponents[i]);
-                                for (Node parentNode : parentNodes) {
-                                    newValidParents.add(new Tuple<>(pathComponents[i] + ((checkParent.x.length() > 0) ? ("/" + checkParent.x) : ""), parentNode));
+                        for (int j = 0; j < parents.size(); j++) {
+                            if (parents.get(j).getId().equals(step.getId())) {
+                                // We've hit a parent with a defined uuid, so anything above is irrelevant
+                                if (keepPaths) {
+                                    output.accept(new PathTrail(trails.get(j), parents.get(j)).backwards(), node);
+                                } else {
+                                    matched = true;
                                 }
                             }
                         }
-                        currentValidParents = newValidParents;
-                    }
-                    currentValidParents = currentValidParents.stream().distinct().collect(Collectors.toList());
-                }
-                for (Tuple<String, Node> checkParent : currentValidParents) {
-                    hmo.put(new AbsoluteNodePath(checkParent.x), node);
-                }
-            }
-
-            return hmo;
-        } else {
-            List<Tuple<String, Node>> branches = new ArrayList<>();
-
-            //System.out.println(String.join("/", pathComponents) + " AS " + securityContext.getActor().getId());
-            boolean isRoot = securityContext.getDatabase().getInstanceNode().equals(securityContext.getActor());
-            if (securityContext.getDatabase().getDebugSetting()) {
-                if (!isRoot) {
-                    System.out.println("RNP: " + String.join("/", pathComponents) + " AS " + securityContext.getActor().getId());
-                }
-            }
-            Pattern pattern = Pattern.compile("[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}", Pattern.CASE_INSENSITIVE);
-            Matcher matcher = pattern.matcher(pathComponents[0]);
-            if (matcher.find()) {
-                UUID uuid = UUID.fromString(matcher.group());
-                Node node = securityContext.getDatabase().getNode(uuid, securityContext.getActor());
-                if (node != null) {
-                    branches.add(new Tuple<>(pathComponents[0], node));
-                }
-            }
-            List<Tuple<String, Node>> newBranches = new ArrayList<>();
-            for (int level = 1; level < pathComponents.length; level++) {
-                for (Tuple<String, Node> branch: branches) {
-                    if (pathComponents[level].equals("*")) {
-                        HashMap<String, Node> props = branch.y.getProperties(securityContext);
-                        for (Map.Entry<String, Node> prop: props.entrySet()) {
-                            newBranches.add(new Tuple<>(branch.x + "/" + prop.getKey(), prop.getValue()));
-                        }
-                    } else if (pathComponents[level].equals("#")) {
-                        HashMap<String, Node> props = branch.y.getProperties(securityContext);
-                        for (Map.Entry<String, Node> prop: props.entrySet()) {
-                            if (prop.getKey().matches("[0-9]+")) {
-                                newBranches.add(new Tuple<>(branch.x + "/" + prop.getKey(), prop.getValue()));
+                        break;
+                    case CREATOR:
+                        for (int j = 0; j < parents.size(); j++) {
+                            for (Node parentNode : parents.get(j).getCreatedNodes(securityContext)) {
+                                newParents.add(parentNode);
+                                if (keepPaths) {
+                                    newTrails.add(new PathTrail(trails.get(j), "@creator"));
+                                }
                             }
                         }
-                    } else if (pathComponents[level].startsWith("@")) {
-                        if (pathComponents[level].toLowerCase(Locale.ROOT).equals("@creator")) {
-                            newBranches.add(new Tuple<>(branch.x + "/@creator", branch.y.getCNode()));
-                        } else {
-                            return new HashMap<>();
+                        break;
+                    case META: // We've hit a meta property and can't go any further
+                        if (keepMetaPaths) {
+                            for (int j = 0; j < parents.size(); j++) {
+                                output.accept(new PathTrail(trails.get(j), step.getName()).backwards(), node);
+                            }
                         }
-                    } else {
-                        Node node = branch.y.getProperty(securityContext, pathComponents[level]);
-                        if (node != null) {
-                            newBranches.add(new Tuple<>(branch.x + "/" + pathComponents[level], node));
+                        break;
+                    default:
+                        for (int j = 0; j < parents.size(); j++) {
+                            for (Node parentNode : parents.get(j).getReferrers(securityContext, step.getName())) {
+                                newParents.add(parentNode);
+                                if (keepPaths) {
+                                    newTrails.add(new PathTrail(trails.get(j), step.getName()));
+                                }
+                            }
                         }
-                    }
                 }
-                branches = newBranches;
-                newBranches = new ArrayList<>();
+                ArrayList<Node> swapParents = parents;
+                parents = newParents;
+                newParents = swapParents;
+                newParents.clear();
+                ArrayList<PathTrail> swapTrails = trails;
+                trails = newTrails;
+                newTrails = swapTrails;
+                newTrails.clear();
             }
-
-            HashMap<AbsoluteNodePath, Node> hmo = new HashMap<>();
-            if (searchSpace == null) {
-                for (Tuple<String, Node> branch : branches) {
-                    hmo.put(new AbsoluteNodePath(branch.x), branch.y);
-                }
-            } else {
-                Collection<Node> searchSpaceCollection = Arrays.asList(searchSpace);
-                for (Tuple<String, Node> branch : branches) {
-                    for (Node node: searchSpaceCollection) {
-                        //System.out.println(branch.y.getId() + " == " + node.getId());
-                        if (node == branch.y) {
-                            hmo.put(new AbsoluteNodePath(branch.x), branch.y);
-                        }
-                    }
+            if (!keepPaths) {
+                if (matched || !parents.isEmpty()) {
+                    output.accept(null, node);
                 }
+                return;
+            }
+            for (PathTrail trail : trails) {
+                output.accept((trail == null) ? "" : trail.backwards(), node);
             }
-            return hmo;
         }
     }
-    public Node[] getMatchingNodes(SecurityContext securityContext, NodePathContext nodePathContext, Node[] searchSpace) {
-        HashMap<AbsoluteNodePath, Node> hmo = getMatchingNodeMap(securityContext, nodePathContext, searchSpace);
-        return hmo.values().toArray(new Node[0]);
-    }
 
     @Override
     public String toString() {
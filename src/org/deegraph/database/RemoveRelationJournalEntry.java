@@ -3,8 +3,9 @@ package org.deegraph.database;
 import org.deegraph.exceptions.MissingNodeException;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
 
 public class RemoveRelationJournalEntry extends JournalEntry {
@@ -66,9 +67,9 @@ public class RemoveRelationJournalEntry extends JournalEntry {
                 subjectNode = graphDatabase.getNodeUnsafe(this.subjectLocalId);
             }
             if (this.referenceName.equals("#")) { // Special wildcard remove for array-nodes, we don't care about where in the array it is
-                HashMap<String, Node> properties = referrerNode.getPropertiesUnsafe();
-                for (String key : properties.keySet()) {
-                    if (key.matches("^[0-9]+$")) {
+                Map<String, Node> properties = referrerNode.getPropertiesUnsafe();
+                for (String key : properties.keySet().toArray(new String[0])) { // Copied, as we remove as we go
+                    if (PropertyKeyDictionary.isNumeric(key)) {
                         if (subjectNode == null || properties.get(key).equals(subjectNode)) {
                             referrerNode.removeProperty(new SecurityContext(graphDatabase, actorNode), key);
                         }
@@ -114,4 +115,23 @@ public class RemoveRelationJournalEntry extends JournalEntry {
         JournalEntry je = new RemoveRelationJournalEntry(dTime, actor, referrerLocalId, referenceName, subjectLocalId);
         return je;
     }
+
+    public static JournalEntry fromBinary(JournalDecoder input) throws IOException {
+        UUID actor = input.readDictionaryUuid();
+        UUID referrerLocalId = input.readUuid();
+        String referenceName = input.readDictionaryString();
+        UUID subjectLocalId = input.readNullableUuid();
+        Date dTime = input.readTimestamp();
+        return new RemoveRelationJournalEntry(dTime, actor, referrerLocalId, referenceName, subjectLocalId);
+    }
+
+    @Override
+    public void asBinary(JournalEncoder output) throws IOException {
+        output.writeType(BINARY_REMOVE_RELATION);
+        output.writeDictionaryUuid(this.actor);
+        output.writeUuid(this.referrerLocalId);
+        output.writeDictionaryString(this.referenceName);
+        output.writeNullableUuid(this.subjectLocalId);
+        output.writeTimestamp(this.timestamp);
+    }
 }
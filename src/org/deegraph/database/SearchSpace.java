@@ -0,0 +1,108 @@
+package org.deegraph.database;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * The nodes a path's matches are limited to. Checking a node is in it is a hash lookup however big it is, and the
+ * search space of every node is the EVERYTHING sentinel rather than a copy of the whole graph - anything walking it,
+ * like a ** path, reads the database's node store in place.
+ */
+public abstract class SearchSpace {
+    private static final int MAX_SCANNED = 8; // Up to this many nodes are checked one by one rather than hashed
+
+    public static final SearchSpace EVERYTHING = new SearchSpace() {
+        @Override
+        public boolean contains(Node node) {
+            return node != null;
+        }
+
+        @Override
+        public boolean isEverything() {
+            return true;
+        }
+
+        @Override
+        public Iterable<Node> nodes(GraphDatabase graphDatabase) {
+            return graphDatabase.getNodeStore()::liveIterator;
+        }
+
+        @Override
+        public int size(GraphDatabase graphDatabase) {
+            return graphDatabase.getNodeStore().size();
+        }
+    };
+
+    public static SearchSpace of(Node... nodes) {
+        Set<Node> set = null;
+        if (nodes.length > MAX_SCANNED) {
+            set = SearchSpace.newNodeSet();
+            Collections.addAll(set, nodes);
+        }
+        return new Listed(Arrays.asList(nodes), set);
+    }
+
+    /**
+     * @param nodes Made by newNodeSet, and kept as they are, so they must not change while the search space is in use
+     */
+    public static SearchSpace of(Set<Node> nodes) {
+        return new Listed(nodes, nodes);
+    }
+
+    /**
+     * @return An empty set that compares nodes by identity, as every check against a search space does - there is only
+     * ever one node object for each id
+     */
+    public static Set<Node> newNodeSet() {
+        return Collections.newSetFromMap(new IdentityHashMap<>());
+    }
+
+    public abstract boolean contains(Node node);
+
+    public boolean isEverything() {
+        return false;
+    }
+
+    /**
+     * @return The nodes in the search space, which for EVERYTHING are read from the database as they're walked
+     */
+    public abstract Iterable<Node> nodes(GraphDatabase graphDatabase);
+
+    public abstract int size(GraphDatabase graphDatabase);
+
+    private static final class Listed extends SearchSpace {
+        private final Collection<Node> nodes;
+        private final Set<Node> set; // Compared by identity, or null for search spaces small enough to scan
+
+        private Listed(Collection<Node> nodes, Set<Node> set) {
+            this.nodes = nodes;
+            this.set = set;
+        }
+
+        @Override
+        public boolean contains(Node node) {
+            if (this.set != null) {
+                return this.set.contains(node);
+            }
+            for (Node candidate : this.nodes) {
+                if (candidate == node) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Iterable<Node> nodes(GraphDatabase graphDatabase) {
+            return this.nodes;
+        }
+
+        @Override
+        public int size(GraphDatabase graphDatabase) {
+            return this.nodes.size();
+        }
+    }
+}
@@ -3,12 +3,19 @@ package org.deegraph.database;
 public class SecurityContext {
     Node actor;
     GraphDatabase database;
+    private PathResolutionCache resolutionCache; // Only for contexts that last a single query
 
     public SecurityContext(GraphDatabase database, Node actor) {
         this.actor = actor;
         this.database = database;
     }
 
+    public SecurityContext(GraphDatabase database, Node actor, PathResolutionCache resolutionCache) {
+        this.actor = actor;
+        this.database = database;
+        this.resolutionCache = resolutionCache;
+    }
+
     public Node getActor() {
         return actor;
     }
@@ -16,4 +23,8 @@ public class SecurityContext {
     public GraphDatabase getDatabase() {
         return database;
     }
+
+    public PathResolutionCache getResolutionCache() {
+        return this.resolutionCache;
+    }
 }
@@ -4,27 +4,84 @@ import com.nimbusds.jose.JWSObject;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class TrustBlock {
+    private static final ConcurrentHashMap<UUID, UUID> guarantorIds = new ConcurrentHashMap<>(); // There are only ever a handful of guarantors, so every block shares one id object for each
+
     byte[] hash;
-    JWSObject signature;
+    // Every node has one of these, so the signature is held in its compact serialization rather than as a parsed JWSObject
+    String signatureHeader; // Encoded JWS header - interned, as it is the same for everything signed by one key
+    byte[] signatureBody; // Payload length, payload and signature, decoded - or a 0 then the encoded form if that wouldn't round trip exactly
     UUID guarantorId;
     String guarantorFqdn;
-    ArrayList<TrustBlock> trustedBy;
+    ArrayList<TrustBlock> trustedBy; // Allocated on first use
 
 
     public TrustBlock(UUID guarantorId, String guarantorFqdn, JWSObject signature) {
-        this.signature = signature;
-        this.guarantorId = guarantorId;
-        this.guarantorFqdn = guarantorFqdn;
-        this.trustedBy = new ArrayList<>();
+        this(guarantorId, guarantorFqdn, signature.serialize());
+    }
+
+    public TrustBlock(UUID guarantorId, String guarantorFqdn, String serializedSignature) {
+        int headerEnd = serializedSignature.indexOf('.');
+        if (headerEnd == -1 || serializedSignature.indexOf('.', headerEnd + 1) == -1) {
+            throw new IllegalArgumentException("Not a compact serialized JWS");
+        }
+        this.signatureHeader = serializedSignature.substring(0, headerEnd).intern();
+        this.signatureBody = TrustBlock.packSignatureBody(serializedSignature.substring(headerEnd + 1));
+        UUID sharedId = TrustBlock.guarantorIds.putIfAbsent(guarantorId, guarantorId);
+        this.guarantorId = (sharedId == null) ? guarantorId : sharedId;
+        this.guarantorFqdn = guarantorFqdn.intern();
+    }
+
+    /**
+     * Decodes the payload and signature, which takes about two thirds of the space of their encoded form. The original
+     * text is what gets hashed, so the decoded form is only kept if encoding it again gives exactly the same text.
+     */
+    private static byte[] packSignatureBody(String encodedBody) {
+        int payloadEnd = encodedBody.indexOf('.');
+        try {
+            byte[] payload = Base64.getUrlDecoder().decode(encodedBody.substring(0, payloadEnd));
+            byte[] signature = Base64.getUrlDecoder().decode(encodedBody.substring(payloadEnd + 1));
+            if (payload.length > 0 && payload.length <= 255) {
+                byte[] packed = new byte[1 + payload.length + signature.length];
+                packed[0] = (byte) payload.length;
+                System.arraycopy(payload, 0, packed, 1, payload.length);
+                System.arraycopy(signature, 0, packed, 1 + payload.length, signature.length);
+                if (TrustBlock.unpackSignatureBody(packed).equals(encodedBody)) {
+                    return packed;
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            // Not strict base64url, so keep the text as it is
+        }
+        byte[] encoded = encodedBody.getBytes(StandardCharsets.US_ASCII);
+        byte[] packed = new byte[1 + encoded.length];
+        System.arraycopy(encoded, 0, packed, 1, encoded.length);
+        return packed;
+    }
+
+    private static String unpackSignatureBody(byte[] packed) {
+        int payloadLength = packed[0] & 0xFF;
+        if (payloadLength == 0) {
+            return new String(packed, 1, packed.length - 1, StandardCharsets.US_ASCII);
+        }
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        return encoder.encodeToString(Arrays.copyOfRange(packed, 1, 1 + payloadLength)) + "." + encoder.encodeToString(Arrays.copyOfRange(packed, 1 + payloadLength, packed.length));
+    }
+
+    public String getSerializedSignature() {
+        return this.signatureHeader + "." + TrustBlock.unpackSignatureBody(this.signatureBody);
     }
 
     public byte[] getHash() {
@@ -37,7 +94,7 @@ public class TrustBlock {
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException(e);
         }
-        byte[] signatureBytes = this.signature.serialize().getBytes(StandardCharsets.UTF_8);
+        byte[] signatureBytes = this.getSerializedSignature().getBytes(StandardCharsets.UTF_8);
         byte[] guarantorFqdnBytes = this.guarantorFqdn.getBytes(StandardCharsets.UTF_8);
         ByteBuffer bb = ByteBuffer.wrap(new byte[16 + signatureBytes.length + guarantorFqdnBytes.length]);
         bb.put(signatureBytes);
@@ -56,6 +113,9 @@ public class TrustBlock {
 
     public boolean offerPeerTrust(TrustBlock trustBlock) {
         if (trustBlock.getSignature().getPayload().toBytes().equals(getHash())) {
+            if (this.trustedBy == null) {
+                this.trustedBy = new ArrayList<>(1);
+            }
             this.trustedBy.add(trustBlock);
             return true;
         } else {
@@ -66,16 +126,23 @@ public class TrustBlock {
     public TrustBlock trust(GraphDatabase gdb) {
         JWSObject signature = gdb.signPayloadRaw(this.getHash());
         TrustBlock newBlock = new TrustBlock(gdb.getInstanceId(), gdb.getInstanceFqdn(), signature);
+        if (this.trustedBy == null) {
+            this.trustedBy = new ArrayList<>(1);
+        }
         this.trustedBy.add(newBlock);
         return newBlock;
     }
 
     public JWSObject getSignature() {
-        return this.signature;
+        try {
+            return JWSObject.parse(this.getSerializedSignature());
+        } catch (ParseException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     public static TrustBlock fromJson(JSONObject trustChain) throws ParseException {
-        JWSObject signature = JWSObject.parse(trustChain.getString("signature"));
+        String signature = trustChain.getString("signature");
         UUID guarantorId = UUID.fromString(trustChain.getString("guarantor_id"));
         String guarantorFqdn = trustChain.getString("guarantor_fqdn");
         TrustBlock trustBlock = new TrustBlock(guarantorId, guarantorFqdn, signature);
@@ -86,14 +153,42 @@ public class TrustBlock {
         return trustBlock;
     }
 
+    public static TrustBlock fromBinary(JournalDecoder input) throws IOException, ParseException {
+        String signature = input.readString();
+        UUID guarantorId = input.readDictionaryUuid();
+        String guarantorFqdn = input.readDictionaryString();
+        TrustBlock trustBlock = new TrustBlock(guarantorId, guarantorFqdn, signature);
+        int trustedByCount = input.readVarInt();
+        for (int i = 0; i < trustedByCount; i++) {
+            trustBlock.offerPeerTrust(TrustBlock.fromBinary(input));
+        }
+        return trustBlock;
+    }
+
+    public void toBinary(JournalEncoder output) throws IOException {
+        output.writeString(this.getSerializedSignature());
+        output.writeDictionaryUuid(this.guarantorId);
+        output.writeDictionaryString(this.guarantorFqdn);
+        if (this.trustedBy == null) {
+            output.writeVarInt(0);
+            return;
+        }
+        output.writeVarInt(this.trustedBy.size());
+        for (TrustBlock tb: trustedBy) {
+            tb.toBinary(output);
+        }
+    }
+
     public JSONObject toJson() {
         JSONArray trusts = new JSONArray();
         JSONObject out = new JSONObject();
-        for (TrustBlock tb: trustedBy) {
-            trusts.put(tb.toJson());
+        if (this.trustedBy != null) {
+            for (TrustBlock tb: trustedBy) {
+                trusts.put(tb.toJson());
+            }
         }
         out.put("trusted_by", trusts);
-        out.put("signature", this.signature.serialize());
+        out.put("signature", this.getSerializedSignature());
         out.put("guarantor_id", this.guarantorId);
         out.put("guarantor_fqdn", this.guarantorFqdn);
         return out;
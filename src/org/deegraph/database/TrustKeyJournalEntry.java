@@ -3,6 +3,7 @@ package org.deegraph.database;
 import com.nimbusds.jose.jwk.OctetKeyPair;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.text.ParseException;
 import java.util.UUID;
 
@@ -28,6 +29,21 @@ public class TrustKeyJournalEntry extends JournalEntry {
         return new TrustKeyJournalEntry(jwk, fqdn, actor);
     }
 
+    public static JournalEntry fromBinary(JournalDecoder input) throws IOException, ParseException {
+        UUID actor = input.readDictionaryUuid();
+        String fqdn = input.readDictionaryString();
+        OctetKeyPair jwk = OctetKeyPair.parse(input.readString());
+        return new TrustKeyJournalEntry(jwk, fqdn, actor);
+    }
+
+    @Override
+    public void asBinary(JournalEncoder output) throws IOException {
+        output.writeType(BINARY_TRUST_KEY);
+        output.writeDictionaryUuid(this.actor);
+        output.writeDictionaryString(this.instanceFQDN);
+        output.writeString(this.publicJWK.toJSONString());
+    }
+
     @Override
     public JSONObject asJson() {
         JSONObject out = new JSONObject();
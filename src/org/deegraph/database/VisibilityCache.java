@@ -0,0 +1,200 @@
+package org.deegraph.database;
+
+import java.util.*;
+
+/**
+ * Bounded least-recently-used cache of the set of nodes each actor can read, used to resolve ** paths.
+ * Each set remembers which candidate object made each node visible. When an edge, creator, deletion or new node changes
+ * what a rule can see from some objects, the database only logs those objects here - the next lookup for each actor
+ * works them out again and replaces its set, rather than every writer updating every cached set.
+ *
+ * Shared by every query thread. Cached sets are never changed once put, so a lookup can hand its set straight to a
+ * search space. Each set is put along with how far through the change log it was worked out, and dropped if the cache
+ * has been invalidated since, as the changes it would need to catch up on are no longer held.
+ */
+public class VisibilityCache {
+    private static final int MAX_CHANGES = 65536; // Beyond this many logged objects, sets that haven't caught up are dropped
+
+    private final int capacity;
+    private final LinkedHashMap<UUID, VisibleSet> entries;
+    private final ArrayList<Node> changes = new ArrayList<>(); // Candidate objects whose contributions may have changed, oldest first
+    private long changesStart = 0; // The position in the log of the first change still held
+    private long hits = 0;
+    private long misses = 0;
+    private long invalidations = 0;
+
+    public VisibilityCache(int capacity) {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) { // Access ordered, so the eldest entry is the least recently used
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UUID, VisibleSet> eldest) {
+                return size() > VisibilityCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * @return The actor's cached set, which may not have caught up with changedSince yet
+     */
+    public synchronized VisibleSet get(Node actor) {
+        if (this.capacity <= 0) {
+            return null;
+        }
+        VisibleSet visibleSet = this.entries.get(actor.getId());
+        if (visibleSet == null) {
+            this.misses++;
+            return null;
+        }
+        this.hits++;
+        return visibleSet;
+    }
+
+    /**
+     * @return The position in the change log to work a new set out through
+     */
+    public synchronized long getSequence() {
+        return this.changesStart + this.changes.size();
+    }
+
+    /**
+     * @return The candidates logged since the set was worked out, or null if they are no longer all held
+     */
+    public synchronized List<Node> changedSince(VisibleSet visibleSet) {
+        if (visibleSet.through < this.changesStart) {
+            return null;
+        }
+        return new ArrayList<>(this.changes.subList((int) (visibleSet.through - this.changesStart), this.changes.size()));
+    }
+
+    public synchronized void put(Node actor, VisibleSet visibleSet) {
+        if (this.capacity <= 0 || visibleSet.through < this.changesStart) {
+            return;
+        }
+        VisibleSet existing = this.entries.get(actor.getId());
+        if (existing != null && existing.through > visibleSet.through) { // Another lookup has already caught up further
+            return;
+        }
+        this.entries.put(actor.getId(), visibleSet);
+    }
+
+    /**
+     * Logs candidate objects whose contributions may have changed, for each cached set to work out again when next used.
+     */
+    public synchronized void changed(Collection<Node> candidates) {
+        this.changes.addAll(candidates);
+        if (this.entries.isEmpty()) {
+            this.trim(this.getSequence());
+        } else if (this.changes.size() > MAX_CHANGES) {
+            long oldest = Long.MAX_VALUE;
+            for (VisibleSet visibleSet : this.entries.values()) {
+                oldest = Math.min(oldest, visibleSet.through);
+            }
+            this.trim(oldest);
+            if (this.changes.size() > MAX_CHANGES) {
+                this.invalidate();
+            }
+        }
+    }
+
+    private void trim(long through) {
+        int count = (int) Math.min(through - this.changesStart, this.changes.size());
+        this.changes.subList(0, count).clear();
+        this.changesStart += count;
+    }
+
+    public synchronized void invalidate() {
+        this.changesStart += this.changes.size() + 1; // Skipped past the end, so no set worked out before now can be put
+        this.changes.clear();
+        if (!this.entries.isEmpty()) {
+            this.entries.clear();
+            this.invalidations++;
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    public synchronized int getSize() {
+        return this.entries.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * The nodes an actor can read, kept as the nodes each candidate object makes visible so that any one candidate can
+     * be worked out again on its own. Never changed once built - changes are made to a copy through a Builder.
+     */
+    public static final class VisibleSet {
+        private final HashMap<Node, Node[]> contributions;
+        private final Set<Node> nodes; // Every contribution together
+        private final long through; // How far through the change log this was worked out
+
+        private VisibleSet(HashMap<Node, Node[]> contributions, long through) {
+            this.contributions = contributions;
+            this.through = through;
+            this.nodes = SearchSpace.newNodeSet();
+            for (Node[] visible : contributions.values()) {
+                Collections.addAll(this.nodes, visible);
+            }
+        }
+
+        /**
+         * @return The nodes themselves, which must not be changed
+         */
+        public Set<Node> getNodes() {
+            return this.nodes;
+        }
+
+        public long getThrough() {
+            return this.through;
+        }
+
+        Builder toBuilder() {
+            return new Builder(new HashMap<>(this.contributions));
+        }
+    }
+
+    static final class Builder {
+        private final HashMap<Node, Node[]> contributions;
+
+        Builder() {
+            this(new HashMap<>());
+        }
+
+        private Builder(HashMap<Node, Node[]> contributions) {
+            this.contributions = contributions;
+        }
+
+        /**
+         * Adds to whatever the candidate already makes visible.
+         */
+        void add(Node candidate, Collection<Node> visible) {
+            Node[] existing = this.contributions.get(candidate);
+            if (existing != null) {
+                LinkedHashSet<Node> merged = new LinkedHashSet<>(Arrays.asList(existing));
+                merged.addAll(visible);
+                visible = merged;
+            }
+            this.contributions.put(candidate, visible.toArray(new Node[0]));
+        }
+
+        void remove(Node candidate) {
+            this.contributions.remove(candidate);
+        }
+
+        VisibleSet build(long through) {
+            return new VisibleSet(this.contributions, through);
+        }
+    }
+}
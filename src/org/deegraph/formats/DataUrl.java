@@ -4,6 +4,7 @@ import com.google.crypto.tink.subtle.Base64;
 
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 
@@ -11,6 +12,8 @@ public class DataUrl {
     byte[] binaryData;
     String stringData;
     String mimeType;
+    ByteBuffer bufferData; // Still encoded if encodedBuffer is set, otherwise the payload itself
+    boolean encodedBuffer;
 
     public DataUrl(String url) throws ParseException {
         if (url == null) {
@@ -29,11 +32,81 @@ public class DataUrl {
         }
     }
 
+    /**
+     * Reads a data URL from its UTF-8 text without copying it, leaving the payload to be decoded when it's first asked for.
+     */
+    public DataUrl(ByteBuffer url) throws ParseException {
+        int start = url.position();
+        if (url.remaining() < 5 || url.get(start) != 'd' || url.get(start + 1) != 'a' || url.get(start + 2) != 't' || url.get(start + 3) != 'a' || url.get(start + 4) != ':') {
+            throw new ParseException("Data URLs must start with data:", 0);
+        }
+        int comma = start + 5;
+        while (comma < url.limit() && url.get(comma) != ',') {
+            comma++;
+        }
+        if (comma == url.limit()) {
+            throw new ParseException("Data URLs must contain a comma", comma - start);
+        }
+        String header = StandardCharsets.UTF_8.decode(url.slice(start + 5, comma - start - 5)).toString();
+        this.bufferData = url.slice(comma + 1, url.limit() - comma - 1);
+        this.encodedBuffer = true;
+        if (header.indexOf(";base64") != -1) {
+            this.binaryData = new byte[0]; // Marks the payload as binary until it's decoded
+        }
+    }
+
+    /**
+     * Wraps a payload that has already been decoded, such as one held by the payload store.
+     *
+     * @param header Everything before the comma, including the data: prefix
+     */
+    public DataUrl(String header, ByteBuffer payload) {
+        this.bufferData = payload;
+        if (header.indexOf(";base64") != -1) {
+            this.binaryData = new byte[0];
+        }
+    }
+
+    private void decodeBuffer() {
+        if (this.bufferData == null) {
+            return;
+        }
+        if (this.encodedBuffer) {
+            String encoded = StandardCharsets.UTF_8.decode(this.bufferData.duplicate()).toString();
+            if (this.binaryData != null) {
+                this.binaryData = Base64.decode(encoded);
+            } else {
+                this.stringData = URLDecoder.decode(encoded, StandardCharsets.UTF_8);
+            }
+        } else {
+            byte[] bytes = new byte[this.bufferData.remaining()];
+            this.bufferData.duplicate().get(bytes);
+            if (this.binaryData != null) {
+                this.binaryData = bytes;
+            } else {
+                this.stringData = new String(bytes, StandardCharsets.UTF_8);
+            }
+        }
+        this.bufferData = null;
+    }
+
+    /**
+     * @return The decoded payload, which is a view of the original buffer rather than a copy where that's possible
+     */
+    public ByteBuffer getRawBuffer() {
+        if (this.bufferData != null && !this.encodedBuffer) {
+            return this.bufferData.duplicate();
+        }
+        byte[] rawData = this.getRawData();
+        return (rawData == null) ? null : ByteBuffer.wrap(rawData);
+    }
+
     public String getMimeType() {
         return mimeType;
     }
 
     public byte[] getRawData() {
+        this.decodeBuffer();
         if (this.binaryData != null) {
             return this.binaryData;
         } else {
@@ -49,6 +122,7 @@ public class DataUrl {
     }
 
     public String getStringData() {
+        this.decodeBuffer();
         if (this.binaryData != null) {
             return new String(this.binaryData, StandardCharsets.UTF_8);
         } else {
@@ -62,6 +136,7 @@ public class DataUrl {
 
     @Override
     public String toString() {
+        this.decodeBuffer();
         if (this.binaryData != null) {
             return Base64.encode(this.binaryData);
         } else {
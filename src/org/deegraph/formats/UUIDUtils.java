@@ -17,4 +17,26 @@ public class UUIDUtils {
         bb.putLong(uuid.getLeastSignificantBits());
         return bb.array();
     }
+
+    /**
+     * Parses an id written in braces, as paths write them, without going through a regular expression.
+     *
+     * @return The id, or null if the text isn't a braced id
+     */
+    public static UUID fromBraced(String text) {
+        if (text.length() != 38 || text.charAt(0) != '{' || text.charAt(37) != '}') {
+            return null;
+        }
+        for (int i = 1; i < 37; i++) {
+            char c = text.charAt(i);
+            if (i == 9 || i == 14 || i == 19 || i == 24) {
+                if (c != '-') {
+                    return null;
+                }
+            } else if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F'))) {
+                return null;
+            }
+        }
+        return UUID.fromString(text.substring(1, 37));
+    }
 }
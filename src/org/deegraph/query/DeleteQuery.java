@@ -3,8 +3,13 @@ package org.deegraph.query;
 import org.deegraph.database.*;
 
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
 
 public class DeleteQuery extends Query {
+    private ArrayList<UUID> deletedNodes = new ArrayList<>(); // What the path resolved to when the query ran, so replaying it doesn't depend on the graph at the time
+
     protected DeleteQuery(String src, Node actor) throws ParseException {
         super(src, actor);
     }
@@ -18,13 +23,14 @@ public class DeleteQuery extends Query {
             throw new ParseException("Empty DELETE query", 0);
         }
 
-        Node[] valueNodes = new RelativeNodePath(parsedQuery.poll()).getMatchingNodes(new SecurityContext(graphDatabase, this.actor), new NodePathContext(this.actor), graphDatabase.getAllNodesUnsafe());
+        Node[] valueNodes = new RelativeNodePath(parsedQuery.poll()).getMatchingNodes(new SecurityContext(graphDatabase, this.actor), new NodePathContext(this.actor), SearchSpace.EVERYTHING);
 
         boolean deleteFailed = false;
 
         for (Node node : valueNodes) {
             if (node.completeUnlink(new SecurityContext(graphDatabase, this.actor))) {
                 graphDatabase.unregisterNodeUnsafe(node); // Complete unlink will only work with delete perms
+                this.deletedNodes.add(node.getId());
             } else {
                 deleteFailed = true;
             }
@@ -32,4 +38,8 @@ public class DeleteQuery extends Query {
 
         return !deleteFailed;
     }
+
+    public List<UUID> getDeletedNodes() {
+        return deletedNodes;
+    }
 }
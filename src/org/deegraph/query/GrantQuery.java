@@ -7,11 +7,20 @@ import java.text.ParseException;
 import java.util.*;
 
 public class GrantQuery extends Query {
+    private AuthorizationRule grantedRule; // Set once the query has run successfully, so the rule itself can be journaled
+
     protected GrantQuery(String src, Node actor) throws ParseException {
         super(src, actor);
     }
 
     public UUID runGrantQuery(GraphDatabase graphDatabase) throws ParseException, NoSuchMethodException {
+        return this.runGrantQuery(graphDatabase, UUID.randomUUID());
+    }
+
+    /**
+     * Registers the rule under a known id, for rules being restored rather than newly granted.
+     */
+    public UUID runGrantQuery(GraphDatabase graphDatabase, UUID ruleId) throws ParseException, NoSuchMethodException {
         if (this.queryType != QueryType.GRANT) {
             throw new NoSuchMethodException();
         }
@@ -45,6 +54,7 @@ public class GrantQuery extends Query {
             escape = !(current.trim().equals(","));
         }
         Condition condition = null;
+        List<String> conditionComponents = null;
         ArrayList<RelativeNodePath> validFor = new ArrayList<>();
         escape = false;
         boolean delegatable = false;
@@ -56,7 +66,9 @@ public class GrantQuery extends Query {
                     validFor.add(fromRelPath);
                     break;
                 case "WHERE":
-                    condition = parseConditionFromRemaining(graphDatabase);
+                    LinkedList<String> components = takeConditionFromRemaining();
+                    conditionComponents = List.copyOf(components); // Parsing the condition consumes the list
+                    condition = Condition.fromComponents(graphDatabase, components);
                     break;
                 case "DELEGATABLE":
                     delegatable = true;
@@ -70,10 +82,12 @@ public class GrantQuery extends Query {
             }
         }
 
-        AuthorizationRule rule = new AuthorizationRule(validFor.toArray(new RelativeNodePath[0]), condition, actions.toArray(new AuthorizedAction[0]), delegatable);
+        AuthorizationRule rule = new AuthorizationRule(validFor.toArray(new RelativeNodePath[0]), condition, actions.toArray(new AuthorizedAction[0]), delegatable, ruleId, conditionComponents);
         List<AuthorizedAction> authorizedActions = Arrays.asList(graphDatabase.getPermsOnNode(this.actor, graphDatabase.getNodeUnsafe(graphDatabase.getInstanceId())));
         if (authorizedActions.contains(AuthorizedAction.ACT)) { // Only allow users who have permissions to act as the instance (root) node to write permissions
+            rule.compile();
             graphDatabase.registerRule(rule);
+            this.grantedRule = rule;
             return rule.getUuid();
         } else {
             return null;
@@ -81,4 +95,8 @@ public class GrantQuery extends Query {
 
         //condition.eval(new NodePathContext(this.actor, object));
     }
+
+    public AuthorizationRule getGrantedRule() {
+        return grantedRule;
+    }
 }
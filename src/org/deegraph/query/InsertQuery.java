@@ -169,14 +169,11 @@ public class InsertQuery extends Query {
                 }
                 if ((!key.equals("#")) && node.hasProperty(new SecurityContext(graphDatabase, this.actor), key)) {
                     if (replace) {
-                        node.removeProperty(new SecurityContext(graphDatabase, this.actor), key);
-                        graphDatabase.getOpenJournal().registerEntry(new RemoveRelationJournalEntry(this.actor, node, key));
-                        node.addProperty(new SecurityContext(graphDatabase, this.actor), key, newNode);
-                        graphDatabase.getOpenJournal().registerEntry(new AddRelationJournalEntry(this.actor, node, key, newNode));
+                        node.removePropertyAndJournal(new SecurityContext(graphDatabase, this.actor), key);
+                        node.addPropertyAndJournal(new SecurityContext(graphDatabase, this.actor), key, newNode, false);
                     }
                 } else {
-                    node.addProperty(new SecurityContext(graphDatabase, this.actor), key, newNode);
-                    graphDatabase.getOpenJournal().registerEntry(new AddRelationJournalEntry(this.actor, node, key, newNode));
+                    node.addPropertyAndJournal(new SecurityContext(graphDatabase, this.actor), key, newNode, false); // Journals the index "#" resolved to, so replay lands in the same place
                 }
             }
         }
@@ -29,7 +29,7 @@ public class LinkQuery extends Query {
         boolean overwrite = false;
         String linkName = "#"; // Wildcard for inserting at the next available numbered property
         String toName = "";
-        Node[] valueNodes = new RelativeNodePath(current).getMatchingNodes(new SecurityContext(graphDatabase, this.actor), new NodePathContext(this.actor), graphDatabase.getAllNodesUnsafe());
+        Node[] valueNodes = new RelativeNodePath(current).getMatchingNodes(new SecurityContext(graphDatabase, this.actor), new NodePathContext(this.actor), SearchSpace.EVERYTHING);
         Node valueNode = (valueNodes.length == 1) ? valueNodes[0] : null;
         Node toNode = null;
         current = parsedQuery.poll();
@@ -69,7 +69,7 @@ public class LinkQuery extends Query {
 
         RelativeNodePath fromRelPath = new RelativeNodePath(toName);
         if (fromRelPath != null) {
-            Node[] toNodes = fromRelPath.getMatchingNodes(new SecurityContext(graphDatabase, this.actor), new NodePathContext(this.actor), graphDatabase.getAllNodesUnsafe());
+            Node[] toNodes = fromRelPath.getMatchingNodes(new SecurityContext(graphDatabase, this.actor), new NodePathContext(this.actor), SearchSpace.EVERYTHING);
             toNode = (toNodes.length == 1) ? toNodes[0] : null;
         } else {
             throw new RuntimeException("Error parsing '" + toName + "' as path") ;
@@ -83,8 +83,7 @@ public class LinkQuery extends Query {
             throw new QueryException(QueryExceptionCode.MISSING_SUBJECT);
         }
 
-        String parsedLinkName = toNode.addProperty(new SecurityContext(graphDatabase, this.actor), linkName, valueNode, overwrite);
-        graphDatabase.getOpenJournal().registerEntry(new AddRelationJournalEntry(this.actor, toNode, parsedLinkName, valueNode));
+        toNode.addPropertyAndJournal(new SecurityContext(graphDatabase, this.actor), linkName, valueNode, overwrite);
         //System.out.println("Attempting link");
 
         return true;
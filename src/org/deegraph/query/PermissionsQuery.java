@@ -37,7 +37,7 @@ public class PermissionsQuery extends Query {
                     String fromStrPath = parsedQuery.poll();
                     RelativeNodePath fromRelPath = new RelativeNodePath(fromStrPath);
                     if (fromRelPath != null) {
-                        Node[] asNodes = fromRelPath.getMatchingNodes(new SecurityContext(graphDatabase, this.actor), new NodePathContext(this.actor), graphDatabase.getAllNodesUnsafe());
+                        Node[] asNodes = fromRelPath.getMatchingNodes(new SecurityContext(graphDatabase, this.actor), new NodePathContext(this.actor), SearchSpace.EVERYTHING);
                         asNode = (asNodes.length == 1) ? asNodes[0] : null;
                     } else {
                         throw new RuntimeException("Error parsing '" + fromStrPath + "' as path");
@@ -56,7 +56,7 @@ public class PermissionsQuery extends Query {
         if (onNodePath != null) {
             RelativeNodePath fromRelPath = new RelativeNodePath(onNodePath);
             if (fromRelPath != null) {
-                Node[] onNodes = fromRelPath.getMatchingNodes(new SecurityContext(graphDatabase, this.actor), new NodePathContext(asNode, null, this.actor), graphDatabase.getAllNodesUnsafe());
+                Node[] onNodes = fromRelPath.getMatchingNodes(new SecurityContext(graphDatabase, this.actor), new NodePathContext(asNode, null, this.actor), SearchSpace.EVERYTHING);
                 onNode = (onNodes.length == 1) ? onNodes[0] : null;
             } else {
                 throw new RuntimeException("Error parsing '" + onNodePath + "' as path");
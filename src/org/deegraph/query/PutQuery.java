@@ -90,7 +90,7 @@ public class PutQuery extends Query {
             }
             RelativeNodePath intoRelPath = new RelativeNodePath(into);
             if (intoRelPath != null) {
-                Node[] toNodes = intoRelPath.getMatchingNodes(new SecurityContext(graphDatabase, this.actor), new NodePathContext(this.actor), graphDatabase.getAllNodesUnsafe());
+                Node[] toNodes = intoRelPath.getMatchingNodes(new SecurityContext(graphDatabase, this.actor), new NodePathContext(this.actor), SearchSpace.EVERYTHING);
                 if (toNodes.length == 1) {
                     if (toNodes[0].hasProperty(new SecurityContext(graphDatabase, this.actor), as)) {
                         if (overwrite) {
@@ -103,11 +103,10 @@ public class PutQuery extends Query {
                     }
                     Node newNode = graphDatabase.newNode(data, this.actor, schema);
                     try {
-                        toNodes[0].addProperty(new SecurityContext(graphDatabase, this.actor), as, newNode, overwrite);
+                        toNodes[0].addPropertyAndJournal(new SecurityContext(graphDatabase, this.actor), as, newNode, overwrite);
                     } catch (DuplicatePropertyException e) {
                         throw new RuntimeException("Possible race condition in safe property store, bailing out");
                     }
-                    graphDatabase.getOpenJournal().registerEntry(new AddRelationJournalEntry(this.actor, toNodes[0], as, newNode));
                     return newNode;
                 }
             } else {
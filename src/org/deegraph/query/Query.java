@@ -188,6 +188,13 @@ public class Query {
     }
 
     protected Condition parseConditionFromRemaining(GraphDatabase graphDatabase) {
+        return Condition.fromComponents(graphDatabase, this.takeConditionFromRemaining());
+    }
+
+    /**
+     * Takes the tokens making up the condition at the head of the query, without parsing them.
+     */
+    protected LinkedList<String> takeConditionFromRemaining() {
         LinkedList<String> conditionElements = new LinkedList<>();
         boolean escape = false;
         String current;
@@ -255,7 +262,7 @@ public class Query {
         if (bracketLevel != 0) { // We should only ever consider the conditions to be over once we're at the same bracket level we started at - this is a syntax error!
             new ParseException("Parse error on WHILE condition", 0);
         }
-        return Condition.fromComponents(graphDatabase, conditionElements);
+        return conditionElements;
     }
 
     public QueryType getQueryType() {
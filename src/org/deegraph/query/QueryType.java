@@ -10,5 +10,13 @@ public enum QueryType {
     PUT,
     DIRECTORY,
     REFERENCES,
-    SELECT_NODE, PERMISSIONS
+    SELECT_NODE, PERMISSIONS;
+
+    /**
+     * @return Whether queries of this type have to run with no other query running - GRANT changes what every actor
+     * can see, and DELETE unlinks nodes from every node referring to them
+     */
+    public boolean isExclusive() {
+        return this == GRANT || this == DELETE;
+    }
 }
@@ -3,6 +3,7 @@ package org.deegraph.query;
 import org.deegraph.database.*;
 
 import java.text.ParseException;
+import java.util.Locale;
 import java.util.Map;
 
 public class ReferencesQuery extends Query {
@@ -10,7 +11,14 @@ public class ReferencesQuery extends Query {
         super(src, actor);
     }
 
-    public Map<String, Node[]> runReferencesQuery(GraphDatabase graphDatabase) throws NoSuchMethodException, QueryException {
+    /**
+     * @return Whether the query ends in COUNT, asking only how many nodes refer to the subject under each name
+     */
+    public boolean isCountQuery() {
+        return this.parsedQuery.size() > 1 && this.parsedQuery.getLast().toUpperCase(Locale.ROOT).equals("COUNT");
+    }
+
+    private Node resolveSubject(GraphDatabase graphDatabase) throws NoSuchMethodException, QueryException {
         if (this.queryType != QueryType.REFERENCES) {
             throw new NoSuchMethodException();
         }
@@ -19,13 +27,28 @@ public class ReferencesQuery extends Query {
             parsedQuery.offer(".");
         }
 
-        Node[] valueNodes = new RelativeNodePath(parsedQuery.poll()).getMatchingNodes(new SecurityContext(graphDatabase, this.actor), new NodePathContext(this.actor), graphDatabase.getAllNodesUnsafe());
+        Node[] valueNodes = new RelativeNodePath(parsedQuery.poll()).getMatchingNodes(new SecurityContext(graphDatabase, this.actor), new NodePathContext(this.actor), SearchSpace.EVERYTHING);
         Node valueNode = (valueNodes.length == 1) ? valueNodes[0] : null;
 
+        String current = parsedQuery.poll();
+        while (current != null && current.length() > 0) {
+            if (!current.toUpperCase(Locale.ROOT).equals("COUNT")) {
+                throw new QueryException(QueryExceptionCode.INVALID_CONTROL_WORD, "'" + current + "' is not a valid control word");
+            }
+            current = parsedQuery.poll();
+        }
+
         if (valueNode == null) {
             throw new QueryException(QueryExceptionCode.MISSING_SUBJECT);
         }
+        return valueNode;
+    }
+
+    public Map<String, Node[]> runReferencesQuery(GraphDatabase graphDatabase) throws NoSuchMethodException, QueryException {
+        return this.resolveSubject(graphDatabase).getAllReferrers(new SecurityContext(graphDatabase, this.actor));
+    }
 
-        return valueNode.getAllReferrers(new SecurityContext(graphDatabase, this.actor));
+    public Map<String, Integer> runReferencesCountQuery(GraphDatabase graphDatabase) throws NoSuchMethodException, QueryException {
+        return this.resolveSubject(graphDatabase).countAllReferrers(new SecurityContext(graphDatabase, this.actor));
     }
 }
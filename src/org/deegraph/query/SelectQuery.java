@@ -8,6 +8,7 @@ import org.deegraph.formats.TypeCoercionUtilities;
 
 import java.text.ParseException;
 import java.util.*;
+import java.util.function.Predicate;
 
 import static org.deegraph.database.NodePath.metaProp;
 
@@ -21,7 +22,7 @@ public class SelectQuery extends Query {
             throw new NoSuchMethodException();
         }
 
-        SecurityContext securityContext = new SecurityContext(graphDatabase, this.actor);
+        SecurityContext securityContext = new SecurityContext(graphDatabase, this.actor, new PathResolutionCache()); // Candidates are resolved again for every filter and property
         ArrayList<String> requestedProperties = new ArrayList<>();
         boolean escape = false;
         String current = null;
@@ -42,7 +43,8 @@ public class SelectQuery extends Query {
         String fromLimit = null;
         String orderBy = null;
         boolean descending = false;
-        List<AbsoluteNodePath> candidateNodes = null;
+        int limit = -1; // No limit
+        int offset = 0;
         escape = (current == null);
         while (!escape) {
             switch (current.toUpperCase(Locale.ROOT)) {
@@ -58,6 +60,12 @@ public class SelectQuery extends Query {
                 case "DESC":
                     descending = true;
                     break;
+                case "LIMIT":
+                    limit = SelectQuery.parseCount(parsedQuery.poll(), "LIMIT");
+                    break;
+                case "OFFSET":
+                    offset = SelectQuery.parseCount(parsedQuery.poll(), "OFFSET");
+                    break;
                 case "WHERE":
                     condition = parseConditionFromRemaining(graphDatabase);
                     break;
@@ -72,18 +80,13 @@ public class SelectQuery extends Query {
 
 
 
-        List<Map<String, Tuple<String, String>>> output = new ArrayList<>();
-
+        // Rows are pulled one candidate at a time through scan, filter and project, so only as much of the scan as the
+        // LIMIT needs is ever done
+        Iterator<AbsoluteNodePath> candidates;
         if (fromLimit == null) {
-            candidateNodes = new ArrayList<>();
-            candidateNodes.add(new AbsoluteNodePath("{" + this.actor.getId() + "}"));
+            candidates = Collections.singletonList(new AbsoluteNodePath("{" + this.actor.getId() + "}")).iterator();
         } else {
-            RelativeNodePath fromRelPath = new RelativeNodePath(fromLimit);
-            if (fromRelPath != null) {
-                candidateNodes = fromRelPath.getMatchingPathMap(securityContext, new NodePathContext(this.actor, this.actor), null);
-            } else {
-                throw new RuntimeException("Error parsing '" + fromLimit + "' as path") ;
-            }
+            candidates = new RelativeNodePath(fromLimit).iterateMatchingPaths(securityContext, new NodePathContext(this.actor, this.actor), null);
         }
 
         if (schemaLimits.size() > 0) { // Filter by INSTANCEOF first, as it's quite a cheap operation
@@ -93,54 +96,104 @@ public class SelectQuery extends Query {
                     validSchemas.add(schemaLimit.substring(1, schemaLimit.length() - 1));
                 }
             }
-            List<AbsoluteNodePath> newCandidates = new ArrayList<>();
-            for (AbsoluteNodePath candidate : candidateNodes) {
-                if (validSchemas.contains(candidate.getNode(securityContext).getSchema())) {
-                    newCandidates.add(candidate);
-                }
-            }
-            candidateNodes = newCandidates;
-            //System.out.println("Found " + candidateNodes.size() + " nodes that match schema");
+            candidates = SelectQuery.filter(candidates, candidate -> {
+                Node node = candidate.getNode(securityContext);
+                return node != null && validSchemas.contains(node.getSchema());
+            });
         }
 
         if (condition != null) {
-            List<AbsoluteNodePath> newCandidates = new ArrayList<>();
-            for (AbsoluteNodePath candidate : candidateNodes) {
-                if (condition.eval(securityContext, new NodePathContext(this.actor, candidate.getNode(securityContext)))) {
-                    newCandidates.add(candidate);
-                }
-            }
-            candidateNodes = newCandidates;
+            Condition whereCondition = condition;
+            candidates = SelectQuery.filter(candidates, candidate -> whereCondition.eval(securityContext, new NodePathContext(this.actor, candidate.getNode(securityContext))));
         }
 
-        for (AbsoluteNodePath candidate : candidateNodes) { // Expand the output to provide every node
-            Map<String, Tuple<String, String>> resultRepresentation = new HashMap<>();
-            for (String property : requestedProperties) {
-                List<AbsoluteNodePath> matches = new RelativeNodePath(property).getMatchingPathMap(securityContext, new NodePathContext(this.actor, candidate), null);
-                //resultRepresentation.put(property, matches);
-                for (AbsoluteNodePath match : matches) {
-                    String path = match.toString();
-                    String[] propertyComponents = property.split("/");
-                    String[] pathComponents = path.split("/");
-                    for (int i = propertyComponents.length-1; i >= 0; i--) {
-                        if (propertyComponents[i].equals("*") || propertyComponents[i].equals("#")) {
-                            propertyComponents[i] = pathComponents[i + (pathComponents.length - propertyComponents.length)];
-                        }
-                    }
-                    String bin = String.join("/", propertyComponents);
-                    String value = match.eval(new SecurityContext(graphDatabase, this.actor));
-                    resultRepresentation.put(bin, new Tuple<>(path, value));
-                }
+        // DESC returns the rows in reverse, so the whole scan is needed - but only the last OFFSET + LIMIT rows are kept
+        long wanted = (limit < 0) ? -1 : (descending ? (long) offset + limit : limit); // As a long, as OFFSET + LIMIT can pass Integer.MAX_VALUE
+        ArrayDeque<Map<String, Tuple<String, String>>> rows = new ArrayDeque<>();
+        int skipped = 0;
+        while (candidates.hasNext() && (descending || wanted < 0 || rows.size() < wanted)) {
+            Map<String, Tuple<String, String>> row = this.project(securityContext, candidates.next(), requestedProperties);
+            if (row.isEmpty()) {
+                continue;
             }
-            if (!resultRepresentation.isEmpty()) {
-                output.add(resultRepresentation);
+            if (!descending && skipped < offset) {
+                skipped++;
+                continue;
+            }
+            rows.add(row);
+            if (descending && wanted >= 0 && rows.size() > wanted) {
+                rows.poll();
             }
         }
 
+        List<Map<String, Tuple<String, String>>> output = new ArrayList<>(rows);
         if (descending) {
             Collections.reverse(output);
+            output = output.subList(Math.min(offset, output.size()), output.size());
         }
         return output;
     }
 
+    /**
+     * Expands one candidate into its row, binning each match under the requested property with any * or # filled in.
+     */
+    private Map<String, Tuple<String, String>> project(SecurityContext securityContext, AbsoluteNodePath candidate, List<String> requestedProperties) throws InvalidMetaPropertyException {
+        Map<String, Tuple<String, String>> resultRepresentation = new HashMap<>();
+        for (String property : requestedProperties) {
+            List<AbsoluteNodePath> matches = new RelativeNodePath(property).getMatchingPathMap(securityContext, new NodePathContext(this.actor, candidate), null);
+            for (AbsoluteNodePath match : matches) {
+                String path = match.toString();
+                String[] propertyComponents = property.split("/");
+                String[] pathComponents = path.split("/");
+                for (int i = propertyComponents.length-1; i >= 0; i--) {
+                    if (propertyComponents[i].equals("*") || propertyComponents[i].equals("#")) {
+                        propertyComponents[i] = pathComponents[i + (pathComponents.length - propertyComponents.length)];
+                    }
+                }
+                String bin = String.join("/", propertyComponents);
+                String value = match.eval(securityContext);
+                resultRepresentation.put(bin, new Tuple<>(path, value));
+            }
+        }
+        return resultRepresentation;
+    }
+
+    private static Iterator<AbsoluteNodePath> filter(Iterator<AbsoluteNodePath> source, Predicate<AbsoluteNodePath> test) {
+        return new Iterator<AbsoluteNodePath>() {
+            private AbsoluteNodePath next = null;
+
+            @Override
+            public boolean hasNext() {
+                while (this.next == null && source.hasNext()) {
+                    AbsoluteNodePath candidate = source.next();
+                    if (test.test(candidate)) {
+                        this.next = candidate;
+                    }
+                }
+                return this.next != null;
+            }
+
+            @Override
+            public AbsoluteNodePath next() {
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                AbsoluteNodePath candidate = this.next;
+                this.next = null;
+                return candidate;
+            }
+        };
+    }
+
+    private static int parseCount(String value, String keyword) throws ParseException {
+        try {
+            int count = Integer.parseInt((value == null) ? "" : value.trim());
+            if (count >= 0) {
+                return count;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new ParseException("'" + value + "' is not a valid " + keyword + " count", 0);
+    }
 }
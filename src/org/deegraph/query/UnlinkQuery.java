@@ -5,7 +5,7 @@ import org.deegraph.exceptions.ClosedJournalException;
 import org.deegraph.exceptions.DuplicatePropertyException;
 
 import java.text.ParseException;
-import java.util.HashMap;
+import java.util.Map;
 import java.util.Locale;
 
 public class UnlinkQuery extends Query {
@@ -35,7 +35,7 @@ public class UnlinkQuery extends Query {
                     String fromStrPath = parsedQuery.poll();
                     RelativeNodePath fromRelPath = new RelativeNodePath(fromStrPath);
                     if (fromRelPath != null) {
-                        Node[] parentNodes = fromRelPath.getMatchingNodes(new SecurityContext(graphDatabase, this.actor), new NodePathContext(this.actor), graphDatabase.getAllNodesUnsafe());
+                        Node[] parentNodes = fromRelPath.getMatchingNodes(new SecurityContext(graphDatabase, this.actor), new NodePathContext(this.actor), SearchSpace.EVERYTHING);
                         parentNode = (parentNodes.length == 1) ? parentNodes[0] : null;
                     } else {
                         throw new RuntimeException("Error parsing '" + fromStrPath + "' as path") ;
@@ -56,7 +56,7 @@ public class UnlinkQuery extends Query {
 
         RelativeNodePath fromRelPath = new RelativeNodePath(firstString);
         if (fromRelPath != null) {
-            Node[] parentNodes = fromRelPath.getMatchingNodes(new SecurityContext(graphDatabase, this.actor), new NodePathContext(this.actor, parentNode), graphDatabase.getAllNodesUnsafe());
+            Node[] parentNodes = fromRelPath.getMatchingNodes(new SecurityContext(graphDatabase, this.actor), new NodePathContext(this.actor, parentNode), SearchSpace.EVERYTHING);
             childNode = (parentNodes.length == 1) ? parentNodes[0] : null;
         } else {
             throw new RuntimeException("Error parsing '" + firstString + "' as path") ;
@@ -66,20 +66,17 @@ public class UnlinkQuery extends Query {
         }
 
         if (parentNode.hasProperty(new SecurityContext(graphDatabase, this.actor), firstString)) {
-            if (parentNode.removeProperty(new SecurityContext(graphDatabase, this.actor), firstString)) {
-                graphDatabase.getOpenJournal().registerEntry(new RemoveRelationJournalEntry(this.actor, parentNode, firstString));
+            if (parentNode.removePropertyAndJournal(new SecurityContext(graphDatabase, this.actor), firstString)) {
                 return true;
             } else {
                 return false;
             }
         } else {
             boolean oneFound = false;
-            HashMap<String, Node> props = parentNode.getProperties(new SecurityContext(graphDatabase, this.actor));
-            for (String key : props.keySet()) {
+            Map<String, Node> props = parentNode.getProperties(new SecurityContext(graphDatabase, this.actor));
+            for (String key : props.keySet().toArray(new String[0])) { // Copied, as we remove as we go
                 if (props.get(key).equals(childNode)) {
-                    if (parentNode.removeProperty(new SecurityContext(graphDatabase, this.actor), firstString)) {
-                        graphDatabase.getOpenJournal().registerEntry(new RemoveRelationJournalEntry(this.actor, parentNode, firstString));
-                    }
+                    parentNode.removePropertyAndJournal(new SecurityContext(graphDatabase, this.actor), firstString);
                     oneFound = true;
                 }
             }
@@ -19,6 +19,7 @@ import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.locks.Lock;
 
 public class APIHandlerV1 implements HttpHandler {
     private GraphDatabase graphDatabase;
@@ -81,7 +82,13 @@ public class APIHandlerV1 implements HttpHandler {
         DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'"); // Quoted "Z" to indicate UTC, no timezone offset
         df.setTimeZone(tz);
 
+        Lock requestLock = null; // Held until the response is built, so nothing it reads is deleted from under it
         try {
+            if (requestPath.length == 0 || !requestPath[0].equals("@query")) { // Queries take the lock their type needs once parsed
+                Lock sharedLock = this.graphDatabase.getSharedLock();
+                sharedLock.lock();
+                requestLock = sharedLock;
+            }
             String authMethod = httpsExchange.getRequestHeaders().getFirst("Authorization");
             String loginNodeId = httpsExchange.getRequestHeaders().getFirst("X-Auxilium-Actor");
             Node userNode = (loginNodeId == null) ? null : this.graphDatabase.getNodeUnsafe(UUID.fromString(loginNodeId));
@@ -147,6 +154,10 @@ public class APIHandlerV1 implements HttpHandler {
 
                                 System.out.println("QUERY \"" + queryText.trim() + "\" AS " + ((userNode == null) ? "Nothing" : userNode.getId()));
 
+                                Lock queryLock = this.graphDatabase.getQueryLock(query.getQueryType());
+                                queryLock.lock();
+                                requestLock = queryLock;
+
                                 switch (query.getQueryType()) {
                                     case GRANT: {
                                         UUID ruleId = ((GrantQuery) query).runGrantQuery(this.graphDatabase);
@@ -268,6 +279,10 @@ public class APIHandlerV1 implements HttpHandler {
                                         break;
                                     }
                                     case REFERENCES: {
+                                        if (((ReferencesQuery) query).isCountQuery()) {
+                                            response.put("@counts", new JSONObject(((ReferencesQuery) query).runReferencesCountQuery(this.graphDatabase)));
+                                            break;
+                                        }
                                         Map<String, Node[]> listMap = ((ReferencesQuery) query).runReferencesQuery(this.graphDatabase);
                                         JSONObject nodeList = new JSONObject();
                                         for (String key : listMap.keySet()) {
@@ -312,6 +327,26 @@ public class APIHandlerV1 implements HttpHandler {
                                 keyListJSON.put(key.toJSONObject());
                             }
                             response.put("@public_keys", keyListJSON);
+                            PermissionCache permissionCache = this.graphDatabase.getPermissionCache();
+                            JSONObject permissionCacheStats = new JSONObject();
+                            permissionCacheStats.put("hits", permissionCache.getHits());
+                            permissionCacheStats.put("misses", permissionCache.getMisses());
+                            permissionCacheStats.put("invalidations", permissionCache.getInvalidations());
+                            permissionCacheStats.put("size", permissionCache.getSize());
+                            permissionCacheStats.put("capacity", permissionCache.getCapacity());
+                            response.put("@permission_cache", permissionCacheStats);
+                            VisibilityCache visibilityCache = this.graphDatabase.getVisibilityCache();
+                            JSONObject visibilityCacheStats = new JSONObject();
+                            visibilityCacheStats.put("hits", visibilityCache.getHits());
+                            visibilityCacheStats.put("misses", visibilityCache.getMisses());
+                            visibilityCacheStats.put("invalidations", visibilityCache.getInvalidations());
+                            visibilityCacheStats.put("size", visibilityCache.getSize());
+                            visibilityCacheStats.put("capacity", visibilityCache.getCapacity());
+                            response.put("@visibility_cache", visibilityCacheStats);
+                            JSONObject ruleIndexStats = new JSONObject();
+                            ruleIndexStats.put("rules", this.graphDatabase.getAuthorizationRuleIndex().getSize());
+                            ruleIndexStats.put("unindexed", this.graphDatabase.getAuthorizationRuleIndex().getUnindexedCount());
+                            response.put("@authorization_rules", ruleIndexStats);
                             break;
                         default:
                             response.put("@error", "EndpointNotFound");
@@ -368,6 +403,10 @@ public class APIHandlerV1 implements HttpHandler {
             response.put("@error", "UnhandledException");
             response.put("@trace", sw.toString().replaceAll("\t", "    ").split("\n"));
             responseCode = 500;
+        } finally {
+            if (requestLock != null) {
+                requestLock.unlock();
+            }
         }
 
         byte[] responseRaw = response.toString(4).getBytes();
@@ -1,16 +1,53 @@
 package org.deegraph.tests;
 
+import org.deegraph.conditions.CompiledLiteral;
+import org.deegraph.conditions.Condition;
 import org.deegraph.database.*;
+import org.deegraph.exceptions.ClosedJournalException;
 import org.deegraph.exceptions.DuplicatePropertyException;
+import org.deegraph.exceptions.InvalidMetaPropertyException;
 import org.deegraph.exceptions.UnvalidatedJournalSegment;
+import org.deegraph.formats.Tuple;
+import org.deegraph.query.DeleteQuery;
 import org.deegraph.query.GrantQuery;
 import org.deegraph.query.Query;
+import org.deegraph.query.QueryException;
+import org.deegraph.query.QueryType;
+import org.deegraph.query.ReferencesQuery;
+import org.deegraph.query.SelectQuery;
 import org.junit.jupiter.api.Test;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class BasicTests {
 
@@ -28,13 +65,13 @@ public class BasicTests {
         nodeB.addProperty(new SecurityContext(gdb, actor), "substance" ,nodeD);
 
         RelativeNodePath rnp = new RelativeNodePath("{" + nodeB.getId() + "}/topping");
-        Node[] allNodes = rnp.getMatchingNodes(new SecurityContext(gdb, actor), new NodePathContext(actor), gdb.getAllNodesUnsafe());
+        Node[] allNodes = rnp.getMatchingNodes(new SecurityContext(gdb, actor), new NodePathContext(actor), SearchSpace.EVERYTHING);
         for (Node node: allNodes) {
             assertEquals(node.getData(new SecurityContext(gdb, actor)), "beans");
         }
 
         rnp = new RelativeNodePath("{" + nodeB.getId() + "}/substance");
-        allNodes = rnp.getMatchingNodes(new SecurityContext(gdb, actor), new NodePathContext(actor), gdb.getAllNodesUnsafe());
+        allNodes = rnp.getMatchingNodes(new SecurityContext(gdb, actor), new NodePathContext(actor), SearchSpace.EVERYTHING);
         for (Node node: allNodes) {
             assertEquals(node.getData(new SecurityContext(gdb, actor)), "toast");
         }
@@ -44,15 +81,757 @@ public class BasicTests {
         gdb = TestUtilities.reloadTestDb();
 
         rnp = new RelativeNodePath("{" + nodeB.getId() + "}/topping");
-        allNodes = rnp.getMatchingNodes(new SecurityContext(gdb, actor), new NodePathContext(actor), gdb.getAllNodesUnsafe());
+        allNodes = rnp.getMatchingNodes(new SecurityContext(gdb, actor), new NodePathContext(actor), SearchSpace.EVERYTHING);
         for (Node node: allNodes) {
             assertEquals(node.getData(new SecurityContext(gdb, actor)), "beans");
         }
 
         rnp = new RelativeNodePath("{" + nodeB.getId() + "}/substance");
-        allNodes = rnp.getMatchingNodes(new SecurityContext(gdb, actor), new NodePathContext(actor), gdb.getAllNodesUnsafe());
+        allNodes = rnp.getMatchingNodes(new SecurityContext(gdb, actor), new NodePathContext(actor), SearchSpace.EVERYTHING);
         for (Node node: allNodes) {
             assertEquals(node.getData(new SecurityContext(gdb, actor)), "toast");
         }
     }
+
+    @Test
+    public void binaryJournalRoundTrip() throws UnvalidatedJournalSegment, IOException, DuplicatePropertyException, ParseException, NoSuchMethodException, ClosedJournalException {
+        GraphDatabase gdb = TestUtilities.initTestDb();
+        gdb.shutdown(); // Leaves a JSON segment behind, which must still load alongside binary ones
+
+        String binaryConfig = TestUtilities.writeTestConfig("journal_format", "binary");
+        gdb = new GraphDatabase(binaryConfig, true);
+        Node root = gdb.getInstanceNode();
+        GrantQuery grantQuery = (GrantQuery) Query.fromString("GRANT READ WHERE @creator === /", root);
+        grantQuery.runGrantQuery(gdb);
+        gdb.recordQuery(grantQuery);
+        Node actor = gdb.newNode(null, root, null);
+        Node list = gdb.newNode("list", actor, "schema:example");
+        Node first = gdb.newNode("data:text/plain,first", actor, "schema:example");
+        Node second = gdb.newNode("data:text/plain,second", actor, "schema:example");
+        list.addPropertyUnsafe("0", first);
+        gdb.getOpenJournal().registerEntry(new AddRelationJournalEntry(root, list, "0", first));
+        list.addPropertyUnsafe("1", second);
+        gdb.getOpenJournal().registerEntry(new AddRelationJournalEntry(root, list, "1", second));
+        list.removePropertyUnsafe("1");
+        gdb.getOpenJournal().registerEntry(new RemoveRelationJournalEntry(root, list, "1"));
+        gdb.shutdown();
+
+        gdb = new GraphDatabase(binaryConfig, true);
+        Node reloadedList = gdb.getNodeUnsafe(list.getId());
+        assertEquals("list", reloadedList.getDataUnsafe());
+        assertEquals("schema:example", reloadedList.getSchema());
+        assertEquals(first.getId(), reloadedList.getPropertyUnsafe("0").getId());
+        assertNull(reloadedList.getPropertyUnsafe("1"));
+        assertEquals(actor.getId(), gdb.getNodeUnsafe(second.getId()).getCNode().getId());
+        assertEquals(first.getCTime(), gdb.getNodeUnsafe(first.getId()).getCTime());
+        assertEquals(1, gdb.getAuthorizationRuleIndex().getSize());
+    }
+
+    @Test
+    public void nodeStoreSurvivesChurn() throws UnvalidatedJournalSegment, IOException, ParseException {
+        GraphDatabase gdb = TestUtilities.initTestDb();
+        Node root = gdb.getInstanceNode();
+        ArrayList<Node> live = new ArrayList<>();
+        ArrayList<Node> removed = new ArrayList<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 5000; i++) {
+            live.add(gdb.newNode("data:text/plain," + i, root, null));
+            if (random.nextInt(3) == 0) { // Removals leave holes part way through probe runs, which lookups must still see past
+                Node victim = live.remove(random.nextInt(live.size()));
+                gdb.unregisterNodeUnsafe(victim);
+                removed.add(victim);
+            }
+        }
+        for (Node node : live) {
+            assertEquals(node, gdb.getNodeUnsafe(node.getId()));
+        }
+        for (Node node : removed) {
+            assertNull(gdb.getNodeUnsafe(node.getId()));
+        }
+        assertEquals(live.size() + 1, gdb.getAllNodesUnsafe().length);
+    }
+
+    @Test
+    public void mutationsJournaledStructurally() throws UnvalidatedJournalSegment, IOException, DuplicatePropertyException, ParseException, NoSuchMethodException, ClosedJournalException, QueryException {
+        GraphDatabase gdb = TestUtilities.initTestDb();
+        Node root = gdb.getInstanceNode();
+        GrantQuery grantQuery = (GrantQuery) Query.fromString("GRANT READ,WRITE ON /owned WHERE @creator === / DELEGATABLE", root);
+        UUID ruleId = grantQuery.runGrantQuery(gdb);
+        gdb.recordQuery(grantQuery);
+        Node actor = gdb.newNode(null, root, null);
+        Node list = gdb.newNode("list", actor, "schema:example");
+        Node first = gdb.newNode("data:text/plain,first", actor, "schema:example");
+        list.addPropertyUnsafe("0", first);
+        gdb.getOpenJournal().registerEntry(new AddRelationJournalEntry(root, list, "0", first));
+        DeleteQuery deleteQuery = (DeleteQuery) Query.fromString("DELETE {" + list.getId() + "}/0", root);
+        assertTrue(deleteQuery.runDeleteQuery(gdb));
+        assertEquals(Arrays.asList(first.getId()), deleteQuery.getDeletedNodes());
+        gdb.recordQuery(deleteQuery);
+        gdb.shutdown();
+
+        for (File segmentFile : TestUtilities.getDataDirectory().listFiles((dir, name) -> name.endsWith(".journal.dgc"))) {
+            String segment = Files.readString(segmentFile.toPath());
+            assertFalse(segment.contains("\"QUERY\""));
+        }
+
+        gdb = TestUtilities.reloadTestDb();
+        assertNull(gdb.getNodeUnsafe(first.getId()));
+        assertNull(gdb.getNodeUnsafe(list.getId()).getPropertyUnsafe("0"));
+        assertEquals(1, gdb.getAuthorizationRuleIndex().getSize());
+        AuthorizationRule rule = gdb.getAuthorizationRuleIndex().getCandidates(actor).iterator().next();
+        assertEquals(ruleId, rule.getUuid());
+        assertTrue(rule.isDelegatable());
+        assertEquals("/owned", rule.getValidFor()[0].toString());
+        assertEquals(Arrays.asList("@creator", "===", "/"), rule.getConditionComponents());
+    }
+
+    @Test
+    public void snapshotReplacesEarlierSegments() throws UnvalidatedJournalSegment, IOException, DuplicatePropertyException, ParseException, NoSuchMethodException, ClosedJournalException {
+        GraphDatabase gdb = TestUtilities.initTestDb();
+        gdb.shutdown();
+
+        String snapshotConfig = TestUtilities.writeTestConfig("snapshot_interval", 1);
+        gdb = new GraphDatabase(snapshotConfig, true);
+        Node root = gdb.getInstanceNode();
+        GrantQuery grantQuery = (GrantQuery) Query.fromString("GRANT READ WHERE @creator === /", root);
+        grantQuery.runGrantQuery(gdb);
+        gdb.recordQuery(grantQuery);
+        Node actor = gdb.newNode(null, root, null);
+        Node list = gdb.newNode("list", actor, "schema:example");
+        Node first = gdb.newNode("data:text/plain,first", actor, "schema:example");
+        list.addPropertyUnsafe("0", first);
+        gdb.getOpenJournal().registerEntry(new AddRelationJournalEntry(root, list, "0", first));
+        gdb.shutdown();
+
+        for (File segmentFile : TestUtilities.getDataDirectory().listFiles((dir, name) -> name.endsWith(".journal.dgc"))) {
+            segmentFile.delete(); // Everything must now come from the snapshot
+        }
+
+        gdb = new GraphDatabase(snapshotConfig, true);
+        Node reloadedList = gdb.getNodeUnsafe(list.getId());
+        Node reloadedActor = gdb.getNodeUnsafe(actor.getId());
+        assertEquals("list", reloadedList.getDataUnsafe());
+        assertEquals(first.getId(), reloadedList.getPropertyUnsafe("0").getId());
+        assertEquals(actor.getId(), reloadedList.getCNode().getId());
+        assertEquals(first.getCTime(), gdb.getNodeUnsafe(first.getId()).getCTime());
+        assertEquals(1, gdb.getAuthorizationRuleIndex().getSize());
+        assertTrue(Arrays.asList(gdb.getPermsOnNode(reloadedActor, reloadedList)).contains(AuthorizedAction.READ));
+    }
+
+    @Test
+    public void snapshotReplaysSegmentsArrivingLate() throws UnvalidatedJournalSegment, IOException, ParseException {
+        GraphDatabase gdb = TestUtilities.initTestDb();
+        gdb.shutdown();
+
+        gdb = TestUtilities.reloadTestDb();
+        Node late = gdb.newNode("data:text/plain,late", gdb.getInstanceNode(), "schema:example");
+        File lateSegment = new File(TestUtilities.getDataDirectory(), gdb.getOpenJournal().getId() + ".journal.dgc");
+        gdb.shutdown();
+        File setAside = new File(lateSegment.getPath() + ".away");
+        Files.move(lateSegment.toPath(), setAside.toPath());
+
+        // A snapshot written without the segment, which then turns up with an older id than the snapshot
+        String snapshotConfig = TestUtilities.writeTestConfig("snapshot_interval", 1);
+        gdb = new GraphDatabase(snapshotConfig, true);
+        Node later = gdb.newNode("data:text/plain,later", gdb.getInstanceNode(), "schema:example");
+        gdb.shutdown();
+        Files.move(setAside.toPath(), lateSegment.toPath());
+
+        gdb = new GraphDatabase(snapshotConfig, true);
+        assertEquals("data:text/plain,late", gdb.getNodeUnsafe(late.getId()).getDataUnsafe());
+        assertEquals("data:text/plain,later", gdb.getNodeUnsafe(later.getId()).getDataUnsafe());
+        gdb.shutdown();
+
+        gdb = new GraphDatabase(snapshotConfig, true); // Now in the snapshot, so mustn't be replayed again on top of it
+        assertEquals("data:text/plain,late", gdb.getNodeUnsafe(late.getId()).getDataUnsafe());
+        gdb.shutdown();
+    }
+
+    @Test
+    public void snapshotWrittenWhileRunning() throws UnvalidatedJournalSegment, IOException, ParseException, InterruptedException {
+        GraphDatabase gdb = TestUtilities.initTestDb();
+        gdb.shutdown();
+
+        gdb = new GraphDatabase(TestUtilities.writeTestConfig(Map.of("snapshot_interval", 1, "journal_lifetime", 1)), true);
+        Node node = gdb.newNode("data:text/plain,running", gdb.getInstanceNode(), "schema:example");
+        File dataDirectory = TestUtilities.getDataDirectory();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (dataDirectory.listFiles((dir, name) -> name.endsWith(".snapshot.dgc")).length == 0 && System.currentTimeMillis() < deadline) { // Written by the rotation thread, not at shutdown
+            Thread.sleep(100);
+        }
+        File[] snapshots = dataDirectory.listFiles((dir, name) -> name.endsWith(".snapshot.dgc"));
+        assertEquals(1, snapshots.length);
+        JournalSegment snapshot = new JournalSegment(gdb, snapshots[0]);
+        assertTrue(snapshot.isSnapshot());
+        gdb.shutdown();
+
+        gdb = TestUtilities.reloadTestDb();
+        assertEquals("data:text/plain,running", gdb.getNodeUnsafe(node.getId()).getDataUnsafe());
+        gdb.shutdown();
+    }
+
+    @Test
+    public void compactionFoldsEarlierSegments() throws UnvalidatedJournalSegment, IOException, DuplicatePropertyException, ParseException, NoSuchMethodException, ClosedJournalException, QueryException {
+        GraphDatabase gdb = TestUtilities.initTestDb();
+        Node root = gdb.getInstanceNode();
+        Node list = gdb.newNode("list", root, "schema:example");
+        Node first = gdb.newNode("data:text/plain,first", root, "schema:example");
+        Node second = gdb.newNode("data:text/plain,second", root, "schema:example");
+        list.addPropertyUnsafe("0", second);
+        gdb.getOpenJournal().registerEntry(new AddRelationJournalEntry(root, list, "0", second));
+        DeleteQuery deleteQuery = (DeleteQuery) Query.fromString("DELETE {" + second.getId() + "}", root);
+        assertTrue(deleteQuery.runDeleteQuery(gdb));
+        gdb.recordQuery(deleteQuery);
+        list.addPropertyUnsafe("0", first);
+        gdb.getOpenJournal().registerEntry(new AddRelationJournalEntry(root, list, "0", first));
+        gdb.shutdown(true);
+
+        File dataDirectory = TestUtilities.getDataDirectory();
+        assertEquals(0, dataDirectory.listFiles((dir, name) -> name.endsWith(".journal.dgc")).length);
+        assertEquals(1, dataDirectory.listFiles((dir, name) -> name.endsWith(".compacted.dgc")).length);
+
+        gdb = TestUtilities.reloadTestDb();
+        assertEquals(first.getId(), gdb.getNodeUnsafe(list.getId()).getPropertyUnsafe("0").getId());
+        assertNull(gdb.getNodeUnsafe(second.getId()));
+        Node third = gdb.newNode("data:text/plain,third", gdb.getInstanceNode(), "schema:example");
+        gdb.shutdown();
+
+        gdb = TestUtilities.reloadTestDb(); // Segments written after the compaction replay on top of it
+        assertEquals("data:text/plain,third", gdb.getNodeUnsafe(third.getId()).getDataUnsafe());
+        assertEquals(first.getId(), gdb.getNodeUnsafe(list.getId()).getPropertyUnsafe("0").getId());
+    }
+
+    @Test
+    public void compactionWhileRunning() throws UnvalidatedJournalSegment, IOException, ParseException, InterruptedException {
+        GraphDatabase gdb = TestUtilities.initTestDb();
+        gdb.shutdown();
+
+        gdb = new GraphDatabase(TestUtilities.writeTestConfig(Map.of("compaction_interval", 1, "journal_lifetime", 1)), true);
+        Node node = gdb.newNode("data:text/plain,running", gdb.getInstanceNode(), "schema:example");
+        File dataDirectory = TestUtilities.getDataDirectory();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (dataDirectory.listFiles((dir, name) -> name.endsWith(".compacted.dgc")).length == 0 && System.currentTimeMillis() < deadline) { // Compacted by the rotation thread, not at shutdown
+            Thread.sleep(100);
+        }
+        assertEquals(1, dataDirectory.listFiles((dir, name) -> name.endsWith(".compacted.dgc")).length);
+        Node later = gdb.newNode("data:text/plain,later", gdb.getInstanceNode(), "schema:example");
+        gdb.shutdown();
+
+        gdb = TestUtilities.reloadTestDb();
+        assertEquals("data:text/plain,running", gdb.getNodeUnsafe(node.getId()).getDataUnsafe());
+        assertEquals("data:text/plain,later", gdb.getNodeUnsafe(later.getId()).getDataUnsafe());
+        gdb.shutdown();
+    }
+
+    @Test
+    public void appendedJournalSurvivesCrash() throws UnvalidatedJournalSegment, IOException, DuplicatePropertyException, ParseException, ClosedJournalException {
+        GraphDatabase gdb = TestUtilities.initTestDb();
+        gdb.shutdown();
+
+        String appendConfig = TestUtilities.writeTestConfig("journal_format", "append");
+        gdb = new GraphDatabase(appendConfig, true);
+        Node root = gdb.getInstanceNode();
+        Node list = gdb.newNode("list", root, "schema:example");
+        Node first = gdb.newNode("data:text/plain,first", root, "schema:example");
+        list.addPropertyUnsafe("0", first);
+        gdb.getOpenJournal().registerEntry(new AddRelationJournalEntry(root, list, "0", first));
+
+        // Crash without sealing the segment, part way through writing another group
+        File segmentFile = new File(TestUtilities.getDataDirectory(), gdb.getOpenJournal().getId() + ".journal.dgc");
+        try (FileOutputStream tornWrite = new FileOutputStream(segmentFile, true)) {
+            tornWrite.write(new byte[] {0, 0, 1, 0, 42, 42});
+        }
+
+        gdb = new GraphDatabase(appendConfig, true);
+        assertEquals("list", gdb.getNodeUnsafe(list.getId()).getDataUnsafe());
+        assertEquals(first.getId(), gdb.getNodeUnsafe(list.getId()).getPropertyUnsafe("0").getId());
+        gdb.shutdown();
+
+        gdb = new GraphDatabase(appendConfig, true); // The recovered segment is now sealed, so must validate as normal
+        assertEquals(first.getId(), gdb.getNodeUnsafe(list.getId()).getPropertyUnsafe("0").getId());
+    }
+
+    @Test
+    public void appendedJournalSurvivesCrashMidRotation() throws UnvalidatedJournalSegment, IOException, ParseException {
+        GraphDatabase gdb = TestUtilities.initTestDb();
+        gdb.shutdown();
+
+        String appendConfig = TestUtilities.writeTestConfig("journal_format", "append");
+        gdb = new GraphDatabase(appendConfig, true);
+        Node first = gdb.newNode("data:text/plain,first", gdb.getInstanceNode(), "schema:example");
+        File sealingFile = new File(TestUtilities.getDataDirectory(), gdb.getOpenJournal().getId() + ".journal.dgc");
+        File setAside = new File(sealingFile.getPath() + ".away");
+        Files.move(sealingFile.toPath(), setAside.toPath()); // So the next start doesn't recover it
+        try (FileOutputStream tornWrite = new FileOutputStream(setAside, true)) {
+            tornWrite.write(new byte[] {0, 0, 1, 0, 42, 42});
+        }
+
+        // Its successor has already taken writes, but the crash comes before the segment being rotated out is sealed
+        gdb = new GraphDatabase(appendConfig, true);
+        Node second = gdb.newNode("data:text/plain,second", gdb.getInstanceNode(), "schema:example");
+        Files.move(setAside.toPath(), sealingFile.toPath());
+
+        gdb = new GraphDatabase(appendConfig, true);
+        assertEquals("data:text/plain,first", gdb.getNodeUnsafe(first.getId()).getDataUnsafe());
+        assertEquals("data:text/plain,second", gdb.getNodeUnsafe(second.getId()).getDataUnsafe());
+        gdb.shutdown();
+    }
+
+    @Test
+    public void damagedAppendedJournalRejected() throws UnvalidatedJournalSegment, IOException, ParseException {
+        GraphDatabase gdb = TestUtilities.initTestDb();
+        gdb.shutdown();
+
+        String appendConfig = TestUtilities.writeTestConfig("journal_format", "append");
+        gdb = new GraphDatabase(appendConfig, true);
+        Node root = gdb.getInstanceNode();
+        gdb.newNode("data:text/plain,first", root, "schema:example");
+        gdb.newNode("data:text/plain,second", root, "schema:example");
+        File segmentFile = new File(TestUtilities.getDataDirectory(), gdb.getOpenJournal().getId() + ".journal.dgc");
+        gdb.shutdown();
+
+        // Damage the first group, leaving the groups after it and the seal in place
+        byte[] contents = Files.readAllBytes(segmentFile.toPath());
+        int bodyStart = new String(contents, StandardCharsets.ISO_8859_1).indexOf("\r\n\r\n") + 4;
+        contents[bodyStart + 4] ^= 1;
+        Files.write(segmentFile.toPath(), contents);
+
+        assertThrows(UnvalidatedJournalSegment.class, () -> new GraphDatabase(appendConfig, true));
+        assertArrayEquals(contents, Files.readAllBytes(segmentFile.toPath())); // Never cut back and signed again
+    }
+
+    @Test
+    public void journalRotatesInBackground() throws UnvalidatedJournalSegment, IOException, ParseException, DuplicatePropertyException, ClosedJournalException, InterruptedException {
+        GraphDatabase gdb = TestUtilities.initTestDb();
+        gdb.shutdown();
+
+        String rotatingConfig = TestUtilities.writeTestConfig("journal_lifetime", 1);
+        gdb = new GraphDatabase(rotatingConfig, true);
+        Node root = gdb.getInstanceNode();
+        JournalSegment heldSegment = gdb.getOpenJournal();
+        Node before = gdb.newNode("before", root, null);
+        Thread.sleep(1500);
+        assertTrue(!heldSegment.isOpen());
+        Node after = gdb.newNode("after", root, null);
+        heldSegment.registerEntry(new AddRelationJournalEntry(root, before, "next", after)); // Forwarded to the segment that replaced it
+        before.addPropertyUnsafe("next", after);
+        gdb.shutdown();
+
+        gdb = new GraphDatabase(rotatingConfig, true);
+        assertEquals("before", gdb.getNodeUnsafe(before.getId()).getDataUnsafe());
+        assertEquals(after.getId(), gdb.getNodeUnsafe(before.getId()).getPropertyUnsafe("next").getId());
+        gdb.shutdown();
+    }
+
+    @Test
+    public void payloadsStoredOffHeap() throws UnvalidatedJournalSegment, IOException, ParseException {
+        GraphDatabase gdb = TestUtilities.initTestDb();
+        gdb.shutdown();
+
+        String payloadConfig = TestUtilities.writeTestConfig("payload_store_threshold", 64);
+        gdb = new GraphDatabase(payloadConfig, true);
+        Node root = gdb.getInstanceNode();
+        byte[] blob = new byte[4096];
+        new Random(7).nextBytes(blob);
+        String blobUrl = "data:application/octet-stream;base64," + Base64.getEncoder().encodeToString(blob);
+        String textUrl = "data:text/plain," + "a%20b".repeat(32);
+        Node binary = gdb.newNode(blobUrl, root, null);
+        Node text = gdb.newNode(textUrl, root, null);
+        Node small = gdb.newNode("data:text/plain,small", root, null);
+        assertTrue(TestUtilities.getDataDirectory().listFiles((dir, name) -> name.endsWith(PayloadStore.FILE_SUFFIX)).length > 0);
+        assertEquals(blobUrl, binary.getDataUnsafe());
+        assertEquals(ByteBuffer.wrap(blob), NodePath.metaPropRaw(gdb, binary, "@parsed_data", root));
+        assertEquals("a b".repeat(32), NodePath.metaProp(gdb, text, "@data", root));
+        assertEquals("small", NodePath.metaProp(gdb, small, "@data", root));
+        gdb.shutdown();
+
+        gdb = new GraphDatabase(payloadConfig, true); // The store is rebuilt from the journal
+        assertEquals(blobUrl, gdb.getNodeUnsafe(binary.getId()).getDataUnsafe());
+        assertEquals(textUrl, gdb.getNodeUnsafe(text.getId()).getDataUnsafe());
+        assertEquals(ByteBuffer.wrap(blob), NodePath.metaPropRaw(gdb, gdb.getNodeUnsafe(binary.getId()), "@parsed_data", gdb.getInstanceNode()));
+        gdb.shutdown();
+    }
+
+    @Test
+    public void propertyMapHandlesEveryKeyShape() {
+        NodePropertyMap<String> map = new NodePropertyMap<>();
+        HashMap<String, String> expected = new HashMap<>();
+        String[] names = {"name", "topping", "0", "1", "2", "007", "1000000", "999999999", "9999999999", "a_b", "c", "d", "e", "f", "g", "h", "i", "j"};
+        for (String name : names) {
+            map.put(name, "v" + name);
+            expected.put(name, "v" + name);
+        }
+        assertEquals(expected, map);
+        assertNull(map.get("7"));
+        assertNull(map.get("never_used_anywhere"));
+        assertEquals("v0", map.put("0", "replaced"));
+        expected.put("0", "replaced");
+        for (String name : new String[] {"1", "007", "1000000", "name", "e", "j"}) {
+            assertEquals(expected.remove(name), map.remove(name));
+        }
+        assertNull(map.remove("1"));
+        assertEquals(expected, map);
+        assertEquals(expected.keySet(), new HashSet<>(Arrays.asList(map.keySet().toArray(new String[0]))));
+    }
+
+    @Test
+    public void arrayAppendTracksHighestIndex() throws UnvalidatedJournalSegment, IOException, ParseException, DuplicatePropertyException, ClosedJournalException {
+        GraphDatabase gdb = TestUtilities.initTestDb();
+        Node root = gdb.getInstanceNode();
+        SecurityContext securityContext = new SecurityContext(gdb, root);
+        Node list = gdb.newNode("list", root, null);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(String.valueOf(i), list.addProperty(securityContext, "#", gdb.newNode(null, root, null)));
+        }
+        list.removePropertyUnsafe("999");
+        list.removePropertyUnsafe("998");
+        list.removePropertyUnsafe("500");
+        assertEquals(998, list.nextArrayIndexUnsafe());
+        list.addPropertyUnsafe("5000", gdb.newNode(null, root, null)); // Too sparse for the dense array
+        assertEquals(5001, list.nextArrayIndexUnsafe());
+        list.removePropertyUnsafe("5000");
+        assertEquals(998, list.nextArrayIndexUnsafe());
+        list.addPropertyUnsafe("01000", gdb.newNode(null, root, null)); // Numeric, though not an array index as written
+        assertEquals(1001, list.nextArrayIndexUnsafe());
+        list.removePropertyUnsafe("01000");
+        for (int i = 0; i < 998; i++) {
+            list.removePropertyUnsafe(String.valueOf(i));
+        }
+        assertEquals(0, list.nextArrayIndexUnsafe());
+
+        Node appended = gdb.newNode(null, root, null);
+        assertEquals("0", list.addProperty(securityContext, "#", appended));
+        gdb.getOpenJournal().registerEntry(new AddRelationJournalEntry(root, list, "#", appended)); // As older journals recorded it
+        gdb.shutdown();
+
+        gdb = TestUtilities.reloadTestDb();
+        assertEquals(appended.getId(), gdb.getNodeUnsafe(list.getId()).getPropertyUnsafe("0").getId());
+        assertEquals(1, gdb.getNodeUnsafe(list.getId()).nextArrayIndexUnsafe());
+    }
+
+    @Test
+    public void popularNodesUnlinkQuickly() throws UnvalidatedJournalSegment, IOException, ParseException, DuplicatePropertyException, NoSuchMethodException, QueryException {
+        GraphDatabase gdb = TestUtilities.initTestDb();
+        Node root = gdb.getInstanceNode();
+        Node type = gdb.newNode("data:text/plain,type", root, null);
+        ArrayList<Node> members = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            Node member = gdb.newNode(null, root, null);
+            member.addPropertyUnsafe("type", type);
+            members.add(member);
+        }
+        root.addPropertyUnsafe("type", type);
+        assertEquals(20001, type.getReferrers(new SecurityContext(gdb, root), "type").length);
+        ReferencesQuery countQuery = (ReferencesQuery) Query.fromString("REFERENCES {" + type.getId() + "} COUNT", root);
+        assertTrue(countQuery.isCountQuery());
+        assertEquals(20001, countQuery.runReferencesCountQuery(gdb).get("type"));
+
+        for (int i = 0; i < members.size(); i += 2) {
+            assertTrue(members.get(i).removePropertyUnsafe("type"));
+        }
+        assertEquals(10001, type.getAllReferrersUnsafe().get("type").size());
+        assertTrue(type.getAllReferrersUnsafe().get("type").contains(members.get(1)));
+        assertFalse(type.getAllReferrersUnsafe().get("type").contains(members.get(0)));
+        type.completeUnlinkUnsafe();
+        assertTrue(type.getAllReferrersUnsafe().isEmpty());
+        assertNull(members.get(1).getPropertyUnsafe("type"));
+        assertNull(root.getPropertyUnsafe("type"));
+    }
+
+    @Test
+    public void nodeOnlyMatchesAgreeWithPaths() throws UnvalidatedJournalSegment, IOException, ParseException, DuplicatePropertyException {
+        GraphDatabase gdb = TestUtilities.initTestDb();
+        Node root = gdb.getInstanceNode();
+        SecurityContext securityContext = new SecurityContext(gdb, root);
+        Node list = gdb.newNode(null, root, null);
+        Node beans = gdb.newNode("beans", root, null);
+        Node toast = gdb.newNode("toast", root, null);
+        list.addProperty(securityContext, "topping", beans);
+        list.addProperty(securityContext, "substance", toast);
+        list.addProperty(securityContext, "#", beans);
+        list.addProperty(securityContext, "#", toast);
+        list.addProperty(securityContext, "007", toast); // Numeric, but kept in the key dictionary rather than the dense array
+
+        for (String path : new String[] {"{" + list.getId() + "}/*", "{" + list.getId() + "}/#", "{" + list.getId() + "}/@creator", "**/#", "**/topping", "**/{" + list.getId() + "}/*", "**/@creator"}) {
+            RelativeNodePath rnp = new RelativeNodePath(path);
+            Map<AbsoluteNodePath, Node> withPaths = rnp.getMatchingNodeMap(securityContext, new NodePathContext(root), SearchSpace.EVERYTHING);
+            Node[] nodesOnly = rnp.getMatchingNodes(securityContext, new NodePathContext(root), SearchSpace.EVERYTHING);
+            if (path.startsWith("**")) { // Each matching node once, rather than once per path
+                assertEquals(new HashSet<>(withPaths.values()), new HashSet<>(Arrays.asList(nodesOnly)), path);
+                assertEquals(new HashSet<>(withPaths.values()).size(), nodesOnly.length, path);
+            } else {
+                ArrayList<Node> expected = new ArrayList<>(withPaths.values());
+                expected.sort((a, b) -> a.getId().compareTo(b.getId()));
+                ArrayList<Node> actual = new ArrayList<>(Arrays.asList(nodesOnly));
+                actual.sort((a, b) -> a.getId().compareTo(b.getId()));
+                assertEquals(expected, actual, path);
+            }
+        }
+        assertEquals(3, new RelativeNodePath("{" + list.getId() + "}/#").getMatchingNodes(securityContext, new NodePathContext(root), null).length);
+        assertEquals(5, new RelativeNodePath("{" + list.getId() + "}/*").getMatchingNodes(securityContext, new NodePathContext(root), null).length);
+        gdb.shutdown();
+    }
+
+    @Test
+    public void globalPathsMatchFromEitherEnd() throws UnvalidatedJournalSegment, IOException, ParseException, DuplicatePropertyException {
+        GraphDatabase gdb = TestUtilities.initTestDb();
+        Node root = gdb.getInstanceNode();
+        SecurityContext securityContext = new SecurityContext(gdb, root);
+        Random random = new Random(7);
+        Node[] people = new Node[40];
+        for (int i = 0; i < people.length; i++) {
+            people[i] = gdb.newNode("data:text/plain,person" + i, root, null);
+            people[i].addProperty(securityContext, "friends", gdb.newNode(null, root, null));
+        }
+        for (Node person : people) {
+            for (int i = 0; i < 5; i++) {
+                person.getPropertyUnsafe("friends").addProperty(securityContext, "#", people[random.nextInt(people.length)]);
+            }
+        }
+
+        SearchSpace[] searchSpaces = {SearchSpace.EVERYTHING, SearchSpace.of(gdb.getAllNodesUnsafe()), SearchSpace.of(Arrays.copyOfRange(people, 0, 3)), SearchSpace.of(people[5])};
+        for (String tail : new String[] {"friends/#", "friends/#/friends/*", "friends/#/friends/#/@creator"}) {
+            // A ** after the literal stops it being walked forwards, but matches the same nodes
+            RelativeNodePath planned = new RelativeNodePath("**/{" + people[0].getId() + "}/" + tail);
+            RelativeNodePath backwards = new RelativeNodePath("**/{" + people[0].getId() + "}/**/" + tail);
+            for (SearchSpace searchSpace : searchSpaces) {
+                HashSet<Node> expected = new HashSet<>(Arrays.asList(backwards.getMatchingNodes(securityContext, new NodePathContext(root), searchSpace)));
+                Node[] matches = planned.getMatchingNodes(securityContext, new NodePathContext(root), searchSpace);
+                assertEquals(expected, new HashSet<>(Arrays.asList(matches)), tail);
+                assertEquals(expected.size(), matches.length, tail);
+
+                HashSet<Node> viaPaths = new HashSet<>();
+                for (AbsoluteNodePath path : planned.getMatchingPathMap(securityContext, new NodePathContext(root), searchSpace)) {
+                    assertTrue(path.toString().startsWith("{" + people[0].getId() + "}/friends/"), path.toString());
+                    viaPaths.add(path.getNodeFrom(gdb, securityContext));
+                }
+                assertEquals(expected, viaPaths, tail);
+            }
+        }
+        gdb.shutdown();
+    }
+
+    @Test
+    public void absolutePathsResolveThroughCache() throws UnvalidatedJournalSegment, IOException, ParseException, DuplicatePropertyException, InvalidMetaPropertyException {
+        GraphDatabase gdb = TestUtilities.initTestDb();
+        Node root = gdb.getInstanceNode();
+        SecurityContext securityContext = new SecurityContext(gdb, root);
+        Node parent = gdb.newNode(null, root, null);
+        Node child = gdb.newNode("data:text/plain,child", root, "schema:example");
+        parent.addProperty(securityContext, "child", child);
+
+        AbsoluteNodePath path = new AbsoluteNodePath("{" + parent.getId() + "}/child");
+        assertEquals(child, path.getNodeFrom(gdb, securityContext));
+        assertEquals(child, new AbsoluteNodePath("{" + parent.getId().toString().toUpperCase() + "}/child/").getNodeFrom(gdb, securityContext));
+        assertEquals("{" + child.getId() + "}", new AbsoluteNodePath("{" + parent.getId() + "}/child/@id").eval(securityContext));
+        assertEquals("schema:example", new AbsoluteNodePath("{" + parent.getId() + "}/child/@schema").eval(securityContext));
+        assertEquals("{" + parent.getId() + "}/child", new AbsoluteNodePath("{" + parent.getId() + "}/child/@path").eval(securityContext));
+        assertNull(new AbsoluteNodePath("{not-an-id}/child").getNodeFrom(gdb, securityContext));
+
+        // A cached context keeps what it resolved for the rest of its query, while others see the change
+        SecurityContext cachedContext = new SecurityContext(gdb, root, new PathResolutionCache());
+        assertEquals(child, path.getNodeFrom(gdb, cachedContext));
+        parent.removeProperty(securityContext, "child");
+        assertNull(path.getNodeFrom(gdb, securityContext));
+        assertEquals(child, new AbsoluteNodePath("{" + parent.getId() + "}/child").getNodeFrom(gdb, cachedContext));
+        gdb.shutdown();
+    }
+
+    @Test
+    public void selectStopsAtLimit() throws UnvalidatedJournalSegment, IOException, ParseException, DuplicatePropertyException, NoSuchMethodException, InvalidMetaPropertyException {
+        GraphDatabase gdb = TestUtilities.initTestDb();
+        Node root = gdb.getInstanceNode();
+        SecurityContext securityContext = new SecurityContext(gdb, root);
+        for (int i = 0; i < 5; i++) {
+            Node item = gdb.newNode(null, root, "schema:item");
+            item.addProperty(securityContext, "name", gdb.newNode("data:text/plain,item" + i, root, null));
+        }
+
+        List<String> all = BasicTests.selectNames("SELECT name FROM ** INSTANCEOF \"schema:item\"", root, gdb);
+        assertEquals(5, all.size());
+        assertEquals(all.subList(0, 2), BasicTests.selectNames("SELECT name FROM ** INSTANCEOF \"schema:item\" LIMIT 2", root, gdb));
+        assertEquals(all.subList(3, 5), BasicTests.selectNames("SELECT name FROM ** INSTANCEOF \"schema:item\" OFFSET 3 LIMIT 5", root, gdb));
+        assertEquals(0, BasicTests.selectNames("SELECT name FROM ** INSTANCEOF \"schema:item\" LIMIT 0", root, gdb).size());
+
+        List<String> descending = BasicTests.selectNames("SELECT name FROM ** INSTANCEOF \"schema:item\" DESC", root, gdb);
+        assertEquals(descending.subList(1, 3), BasicTests.selectNames("SELECT name FROM ** INSTANCEOF \"schema:item\" DESC LIMIT 2 OFFSET 1", root, gdb));
+        assertEquals(descending.subList(4, 5), BasicTests.selectNames("SELECT name FROM ** INSTANCEOF \"schema:item\" DESC LIMIT 2000000000 OFFSET 4", root, gdb));
+        assertEquals(0, BasicTests.selectNames("SELECT name FROM ** INSTANCEOF \"schema:item\" DESC LIMIT 2000000000 OFFSET 2000000000", root, gdb).size());
+        gdb.shutdown();
+    }
+
+    @Test
+    public void conditionLiteralsHandleEdgeCases() throws UnvalidatedJournalSegment, IOException, ParseException, DuplicatePropertyException {
+        GraphDatabase gdb = TestUtilities.initTestDb();
+        Node root = gdb.getInstanceNode();
+        SecurityContext securityContext = new SecurityContext(gdb, root);
+        Node actor = gdb.newNode("data:text/plain,me", root, null);
+        Node object = gdb.newNode(null, root, null);
+        object.addProperty(securityContext, "owner", actor);
+        object.addProperty(securityContext, "#", actor);
+        NodePathContext context = new NodePathContext(actor, object);
+        String actorId = CompiledLiteral.compile("/@id").toValue(gdb, securityContext, context);
+
+        assertEquals("{" + actor.getId() + "}", actorId);
+        assertEquals(CompiledLiteral.compile("owner").toValue(gdb, securityContext, context), CompiledLiteral.compile("/").toValue(gdb, securityContext, context)); // Splits into no components at all
+        assertEquals(actorId, CompiledLiteral.compile("./0/@id").toValue(gdb, securityContext, context));
+        assertEquals(actorId, CompiledLiteral.compile("{" + object.getId() + "}/owner/@id").toValue(gdb, securityContext, context));
+        assertEquals("quoted", CompiledLiteral.compile("\"quoted\"").toValue(gdb, securityContext, context));
+        assertNull(CompiledLiteral.compile("./@id").toValue(gdb, securityContext, new NodePathContext(actor))); // No object to start from
+        assertNull(CompiledLiteral.compile("{not-an-id}/@id").toValue(gdb, securityContext, context));
+        assertNull(CompiledLiteral.compile("missing/owner/@id").toValue(gdb, securityContext, context));
+
+        Condition condition = Condition.fromComponents(gdb, new LinkedList<>(List.of("./@id", "==", "/@id")));
+        assertFalse(condition.eval(securityContext, new NodePathContext(actor))); // Uncompiled, with no object
+        condition.compile();
+        assertFalse(condition.eval(securityContext, new NodePathContext(actor)));
+        assertTrue(condition.eval(securityContext, new NodePathContext(actor, actor)));
+        gdb.shutdown();
+    }
+
+    private static List<String> selectNames(String query, Node actor, GraphDatabase gdb) throws ParseException, NoSuchMethodException, InvalidMetaPropertyException {
+        List<String> names = new ArrayList<>();
+        for (Map<String, Tuple<String, String>> row : ((SelectQuery) Query.fromString(query, actor)).runSelectQuery(gdb)) {
+            names.add(row.get("name").y);
+        }
+        return names;
+    }
+
+    @Test
+    public void concurrentQueriesStayConsistent() throws Exception {
+        GraphDatabase gdb = TestUtilities.initTestDb();
+        Node root = gdb.getInstanceNode();
+        SecurityContext securityContext = new SecurityContext(gdb, root);
+
+        // Writers to nodes on different stripes, and readers, all hold their locks at the same time
+        NodeLockStripes locks = gdb.getNodeLocks();
+        Node first = gdb.newNode(null, root, null);
+        Node second = gdb.newNode(null, root, null);
+        while (locks.stripeOf(second) == locks.stripeOf(first)) {
+            second = gdb.newNode(null, root, null);
+        }
+        first.addPropertyUnsafe("other", second);
+        ExecutorService pool = Executors.newFixedThreadPool(12);
+        CountDownLatch allHeld = new CountDownLatch(4);
+        ArrayList<Future<Boolean>> holders = new ArrayList<>();
+        for (Node node : new Node[] {first, second}) {
+            holders.add(pool.submit(() -> {
+                NodeLockStripes.WriteLocks held = locks.lockForWrite(node);
+                try {
+                    allHeld.countDown();
+                    return allHeld.await(10, TimeUnit.SECONDS);
+                } finally {
+                    held.unlock();
+                }
+            }));
+        }
+        for (int i = 0; i < 2; i++) {
+            holders.add(pool.submit(() -> {
+                Lock queryLock = gdb.getQueryLock(QueryType.SELECT);
+                queryLock.lock();
+                try {
+                    allHeld.countDown();
+                    return allHeld.await(10, TimeUnit.SECONDS);
+                } finally {
+                    queryLock.unlock();
+                }
+            }));
+        }
+        for (Future<Boolean> holder : holders) {
+            assertTrue(holder.get());
+        }
+
+        int writers = 8;
+        int appends = 400;
+        Node shared = gdb.newNode("shared", root, null);
+        Node[] lists = new Node[writers];
+        for (int i = 0; i < writers; i++) {
+            lists[i] = gdb.newNode("list " + i, root, null);
+        }
+        AtomicBoolean writing = new AtomicBoolean(true);
+        ArrayList<Future<?>> tasks = new ArrayList<>();
+        for (int i = 0; i < writers; i++) {
+            Node list = lists[i];
+            tasks.add(pool.submit(() -> {
+                Lock queryLock = gdb.getQueryLock(QueryType.LINK);
+                for (int j = 0; j < appends; j++) {
+                    Node item = gdb.newNode(null, root, null);
+                    queryLock.lock();
+                    try {
+                        list.addPropertyAndJournal(securityContext, "#", item, false);
+                        shared.addPropertyAndJournal(securityContext, "#", item, false);
+                        if (j % 4 == 3) {
+                            assertTrue(list.removePropertyAndJournal(securityContext, String.valueOf(j - 1)));
+                        }
+                    } finally {
+                        queryLock.unlock();
+                    }
+                }
+                return null;
+            }));
+        }
+        for (int i = 0; i < 3; i++) {
+            tasks.add(pool.submit(() -> {
+                int lastSize = 0;
+                while (writing.get()) {
+                    Lock queryLock = gdb.getQueryLock(QueryType.SELECT);
+                    queryLock.lock();
+                    try {
+                        Map<String, Node> items = shared.getProperties(securityContext);
+                        assertTrue(items.size() >= lastSize); // Only ever appended to
+                        lastSize = items.size();
+                        for (Map.Entry<String, Node> item : items.entrySet()) {
+                            assertTrue(Arrays.asList(item.getValue().getReferrers(securityContext, item.getKey())).contains(shared));
+                        }
+                        new RelativeNodePath("{" + lists[lastSize % writers].getId() + "}/#").getMatchingNodes(securityContext, new NodePathContext(root), null);
+                    } finally {
+                        queryLock.unlock();
+                    }
+                }
+                return null;
+            }));
+        }
+        tasks.add(pool.submit(() -> {
+            for (int i = 0; i < 5; i++) {
+                Query grantQuery = Query.fromString("GRANT READ WHERE @creator_id == /@id", root);
+                Lock queryLock = gdb.getQueryLock(grantQuery.getQueryType());
+                queryLock.lock();
+                try {
+                    ((GrantQuery) grantQuery).runGrantQuery(gdb);
+                    gdb.recordQuery(grantQuery);
+                } finally {
+                    queryLock.unlock();
+                }
+                Thread.sleep(20);
+            }
+            return null;
+        }));
+        for (int i = 0; i < writers; i++) {
+            tasks.get(i).get();
+        }
+        writing.set(false);
+        for (Future<?> task : tasks) {
+            task.get(); // Rethrows anything a reader or writer hit
+        }
+        pool.shutdown();
+
+        // Every append to the shared list got its own index, and both sides of every link agree
+        assertEquals(writers * appends, shared.getPropertiesUnsafe().size());
+        assertEquals(writers * appends, shared.nextArrayIndexUnsafe());
+        for (int i = 0; i < writers; i++) {
+            assertEquals(appends - appends / 4, lists[i].getPropertiesUnsafe().size());
+            for (Map.Entry<String, Node> item : lists[i].getPropertiesUnsafe().entrySet()) {
+                assertTrue(Arrays.asList(item.getValue().getReferrers(securityContext, item.getKey())).contains(lists[i]));
+                assertEquals(2, item.getValue().countAllReferrers(securityContext).values().stream().mapToInt(Integer::intValue).sum()); // Its list and the shared one
+            }
+        }
+        gdb.shutdown();
+
+        GraphDatabase reloaded = TestUtilities.reloadTestDb(); // Replaying the journal gives the same graph
+        for (Node list : lists) {
+            assertEquals(list.getPropertiesUnsafe().keySet(), reloaded.getNodeUnsafe(list.getId()).getPropertiesUnsafe().keySet());
+        }
+        assertEquals(writers * appends, reloaded.getNodeUnsafe(shared.getId()).getPropertiesUnsafe().size());
+        reloaded.shutdown();
+    }
 }
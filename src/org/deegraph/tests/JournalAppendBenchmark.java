@@ -0,0 +1,76 @@
+package org.deegraph.tests;
+
+import org.deegraph.database.GraphDatabase;
+import org.deegraph.database.JournalSegment;
+import org.deegraph.database.QueryJournalEntry;
+import org.deegraph.exceptions.ClosedJournalException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+/**
+ * Measures journal writes per second in the append format at different group commit sizes, with several threads
+ * writing at once so there is something for groups to gather. Every write waits for its fsync, as a real one would.
+ *
+ * Usage: JournalAppendBenchmark [writes per thread] [threads] [group sizes...] (defaults to 2,000, 8 and 1 8 64 256)
+ */
+public class JournalAppendBenchmark {
+    public static void main(String[] args) throws Exception {
+        int writesPerThread = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+        int threadCount = (args.length > 1) ? Integer.parseInt(args[1]) : 8;
+        int[] groupSizes = new int[] {1, 8, 64, 256};
+        if (args.length > 2) {
+            groupSizes = new int[args.length - 2];
+            for (int i = 2; i < args.length; i++) {
+                groupSizes[i - 2] = Integer.parseInt(args[i]);
+            }
+        }
+
+        for (int groupSize : groupSizes) {
+            File dataDirectory = Files.createTempDirectory("deegraph-bench").toFile();
+            File configFile = new File(dataDirectory, "bench.json");
+            JSONObject config = new JSONObject();
+            config.put("fqdn", "bench.deegraph.org");
+            config.put("data_directory", dataDirectory.getAbsolutePath());
+            config.put("journal_format", "append");
+            config.put("journal_group_commit_size", groupSize);
+            config.put("journal_lifetime", 3600);
+            config.put("snapshot_interval", 0);
+            try (FileWriter configWriter = new FileWriter(configFile)) {
+                configWriter.write(config.toString(4));
+            }
+            GraphDatabase gdb = new GraphDatabase(configFile.getAbsolutePath());
+            JournalSegment segment = gdb.getOpenJournal();
+            long syncsBefore = segment.getSyncCount();
+
+            ArrayList<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < threadCount; t++) {
+                threads.add(new Thread(() -> {
+                    for (int i = 0; i < writesPerThread; i++) {
+                        try {
+                            gdb.getOpenJournal().registerEntry(new QueryJournalEntry("LINK {" + gdb.getInstanceId() + "} AS benchmark", gdb.getInstanceId()));
+                        } catch (ClosedJournalException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                }));
+            }
+            long start = System.nanoTime();
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            long elapsedMs = Math.max((System.nanoTime() - start) / 1000000, 1);
+            long writes = (long) writesPerThread * threadCount;
+            long syncs = Math.max(segment.getSyncCount() - syncsBefore, 1);
+            System.out.println("Group size " + groupSize + ": " + writes + " writes in " + elapsedMs + "ms (" + ((writes * 1000L) / elapsedMs) + " writes/s, " + (writes / syncs) + " writes per fsync)");
+
+            gdb.shutdown();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package org.deegraph.tests;
+
+import org.deegraph.database.GraphDatabase;
+import org.deegraph.database.NewNodeJournalEntry;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.file.Files;
+import java.util.Date;
+import java.util.UUID;
+
+/**
+ * Replays a synthetic journal of nodes originating from a foreign instance, which exercises the
+ * (original id, original instance id) lookup done for every NEW_NODE entry.
+ *
+ * Usage: JournalReplayBenchmark [node count] (defaults to 1,000,000)
+ */
+public class JournalReplayBenchmark {
+    public static void main(String[] args) throws Exception {
+        int nodeCount = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+
+        File dataDirectory = Files.createTempDirectory("deegraph-bench").toFile();
+        File configFile = new File(dataDirectory, "bench.json");
+        JSONObject config = new JSONObject();
+        config.put("fqdn", "bench.deegraph.org");
+        config.put("data_directory", dataDirectory.getAbsolutePath());
+        try (FileWriter configWriter = new FileWriter(configFile)) {
+            configWriter.write(config.toString(4));
+        }
+
+        GraphDatabase gdb = new GraphDatabase(configFile.getAbsolutePath());
+        UUID peerInstanceId = GraphDatabase.instanceFQDNToUUID("peer.deegraph.org");
+        UUID peerCreatorId = UUID.randomUUID();
+
+        NewNodeJournalEntry[] entries = new NewNodeJournalEntry[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            UUID id = UUID.randomUUID();
+            Date now = new Date();
+            entries[i] = new NewNodeJournalEntry(id, id, peerInstanceId, peerCreatorId, peerCreatorId, null, null, now, now, null);
+        }
+
+        System.out.println("Replaying " + nodeCount + " foreign NEW_NODE entries");
+        long start = System.nanoTime();
+        long lastReport = start;
+        for (int i = 0; i < nodeCount; i++) {
+            entries[i].replayOn(gdb, null);
+            if (System.nanoTime() - lastReport > 5000000000L) {
+                lastReport = System.nanoTime();
+                System.out.println("    " + i + " entries replayed after " + ((lastReport - start) / 1000000) + "ms");
+            }
+        }
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+        System.out.println("Replayed " + nodeCount + " entries in " + elapsedMs + "ms (" + ((nodeCount * 1000L) / Math.max(elapsedMs, 1)) + " entries/s)");
+
+        gdb.shutdown();
+    }
+}
@@ -0,0 +1,69 @@
+package org.deegraph.tests;
+
+import org.deegraph.database.AddRelationJournalEntry;
+import org.deegraph.database.GraphDatabase;
+import org.deegraph.database.Node;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.file.Files;
+
+/**
+ * Measures how much heap each node costs once the database has been loaded from its journal. Nodes are created with
+ * a short payload, and optionally linked into a chain so the figure includes a property and a referrer per node.
+ *
+ * Usage: NodeStoreMemoryBenchmark [node count] [link] (defaults to 200,000 unlinked nodes)
+ */
+public class NodeStoreMemoryBenchmark {
+    public static void main(String[] args) throws Exception {
+        int nodeCount = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+        boolean link = (args.length > 1) && args[1].equals("link");
+
+        File dataDirectory = Files.createTempDirectory("deegraph-bench").toFile();
+        File configFile = new File(dataDirectory, "bench.json");
+        JSONObject config = new JSONObject();
+        config.put("fqdn", "bench.deegraph.org");
+        config.put("data_directory", dataDirectory.getAbsolutePath());
+        config.put("journal_format", "binary");
+        config.put("snapshot_interval", 0);
+        try (FileWriter configWriter = new FileWriter(configFile)) {
+            configWriter.write(config.toString(4));
+        }
+
+        System.out.println("Creating " + nodeCount + " nodes");
+        GraphDatabase gdb = new GraphDatabase(configFile.getAbsolutePath());
+        Node root = gdb.getInstanceNode();
+        Node previous = null;
+        for (int i = 0; i < nodeCount; i++) {
+            Node node = gdb.newNode("data:text/plain," + i, root, null);
+            if (link && previous != null) {
+                previous.addPropertyUnsafe("next", node);
+                gdb.getOpenJournal().registerEntry(new AddRelationJournalEntry(root, previous, "next", node));
+            }
+            previous = node;
+        }
+        gdb.shutdown();
+        gdb = null;
+        previous = null;
+        root = null;
+
+        long baseline = NodeStoreMemoryBenchmark.usedHeap();
+        long start = System.nanoTime();
+        gdb = new GraphDatabase(configFile.getAbsolutePath());
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+        long used = NodeStoreMemoryBenchmark.usedHeap() - baseline;
+        System.out.println("Loaded " + gdb.getAllNodesUnsafe().length + " nodes in " + elapsedMs + "ms");
+        System.out.println("Heap used: " + (used / (1024 * 1024)) + "MiB (" + (used / nodeCount) + " bytes per node)");
+        gdb.shutdown();
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -1,5 +1,6 @@
 package org.deegraph.tests;
 
+import org.deegraph.conditions.Condition;
 import org.deegraph.database.*;
 import org.deegraph.exceptions.DuplicatePropertyException;
 import org.deegraph.exceptions.UnvalidatedJournalSegment;
@@ -10,7 +11,13 @@ import org.junit.jupiter.api.Test;
 import java.io.IOException;
 import java.text.ParseException;
 
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class PermissionSystemTests {
 
@@ -33,13 +40,13 @@ public class PermissionSystemTests {
         nodeB.addProperty(new SecurityContext(gdb, originalCreator), "substance" ,nodeD);
 
         RelativeNodePath rnp = new RelativeNodePath("{" + nodeB.getId() + "}/topping");
-        Node[] allNodes = rnp.getMatchingNodes(new SecurityContext(gdb, originalCreator), new NodePathContext(originalCreator), gdb.getAllNodesUnsafe());
+        Node[] allNodes = rnp.getMatchingNodes(new SecurityContext(gdb, originalCreator), new NodePathContext(originalCreator), SearchSpace.EVERYTHING);
         for (Node node: allNodes) {
             assertEquals(node.getData(new SecurityContext(gdb, originalCreator)), "beans");
         }
 
         rnp = new RelativeNodePath("{" + nodeB.getId() + "}/substance");
-        allNodes = rnp.getMatchingNodes(new SecurityContext(gdb, originalCreator), new NodePathContext(originalCreator), gdb.getAllNodesUnsafe());
+        allNodes = rnp.getMatchingNodes(new SecurityContext(gdb, originalCreator), new NodePathContext(originalCreator), SearchSpace.EVERYTHING);
         for (Node node: allNodes) {
             assertEquals(node.getData(new SecurityContext(gdb, originalCreator)), "toast");
         }
@@ -47,7 +54,102 @@ public class PermissionSystemTests {
         Node otherActor = gdb.newNode(null, gdb.getInstanceNode(), null);
 
         rnp = new RelativeNodePath("{" + nodeB.getId() + "}/substance");
-        allNodes = rnp.getMatchingNodes(new SecurityContext(gdb, otherActor), new NodePathContext(otherActor), gdb.getAllNodesUnsafe());
+        allNodes = rnp.getMatchingNodes(new SecurityContext(gdb, otherActor), new NodePathContext(otherActor), SearchSpace.EVERYTHING);
         assertEquals(allNodes.length, 0);
     }
+
+    @Test
+    public void permissionCacheInvalidation() throws UnvalidatedJournalSegment, IOException, DuplicatePropertyException, ParseException, NoSuchMethodException {
+        gdb = TestUtilities.initTestDb();
+
+        Node actor = gdb.newNode(null, gdb.getInstanceNode(), null);
+        Node object = gdb.newNode("secret", gdb.getInstanceNode(), null);
+
+        assertFalse(Arrays.asList(gdb.getPermsOnNode(actor, object)).contains(AuthorizedAction.READ));
+        long hits = gdb.getPermissionCache().getHits();
+        assertFalse(Arrays.asList(gdb.getPermsOnNode(actor, object)).contains(AuthorizedAction.READ));
+        assertEquals(hits + 1, gdb.getPermissionCache().getHits());
+
+        GrantQuery grantQuery = (GrantQuery) Query.fromString("GRANT READ WHERE owner === /", gdb.getInstanceNode());
+        grantQuery.runGrantQuery(gdb);
+        assertFalse(Arrays.asList(gdb.getPermsOnNode(actor, object)).contains(AuthorizedAction.READ));
+
+        Node other = gdb.newNode("unrelated", gdb.getInstanceNode(), null);
+        assertFalse(Arrays.asList(gdb.getPermsOnNode(actor, other)).contains(AuthorizedAction.READ));
+        object.addPropertyUnsafe("owner", actor); // A rule traverses this edge, so the cached denial must be dropped
+        assertTrue(Arrays.asList(gdb.getPermsOnNode(actor, object)).contains(AuthorizedAction.READ));
+        hits = gdb.getPermissionCache().getHits();
+        assertFalse(Arrays.asList(gdb.getPermsOnNode(actor, other)).contains(AuthorizedAction.READ));
+        assertEquals(hits + 1, gdb.getPermissionCache().getHits()); // Out of the rule's reach of the edge, so still cached
+
+        object.removePropertyUnsafe("owner");
+        assertFalse(Arrays.asList(gdb.getPermsOnNode(actor, object)).contains(AuthorizedAction.READ));
+
+        AuthorizedAction[] read = {AuthorizedAction.READ};
+        assertTrue(new AuthorizationRule(new RelativeNodePath[] {new RelativeNodePath("./**")}, null, read, false).isGlobal());
+        assertTrue(new AuthorizationRule(null, Condition.fromComponents(gdb, new LinkedList<>(List.of("**/owner", "===", "/"))), read, false).isGlobal());
+        assertFalse(new AuthorizationRule(null, Condition.fromComponents(gdb, new LinkedList<>(List.of("@data", "==", "\"**\""))), read, false).isGlobal()); // Only a quoted value, never followed
+    }
+
+    @Test
+    public void ruleIndexCandidates() throws UnvalidatedJournalSegment, IOException, DuplicatePropertyException, ParseException, NoSuchMethodException {
+        gdb = TestUtilities.initTestDb();
+
+        Node actorA = gdb.newNode(null, gdb.getInstanceNode(), null);
+        Node actorB = gdb.newNode(null, gdb.getInstanceNode(), null);
+        Node object = gdb.newNode("secret", gdb.getInstanceNode(), null);
+        int unindexed = gdb.getAuthorizationRuleIndex().getUnindexedCount();
+
+        GrantQuery grantQuery = (GrantQuery) Query.fromString("GRANT READ WHERE /@id == \"{" + actorA.getId() + "}\"", gdb.getInstanceNode());
+        grantQuery.runGrantQuery(gdb);
+        grantQuery = (GrantQuery) Query.fromString("GRANT WRITE ON {" + object.getId() + "}", gdb.getInstanceNode());
+        grantQuery.runGrantQuery(gdb);
+        assertEquals(unindexed, gdb.getAuthorizationRuleIndex().getUnindexedCount()); // Both rules should have been bucketed
+
+        assertTrue(Arrays.asList(gdb.getPermsOnNode(actorA, object)).contains(AuthorizedAction.READ));
+        assertFalse(Arrays.asList(gdb.getPermsOnNode(actorB, object)).contains(AuthorizedAction.READ));
+        assertTrue(Arrays.asList(gdb.getPermsOnNode(actorB, object)).contains(AuthorizedAction.WRITE));
+        assertFalse(Arrays.asList(gdb.getPermsOnNode(actorB, actorA)).contains(AuthorizedAction.WRITE));
+
+        Node group = gdb.newNode(null, gdb.getInstanceNode(), null);
+        Node admin = gdb.newNode(null, gdb.getInstanceNode(), null);
+        grantQuery = (GrantQuery) Query.fromString("GRANT DELETE ON {" + group.getId() + "}/admin", gdb.getInstanceNode());
+        grantQuery.runGrantQuery(gdb);
+        assertEquals(unindexed, gdb.getAuthorizationRuleIndex().getUnindexedCount()); // Bucketed under the literal the path starts from
+        assertFalse(Arrays.asList(gdb.getPermsOnNode(actorB, admin)).contains(AuthorizedAction.DELETE));
+        group.addPropertyUnsafe("admin", admin);
+        assertTrue(Arrays.asList(gdb.getPermsOnNode(actorB, admin)).contains(AuthorizedAction.DELETE));
+        assertFalse(Arrays.asList(gdb.getPermsOnNode(actorB, group)).contains(AuthorizedAction.DELETE));
+    }
+
+    @Test
+    public void visibleNodesStayCurrent() throws UnvalidatedJournalSegment, IOException, DuplicatePropertyException, ParseException, NoSuchMethodException {
+        gdb = TestUtilities.initTestDb();
+
+        Node actor = gdb.newNode(null, gdb.getInstanceNode(), null);
+        Node owned = gdb.newNode("mine", actor, null);
+        Node shared = gdb.newNode("shared", gdb.getInstanceNode(), null);
+        assertFalse(Arrays.asList(gdb.getAllVisibleNodes(actor)).contains(owned));
+
+        GrantQuery grantQuery = (GrantQuery) Query.fromString("GRANT READ WHERE @creator === /", gdb.getInstanceNode());
+        grantQuery.runGrantQuery(gdb);
+        assertTrue(Arrays.asList(gdb.getAllVisibleNodes(actor)).contains(owned)); // Worked out again after the new rule
+
+        Node created = gdb.newNode("new", actor, null);
+        assertTrue(Arrays.asList(gdb.getAllVisibleNodes(actor)).contains(created)); // Caught up with the new node
+        assertFalse(Arrays.asList(gdb.getAllVisibleNodes(actor)).contains(shared));
+
+        grantQuery = (GrantQuery) Query.fromString("GRANT READ ON ./* WHERE @creator === /", gdb.getInstanceNode());
+        grantQuery.runGrantQuery(gdb);
+        assertFalse(Arrays.asList(gdb.getAllVisibleNodes(actor)).contains(shared));
+        long misses = gdb.getVisibilityCache().getMisses();
+        owned.addPropertyUnsafe("link", shared);
+        assertTrue(Arrays.asList(gdb.getAllVisibleNodes(actor)).contains(shared));
+        owned.removePropertyUnsafe("link");
+        assertFalse(Arrays.asList(gdb.getAllVisibleNodes(actor)).contains(shared));
+        gdb.unregisterNodeUnsafe(created);
+        assertFalse(Arrays.asList(gdb.getAllVisibleNodes(actor)).contains(created));
+        assertTrue(Arrays.asList(gdb.getAllVisibleNodes(actor)).contains(owned));
+        assertEquals(misses, gdb.getVisibilityCache().getMisses()); // Each change was caught up on rather than dropping the cached set
+    }
 }
@@ -0,0 +1,94 @@
+package org.deegraph.tests;
+
+import org.deegraph.database.GraphDatabase;
+import org.deegraph.database.Node;
+import org.deegraph.database.NodePathContext;
+import org.deegraph.database.RelativeNodePath;
+import org.deegraph.database.SearchSpace;
+import org.deegraph.database.SecurityContext;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Times ** paths through a named person on synthetic social graphs, where each person has a friends array and a few
+ * popular people turn up in far more of them than the rest. Each path is run as written, which lets the planner pick
+ * which end to walk from, and with a ** added after the named person, which leaves the backward walk from every
+ * candidate as the only way to match it.
+ *
+ * Usage: SocialGraphPathBenchmark [people] [friends each] (defaults to graphs of 2,000 and 10,000 people with 10
+ * friends each)
+ */
+public class SocialGraphPathBenchmark {
+    private static final int ITERATIONS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = (args.length > 0) ? new int[] {Integer.parseInt(args[0])} : new int[] {2000, 10000};
+        int friendsEach = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+        for (int size : sizes) {
+            SocialGraphPathBenchmark.run(size, friendsEach);
+        }
+    }
+
+    private static void run(int peopleCount, int friendsEach) throws Exception {
+        File dataDirectory = Files.createTempDirectory("deegraph-bench").toFile();
+        File configFile = new File(dataDirectory, "bench.json");
+        JSONObject config = new JSONObject();
+        config.put("fqdn", "bench.deegraph.org");
+        config.put("data_directory", dataDirectory.getAbsolutePath());
+        config.put("journal_format", "binary");
+        try (FileWriter configWriter = new FileWriter(configFile)) {
+            configWriter.write(config.toString(4));
+        }
+
+        GraphDatabase gdb = new GraphDatabase(configFile.getAbsolutePath());
+        Node root = gdb.getInstanceNode();
+        Random random = new Random(peopleCount);
+        Node[] people = new Node[peopleCount];
+        for (int i = 0; i < peopleCount; i++) {
+            people[i] = gdb.newNode("data:text/plain,person" + i, root, null);
+            people[i].addPropertyUnsafe("friends", gdb.newNode(null, root, null));
+        }
+        int popular = Math.max(1, peopleCount / 100);
+        for (Node person : people) {
+            Node friends = person.getPropertyUnsafe("friends");
+            for (int i = 0; i < friendsEach; i++) {
+                Node friend = (random.nextInt(4) == 0) ? people[random.nextInt(popular)] : people[random.nextInt(peopleCount)]; // A quarter of all friendships are with the popular few
+                friends.addPropertyUnsafe(String.valueOf(i), friend);
+            }
+        }
+        System.out.println(peopleCount + " people, " + friendsEach + " friends each (" + gdb.getAllNodesUnsafe().length + " nodes)");
+
+        SecurityContext securityContext = new SecurityContext(gdb, root);
+        Node subject = people[peopleCount - 1];
+        SearchSpace fewCandidates = SearchSpace.of(Arrays.copyOfRange(people, 0, 8));
+        for (String tail : new String[] {"friends/#", "friends/#/friends/#", "friends/#/friends/#/friends/#"}) {
+            String planned = "**/{" + subject.getId() + "}/" + tail;
+            String backwards = "**/{" + subject.getId() + "}/**/" + tail;
+            System.out.println("  " + tail);
+            SocialGraphPathBenchmark.time("every node", planned, backwards, securityContext, root, SearchSpace.EVERYTHING);
+            SocialGraphPathBenchmark.time("8 candidates", planned, backwards, securityContext, root, fewCandidates);
+        }
+        gdb.shutdown();
+    }
+
+    private static void time(String label, String planned, String backwards, SecurityContext securityContext, Node root, SearchSpace searchSpace) {
+        int matches = 0;
+        long[] elapsed = new long[2];
+        String[] paths = {planned, backwards};
+        for (int p = 0; p < paths.length; p++) {
+            RelativeNodePath path = new RelativeNodePath(paths[p]);
+            path.getMatchingNodes(securityContext, new NodePathContext(root), searchSpace); // Warm up
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                matches = path.getMatchingNodes(securityContext, new NodePathContext(root), searchSpace).length;
+            }
+            elapsed[p] = (System.nanoTime() - start) / ITERATIONS;
+        }
+        System.out.println(String.format("    %-13s %6d matches  planned %9.3fms  backwards only %9.3fms", label, matches, elapsed[0] / 1e6, elapsed[1] / 1e6));
+    }
+}
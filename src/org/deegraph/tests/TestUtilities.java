@@ -13,6 +13,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.ParseException;
 import java.util.Comparator;
+import java.util.Map;
 
 public class TestUtilities {
     protected static final String TEST_CONFIG_FILE = "./test.json";
@@ -50,4 +51,32 @@ public class TestUtilities {
         JSONObject config = new JSONObject(jsonBuilder.toString());
         return new GraphDatabase(TEST_CONFIG_FILE, true);
     }
+
+    public static File getDataDirectory() throws IOException {
+        JSONObject config = new JSONObject(Files.readString(Paths.get(TEST_CONFIG_FILE)));
+        return new File(config.getString("data_directory"));
+    }
+
+    /**
+     * Writes a copy of the test config with a single setting changed, pointing at the same data directory.
+     * @return The path of the new config file
+     */
+    public static String writeTestConfig(String key, Object value) throws IOException {
+        return writeTestConfig(Map.of(key, value));
+    }
+
+    /**
+     * Writes a copy of the test config with several settings changed, pointing at the same data directory.
+     * @return The path of the new config file
+     */
+    public static String writeTestConfig(Map<String, Object> settings) throws IOException {
+        JSONObject config = new JSONObject(Files.readString(Paths.get(TEST_CONFIG_FILE)));
+        for (Map.Entry<String, Object> setting : settings.entrySet()) {
+            config.put(setting.getKey(), setting.getValue());
+        }
+        File configFile = File.createTempFile("deegraph-test", ".json");
+        configFile.deleteOnExit();
+        Files.writeString(configFile.toPath(), config.toString(4));
+        return configFile.getAbsolutePath();
+    }
 }